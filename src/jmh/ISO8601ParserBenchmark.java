@@ -0,0 +1,64 @@
+package jmh;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import main.com.pcache.exceptions.PCacheException;
+import main.com.pcache.utils.Commons;
+
+import org.joda.time.format.ISODateTimeFormat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * ISO8601 parsing, the way Commons does it against plain Joda
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ISO8601ParserBenchmark
+{
+
+	private static final int _COUNT = 1000;
+
+	private List<String> _timestamps;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		_timestamps = VariableTimeseriesBenchmark._timestamps(0, _COUNT);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(_COUNT)
+	public void commons(Blackhole blackhole) throws PCacheException {
+
+		for (String timestamp : _timestamps) {
+			blackhole.consume(Commons.convertISO8601toMilis(timestamp));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(_COUNT)
+	public void joda(Blackhole blackhole) {
+
+		for (String timestamp : _timestamps) {
+			blackhole.consume(ISODateTimeFormat.dateTime()
+					.parseDateTime(timestamp).getMillis());
+		}
+	}
+
+}
@@ -0,0 +1,233 @@
+package jmh;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import main.com.pcache.DO.timeseries.VariableTimeseries;
+import main.com.pcache.DO.timeseries.store.StoreType;
+import main.com.pcache.exceptions.PCacheException;
+
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Microbenchmarks of a single VariableTimeseries, across series sizes and
+ * store types.
+ * 
+ * The series is a run of minute ticks. Batches of points are added past its
+ * end, updated / removed in its middle. Benchmarks that change the size of
+ * the series put it back the way it was around every invocation, so they
+ * don't measure a series that keeps on growing or shrinking.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class VariableTimeseriesBenchmark
+{
+
+	private static final long _START = 1262304000000L;
+	private static final long _STEP = 60000L;
+
+	@Param({"1000", "100000"})
+	public int size;
+
+	@Param({"TREEMAP", "COLUMNAR"})
+	public String storeType;
+
+	@Param({"100"})
+	public int batchSize;
+
+	private StoreType _storeType;
+
+	private List<String> _timestamps;
+	private List<String> _dataPoints;
+
+	// A batch past the end of the series and one in the middle of it
+	private List<String> _newTimestamps;
+	private List<String> _existingTimestamps;
+	private List<String> _batchDataPoints;
+
+	private String _quarter;
+	private String _threeQuarters;
+
+	private VariableTimeseries _timeseries;
+
+	@Setup(Level.Trial)
+	public void setupTrial() {
+
+		_storeType = StoreType.valueOf(storeType);
+
+		_timestamps = _timestamps(0, size);
+		_dataPoints = _dataPoints(size);
+
+		_newTimestamps = _timestamps(size, batchSize);
+		_existingTimestamps = _timestamps(size / 2, batchSize);
+		_batchDataPoints = _dataPoints(batchSize);
+
+		_quarter = _timestamps.get(size / 4);
+		_threeQuarters = _timestamps.get(3 * size / 4);
+	}
+
+	@Setup(Level.Iteration)
+	public void setupIteration() throws PCacheException {
+		_timeseries = new VariableTimeseries(_timestamps, _dataPoints, _storeType);
+	}
+
+	@Benchmark
+	public VariableTimeseries allocate() throws PCacheException {
+		return new VariableTimeseries(_timestamps, _dataPoints, _storeType);
+	}
+
+	@Benchmark
+	public void addPoints(Batch batch) throws PCacheException {
+		batch.added(_timeseries, _newTimestamps, _batchDataPoints);
+		_timeseries.addPoints(_newTimestamps, _batchDataPoints);
+	}
+
+	@Benchmark
+	public void updatePoints() throws PCacheException {
+		_timeseries.updatePoints(_existingTimestamps, _batchDataPoints);
+	}
+
+	@Benchmark
+	public void removePoints(Batch batch) throws PCacheException {
+		batch.removed(_timeseries, _existingTimestamps, _batchDataPoints);
+		_timeseries.removePoints(_existingTimestamps);
+	}
+
+	@Benchmark
+	public int getRangeFrom() throws PCacheException {
+		return _timeseries.getRangeFrom(_threeQuarters).size();
+	}
+
+	@Benchmark
+	public int getRangeTo() throws PCacheException {
+		return _timeseries.getRangeTo(_quarter).size();
+	}
+
+	@Benchmark
+	public int getRangeBetween() throws PCacheException {
+		return _timeseries.getRangeBetween(_quarter, _threeQuarters).size();
+	}
+
+	@Benchmark
+	public String toJson() {
+		return _timeseries.toJson();
+	}
+
+	@Benchmark
+	public long writeJson() throws IOException {
+		return _timeseries.writeJson(new DiscardingWriter());
+	}
+
+	/**
+	 * Undoes what addPoints / removePoints did to the series after every
+	 * invocation. The benchmark tells it what it did, rather than this
+	 * depending on the benchmark's state, which JMH would hand over as a
+	 * separate instance
+	 */
+	@State(Scope.Thread)
+	public static class Batch {
+
+		private VariableTimeseries _timeseries;
+		private List<String> _timestamps;
+		private List<String> _dataPoints;
+		private boolean _added;
+
+		void added(VariableTimeseries timeseries, List<String> timestamps,
+				List<String> dataPoints) {
+			_set(timeseries, timestamps, dataPoints, true);
+		}
+
+		void removed(VariableTimeseries timeseries, List<String> timestamps,
+				List<String> dataPoints) {
+			_set(timeseries, timestamps, dataPoints, false);
+		}
+
+		@TearDown(Level.Invocation)
+		public void tearDown() throws PCacheException {
+
+			if (_added) {
+				_timeseries.removePoints(_timestamps);
+			}
+
+			else {
+				_timeseries.addPoints(_timestamps, _dataPoints);
+			}
+		}
+
+		private void _set(VariableTimeseries timeseries, List<String> timestamps,
+				List<String> dataPoints, boolean added) {
+			_timeseries = timeseries;
+			_timestamps = timestamps;
+			_dataPoints = dataPoints;
+			_added = added;
+		}
+	}
+
+	static List<String> _timestamps(int from, int count) {
+
+		DateTimeFormatter printer = ISODateTimeFormat.dateTime()
+				.withZone(DateTimeZone.forOffsetHoursMinutes(5, 30));
+
+		List<String> timestamps = new ArrayList<>(count);
+		for (int i=from; i<from+count; i++) {
+			timestamps.add(printer.print(_START + i * _STEP));
+		}
+
+		return timestamps;
+	}
+
+	static List<String> _dataPoints(int count) {
+
+		List<String> dataPoints = new ArrayList<>(count);
+		for (int i=0; i<count; i++) {
+			dataPoints.add(String.valueOf(100 + (i % 50) * 0.25));
+		}
+
+		return dataPoints;
+	}
+
+	/**
+	 * Writes to nowhere, so that only the serializing is measured
+	 */
+	static class DiscardingWriter extends Writer {
+
+		@Override
+		public void write(char[] cbuf, int off, int len) {
+		}
+
+		@Override
+		public void write(String str, int off, int len) {
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+}
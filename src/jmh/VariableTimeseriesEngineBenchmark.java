@@ -0,0 +1,131 @@
+package jmh;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import main.com.pcache.DO.timeseries.store.StoreType;
+import main.com.pcache.engines.VariableTimeseriesEngine;
+import main.com.pcache.exceptions.PCacheException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Microbenchmarks of VariableTimeseriesEngine under concurrent use.
+ * 
+ * A set of series is allocated up front and every operation picks one of
+ * them at random. Run with -t to vary the no. of threads for the plain
+ * benchmarks; the readWrite group runs 3 readers against 1 writer.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class VariableTimeseriesEngineBenchmark
+{
+
+	@Param({"100"})
+	public int noOfTimeseries;
+
+	@Param({"1000"})
+	public int size;
+
+	@Param({"TREEMAP", "COLUMNAR"})
+	public String storeType;
+
+	private long[] _ids;
+	private List<String> _timestamps;
+	private List<String> _dataPoints;
+
+	// A handful of points in the middle of every series
+	private List<String> _modifiedTimestamps;
+	private List<String> _modifiedDataPoints;
+
+	@Setup(Level.Trial)
+	public void setup() throws PCacheException {
+
+		_timestamps = VariableTimeseriesBenchmark._timestamps(0, size);
+		_dataPoints = VariableTimeseriesBenchmark._dataPoints(size);
+
+		_modifiedTimestamps = _timestamps.subList(size / 2, size / 2 + 10);
+		_modifiedDataPoints = _dataPoints.subList(size / 2, size / 2 + 10);
+
+		_ids = new long[noOfTimeseries];
+		for (int i=0; i<noOfTimeseries; i++) {
+			_ids[i] = VariableTimeseriesEngine.allocate(_timestamps, _dataPoints,
+					StoreType.valueOf(storeType));
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws PCacheException {
+
+		for (long id : _ids) {
+			VariableTimeseriesEngine.deallocate(id);
+		}
+	}
+
+	/**
+	 * What each thread picks its series with
+	 */
+	@State(Scope.Thread)
+	public static class ThreadState {
+
+		Random random = new Random();
+
+		long id(VariableTimeseriesEngineBenchmark benchmark) {
+			return benchmark._ids[random.nextInt(benchmark._ids.length)];
+		}
+	}
+
+	@Benchmark
+	public int size(ThreadState state) throws PCacheException {
+		return VariableTimeseriesEngine.size(state.id(this));
+	}
+
+	@Benchmark
+	public long getAll(ThreadState state) throws PCacheException, IOException {
+		return VariableTimeseriesEngine.getAll(state.id(this))
+				.writeJson(new VariableTimeseriesBenchmark.DiscardingWriter());
+	}
+
+	@Benchmark
+	public void modifyPoints(ThreadState state) throws PCacheException {
+		VariableTimeseriesEngine.modifyPoints(state.id(this), 
+				_modifiedTimestamps, _modifiedDataPoints);
+	}
+
+	@Benchmark
+	@Group("readWrite")
+	@GroupThreads(3)
+	public long readWrite_getAll(ThreadState state) 
+			throws PCacheException, IOException {
+		return getAll(state);
+	}
+
+	@Benchmark
+	@Group("readWrite")
+	@GroupThreads(1)
+	public void readWrite_modifyPoints(ThreadState state) 
+			throws PCacheException {
+		modifyPoints(state);
+	}
+
+}
@@ -2,6 +2,9 @@ package main.com.pcache.DO;
 
 import main.com.pcache.exceptions.PCacheException;
 import main.com.pcache.utils.Commons;
+import main.com.pcache.utils.HeapSize;
+
+import org.joda.time.DateTimeZone;
 
 public class PCacheTimestamp implements Comparable<PCacheTimestamp>
 {
@@ -20,6 +23,25 @@ public class PCacheTimestamp implements Comparable<PCacheTimestamp>
 		}
 	}
 
+	/**
+	 * Constructor. Create a timestamp out of an already parsed timestamp
+	 * @param timestampMilis the timestamp in miliseconds since EPOC
+	 * @param timestamp the ISO8601 representation of the timestamp
+	 */
+	public PCacheTimestamp(long timestampMilis, String timestamp) {
+		this._timestamp = timestamp;
+		this._timestampMilis = timestampMilis;
+	}
+
+	/**
+	 * Get the timestamp in miliseconds since EPOC
+	 * @return the timestamp in miliseconds
+	 */
+	public long getTimestampMilis()
+	{
+		return this._timestampMilis;
+	}
+
 	/* (non-Javadoc)
 	 * @see java.lang.Object#hashCode()
 	 */
@@ -62,12 +84,27 @@ public class PCacheTimestamp implements Comparable<PCacheTimestamp>
 
 	}
 
+	/**
+	 * Estimate how much of the Java heap the timestamp takes, see HeapSize
+	 * @return the no. of bytes, its ISO8601 string included
+	 */
+	public long heapSize() {
+		return HeapSize.align(HeapSize.OBJECT + 8 + HeapSize.REFERENCE)
+				+ HeapSize.ofString(this._timestamp);
+	}
+
 	/* (non-Javadoc)
 	 * @see java.lang.Object#toString()
 	 */
 	@Override
 	public String toString()
 	{
+		// Timestamps that came in as miliseconds are written out in UTC
+		if (this._timestamp == null) {
+			return Commons.convertMilisToISO8601(this._timestampMilis, 
+					DateTimeZone.UTC);
+		}
+
 		return this._timestamp;
 	}
 	
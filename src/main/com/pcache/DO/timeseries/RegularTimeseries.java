@@ -0,0 +1,154 @@
+package main.com.pcache.DO.timeseries;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import main.com.pcache.DO.timeseries.store.TickStore;
+import main.com.pcache.DO.timeseries.store.ValueType;
+import main.com.pcache.exceptions.PCacheException;
+import main.com.pcache.utils.Commons;
+
+/**
+ * A timeseries whose points are at a fixed interval, i.e. minute bars.
+ *
+ * The start and the step of the series are given when it is allocated and
+ * the points are held in a TickStore, so looking a point up and cutting out
+ * a range are arithmetic instead of searches. Only points on the grid, at or
+ * after the start and less than TickStore.MAX_SLOTS steps apart, can be put
+ * into the series. It is always a DOUBLE series.
+ * Slots without a point are gaps.
+ *
+ * Everything else works the way it does for a VariableTimeseries.
+ */
+public class RegularTimeseries extends VariableTimeseries {
+
+	private final TickStore _store;
+
+	/**
+	 * Constructor. Initialize a regular timeseries
+	 * @param start the ISO8601 timestamp of the first point. The timestamps
+	 * 			are written out in its zone
+	 * @param step the interval between points in miliseconds
+	 * @param dataPoints the values, the i'th one at start + i * step. A null
+	 * 			or empty value is a gap
+	 * @throws PCacheException thrown if:
+	 * 			* The start isn't in ISO8601 format
+	 * 			* The step isn't positive
+	 * 			* One or more of the values isn't a number
+	 */
+	public RegularTimeseries(String start, long step, List<String> dataPoints)
+			throws PCacheException {
+
+		this(_newStore(start, step));
+
+		if (dataPoints == null) {
+			throw new PCacheException("DataPoints should not be null");
+		}
+
+		// Leave out the gaps
+		long[] timestamps = new long[dataPoints.size()];
+		List<String> values = new ArrayList<>(dataPoints.size());
+		int count = 0;
+
+		for (int i=0; i<dataPoints.size(); i++) {
+
+			String value = dataPoints.get(i);
+
+			if (value == null || value.isEmpty()) {
+				continue;
+			}
+
+			timestamps[count++] = _store.getStart() + i * step;
+			values.add(value);
+		}
+
+		long[] points = new long[count];
+		System.arraycopy(timestamps, 0, points, 0, count);
+
+		addPoints(points, values);
+	}
+
+	/**
+	 * Constructor. Create a regular timeseries out of an existing store
+	 * @param store the store to create the timeseries out of
+	 */
+	public RegularTimeseries(TickStore store) {
+		super(store, false, ValueType.DOUBLE);
+		this._store = store;
+	}
+
+	/**
+	 * @return the start of the grid in miliseconds
+	 */
+	public long getStart() {
+		return this._store.getStart();
+	}
+
+	/**
+	 * @return the start of the grid, in ISO8601 format
+	 */
+	public String getStartISO8601() {
+		return Commons.convertMilisToISO8601(this._store.getStart(),
+				this._store.getZone());
+	}
+
+	/**
+	 * @return the interval between points in miliseconds
+	 */
+	public long getStep() {
+		return this._store.getStep();
+	}
+
+	/**
+	 * Points have to be on the grid, less than TickStore.MAX_SLOTS steps
+	 * from the others, and values have to be numbers as in any DOUBLE series
+	 */
+	@Override
+	protected void _exceptIfCantHold(long[] timestamps,
+			List<String> dataPoints) throws PCacheException {
+
+		long first = Long.MAX_VALUE;
+		long last = Long.MIN_VALUE;
+
+		for (long timestamp : timestamps) {
+
+			if (!this._store.isOnGrid(timestamp)) {
+				throw new PCacheException("Some point(s) aren't on the " +
+						"interval of the timeseries");
+			}
+
+			first = Math.min(first, timestamp);
+			last = Math.max(last, timestamp);
+		}
+
+		// The points held back in the tail aren't in the store yet
+		if (timestamps.length > 0 && !this._store.canSpan(first,
+				Math.max(last, _lastTimestamp()))) {
+			throw new PCacheException("Some point(s) are too far from the " +
+					"others, the points of a regular timeseries have to be " +
+					"less than " + TickStore.MAX_SLOTS + " steps apart");
+		}
+
+		super._exceptIfCantHold(timestamps, dataPoints);
+	}
+
+	/**
+	 * Create the store of a series
+	 * @see #RegularTimeseries(String, long, List)
+	 */
+	private static TickStore _newStore(String start, long step)
+			throws PCacheException {
+
+		if (start == null) {
+			throw new PCacheException("The start should not be null");
+		}
+
+		if (step <= 0) {
+			throw new PCacheException("The step should be positive");
+		}
+
+		return new TickStore(Commons.convertISO8601toMilis(start),
+				step, Commons.extractISO8601Zone(start));
+	}
+
+}
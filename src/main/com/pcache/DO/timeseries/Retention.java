@@ -0,0 +1,102 @@
+package main.com.pcache.DO.timeseries;
+
+/**
+ * How long the points of a timeseries, and the series itself, are kept.
+ *
+ * A series can keep the points no older than a max age, counting back from
+ * its newest point rather than from now, and no more than a max no. of its
+ * newest points. Points past either limit are dropped by the engine's
+ * sweeper, not as they are written, so a series can be over them for up to
+ * a sweep. The series as a whole can expire at a given time, at which the
+ * sweeper deallocates it.
+ *
+ * Instances don't change, a series is given a new one to change its
+ * retention.
+ */
+public class Retention {
+
+	/**
+	 * Keep everything, forever
+	 */
+	public static final Retention NONE = new Retention(0, 0, 0);
+
+	private final long _maxAge;
+	private final int _maxPoints;
+	private final long _expiresAt;
+
+	/**
+	 * Constructor
+	 * @param maxAge the age of the oldest point to keep relative to the
+	 * 			newest one, in miliseconds. 0 for no limit
+	 * @param maxPoints the no. of newest points to keep, 0 for no limit
+	 * @param expiresAt when the series expires, in miliseconds since EPOC.
+	 * 			0 for never
+	 */
+	public Retention(long maxAge, int maxPoints, long expiresAt) {
+
+		if (maxAge < 0 || maxPoints < 0 || expiresAt < 0) {
+			throw new IllegalArgumentException("The limits of a retention " +
+					"can't be negative");
+		}
+
+		this._maxAge = maxAge;
+		this._maxPoints = maxPoints;
+		this._expiresAt = expiresAt;
+	}
+
+	/**
+	 * @return the age of the oldest point to keep relative to the newest
+	 * 			one in miliseconds, 0 if there is no limit
+	 */
+	public long getMaxAge() {
+		return this._maxAge;
+	}
+
+	/**
+	 * @return the no. of newest points to keep, 0 if there is no limit
+	 */
+	public int getMaxPoints() {
+		return this._maxPoints;
+	}
+
+	/**
+	 * @return when the series expires in miliseconds since EPOC, 0 if it
+	 * 			never does
+	 */
+	public long getExpiresAt() {
+		return this._expiresAt;
+	}
+
+	/**
+	 * @return true if points are dropped past an age or a count
+	 */
+	public boolean isLimited() {
+		return this._maxAge > 0 || this._maxPoints > 0;
+	}
+
+	/**
+	 * @param now the time, in miliseconds since EPOC
+	 * @return true if the series has expired by then
+	 */
+	public boolean isExpired(long now) {
+		return this._expiresAt > 0 && this._expiresAt <= now;
+	}
+
+	/**
+	 * @param maxAge the new max age, 0 for no limit
+	 * @param maxPoints the new max no. of points, 0 for no limit
+	 * @return a retention with the given limits that expires the same way
+	 */
+	public Retention withLimits(long maxAge, int maxPoints) {
+		return new Retention(maxAge, maxPoints, this._expiresAt);
+	}
+
+	/**
+	 * @param expiresAt the new time of expiry, 0 for never
+	 * @return a retention that expires then, with the same limits
+	 */
+	public Retention withExpiry(long expiresAt) {
+		return new Retention(this._maxAge, this._maxPoints, expiresAt);
+	}
+
+}
@@ -1,29 +1,148 @@
 package main.com.pcache.DO.timeseries;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.TreeMap;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import main.com.pcache.DO.PCacheTimestamp;
+import main.com.pcache.DO.timeseries.aggregation.Aggregation;
+import main.com.pcache.DO.timeseries.aggregation.Aggregator;
+import main.com.pcache.DO.timeseries.aggregation.Rollup;
+import main.com.pcache.DO.timeseries.aggregation.Summary;
+import main.com.pcache.DO.timeseries.resolution.Downsampler;
+import main.com.pcache.DO.timeseries.resolution.Resolution;
+import main.com.pcache.DO.timeseries.store.Adjustment;
+import main.com.pcache.DO.timeseries.store.CursorReader;
+import main.com.pcache.DO.timeseries.store.StoreProfile;
+import main.com.pcache.DO.timeseries.store.StoreType;
+import main.com.pcache.DO.timeseries.store.TimeseriesCursor;
+import main.com.pcache.DO.timeseries.store.TimeseriesStore;
+import main.com.pcache.DO.timeseries.store.TreeMapStore;
+import main.com.pcache.DO.timeseries.store.ValueArray;
+import main.com.pcache.DO.timeseries.store.ValueFunction;
+import main.com.pcache.DO.timeseries.store.ValueType;
 import main.com.pcache.exceptions.PCacheException;
 import main.com.pcache.utils.Commons;
+import main.com.pcache.utils.CountingWriter;
+import main.com.pcache.utils.HeapSize;
 
-import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
 
 /**
  * The central class for storing timeseries
+ * 
+ * A timeseries is safe to be used from multiple threads. Reads take a shared
+ * lock and so don't block each other, writes take an exclusive one. Ranges
+ * handed out by the getRange* functions share the lock of the series that
+ * they were cut out of since they may be views over the same store.
+ *
+ * A series is declared to hold a ValueType. Values of a LONG or a DOUBLE
+ * series are checked and parsed as they come in and held as primitives by
+ * the stores that can.
+ *
+ * A series allocated with StoreType.AUTO counts its reads and writes and is
+ * moved to the store that suits it best whenever adapt() is called, see
+ * StoreProfile.
+ *
+ * A LONG or DOUBLE series can keep rollup tiers, summaries of its points
+ * over buckets of time that bucketed resolutions and aggregations are read
+ * off instead of the points, see setRollups().
  */
 public class VariableTimeseries {
 
 	/**
-	 * The main treemap to represent the timeseries.
-	 * A treemap is favourable here because of the inbuilt ordering that comes
-	 * along with it. This allows the points that are inserted later on to 
-	 * find the right place. Also treemaps have a neat "submap" feature that
-	 * allows to get a subset of a map
+	 * The precision to write values out with as they are stored
 	 */
-	private Map<PCacheTimestamp, String> _timeseries;
+	public static final int FULL_PRECISION = -1;
+
+	/**
+	 * The store that holds the points of the timeseries. 
+	 * See StoreType for the kinds of stores available.
+	 */
+	private TimeseriesStore _timeseries;
+
+	/**
+	 * Guards _timeseries. Timestamps are parsed before it is taken so that 
+	 * the time spent holding it is only the time spent on the store.
+	 */
+	private final ReadWriteLock _lock;
+
+	/**
+	 * The type of the values the timeseries holds
+	 */
+	private final ValueType _valueType;
+
+	/**
+	 * Whether the store is picked by adapt(), and the reads and the points
+	 * written since it was last called. Writes are guarded by _lock, reads
+	 * only take the shared side of it and so are counted atomically
+	 */
+	private final boolean _adaptive;
+	private final AtomicLong _reads;
+	private long _writes;
+
+	/**
+	 * The rollup tiers of a numeric series, from the finest to the
+	 * coarsest. Kept up by every write, guarded by _lock
+	 */
+	private Rollup[] _rollups = _NO_ROLLUPS;
+
+	private static final Rollup[] _NO_ROLLUPS = new Rollup[0];
+
+	/**
+	 * How long the points and the series are kept, enforced by the engine
+	 */
+	private volatile Retention _retention = Retention.NONE;
+
+	/**
+	 * When the series was last touched (System.nanoTime()), and how much of
+	 * the heap it holds on to, -1 if it was written to since that was last
+	 * worked out. See touch() and heapSize()
+	 */
+	private volatile long _lastAccess;
+	private volatile long _heapSize = -1;
+
+	/**
+	 * Points written in timestamp order after the last point of the store,
+	 * held back in arrays and put into the store in one go. Appending a point
+	 * is then a write to the arrays rather than a search of the store.
+	 * Written under the write lock, and put into the store before anything
+	 * else works on it, see _readLock() and _writeLock(). The arrays start
+	 * small, grow up to _TAIL_CAPACITY and are dropped once put in. A run of
+	 * more points than they start out with goes into the store straight
+	 */
+	private long[] _tailTimestamps;
+	private String[] _tailTimestampsISO8601;
+	private String[] _tailDataPoints;
+	private volatile int _tailSize;
+
+	private static final int _TAIL_INITIAL_CAPACITY = 16;
+	private static final int _TAIL_CAPACITY = 4096;
+
+	/**
+	 * The kind of store the points were in before they were spilled off the
+	 * heap, null if they weren't. Changed under _lock, read without it to
+	 * check if a touch has anything to do
+	 */
+	private volatile StoreType _spilledFrom;
+
+	/**
+	 * Constructor. Initialize a time series backed by a TreeMap. 
+	 * @see #VariableTimeseries(List, List, StoreType)
+	 */
+	public VariableTimeseries (List<String> timestamps, 
+			List<String> dataPoints) throws PCacheException {
+
+		this(timestamps, dataPoints, StoreType.TREEMAP);
+	}
 
 	/**
 	 * Constructor. Initialize a time series. 
@@ -32,259 +151,1830 @@ public class VariableTimeseries {
 	 * 			i.e. YYYY-MM-DDTHH:MM:SS.SSS+Z (2014-03-30T20:13:00.000+05:30)
 	 * @param dataPoints the data points associated with the timestamps. They
 	 * 			SHOULD have a one to one correlation.
+	 * @param storeType the kind of store to hold the points in
 	 * @throws PCacheException thrown if the no. of timestamps do not match
 	 * 			the no. of data points
 	 */
 	public VariableTimeseries (List<String> timestamps, 
-			List<String> dataPoints) throws PCacheException {
+			List<String> dataPoints, StoreType storeType) 
+					throws PCacheException {
+
+		this(timestamps, dataPoints, storeType, ValueType.STRING);
+	}
+
+	/**
+	 * Constructor. Initialize a time series of a given type of values
+	 * @param timestamps an array of ISO8601 timestamps
+	 * @param dataPoints the data points associated with the timestamps
+	 * @param storeType the kind of store to hold the points in
+	 * @param valueType the type of the values
+	 * @throws PCacheException thrown if the no. of timestamps do not match
+	 * 			the no. of data points or a data point isn't of the type
+	 * @see #VariableTimeseries(List, List, StoreType)
+	 */
+	public VariableTimeseries (List<String> timestamps, 
+			List<String> dataPoints, StoreType storeType, ValueType valueType) 
+					throws PCacheException {
+
+		// Sanity Checks
+		_exceptIfLengthUnequal(timestamps, dataPoints);
+
+		// Declare a new store
+		_valueType = valueType;
+		_timeseries = storeType.newStore(valueType);
+		_lock = new ReentrantReadWriteLock();
+		_adaptive = storeType == StoreType.AUTO;
+		_reads = new AtomicLong();
+
+		long[] timestampsMilis = _toMilis(timestamps);
+		_exceptIfCantHold(timestampsMilis, dataPoints);
+
+		if (!_appendPoints(timestampsMilis, timestamps, dataPoints)) {
+			_addOrUpdatePoints(timestampsMilis, timestamps, dataPoints);
+		}
+
+	}
+
+	/**
+	 * Constructor. Initialize a time series out of already parsed timestamps
+	 * @param timestamps the timestamps in miliseconds since EPOC
+	 * @param dataPoints the data points associated with the timestamps. They
+	 * 			SHOULD have a one to one correlation.
+	 * @param storeType the kind of store to hold the points in
+	 * @throws PCacheException thrown if the no. of timestamps do not match
+	 * 			the no. of data points
+	 */
+	public VariableTimeseries (long[] timestamps, List<String> dataPoints, 
+			StoreType storeType) throws PCacheException {
+
+		this(timestamps, dataPoints, storeType, ValueType.STRING);
+	}
+
+	/**
+	 * Constructor. Initialize a time series of a given type of values out of
+	 * already parsed timestamps
+	 * @param timestamps the timestamps in miliseconds since EPOC
+	 * @param dataPoints the data points associated with the timestamps
+	 * @param storeType the kind of store to hold the points in
+	 * @param valueType the type of the values
+	 * @throws PCacheException thrown if the no. of timestamps do not match
+	 * 			the no. of data points or a data point isn't of the type
+	 * @see #VariableTimeseries(long[], List, StoreType)
+	 */
+	public VariableTimeseries (long[] timestamps, List<String> dataPoints, 
+			StoreType storeType, ValueType valueType) throws PCacheException {
 
 		// Sanity Checks
 		_exceptIfLengthUnequal(timestamps, dataPoints);
 
-		// Declare a new tree map
-		_timeseries = new TreeMap<PCacheTimestamp, String>();
+		// Declare a new store
+		_valueType = valueType;
+		_timeseries = storeType.newStore(valueType);
+		_lock = new ReentrantReadWriteLock();
+		_adaptive = storeType == StoreType.AUTO;
+		_reads = new AtomicLong();
+
+		_exceptIfCantHold(timestamps, dataPoints);
+
+		if (!_appendPoints(timestamps, null, dataPoints)) {
+			_addOrUpdatePoints(timestamps, null, dataPoints);
+		}
+
+	}
+
+	/**
+	 * Constructor. Create a variable timeseries out of an existing set
+	 * @param timeseries the Long - string mapping to create the 
+	 * 			variabletimeseries out of
+	 */
+	public VariableTimeseries(Map<PCacheTimestamp, String> timeseries) {
+		this(new TreeMapStore(timeseries));
+	}
+
+	/**
+	 * Constructor. Create a variable timeseries out of an existing store
+	 * @param timeseries the store to create the variabletimeseries out of
+	 */
+	public VariableTimeseries(TimeseriesStore timeseries) {
+		this(timeseries, false);
+	}
+
+	/**
+	 * Constructor. Create a variable timeseries out of an existing store
+	 * @param timeseries the store to create the variabletimeseries out of
+	 * @param adaptive true if the store is to be picked by adapt() from here
+	 * 			on, i.e. the series was allocated with StoreType.AUTO
+	 */
+	public VariableTimeseries(TimeseriesStore timeseries, boolean adaptive) {
+		this(timeseries, adaptive, ValueType.STRING);
+	}
+
+	/**
+	 * Constructor. Create a variable timeseries out of an existing store
+	 * @param timeseries the store to create the variabletimeseries out of
+	 * @param adaptive true if the store is to be picked by adapt() from here
+	 * 			on, i.e. the series was allocated with StoreType.AUTO
+	 * @param valueType the type of the values the store holds
+	 */
+	public VariableTimeseries(TimeseriesStore timeseries, boolean adaptive,
+			ValueType valueType) {
+		this(timeseries, new ReentrantReadWriteLock(), adaptive, valueType);
+	}
+
+	/**
+	 * Constructor. Create a variable timeseries out of a store that is
+	 * guarded by an existing lock
+	 * @param timeseries the store to create the variabletimeseries out of
+	 * @param lock the lock guarding the store
+	 * @param adaptive true if the store is to be picked by adapt()
+	 * @param valueType the type of the values the store holds
+	 */
+	private VariableTimeseries(TimeseriesStore timeseries, ReadWriteLock lock,
+			boolean adaptive, ValueType valueType) {
+		this._timeseries = timeseries;
+		this._lock = lock;
+		this._adaptive = adaptive;
+		this._valueType = valueType;
+		this._reads = new AtomicLong();
+		this._lastAccess = System.nanoTime();
+	}
+
+	/**
+	 * Get the size of the timeseries
+	 * @return the size of the timeseries
+	 */
+	public int size() {
+
+		_lockForRead();
+
+		try {
+			return this._timeseries.size();
+		}
+
+		finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Check if a given timestamp exists within the series
+	 * @param timestamp the timestamp to check for
+	 * @return true/false based on its existance
+	 * @throws PCacheException 
+	 */
+	public boolean contains(String timestamp) throws PCacheException {
+
+		long milis = Commons.convertISO8601toMilis(timestamp);
+
+		_lockForRead();
+
+		try {
+			return this._timeseries.containsKey(milis);
+		}
+
+		finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * A core procedure. This isn't called from the outside. 
+	 * Add or Update points inside the timeseries. The nature of the store 
+	 * allows us to do both of these things in the same call since the .put()
+	 * function will replace an existsing value if it exists
+	 * @param timestampsMilis the set of timestamps to add/update, already 
+	 * 			parsed
+	 * @param timestamps the ISO8601 representation of the timestamps, null 
+	 * 			if they came in as miliseconds
+	 * @param dataPoints the associated set of data to the timestamps. 
+	 * 			Note: there should be a one to one correlation between the
+	 * 			timestamps and the data points
+	 */
+	private void _addOrUpdatePoints(long[] timestampsMilis, 
+			List<String> timestamps, List<String> dataPoints) {
+
+		_writes += timestampsMilis.length;
+		_heapSize = -1;
+
+		// Points that all come after the last one can't replace any, so their
+		// old values needn't be looked up
+		boolean appending = _rollups.length > 0 && _isAppend(timestampsMilis);
+
+		// Go through all the timestamps
+		for (int i=0; i<timestampsMilis.length; i++) {
+
+			// A regular store can't take points off its interval
+			if (!_timeseries.canHold(timestampsMilis[i])) {
+				_moveTo(StoreType.COLUMNAR);
+			}
+
+			String old = _rollups.length > 0 && !appending
+					? _timeseries.get(timestampsMilis[i]) : null;
+
+			// Add or update the timestamp, datapoint
+			// Put does updates also. so 2 birds, one stone!
+			_timeseries.put(timestampsMilis[i], 
+					timestamps == null ? null : timestamps.get(i), 
+					dataPoints.get(i));
+
+			if (_rollups.length > 0) {
+				_rollUp(timestampsMilis[i], old, dataPoints.get(i));
+			}
+
+		}
+
+	}
+
+	/**
+	 * Add points to the timeseries
+	 * @param timestamps the set of timestamps to add
+	 * @param dataPoints the associated set of data points to add
+	 * @throws PCacheException thrown if timeseries isn't associated to the
+	 * 			datapoints or if the points already exist in the timeseries
+	 */
+	public void addPoints(List<String> timestamps,
+			List<String> dataPoints) throws PCacheException {
+
+		// Sanity checks
+		_exceptIfLengthUnequal(timestamps, dataPoints);
+
+		_addPoints(_toMilis(timestamps), timestamps, dataPoints);
+
+	}
+
+	/**
+	 * Add points to the timeseries
+	 * @param timestamps the set of timestamps to add, in miliseconds
+	 * @param dataPoints the associated set of data points to add
+	 * @throws PCacheException thrown if timeseries isn't associated to the
+	 * 			datapoints or if the points already exist in the timeseries
+	 */
+	public void addPoints(long[] timestamps,
+			List<String> dataPoints) throws PCacheException {
+
+		// Sanity checks
+		_exceptIfLengthUnequal(timestamps, dataPoints);
+
+		_addPoints(timestamps, null, dataPoints);
+
+	}
+
+	private void _addPoints(long[] timestampsMilis, List<String> timestamps,
+			List<String> dataPoints) throws PCacheException {
+
+		_writeLockKeepingTail();
+
+		try {
+			_exceptIfCantHold(timestampsMilis, dataPoints);
+
+			// New points at the end can't exist already
+			if (_appendPoints(timestampsMilis, timestamps, dataPoints)) {
+				return;
+			}
+
+			_flushTail();
+			_exceptIfPointsExist(timestampsMilis);
+
+			// Call the core procedure to add points into the timeseries
+			_addOrUpdatePoints(timestampsMilis, timestamps, dataPoints);
+		}
+
+		finally {
+			_lock.writeLock().unlock();
+		}
+
+	}
+
+	/**
+	 * Update points in the timeseries
+	 * @param timestamps the set of timestamps to update
+	 * @param dataPoints the associated set of data points to update
+	 * @throws PCacheException thrown if timeseries isn't associated to the
+	 * 			datapoints or if the points don't exist in the timeseries
+	 */
+	public void updatePoints(List<String> timestamps,
+			List<String> dataPoints) throws PCacheException {
+
+		// Sanity checks
+		_exceptIfLengthUnequal(timestamps, dataPoints);
+
+		_updatePoints(_toMilis(timestamps), timestamps, dataPoints);
+
+	}
+
+	/**
+	 * Update points in the timeseries
+	 * @param timestamps the set of timestamps to update, in miliseconds
+	 * @param dataPoints the associated set of data points to update
+	 * @throws PCacheException thrown if timeseries isn't associated to the
+	 * 			datapoints or if the points don't exist in the timeseries
+	 */
+	public void updatePoints(long[] timestamps,
+			List<String> dataPoints) throws PCacheException {
+
+		// Sanity checks
+		_exceptIfLengthUnequal(timestamps, dataPoints);
+
+		_updatePoints(timestamps, null, dataPoints);
+
+	}
+
+	private void _updatePoints(long[] timestampsMilis, List<String> timestamps,
+			List<String> dataPoints) throws PCacheException {
+
+		_writeLock();
+
+		try {
+			_exceptIfNoPointsExist(timestampsMilis);
+			_exceptIfCantHold(timestampsMilis, dataPoints);
+
+			// Call the core procedure to update points in the timeseries
+			_addOrUpdatePoints(timestampsMilis, timestamps, dataPoints);
+		}
+
+		finally {
+			_lock.writeLock().unlock();
+		}
+
+	}
+
+	/**
+	 * Add points to the timeseries, replacing the ones that already exist.
+	 * Unlike addPoints() and updatePoints() nothing is looked up up front,
+	 * the points are merged in one pass
+	 * @param timestamps the set of timestamps to add or update
+	 * @param dataPoints the associated set of data points
+	 * @throws PCacheException thrown if timeseries isn't associated to the
+	 * 			datapoints or a data point isn't of the type of the series
+	 */
+	public void upsertPoints(List<String> timestamps,
+			List<String> dataPoints) throws PCacheException {
+
+		// Sanity checks
+		_exceptIfLengthUnequal(timestamps, dataPoints);
+
+		_upsertPoints(_toMilis(timestamps), timestamps, dataPoints);
+
+	}
+
+	/**
+	 * Add points to the timeseries, replacing the ones that already exist
+	 * @param timestamps the set of timestamps to add or update, in
+	 * 			miliseconds
+	 * @param dataPoints the associated set of data points
+	 * @throws PCacheException thrown if timeseries isn't associated to the
+	 * 			datapoints or a data point isn't of the type of the series
+	 * @see #upsertPoints(List, List)
+	 */
+	public void upsertPoints(long[] timestamps,
+			List<String> dataPoints) throws PCacheException {
+
+		// Sanity checks
+		_exceptIfLengthUnequal(timestamps, dataPoints);
+
+		_upsertPoints(timestamps, null, dataPoints);
+
+	}
+
+	private void _upsertPoints(long[] timestampsMilis, List<String> timestamps,
+			List<String> dataPoints) throws PCacheException {
+
+		_writeLockKeepingTail();
+
+		try {
+			_exceptIfCantHold(timestampsMilis, dataPoints);
+
+			if (_appendPoints(timestampsMilis, timestamps, dataPoints)) {
+				return;
+			}
+
+			_flushTail();
+
+			// Put adds or replaces, whichever it has to
+			_addOrUpdatePoints(timestampsMilis, timestamps, dataPoints);
+		}
+
+		finally {
+			_lock.writeLock().unlock();
+		}
+
+	}
+
+	/**
+	 * Remove a set of points from the timeseries
+	 * @param timestamps the set of timestamps to remove
+	 * @throws PCacheException thrown if one or more points specified to be 
+	 * 			deleted, doesn't exist
+	 */
+	public void removePoints(List<String> timestamps) 
+			throws PCacheException {
+
+		removePoints(_toMilis(timestamps));
+
+	}
+
+	/**
+	 * Remove a set of points from the timeseries
+	 * @param timestampsMilis the set of timestamps to remove, in miliseconds
+	 * @throws PCacheException thrown if one or more points specified to be 
+	 * 			deleted, doesn't exist
+	 */
+	public void removePoints(long[] timestampsMilis) 
+			throws PCacheException {
+
+		if (timestampsMilis == null) {
+			throw new PCacheException("Timestamps should not be null");
+		}
+
+		_writeLock();
+
+		try {
+			// Sanity Checks
+			_exceptIfNoPointsExist(timestampsMilis);
+
+			int removed = 0;
+
+			for (long timestamp : timestampsMilis) {
+
+				String old = this._rollups.length > 0
+						? this._timeseries.get(timestamp) : null;
+
+				// A timestamp that is repeated is gone the second time
+				if (!this._timeseries.remove(timestamp)) {
+					continue;
+				}
+
+				removed++;
+
+				if (this._rollups.length > 0) {
+					_rollUp(timestamp, old, null);
+				}
+			}
+
+			_writes += removed;
+			_heapSize = -1;
+		}
+
+		finally {
+			_lock.writeLock().unlock();
+		}
+
+	}
+
+	/**
+	 * Remove every point between 2 timestamps. Both ends are inclusive. The
+	 * points are taken out of the store in one go rather than looked up one
+	 * by one, see TimeseriesStore.removeRange()
+	 * @param from the timestamp to start from, in miliseconds
+	 * @param to the timestamp to end at, in miliseconds
+	 * @return the no. of points removed, 0 if there were none in the range
+	 * @throws PCacheException thrown if from is greater than to
+	 */
+	public int removeRange(long from, long to) throws PCacheException {
+
+		if (from > to) {
+			throw new PCacheException("The from timestamp should preceed the " +
+					"to timestamp");
+		}
+
+		_writeLock();
+
+		try {
+			int removed = this._timeseries.removeRange(from, to);
+
+			if (removed > 0) {
+
+				for (Rollup rollup : this._rollups) {
+					rollup.removeRange(from, to, this._timeseries);
+				}
+
+				_writes += removed;
+				_heapSize = -1;
+			}
+
+			return removed;
+		}
+
+		finally {
+			_lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Shift or scale the value of every point between 2 timestamps. Both ends
+	 * are inclusive. The values are changed in place in one pass over the
+	 * range, see TimeseriesStore.updateRange(), and the rollup buckets that
+	 * overlap it are summarized again
+	 * @param from the timestamp to start from, in miliseconds
+	 * @param to the timestamp to end at, in miliseconds
+	 * @param adjustment how to change the values
+	 * @param operand what to change them by
+	 * @return the no. of points changed, 0 if there were none in the range
+	 * @throws PCacheException thrown if from is greater than to, the series
+	 * 			doesn't hold numbers, the operand isn't a finite no. or the
+	 * 			new value of a point would overflow. No point is changed then
+	 */
+	public int adjustRange(long from, long to, Adjustment adjustment,
+			double operand) throws PCacheException {
+
+		if (from > to) {
+			throw new PCacheException("The from timestamp should preceed the " +
+					"to timestamp");
+		}
+
+		if (this._valueType == ValueType.STRING) {
+			throw new PCacheException("Only LONG and DOUBLE series' can be " +
+					"adjusted");
+		}
+
+		if (Double.isNaN(operand) || Double.isInfinite(operand)) {
+			throw new PCacheException("The operand should be a finite no.");
+		}
+
+		ValueFunction function = adjustment.function(this._valueType, operand);
+
+		_writeLock();
+
+		try {
+			_checkAdjustment(from, to, function, adjustment, operand);
+
+			int updated = this._timeseries.updateRange(from, to, function);
+
+			if (updated > 0) {
+
+				for (Rollup rollup : this._rollups) {
+					rollup.updateRange(from, to, this._timeseries);
+				}
+
+				_writes += updated;
+				_heapSize = -1;
+			}
+
+			return updated;
+		}
+
+		finally {
+			_lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Work out the new value of every point in a range without changing
+	 * any, so that a range is either adjusted as a whole or not at all.
+	 * Called under the write lock
+	 * @throws PCacheException thrown if the new value of a point overflows
+	 */
+	private void _checkAdjustment(long from, long to, ValueFunction function,
+			Adjustment adjustment, double operand) throws PCacheException {
+
+		TimeseriesCursor cursor = this._timeseries.cursor(from, to);
+
+		try {
+
+			while (cursor.next()) {
+
+				if (this._valueType == ValueType.LONG) {
+					function.apply(cursor.longValue());
+				}
+
+				else {
+					function.apply(cursor.doubleValue());
+				}
+			}
+		}
+
+		catch (ArithmeticException ex) {
+			throw new PCacheException("Can't " + adjustment + " "
+					+ cursor.value() + " at " + cursor.timestampISO8601()
+					+ " by " + operand + ", the result overflows", ex);
+		}
+	}
+
+	/**
+	 * Get the set of points between 2 given timeseries'
+	 * @param timestampFrom the ISO8601 timestamp representing the from
+	 * @param timestampTo the ISO8601 timestamp representing the to
+	 * @return a map of the timeseries - data representation for the given 
+	 * 			range
+	 * @throws PCacheException 
+	 */
+	public VariableTimeseries getRangeBetween(String timestampFrom, 
+			String timestampTo) throws PCacheException {
+
+		return getRangeBetween(Commons.convertISO8601toMilis(timestampFrom),
+				Commons.convertISO8601toMilis(timestampTo));
+
+	}
+
+	/**
+	 * Get the set of points between 2 given timestamps
+	 * @param from the timestamp representing the from, in miliseconds
+	 * @param to the timestamp representing the to, in miliseconds
+	 * @return the timeseries for the given range
+	 * @throws PCacheException thrown if from is after to
+	 */
+	public VariableTimeseries getRangeBetween(long from, long to) 
+			throws PCacheException {
+
+		if (from > to) {
+			throw new PCacheException("The from timestamp should preceed the " +
+					"to timestamp");
+		}
+
+		_lockForRead();
+
+		try {
+			// Return a timeseries
+			return new VariableTimeseries(this._timeseries.subSeries(from, to),
+					_lock, false, _valueType);
+		}
+
+		finally {
+			_lock.readLock().unlock();
+		}
+
+	}
+
+	/**
+	 * Get the set of points from a given timestamp till the last one
+	 * @param timestampFrom the ISO8601 timestamp representing the from
+	 * @return a map of the timeseries - data representation for the given 
+	 * 			range
+	 * @throws PCacheException 
+	 */
+	public VariableTimeseries getRangeFrom(String timestampFrom) 
+			throws PCacheException {
+
+		long from = Commons.convertISO8601toMilis(timestampFrom);
+
+		_lockForRead();
+
+		try {
+			// Return a map
+			return new VariableTimeseries(this._timeseries.subSeries(from, 
+					_rangeFromEnd(from)), _lock, false, _valueType);
+		}
+
+		finally {
+			_lock.readLock().unlock();
+		}
+
+	}
+
+	/**
+	 * Get where the range getRangeFrom() cuts out ends, without cutting it
+	 * out
+	 * @param from the timestamp the range starts from, in miliseconds
+	 * @return the last timestamp of the series, in miliseconds
+	 * @throws PCacheException thrown if the series is empty or its last
+	 * 			point is before the from
+	 */
+	public long getRangeFromEnd(long from) throws PCacheException {
+
+		_lockForRead();
+
+		try {
+			return _rangeFromEnd(from);
+		}
+
+		finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Get the set of points from the first one till a given timestamp 
+	 * @param timestampFrom the ISO8601 timestamp representing the from
+	 * @return a map of the timeseries - data representation for the given 
+	 * 			range
+	 * @throws PCacheException 
+	 */
+	public VariableTimeseries getRangeTo(String timestampTo) 
+			throws PCacheException {
+
+		long to = Commons.convertISO8601toMilis(timestampTo);
+
+		_lockForRead();
+
+		try {
+			// Return a map
+			return new VariableTimeseries(this._timeseries.subSeries(
+					_rangeToStart(to), to), _lock, false, _valueType);
+		}
+
+		finally {
+			_lock.readLock().unlock();
+		}
+
+	}
+
+	/**
+	 * Get where the range getRangeTo() cuts out starts, without cutting it
+	 * out
+	 * @param to the timestamp the range ends at, in miliseconds
+	 * @return the first timestamp of the series, in miliseconds
+	 * @throws PCacheException thrown if the series is empty or its first
+	 * 			point is after the to
+	 */
+	public long getRangeToStart(long to) throws PCacheException {
+
+		_lockForRead();
+
+		try {
+			return _rangeToStart(to);
+		}
+
+		finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * getRangeFromEnd(), for when the lock is held already
+	 */
+	private long _rangeFromEnd(long from) throws PCacheException {
+
+		// Get the last key in the series of timestamps
+		long lastKey = _lastKey();
+
+		if (from > lastKey) {
+			throw new PCacheException("Timestamp provided exceeds the max " +
+					"timestamp stored in the cache.");
+		}
+
+		return lastKey;
+	}
+
+	/**
+	 * getRangeToStart(), for when the lock is held already
+	 */
+	private long _rangeToStart(long to) throws PCacheException {
+
+		// Get the first key in the series of timestamps
+		long firstKey = _firstKey();
+
+		if (to < firstKey) {
+			throw new PCacheException("Timestamp provided preceeds the min " +
+					"timestamp stored in the cache.");
+		}
+
+		return firstKey;
+	}
+
+	/**
+	 * Get the points between 2 timestamps at a lower resolution. The range
+	 * is walked straight off the store, see Downsampler, or read off the
+	 * coarsest rollup tier whose width the bucket width is a multiple of,
+	 * unless the values it would pick out of it aren't exact
+	 * @param from the timestamp to start from, in miliseconds
+	 * @param to the timestamp to end at, in miliseconds
+	 * @param resolution the resolution to bring the points down to
+	 * @param parameter the no. of points for NTH / LTTB, the width of the
+	 * 			buckets in miliseconds for the rest
+	 * @return a new timeseries holding the downsampled points
+	 * @throws PCacheException thrown if:
+	 * 			* From is after to
+	 * 			* The parameter isn't valid for the resolution
+	 * 			* The values aren't numbers and the resolution needs them to be
+	 */
+	public VariableTimeseries getAtResolution(long from, long to, 
+			Resolution resolution, long parameter) throws PCacheException {
+
+		if (from > to) {
+			throw new PCacheException("The from timestamp should preceed the " +
+					"to timestamp");
+		}
+
+		_lockForRead();
+
+		try {
+			Rollup rollup = resolution.isBucketed()
+					? _rollupFor(parameter) : null;
+
+			if (rollup != null && parameter > 0) {
+
+				List<Summary> summaries = rollup.summarize(this._timeseries,
+						from, to, parameter);
+
+				if (_isExact(summaries)) {
+					return new VariableTimeseries(Downsampler.downsample(
+							this._timeseries.cursor(from, to), summaries,
+							resolution, this._valueType));
+				}
+			}
+
+			// LTTB splits the range by time, don't let it stretch past the 
+			// last point
+			long end = this._timeseries.size() == 0 ? to 
+					: Math.min(to, this._timeseries.lastKey());
+
+			return new VariableTimeseries(Downsampler.downsample(
+					this._timeseries.cursor(from, to), end, resolution, 
+					parameter));
+		}
+
+		finally {
+			_lock.readLock().unlock();
+		}
+
+	}
+
+	/**
+	 * Bring the points between 2 timestamps down to a single value. The
+	 * range is walked straight off the store, see Aggregator, or read off
+	 * the coarsest rollup tier when the series has any and the aggregation
+	 * can be answered exactly from them
+	 * @param from the timestamp to start from, in miliseconds
+	 * @param to the timestamp to end at, in miliseconds
+	 * @param aggregation what to bring the points down to
+	 * @param parameter the percentile for PERCENTILE, ignored by the rest
+	 * @return the result of the aggregation
+	 * @throws PCacheException thrown if:
+	 * 			* From is after to
+	 * 			* The range is empty, for anything but COUNT and SUM
+	 * 			* The values aren't numbers and the aggregation needs them to be
+	 */
+	public String aggregate(long from, long to, Aggregation aggregation,
+			double parameter) throws PCacheException {
+
+		if (from > to) {
+			throw new PCacheException("The from timestamp should preceed the " +
+					"to timestamp");
+		}
+
+		_lockForRead();
+
+		try {
+			Rollup rollup = aggregation.isSummarized() ? _rollupFor(0) : null;
+
+			if (rollup != null) {
+
+				Summary summary = rollup.summarize(this._timeseries, from, to);
+
+				if (summary.isExact(this._valueType)) {
+					return Aggregator.aggregate(summary, aggregation,
+							this._valueType);
+				}
+			}
+
+			return Aggregator.aggregate(this._timeseries.cursor(from, to),
+					aggregation, parameter);
+		}
+
+		finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Keep rollup tiers of the series, replacing the ones it has. The tiers
+	 * are built from the points right away and kept up by every write from
+	 * there on, see Rollup
+	 * @param widths the widths of the buckets of the tiers, in miliseconds.
+	 * 			Empty to do away with the tiers
+	 * @throws PCacheException thrown if:
+	 * 			* The series isn't a LONG or a DOUBLE one
+	 * 			* A width isn't positive
+	 */
+	public void setRollups(long[] widths) throws PCacheException {
+
+		if (widths == null) {
+			throw new PCacheException("Widths should not be null");
+		}
+
+		if (widths.length > 0 && this._valueType == ValueType.STRING) {
+			throw new PCacheException("Only LONG and DOUBLE series' can be " +
+					"rolled up");
+		}
+
+		long[] sorted = widths.clone();
+		Arrays.sort(sorted);
+
+		List<Rollup> rollups = new ArrayList<>(sorted.length);
+
+		for (int i=0; i<sorted.length; i++) {
+
+			if (sorted[i] <= 0) {
+				throw new PCacheException("The width of a rollup should be " +
+						"positive");
+			}
+
+			if (i == 0 || sorted[i] != sorted[i - 1]) {
+				rollups.add(new Rollup(sorted[i]));
+			}
+		}
+
+		_writeLock();
+
+		try {
+			TimeseriesCursor cursor = this._timeseries.cursor();
+
+			while (!rollups.isEmpty() && cursor.next()) {
+
+				double value = cursor.doubleValue();
+
+				for (Rollup rollup : rollups) {
+					rollup.add(cursor.timestamp(), value);
+				}
+			}
+
+			this._rollups = rollups.toArray(_NO_ROLLUPS);
+			this._heapSize = -1;
+		}
+
+		finally {
+			_lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the widths of the buckets of the rollup tiers in miliseconds,
+	 * 			from the finest to the coarsest
+	 */
+	public long[] getRollups() {
+
+		_readLock();
+
+		try {
+			long[] widths = new long[this._rollups.length];
+
+			for (int i=0; i<widths.length; i++) {
+				widths[i] = this._rollups[i].getWidth();
+			}
+
+			return widths;
+		}
+
+		finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return how long the points and the series are kept
+	 */
+	public Retention getRetention() {
+		return this._retention;
+	}
+
+	/**
+	 * Change how long the points and the series are kept. Nothing is dropped
+	 * right away, see Retention
+	 * @param retention the new retention
+	 * @throws PCacheException thrown if the retention is null
+	 */
+	public void setRetention(Retention retention) throws PCacheException {
+
+		if (retention == null) {
+			throw new PCacheException("Retention should not be null");
+		}
+
+		this._retention = retention;
+	}
+
+	/**
+	 * Find the oldest point the retention of the series keeps, i.e. the
+	 * newest point less the max age or the first of the max no. of newest
+	 * points, whichever is later
+	 * @return the timestamp of the point in miliseconds, Long.MIN_VALUE if
+	 * 			every point is kept
+	 */
+	public long getRetainedFrom() {
+
+		Retention retention = this._retention;
+		long retainedFrom = Long.MIN_VALUE;
+
+		if (!retention.isLimited()) {
+			return retainedFrom;
+		}
+
+		_readLock();
+
+		try {
+			int size = this._timeseries.size();
+
+			if (size == 0) {
+				return retainedFrom;
+			}
+
+			long maxAge = retention.getMaxAge();
+			long lastKey = this._timeseries.lastKey();
+
+			// Kept clear of an overflow at the start of the timeline
+			if (maxAge > 0 && lastKey >= Long.MIN_VALUE + maxAge) {
+				retainedFrom = lastKey - maxAge;
+			}
+
+			int maxPoints = retention.getMaxPoints();
+
+			// Only the points past the limit are walked over
+			if (maxPoints > 0 && size > maxPoints) {
+
+				TimeseriesCursor cursor = this._timeseries.cursor();
+
+				for (int i=size-maxPoints; i>=0; i--) {
+					cursor.next();
+				}
+
+				retainedFrom = Math.max(retainedFrom, cursor.timestamp());
+			}
+
+			return retainedFrom;
+		}
+
+		finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Get the kind of store the timeseries is held in
+	 * @return the type of the store
+	 */
+	public StoreType getStoreType() {
+
+		_readLock();
+
+		try {
+			return this._timeseries.getType();
+		}
+
+		finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Get the kind of store the timeseries is held in while it is on the
+	 * heap, which is the one it was in before it was spilled if it was
+	 * @return the type of the store
+	 */
+	public StoreType getResidentStoreType() {
+
+		_readLock();
+
+		try {
+			return this._spilledFrom != null ? this._spilledFrom
+					: this._timeseries.getType();
+		}
+
+		finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Get the type of the values the timeseries holds
+	 * @return the type of the values
+	 */
+	public ValueType getValueType() {
+		return this._valueType;
+	}
+
+	/**
+	 * Check if the store of the timeseries is picked by adapt()
+	 * @return true if the series was allocated with StoreType.AUTO
+	 */
+	public boolean isAdaptive() {
+		return this._adaptive;
+	}
+
+	/**
+	 * Profile the timeseries and move it to the store that suits it best.
+	 * The profile is taken under the shared lock, only the move itself
+	 * blocks readers. Does nothing unless the series is adaptive
+	 * @return the type of the store the series is held in now
+	 */
+	public StoreType adapt() {
+
+		if (!this._adaptive) {
+			return getStoreType();
+		}
+
+		StoreProfile profile;
+		long writes;
+
+		_readLock();
+
+		try {
+			writes = this._writes;
+			profile = StoreProfile.of(this._timeseries.cursor(),
+					this._reads.getAndSet(0), writes);
+		}
+
+		finally {
+			_lock.readLock().unlock();
+		}
+
+		_writeLock();
+
+		try {
+
+			// Writes that came in since the profile count towards the next one
+			this._writes -= writes;
+
+			// A spilled series stays off the heap until it is touched
+			if (this._spilledFrom != null) {
+				return this._timeseries.getType();
+			}
+
+			StoreType storeType = profile.choose();
+
+			if (storeType != this._timeseries.getType()) {
+				_moveTo(storeType);
+			}
+
+			return this._timeseries.getType();
+		}
+
+		finally {
+			_lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Move the points to a new store of a given type. Has to be called with
+	 * the write lock held
+	 * @param storeType the type of the new store. If it can't hold every
+	 * 			point, they are moved to a COLUMNAR store instead
+	 */
+	private void _moveTo(StoreType storeType) {
+
+		TimeseriesStore store = storeType.newStore(this._valueType);
+		TimeseriesCursor cursor = this._timeseries.cursor();
+		boolean first = true;
+
+		while (cursor.next()) {
+
+			if (!store.canHold(cursor.timestamp())) {
+
+				store.release();
+
+				// No use copying the points into a store like the one they
+				// are in already
+				if (this._timeseries.getType() != StoreType.COLUMNAR) {
+					_moveTo(StoreType.COLUMNAR);
+				}
+
+				return;
+			}
+
+			// Only tree map stores keep the zone of every point
+			store.put(cursor.timestamp(), first || storeType == StoreType.TREEMAP
+					? cursor.timestampISO8601() : null, cursor.value());
+
+			first = false;
+		}
+
+		this._timeseries.release();
+		this._timeseries = store;
+		this._heapSize = -1;
+	}
+
+	/**
+	 * Bring the rollup tiers up to date with a change to a point. Has to be
+	 * called with the write lock held, after the store has been changed
+	 * @param timestamp the timestamp of the point
+	 * @param old the value the point had, null if it was added
+	 * @param value the value it has now, null if it was removed
+	 */
+	private void _rollUp(long timestamp, String old, String value) {
+
+		for (Rollup rollup : this._rollups) {
+
+			if (old == null) {
+				rollup.add(timestamp, Double.parseDouble(value));
+			}
+
+			else if (value == null) {
+				rollup.remove(timestamp, Double.parseDouble(old),
+						this._timeseries);
+			}
+
+			else {
+				rollup.update(timestamp, Double.parseDouble(old),
+						Double.parseDouble(value), this._timeseries);
+			}
+		}
+	}
+
+	/**
+	 * Find the coarsest rollup tier that can answer for buckets of a given
+	 * width. Has to be called with the lock held
+	 * @param width the width of the buckets in miliseconds, 0 for a single
+	 * 			bucket covering the whole range
+	 * @return the tier, null if there is none that can
+	 */
+	private Rollup _rollupFor(long width) {
+
+		for (int i=this._rollups.length-1; i>=0; i--) {
+
+			if (width == 0 || width % this._rollups[i].getWidth() == 0) {
+				return this._rollups[i];
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Check if the values picked out of the summaries of a rollup tier are
+	 * those of their points, see Summary.isExact(). If not, as for a LONG
+	 * series with values beyond 2^53, the points have to be walked instead
+	 * @param summaries the summaries
+	 * @return true if they are
+	 */
+	private boolean _isExact(List<Summary> summaries) {
+
+		for (Summary summary : summaries) {
+
+			if (!summary.isExact(this._valueType)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Take the shared lock for a read, counting the read if the series is
+	 * adaptive
+	 */
+	private void _lockForRead() {
+
+		if (this._adaptive) {
+			this._reads.incrementAndGet();
+		}
+
+		_readLock();
+	}
+
+	/**
+	 * Take the shared side of the lock, putting the points held back in the
+	 * tail into the store first if there are any. The tail can only fill up
+	 * under the write lock, so a reader that finds it empty carries on
+	 * without waiting on anything.
+	 * Putting the tail in changes the store, which readers of the range
+	 * views of the series may be walking, as the views share the lock but
+	 * not the tail. So it is only done under the exclusive lock, which is
+	 * then downgraded to the shared one
+	 */
+	private void _readLock() {
+
+		_lock.readLock().lock();
+
+		if (this._tailSize == 0) {
+			return;
+		}
+
+		_lock.readLock().unlock();
+		_lock.writeLock().lock();
+
+		try {
+			_flushTail();
+		}
+
+		finally {
+			_lock.readLock().lock();
+			_lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Take the exclusive side of the lock, putting the points held back in
+	 * the tail into the store first if there are any
+	 */
+	private void _writeLock() {
+
+		_writeLockKeepingTail();
+		_flushTail();
+	}
+
+	/**
+	 * Take the exclusive side of the lock, leaving the points held back in
+	 * the tail where they are. For the writes that may add to the tail or
+	 * throw it out
+	 */
+	private void _writeLockKeepingTail() {
+		_lock.writeLock().lock();
+	}
+
+	/**
+	 * Append points if they all come after the last point of the series, in
+	 * order. A few points are held back in the tail, which is put into the
+	 * store once it fills up, a larger run goes into the store in one go.
+	 * Has to be called with the write lock held, after the points were
+	 * checked
+	 * @param timestampsMilis the timestamps, in miliseconds
+	 * @param timestamps the ISO8601 representation of the timestamps, null
+	 * 			if they came in as miliseconds
+	 * @param dataPoints the data points
+	 * @return false if the points have to be put into the store instead,
+	 * 			because they don't come after the last one
+	 */
+	private boolean _appendPoints(long[] timestampsMilis,
+			List<String> timestamps, List<String> dataPoints) {
+
+		int count = timestampsMilis.length;
+
+		if (count == 0 || !_isAppend(timestampsMilis)) {
+			return false;
+		}
+
+		if (count > _TAIL_INITIAL_CAPACITY) {
+
+			_flushTail();
+			_append(timestampsMilis, timestamps == null ? null
+					: timestamps.toArray(new String[count]),
+					ValueArray.of(dataPoints), count);
+			return true;
+		}
+
+		if (this._tailSize + count > _TAIL_CAPACITY) {
+			_flushTail();
+		}
+
+		int size = this._tailSize;
+
+		_growTail(size + count);
+
+		System.arraycopy(timestampsMilis, 0, this._tailTimestamps, size,
+				count);
+
+		for (int i=0; i<count; i++) {
+			this._tailTimestampsISO8601[size + i] =
+					timestamps == null ? null : timestamps.get(i);
+			this._tailDataPoints[size + i] = dataPoints.get(i);
+		}
+
+		this._tailSize = size + count;
+		this._heapSize = -1;
+		return true;
+	}
+
+	/**
+	 * Make sure the tail can hold a no. of points, doubling it until it can
+	 * @param capacity the no. of points, at most _TAIL_CAPACITY
+	 */
+	private void _growTail(int capacity) {
+
+		int length = this._tailTimestamps == null ? 0
+				: this._tailTimestamps.length;
+
+		if (capacity <= length) {
+			return;
+		}
+
+		int newLength = Math.min(_TAIL_CAPACITY, Math.max(capacity,
+				Math.max(_TAIL_INITIAL_CAPACITY, length * 2)));
+
+		if (length == 0) {
+			this._tailTimestamps = new long[newLength];
+			this._tailTimestampsISO8601 = new String[newLength];
+			this._tailDataPoints = new String[newLength];
+			return;
+		}
+
+		this._tailTimestamps = Arrays.copyOf(this._tailTimestamps, newLength);
+		this._tailTimestampsISO8601 = Arrays.copyOf(
+				this._tailTimestampsISO8601, newLength);
+		this._tailDataPoints = Arrays.copyOf(this._tailDataPoints, newLength);
+	}
+
+	/**
+	 * Put the points held back in the tail into the store, in one go, see
+	 * TimeseriesStore.appendAll(), and drop the tail. Has to be called with
+	 * the write lock held
+	 */
+	private void _flushTail() {
+
+		int count = this._tailSize;
+
+		if (count == 0) {
+			return;
+		}
+
+		_append(this._tailTimestamps, this._tailTimestampsISO8601,
+				ValueArray.of(this._tailDataPoints), count);
+
+		_dropTail();
+	}
+
+	/**
+	 * Put a run of points that all come after the last point of the store
+	 * into it in one go, see TimeseriesStore.appendAll(). Has to be called
+	 * with the write lock held
+	 * @param timestampsMilis the timestamps, in miliseconds
+	 * @param timestamps the ISO8601 representation of the timestamps, null
+	 * 			if they came in as miliseconds
+	 * @param dataPoints the data points
+	 * @param count the no. of points, from the start of the arrays
+	 */
+	private void _append(long[] timestampsMilis, String[] timestamps,
+			ValueArray dataPoints, int count) {
+
+		// A regular store can't take points off its interval
+		for (int i=0; i<count; i++) {
+
+			if (!_timeseries.canHold(timestampsMilis[i])) {
+				_moveTo(StoreType.COLUMNAR);
+				break;
+			}
+		}
+
+		_timeseries.appendAll(timestampsMilis, timestamps, dataPoints, count);
+
+		// Nothing is replaced, there are no old values to take out
+		for (Rollup rollup : this._rollups) {
+
+			for (int i=0; i<count; i++) {
+				rollup.add(timestampsMilis[i], dataPoints.getDouble(i));
+			}
+		}
+
+		_writes += count;
+		_heapSize = -1;
+	}
+
+	/**
+	 * Let go of the tail. The size goes last, a reader that finds it 0
+	 * finds the points in the store. Has to be called with the write lock
+	 * held
+	 */
+	private void _dropTail() {
+
+		this._tailTimestamps = null;
+		this._tailTimestampsISO8601 = null;
+		this._tailDataPoints = null;
+		this._tailSize = 0;
+	}
+
+	/**
+	 * Free whatever the store of the timeseries holds outside the Java heap.
+	 * Called once the timeseries is thrown out
+	 */
+	public void release() {
+
+		_writeLockKeepingTail();
 
-		_addOrUpdatePoints(timestamps, dataPoints);
+		try {
+			// What the tail held back is thrown out along with the rest
+			_dropTail();
+			this._timeseries.release();
+		}
 
+		finally {
+			_lock.writeLock().unlock();
+		}
 	}
 
 	/**
-	 * Constructor. Create a variable timeseries out of an existing set
-	 * @param timeseries the Long - string mapping to create the 
-	 * 			variabletimeseries out of
+	 * Estimate how much of the Java heap the timeseries holds on to, its
+	 * rollup tiers included. Only worked out again if the series was written
+	 * to since the last time, so that it can be asked for every series often
+	 * @return the no. of bytes
 	 */
-	public VariableTimeseries(Map<PCacheTimestamp, String> timeseries) {
-		this._timeseries = timeseries;
+	public long heapSize() {
+
+		long heapSize = this._heapSize;
+
+		if (heapSize >= 0) {
+			return heapSize;
+		}
+
+		_readLock();
+
+		try {
+			return _heapSize();
+		}
+
+		finally {
+			_lock.readLock().unlock();
+		}
 	}
 
 	/**
-	 * Get the size of the timeseries
-	 * @return the size of the timeseries
+	 * Get when the timeseries was last touched
+	 * @return the time, as System.nanoTime() gave it
 	 */
-	public int size() {
-		return this._timeseries.size();
+	public long getLastAccess() {
+		return this._lastAccess;
 	}
 
 	/**
-	 * Check if a given timestamp exists within the series
-	 * @param timestamp the timestamp to check for
-	 * @return true/false based on its existance
-	 * @throws PCacheException 
+	 * Check if the points of the timeseries were spilled off the heap
+	 * @return true if they were, and the series wasn't touched since
 	 */
-	public boolean contains(String timestamp) throws PCacheException {
-
-		return this._timeseries.containsKey(new PCacheTimestamp(timestamp));
+	public boolean isSpilled() {
+		return this._spilledFrom != null;
 	}
 
 	/**
-	 * A core procedure. This isn't called from the outside. 
-	 * Add or Update points inside the timeseries. The nature of the TreeMap 
-	 * allows us to do both of these things in the same call since the .put()
-	 * function will replace an existsing value if it exists
-	 * @param timestamps the set of timestamps to add/update
-	 * @param dataPoints the associated set of data to the timestamps. 
-	 * 			Note: there should be a one to one correlation between the
-	 * 			timestamps and the data points
-	 * @throws PCacheException thrown if there is no one to one correlation 
-	 * 			between the timestamps and the data points
+	 * Record that the timeseries is about to be used, bringing its points
+	 * back into the store they were in if they were spilled. Called by the
+	 * engine every time it looks up the series, so the series' that weren't
+	 * looked up for the longest are the ones that get spilled
 	 */
-	private void _addOrUpdatePoints(List<String> timestamps, 
-			List<String> dataPoints) throws PCacheException{
+	public void touch() {
 
-		try {
+		this._lastAccess = System.nanoTime();
 
-			// Go through all the timestamps
-			for (int i=0; i<timestamps.size(); i++) {
+		if (this._spilledFrom == null) {
+			return;
+		}
 
-				// Pick up the timestamp and the data point
-				String timestampISO8601 = timestamps.get(i);
-				String dataPoint = dataPoints.get(i);
+		_writeLock();
 
-				// Add or update the timestamp, datapoint
-				// Put does updates also. so 2 birds, one stone!
-				_timeseries.put(new PCacheTimestamp(timestampISO8601), dataPoint);
+		try {
 
+			// Someone else may have brought it back in the meantime
+			if (this._spilledFrom != null) {
+				StoreType storeType = this._spilledFrom;
+				this._spilledFrom = null;
+				_moveTo(storeType);
 			}
 		}
 
-		catch (NullPointerException ex) {
-			throw new PCacheException("Timestamps and dataPoints should not be " +
-					"null", ex);
+		finally {
+			_lock.writeLock().unlock();
 		}
-
 	}
 
 	/**
-	 * Add points to the timeseries
-	 * @param timestamps the set of timestamps to add
-	 * @param dataPoints the associated set of data points to add
-	 * @throws PCacheException thrown if timeseries isn't associated to the
-	 * 			datapoints or if the points already exist in the timeseries
+	 * Move the points of the timeseries off the heap into a SEGMENT store,
+	 * which is backed by files when SegmentAllocator is given a directory.
+	 * They are brought back by the next touch(). Like any move out of a
+	 * TREEMAP store, the points come back in the zone of the first one
+	 * @return the no. of bytes of the heap let go of, 0 if the series
+	 * 			wasn't spilled because it is in a SEGMENT store already or in
+	 * 			a TICK store, whose grid StoreType can't make again
 	 */
-	public void addPoints(List<String> timestamps,
-			List<String> dataPoints) throws PCacheException {
+	public long spill() {
 
-		// Sanity checks
-		_exceptIfLengthUnequal(timestamps, dataPoints);
-		_exceptIfPointsExist(timestamps);
+		_writeLock();
 
-		// Call the core procedure to add points into the timeseries
-		_addOrUpdatePoints(timestamps, dataPoints);
+		try {
+			StoreType storeType = this._timeseries.getType();
+
+			if (this._spilledFrom != null || storeType == StoreType.SEGMENT
+					|| storeType == StoreType.TICK) {
+				return 0;
+			}
+
+			long before = _heapSize();
 
+			_moveTo(StoreType.SEGMENT);
+			this._spilledFrom = storeType;
+
+			return Math.max(0, before - _heapSize());
+		}
+
+		finally {
+			_lock.writeLock().unlock();
+		}
 	}
 
 	/**
-	 * Update points in the timeseries
-	 * @param timestamps the set of timestamps to update
-	 * @param dataPoints the associated set of data points to update
-	 * @throws PCacheException thrown if timeseries isn't associated to the
-	 * 			datapoints or if the points don't exist in the timeseries
+	 * Work out how much of the heap the timeseries holds on to and keep it
+	 * until the next write. Has to be called with the lock held
+	 * @return the no. of bytes
 	 */
-	public void updatePoints(List<String> timestamps,
-			List<String> dataPoints) throws PCacheException {
+	private long _heapSize() {
 
-		// Sanity checks
-		_exceptIfLengthUnequal(timestamps, dataPoints);
-		_exceptIfNoPointsExist(timestamps);
+		long heapSize = this._timeseries.heapSize();
+
+		if (this._tailTimestamps != null) {
+			int length = this._tailTimestamps.length;
+			heapSize += HeapSize.ofArray(length, 8)
+					+ 2 * HeapSize.ofArray(length, HeapSize.REFERENCE);
+		}
 
-		// Call the core procedure to update points in the timeseries
-		_addOrUpdatePoints(timestamps, dataPoints);
+		for (Rollup rollup : this._rollups) {
+			heapSize += rollup.heapSize();
+		}
 
+		this._heapSize = heapSize;
+		return heapSize;
 	}
 
 	/**
-	 * Remove a set of points from the timeseries
-	 * @param timestamps the set of timestamps to remove
-	 * @throws PCacheException thrown if one or more points specified to be 
-	 * 			deleted, doesn't exist
+	 * Get the entire timeseries
+	 * @return the entire timeseries map
 	 */
-	public void removePoints(List<String> timestamps) 
-			throws PCacheException {
+	public VariableTimeseries getAll() {
+		return this;
+	}
 
-		// Sanity Checks
-		_exceptIfNoPointsExist(timestamps);
+	/**
+	 * Return a particular timestamps value
+	 * @param timestamp the timestamp to look for in the map
+	 * @return the value for that timestamp, null if the timestamp isn't present
+	 * @throws PCacheException thrown if:
+	 * 			* timestamp not in ISO8601 format
+	 */
+	public String getOne(String timestamp) throws PCacheException {
 
-		for (String timestamp : timestamps) {
-			this._timeseries.remove(new PCacheTimestamp(timestamp));
+		long milis = Commons.convertISO8601toMilis(timestamp);
+
+		_lockForRead();
+
+		try {
+			return this._timeseries.get(milis);
 		}
 
+		finally {
+			_lock.readLock().unlock();
+		}
 	}
 
 	/**
-	 * Get the set of points between 2 given timeseries'
-	 * @param timestampFrom the ISO8601 timestamp representing the from
-	 * @param timestampTo the ISO8601 timestamp representing the to
-	 * @return a map of the timeseries - data representation for the given 
-	 * 			range
-	 * @throws PCacheException 
+	 * Walk over the points of the timeseries in timestamp order. The series
+	 * can't be written to till the reader returns
+	 * @param reader what to do with the points
+	 * @return whatever the reader returns
+	 * @throws IOException thrown if the reader fails to write the points out
 	 */
-	public VariableTimeseries getRangeBetween(String timestampFrom, 
-			String timestampTo) throws PCacheException {
+	public <T> T read(CursorReader<T> reader) throws IOException {
+
+		_lockForRead();
 
-		// Return a timeseries
-		return new VariableTimeseries(((TreeMap<PCacheTimestamp, String>) this._timeseries)
-				.subMap(new PCacheTimestamp(timestampFrom), true, 
-						new PCacheTimestamp(timestampTo), true));
+		try {
+			return reader.read(this._timeseries.cursor());
+		}
 
+		finally {
+			_lock.readLock().unlock();
+		}
 	}
 
 	/**
-	 * Get the set of points from a given timestamp till the last one
-	 * @param timestampFrom the ISO8601 timestamp representing the from
-	 * @return a map of the timeseries - data representation for the given 
-	 * 			range
-	 * @throws PCacheException 
+	 * Walk over the points of a range of the timeseries in timestamp order,
+	 * without cutting it out first. The series can't be written to till the
+	 * reader returns
+	 * @param from the timestamp to start from, in miliseconds
+	 * @param to the timestamp to end at, in miliseconds
+	 * @param reader what to do with the points
+	 * @return whatever the reader returns
+	 * @throws IOException thrown if the reader fails to write the points out
 	 */
-	public VariableTimeseries getRangeFrom(String timestampFrom) 
-			throws PCacheException {
+	public <T> T read(long from, long to, CursorReader<T> reader)
+			throws IOException {
 
-		// Get the last key in the series of timestamps
-		PCacheTimestamp lastKey = ((TreeMap<PCacheTimestamp, String>) 
-				this._timeseries).lastKey();
+		_lockForRead();
 
 		try {
-			// Return a map
-			return new VariableTimeseries(((TreeMap<PCacheTimestamp, String>) 
-					this._timeseries).subMap(new PCacheTimestamp(timestampFrom), 
-							true, lastKey, true));
+			return reader.read(this._timeseries.cursor(from, to));
 		}
 
-		catch (IllegalArgumentException ex) {
-			throw new PCacheException("Timestamp provided exceeds the max " +
-					"timestamp stored in the cache.", ex);
+		finally {
+			_lock.readLock().unlock();
 		}
-
 	}
 
 	/**
-	 * Get the set of points from the first one till a given timestamp 
-	 * @param timestampFrom the ISO8601 timestamp representing the from
-	 * @return a map of the timeseries - data representation for the given 
-	 * 			range
-	 * @throws PCacheException 
+	 * Convert the current timeseries to JSON format with the key as the 
+	 * ISO8601 formatted timestamp 
+	 * @return the JSON
 	 */
-	public VariableTimeseries getRangeTo(String timestampTo) 
-			throws PCacheException {
+	public String toJson() {
 
-		// Get the first key in the series of timestamps
-		PCacheTimestamp firstKey = ((TreeMap<PCacheTimestamp, String>) 
-				this._timeseries).firstKey();
+		StringWriter out = new StringWriter();
 
 		try {
-			// Return a map
-			return new VariableTimeseries(((TreeMap<PCacheTimestamp, String>) 
-					this._timeseries).subMap(firstKey, true, 
-							new PCacheTimestamp(timestampTo), true));
+			writeJson(out);
 		}
 
-		catch (IllegalArgumentException ex) {
-			throw new PCacheException("Timestamp provided preceeds the min " +
-					"timestamp stored in the cache.", ex);
+		catch (IOException ex) {
+			// Can't happen, a StringWriter doesn't throw
+			throw new IllegalStateException(ex);
 		}
 
+		return out.toString();
+
 	}
 
 	/**
-	 * Get the entire timeseries
-	 * @return the entire timeseries map
+	 * Write the current timeseries out as JSON with the key as the ISO8601
+	 * formatted timestamp. The points are written straight to the writer in
+	 * timestamp order as they are walked over, nothing is built up in memory
+	 * @param out where the JSON is written to. It is neither flushed nor 
+	 * 			closed
+	 * @return the no. of bytes written, as encoded in UTF-8
+	 * @throws IOException thrown if the writer fails
 	 */
-	public VariableTimeseries getAll() {
-		return this;
+	public long writeJson(Writer out) throws IOException {
+		return writeJson(out, FULL_PRECISION);
 	}
 
 	/**
-	 * Return a particular timestamps value
-	 * @param timestamp the timestamp to look for in the map
-	 * @return the value for that timestamp, null if the timestamp isn't present
-	 * @throws PCacheException thrown if:
-	 * 			* timestamp not in ISO8601 format
+	 * Write the current timeseries out as JSON with the values rounded to a
+	 * no. of decimals. Values that aren't numbers are written as they are
+	 * @param out where the JSON is written to. It is neither flushed nor 
+	 * 			closed
+	 * @param precision the max. no. of decimals of the values, 
+	 * 			FULL_PRECISION to write them as they are stored
+	 * @return the no. of bytes written, as encoded in UTF-8
+	 * @throws IOException thrown if the writer fails
+	 * @see Commons#roundDecimal(String, int)
 	 */
-	public String getOne(String timestamp) throws PCacheException {
+	public long writeJson(Writer out, final int precision) throws IOException {
+
+		final CountingWriter countingWriter = new CountingWriter(out);
+
+		read(new CursorReader<Void>() {
+
+			@Override
+			public Void read(TimeseriesCursor cursor) throws IOException {
+
+				// Written the same way Gson writes out a map
+				JsonWriter jsonWriter = new JsonWriter(countingWriter);
+				jsonWriter.setHtmlSafe(true);
+				jsonWriter.setSerializeNulls(false);
+
+				jsonWriter.beginObject();
+
+				while (cursor.next()) {
+					jsonWriter.name(cursor.timestampISO8601());
+					jsonWriter.value(precision == FULL_PRECISION ? cursor.value()
+							: Commons.roundDecimal(cursor.value(), precision));
+				}
+
+				jsonWriter.endObject();
+				return null;
+			}
+		});
+
+		return countingWriter.getBytesWritten();
 
-		long milis = Commons.convertISO8601toMilis(timestamp);
-		return this._timeseries.get(milis);
 	}
 
 	/**
-	 * Convert the current timeseries to JSON format with the key as the 
-	 * ISO8601 formatted timestamp 
-	 * @return the JSON
+	 * Get the first timestamp of the series
+	 * @return the first timestamp in miliseconds
+	 * @throws PCacheException thrown if the series is empty
 	 */
-	public String toJson() {
+	private long _firstKey() throws PCacheException {
+
+		try {
+			return this._timeseries.firstKey();
+		}
+
+		catch (NoSuchElementException ex) {
+			throw new PCacheException("The timeseries is empty", ex);
+		}
+	}
+
+	/**
+	 * Check if a set of timestamps, in the order given, all come after the
+	 * last point of the series, the tail included, as they do when live
+	 * points are streamed in.
+	 * Has to be called with the lock held
+	 * @param timestampsMilis the timestamps, in miliseconds
+	 * @return true if putting them only ever appends to the store
+	 */
+	private boolean _isAppend(long[] timestampsMilis) {
+
+		if (timestampsMilis.length == 0) {
+			return true;
+		}
+
+		if (this._tailSize > 0) {
+
+			if (timestampsMilis[0] <= this._tailTimestamps[this._tailSize - 1]) {
+				return false;
+			}
+		}
+
+		else if (this._timeseries.size() > 0
+				&& timestampsMilis[0] <= this._timeseries.lastKey()) {
+			return false;
+		}
 
-		Map<String, String> jsonMap = new TreeMap<String, String>();
+		for (int i=1; i<timestampsMilis.length; i++) {
 
-		for (Entry<PCacheTimestamp, String> entry : this._timeseries.entrySet())
-		{
-			PCacheTimestamp ts = entry.getKey();
-			jsonMap.put(ts.toString(), entry.getValue());
+			if (timestampsMilis[i] <= timestampsMilis[i - 1]) {
+				return false;
+			}
 		}
-		
-		final Gson gson = new Gson();
-		return gson.toJson(jsonMap);
 
+		return true;
 	}
 
+	/**
+	 * Get the last timestamp of the series
+	 * @return the last timestamp in miliseconds
+	 * @throws PCacheException thrown if the series is empty
+	 */
+	private long _lastKey() throws PCacheException {
+
+		try {
+			return this._timeseries.lastKey();
+		}
+
+		catch (NoSuchElementException ex) {
+			throw new PCacheException("The timeseries is empty", ex);
+		}
+	}
 
 	/**
 	 * Check if the length of the timeseries is not equal to the length of the
@@ -317,70 +2007,147 @@ public class VariableTimeseries {
 	}
 
 	/**
-	 * Check if the set of points already exist in the cache
-	 * @param timestamps the set of timestamps to check
-	 * @throws PCacheException thrown if the set of points already exist in the
-	 * 			cache
+	 * Parse a set of ISO8601 timestamps to miliseconds since EPOC. This is 
+	 * done before any lock is taken
+	 * @param timestamps the set of timestamps to parse
+	 * @return the parsed timestamps
+	 * @throws PCacheException thrown if the timestamps are null or one or 
+	 * 			more of them isn't in ISO8601 format
 	 */
-	private void _exceptIfPointsExist(List<String> timestamps) 
+	private static long[] _toMilis(List<String> timestamps) 
 			throws PCacheException {
 
 		try {
+			long[] timestampsMilis = new long[timestamps.size()];
 
-			// Go through the timestamps
-			for (String timestamp : timestamps) {
-
-				// If timeseries already contains it, except
-				if (this._timeseries.containsKey(new PCacheTimestamp(timestamp))) {
-					throw new PCacheException("Some point(s) already exist in the "
-							+ "timeseries");
-				}
-
+			for (int i=0; i<timestampsMilis.length; i++) {
+				timestampsMilis[i] = Commons.convertISO8601toMilis(
+						timestamps.get(i));
 			}
+
+			return timestampsMilis;
 		}
 
 		catch (NullPointerException ex) {
 			throw new PCacheException("Timestamps and dataPoints should not be " +
 					"null", ex);
 		}
+	}
 
-		catch (IllegalArgumentException ex) {
-			throw new PCacheException("One or more of the timestamps isn't in " +
-					"ISO8601 format", ex);
+	/**
+	 * Check if the no. of timestamps is not equal to the no. of data points 
+	 * @param timestamps the set of timestamps in miliseconds
+	 * @param dataPoints the associated set of data points
+	 * @throws PCacheException thrown if the length of both are unequal
+	 */
+	private void _exceptIfLengthUnequal(long[] timestamps,
+			List<String> dataPoints) throws PCacheException {
+
+		if (timestamps == null || dataPoints == null) {
+			throw new PCacheException("Timestamps and dataPoints should not be " +
+					"null");
+		}
+
+		if (timestamps.length != dataPoints.size()) {
+			throw new PCacheException("Sizes don't match. The number of data " +
+					"points should equal the number of timestamps");
 		}
 
 	}
 
 	/**
-	 * Check if the set of points don't exist in the cache
+	 * Get the last timestamp of the series, the points held back in the tail
+	 * included. Has to be called with the lock held
+	 * @return the last timestamp in miliseconds, Long.MIN_VALUE if the series
+	 * 			is empty
+	 */
+	protected long _lastTimestamp() {
+
+		if (this._tailSize > 0) {
+			return this._tailTimestamps[this._tailSize - 1];
+		}
+
+		return this._timeseries.size() > 0 ? this._timeseries.lastKey()
+				: Long.MIN_VALUE;
+	}
+
+	/**
+	 * Check if the points can be put into the timeseries, before any of them
+	 * are. Called with the write lock held. Any point whose value is of the 
+	 * type of the series can be, unless a kind of timeseries says otherwise
+	 * @param timestamps the set of timestamps in miliseconds
+	 * @param dataPoints the associated set of data points
+	 * @throws PCacheException thrown if one or more of the points can't be
+	 * 			held
+	 */
+	protected void _exceptIfCantHold(long[] timestamps, 
+			List<String> dataPoints) throws PCacheException {
+
+		if (this._valueType == ValueType.STRING) {
+			return;
+		}
+
+		// Numbers that came in as numbers of a kind the series takes needn't
+		// be written out to be checked
+		if (dataPoints instanceof ValueArray) {
+
+			ValueType type = ((ValueArray) dataPoints).getType();
+
+			if (type == this._valueType || (type == ValueType.LONG
+					&& this._valueType == ValueType.DOUBLE)) {
+				return;
+			}
+		}
+
+		for (String dataPoint : dataPoints) {
+
+			if (!this._valueType.canHold(dataPoint)) {
+				throw new PCacheException("Some value(s) aren't of the type " +
+						"of the timeseries, " + this._valueType);
+			}
+		}
+	}
+
+	/**
+	 * Check if the set of points already exist in the cache
 	 * @param timestamps the set of timestamps to check
-	 * @throws PCacheException thrown if the set of points don't exist in the
+	 * @throws PCacheException thrown if the set of points already exist in the
 	 * 			cache
 	 */
-	private void _exceptIfNoPointsExist(List<String> timestamps) 
+	private void _exceptIfPointsExist(long[] timestamps) 
 			throws PCacheException {
 
-		try {
-			// Go through the timestamps
-			for (String timestamp : timestamps) {
-
-				// If the timeseries doesn't contain it, except
-				if (!this._timeseries.containsKey(new PCacheTimestamp(timestamp))) {
-					throw new PCacheException("Some point(s) don't exist in the "
-							+ "timeseries");
-				}
+		// Go through the timestamps
+		for (long timestamp : timestamps) {
 
+			// If timeseries already contains it, except
+			if (this._timeseries.containsKey(timestamp)) {
+				throw new PCacheException("Some point(s) already exist in the "
+						+ "timeseries");
 			}
-		}
 
-		catch (NullPointerException ex) {
-			throw new PCacheException("Timestamps and dataPoints should not be " +
-					"null", ex);
 		}
 
-		catch (IllegalArgumentException ex) {
-			throw new PCacheException("One or more of the timestamps isn't in " +
-					"ISO8601 format", ex);
+	}
+
+	/**
+	 * Check if the set of points don't exist in the cache
+	 * @param timestamps the set of timestamps to check
+	 * @throws PCacheException thrown if the set of points don't exist in the
+	 * 			cache
+	 */
+	private void _exceptIfNoPointsExist(long[] timestamps) 
+			throws PCacheException {
+
+		// Go through the timestamps
+		for (long timestamp : timestamps) {
+
+			// If the timeseries doesn't contain it, except
+			if (!this._timeseries.containsKey(timestamp)) {
+				throw new PCacheException("Some point(s) don't exist in the "
+						+ "timeseries");
+			}
+
 		}
 
 	}
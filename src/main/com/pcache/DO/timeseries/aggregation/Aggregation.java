@@ -0,0 +1,131 @@
+package main.com.pcache.DO.timeseries.aggregation;
+
+import main.com.pcache.exceptions.PCacheException;
+
+/**
+ * The ways a range of points can be brought down to a single value.
+ *
+ * COUNT, FIRST and LAST work on any values, the rest need the values to be
+ * numbers. PERCENTILE takes the percentile to find, between 0 and 100.
+ */
+public enum Aggregation {
+
+	/**
+	 * The no. of points
+	 */
+	COUNT(false, false),
+
+	/**
+	 * The sum of the values, 0 if there are no points
+	 */
+	SUM(true, false),
+
+	/**
+	 * The lowest value
+	 */
+	MIN(true, false),
+
+	/**
+	 * The highest value
+	 */
+	MAX(true, false),
+
+	/**
+	 * The average of the values
+	 */
+	MEAN(true, false),
+
+	/**
+	 * The (population) standard deviation of the values
+	 */
+	STDDEV(true, false),
+
+	/**
+	 * The value of the first point
+	 */
+	FIRST(false, false),
+
+	/**
+	 * The value of the last point
+	 */
+	LAST(false, false),
+
+	/**
+	 * The Pth percentile of the values, interpolated between the 2 closest
+	 * values when it falls between them
+	 */
+	PERCENTILE(true, true);
+
+	private final boolean _numeric;
+	private final boolean _parameterized;
+
+	private Aggregation(boolean numeric, boolean parameterized) {
+		this._numeric = numeric;
+		this._parameterized = parameterized;
+	}
+
+	/**
+	 * @return true if this can be answered from a Summary of the range
+	 */
+	public boolean isSummarized() {
+		return this != STDDEV && this != PERCENTILE;
+	}
+
+	/**
+	 * @return true if this needs the values to be numbers
+	 */
+	public boolean isNumeric() {
+		return this._numeric;
+	}
+
+	/**
+	 * @return true if this takes a parameter
+	 */
+	public boolean isParameterized() {
+		return this._parameterized;
+	}
+
+	/**
+	 * Read the parameter this aggregation takes
+	 * @param parameter the percentile for PERCENTILE, i.e. 95 or 99.9
+	 * @return the parameter
+	 * @throws PCacheException thrown if the parameter can't be read
+	 */
+	public double parseParameter(String parameter) throws PCacheException {
+
+		if (parameter == null) {
+			throw new PCacheException("Aggregation parameter can't be null");
+		}
+
+		try {
+			return Double.parseDouble(parameter.trim());
+		}
+
+		catch (NumberFormatException ex) {
+			throw new PCacheException("Invalid aggregation parameter: "
+					+ parameter, ex);
+		}
+	}
+
+	/**
+	 * Get the aggregation from its name (case insensitive)
+	 * @param name the name of the aggregation
+	 * @return the aggregation
+	 * @throws PCacheException thrown if there is no such aggregation
+	 */
+	public static Aggregation fromString(String name) throws PCacheException {
+
+		try {
+			return Aggregation.valueOf(name.trim().toUpperCase());
+		}
+
+		catch (NullPointerException ex) {
+			throw new PCacheException("Aggregation can't be null", ex);
+		}
+
+		catch (IllegalArgumentException ex) {
+			throw new PCacheException("Unknown aggregation: " + name, ex);
+		}
+	}
+
+}
@@ -0,0 +1,245 @@
+package main.com.pcache.DO.timeseries.aggregation;
+
+import java.util.Arrays;
+
+import main.com.pcache.DO.timeseries.store.TimeseriesCursor;
+import main.com.pcache.DO.timeseries.store.ValueType;
+import main.com.pcache.exceptions.PCacheException;
+
+/**
+ * Brings a range of points down to a single value, see Aggregation.
+ *
+ * The range is walked once with a cursor straight over the store, nothing
+ * is copied out except by PERCENTILE which has to hold on to the values (as
+ * doubles) to sort them. STDDEV is kept up as the points go by with
+ * Welford's method, so it doesn't lose precision the way summing up the
+ * squares would.
+ */
+public class Aggregator {
+
+	private static final int _INITIAL_CAPACITY = 64;
+
+	private final Aggregation _aggregation;
+
+	private Aggregator(Aggregation aggregation) {
+		this._aggregation = aggregation;
+	}
+
+	/**
+	 * Aggregate a range of points
+	 * @param cursor the cursor over the range, positioned before its first
+	 * 			point
+	 * @param aggregation what to bring the points down to
+	 * @param parameter the percentile for PERCENTILE, ignored by the rest
+	 * @return the result. A whole no. for COUNT, the value as it is held for
+	 * 			FIRST and LAST, a double for the rest
+	 * @throws PCacheException thrown if:
+	 * 			* The percentile isn't between 0 and 100
+	 * 			* The range is empty, for anything but COUNT and SUM
+	 * 			* A value isn't a number when the aggregation needs numbers
+	 */
+	public static String aggregate(TimeseriesCursor cursor,
+			Aggregation aggregation, double parameter) throws PCacheException {
+
+		if (aggregation == Aggregation.PERCENTILE
+				&& !(parameter >= 0 && parameter <= 100)) {
+			throw new PCacheException("The percentile should be between 0 "
+					+ "and 100");
+		}
+
+		Aggregator aggregator = new Aggregator(aggregation);
+
+		switch (aggregation) {
+
+		case COUNT: {
+
+			long count = 0;
+
+			while (cursor.next()) {
+				count++;
+			}
+
+			return Long.toString(count);
+		}
+
+		case FIRST:
+			return cursor.next() ? cursor.value() : aggregator._empty();
+
+		case LAST: {
+
+			if (!cursor.next()) {
+				return aggregator._empty();
+			}
+
+			String last = cursor.value();
+
+			while (cursor.next()) {
+				last = cursor.value();
+			}
+
+			return last;
+		}
+
+		case PERCENTILE:
+			return Double.toString(aggregator._percentile(cursor, parameter));
+
+		default:
+			return Double.toString(aggregator._moments(cursor));
+		}
+	}
+
+	/**
+	 * Aggregate a range of points from its summary, see Rollup
+	 * @param summary the summary of the range
+	 * @param aggregation what to bring the points down to, one that
+	 * 			isSummarized()
+	 * @param valueType the type of the values of the series
+	 * @return the result, as aggregate() gives it
+	 * @throws PCacheException thrown if the range is empty, for anything but
+	 * 			COUNT and SUM
+	 */
+	public static String aggregate(Summary summary, Aggregation aggregation,
+			ValueType valueType) throws PCacheException {
+
+		Aggregator aggregator = new Aggregator(aggregation);
+
+		if (aggregation == Aggregation.COUNT) {
+			return Long.toString(summary.getCount());
+		}
+
+		if (aggregation == Aggregation.SUM) {
+			return Double.toString(summary.getSum());
+		}
+
+		if (summary.getCount() == 0) {
+			return aggregator._empty();
+		}
+
+		switch (aggregation) {
+
+		case MIN:
+			return Double.toString(summary.getMin());
+
+		case MAX:
+			return Double.toString(summary.getMax());
+
+		case MEAN:
+			return Double.toString(summary.getSum() / summary.getCount());
+
+		case FIRST:
+			return valueType.format(summary.getFirst());
+
+		case LAST:
+			return valueType.format(summary.getLast());
+
+		default:
+			throw new IllegalArgumentException(aggregation
+					+ " can't be answered from a summary");
+		}
+	}
+
+	/**
+	 * SUM, MIN, MAX, MEAN and STDDEV, all in one pass
+	 */
+	private double _moments(TimeseriesCursor cursor) throws PCacheException {
+
+		long count = 0;
+		double sum = 0;
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+
+		// Welford's running mean and sum of squared differences from it
+		double mean = 0;
+		double squares = 0;
+
+		while (cursor.next()) {
+
+			double value = _number(cursor);
+
+			count++;
+			sum += value;
+			min = Math.min(min, value);
+			max = Math.max(max, value);
+
+			double delta = value - mean;
+			mean += delta / count;
+			squares += delta * (value - mean);
+		}
+
+		if (count == 0) {
+
+			if (this._aggregation == Aggregation.SUM) {
+				return 0;
+			}
+
+			_empty();
+		}
+
+		switch (this._aggregation) {
+
+		case SUM:
+			return sum;
+
+		case MIN:
+			return min;
+
+		case MAX:
+			return max;
+
+		// The way AVG and the rollups find it, so they agree to the last digit
+		case MEAN:
+			return sum / count;
+
+		default:
+			return Math.sqrt(squares / count);
+		}
+	}
+
+	private double _percentile(TimeseriesCursor cursor, double percentile)
+			throws PCacheException {
+
+		double[] values = new double[_INITIAL_CAPACITY];
+		int count = 0;
+
+		while (cursor.next()) {
+
+			if (count == values.length) {
+				values = Arrays.copyOf(values, count * 2);
+			}
+
+			values[count++] = _number(cursor);
+		}
+
+		if (count == 0) {
+			_empty();
+		}
+
+		Arrays.sort(values, 0, count);
+
+		// Interpolate between the values on either side of the rank
+		double rank = percentile / 100 * (count - 1);
+		int below = (int) Math.floor(rank);
+		int above = (int) Math.ceil(rank);
+
+		return values[below] + (rank - below) * (values[above] - values[below]);
+	}
+
+	private double _number(TimeseriesCursor cursor) throws PCacheException {
+
+		try {
+			return cursor.doubleValue();
+		}
+
+		catch (NumberFormatException ex) {
+			throw new PCacheException("Can't aggregate with "
+					+ this._aggregation + ", " + cursor.value()
+					+ " isn't a number", ex);
+		}
+	}
+
+	private String _empty() throws PCacheException {
+		throw new PCacheException("There are no points in the range to find "
+				+ "the " + this._aggregation + " of");
+	}
+
+}
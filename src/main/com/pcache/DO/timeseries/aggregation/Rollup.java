@@ -0,0 +1,437 @@
+package main.com.pcache.DO.timeseries.aggregation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import main.com.pcache.DO.timeseries.store.TimeseriesCursor;
+import main.com.pcache.DO.timeseries.store.TimeseriesStore;
+import main.com.pcache.utils.HeapSize;
+
+/**
+ * A tier of pre-computed summaries of a numeric series, one Summary per
+ * bucket of a fixed width with points in it. Buckets are aligned to EPOC,
+ * the same way Downsampler aligns them.
+ *
+ * The tier is kept up by the series as points are added, updated and
+ * removed. Adding a point and changing one that isn't the min, the max, the
+ * first or the last of its bucket is a matter of adjusting the summary;
+ * otherwise the bucket is summarized again from the store. The buckets are
+ * held in timestamp order in a pair of arrays, so points that come in at
+ * the end of the series append to them.
+ *
+ * A range is read back as the summaries of the buckets it fully covers plus
+ * the points at either edge that only cover part of a bucket, which are read
+ * off the store. The result is in time proportional to the no. of buckets in
+ * the range, not the no. of points.
+ */
+public class Rollup {
+
+	private static final int _INITIAL_CAPACITY = 16;
+
+	// A Summary, a header and 10 fields of 8 bytes
+	private static final long _SUMMARY = HeapSize.align(HeapSize.OBJECT + 80);
+
+	private final long _width;
+
+	// The start of every bucket with points, and its summary
+	private long[] _starts;
+	private Summary[] _summaries;
+	private int _size;
+
+	/**
+	 * Constructor. Create an empty tier
+	 * @param width the width of the buckets, in miliseconds
+	 */
+	public Rollup(long width) {
+
+		if (width <= 0) {
+			throw new IllegalArgumentException("The width should be positive");
+		}
+
+		this._width = width;
+		this._starts = new long[_INITIAL_CAPACITY];
+		this._summaries = new Summary[_INITIAL_CAPACITY];
+		this._size = 0;
+	}
+
+	/**
+	 * @return the width of the buckets, in miliseconds
+	 */
+	public long getWidth() {
+		return this._width;
+	}
+
+	/**
+	 * @return the no. of buckets with points
+	 */
+	public int size() {
+		return this._size;
+	}
+
+	/**
+	 * Estimate how much of the Java heap the tier takes, see HeapSize
+	 * @return the no. of bytes
+	 */
+	public long heapSize() {
+		return HeapSize.align(HeapSize.OBJECT + 8 + 2 * HeapSize.REFERENCE + 4)
+				+ HeapSize.ofArray(this._starts.length, 8)
+				+ HeapSize.ofArray(this._summaries.length, HeapSize.REFERENCE)
+				+ this._size * _SUMMARY;
+	}
+
+	/**
+	 * Find the start of the bucket a timestamp falls in
+	 * @param timestamp the timestamp, in miliseconds
+	 * @param width the width of the buckets, in miliseconds
+	 * @return the start of the bucket
+	 */
+	public static long bucketStart(long timestamp, long width) {
+
+		long offset = timestamp % width;
+
+		// Timestamps before EPOC leave a negative remainder
+		if (offset < 0) {
+			offset += width;
+		}
+
+		return timestamp - offset;
+	}
+
+	/**
+	 * A point was added to the series
+	 * @param timestamp the timestamp of the point
+	 * @param value the value of the point
+	 */
+	public void add(long timestamp, double value) {
+
+		long start = bucketStart(timestamp, this._width);
+		int index = _indexOf(start);
+
+		if (index < 0) {
+			index = -index - 1;
+			_insert(index, start);
+		}
+
+		this._summaries[index].add(timestamp, value);
+	}
+
+	/**
+	 * The value of a point of the series changed
+	 * @param timestamp the timestamp of the point
+	 * @param old the value the point had
+	 * @param value the value it has now
+	 * @param store the store of the series, already holding the new value
+	 */
+	public void update(long timestamp, double old, double value,
+			TimeseriesStore store) {
+
+		int index = _indexOf(bucketStart(timestamp, this._width));
+
+		if (index < 0) {
+			add(timestamp, value);
+			return;
+		}
+
+		if (!this._summaries[index].update(timestamp, old, value)) {
+			_summarizeAgain(index, store);
+		}
+	}
+
+	/**
+	 * A point was removed from the series
+	 * @param timestamp the timestamp of the point
+	 * @param value the value the point had
+	 * @param store the store of the series, already without the point
+	 */
+	public void remove(long timestamp, double value, TimeseriesStore store) {
+
+		int index = _indexOf(bucketStart(timestamp, this._width));
+
+		if (index < 0) {
+			return;
+		}
+
+		if (!this._summaries[index].remove(timestamp, value)) {
+			_summarizeAgain(index, store);
+		}
+	}
+
+	/**
+	 * Every point in a range was removed from the series. The buckets that
+	 * fall wholly in the range are dropped, the ones at either end of it are
+	 * summarized again
+	 * @param from the start of the range, in miliseconds
+	 * @param to the end of the range, in miliseconds
+	 * @param store the store of the series, already without the points
+	 */
+	public void removeRange(long from, long to, TimeseriesStore store) {
+
+		int first = _indexOf(bucketStart(from, this._width));
+		first = first < 0 ? -first - 1 : first;
+
+		// The last bucket that starts at or before the end
+		int last = _indexOf(bucketStart(to, this._width));
+		last = last < 0 ? -last - 2 : last;
+
+		if (first > last) {
+			return;
+		}
+
+		// The buckets at the ends are dealt with first, working backwards so
+		// that dropping one doesn't move the other
+		int end = last + 1;
+
+		// Whether or not it is dropped, the ones to drop end before it
+		if (_endOf(this._starts[last]) > to) {
+			_summarizeAgain(last, store);
+			end = last;
+		}
+
+		int begin = first;
+
+		if (begin < end && this._starts[first] < from) {
+
+			if (_summarizeAgain(first, store)) {
+				begin++;
+			}
+
+			else {
+				end--;
+			}
+		}
+
+		System.arraycopy(this._starts, end, this._starts, begin,
+				this._size - end);
+		System.arraycopy(this._summaries, end, this._summaries, begin,
+				this._size - end);
+
+		int removed = end - begin;
+		Arrays.fill(this._summaries, this._size - removed, this._size, null);
+		this._size -= removed;
+	}
+
+	/**
+	 * The value of every point in a range changed. The buckets that overlap
+	 * the range are summarized again
+	 * @param from the start of the range, in miliseconds
+	 * @param to the end of the range, in miliseconds
+	 * @param store the store of the series, already with the new values
+	 */
+	public void updateRange(long from, long to, TimeseriesStore store) {
+
+		int first = _indexOf(bucketStart(from, this._width));
+		first = first < 0 ? -first - 1 : first;
+
+		// No points were removed, so none of the buckets are dropped
+		for (int i=first; i<this._size && this._starts[i] <= to; i++) {
+			_summarizeAgain(i, store);
+		}
+	}
+
+	/**
+	 * Summarize a range of the series in buckets of a given width
+	 * @param store the store of the series
+	 * @param from the start of the range, in miliseconds
+	 * @param to the end of the range, in miliseconds
+	 * @param width the width of the buckets, a multiple of the width of
+	 * 			this tier
+	 * @return the summaries of the buckets with points, in timestamp order
+	 */
+	public List<Summary> summarize(TimeseriesStore store, long from, long to,
+			long width) {
+
+		List<Summary> summaries = new ArrayList<>();
+		_summarize(store, from, to, width, summaries);
+		return summaries;
+	}
+
+	/**
+	 * Summarize a range of the series as a whole
+	 * @param store the store of the series
+	 * @param from the start of the range, in miliseconds
+	 * @param to the end of the range, in miliseconds
+	 * @return the summary of the range, empty if there are no points in it
+	 */
+	public Summary summarize(TimeseriesStore store, long from, long to) {
+
+		List<Summary> summaries = new ArrayList<>(1);
+		_summarize(store, from, to, 0, summaries);
+		return summaries.isEmpty() ? new Summary(from) : summaries.get(0);
+	}
+
+	/**
+	 * Walk a range in timestamp order, folding every bucket of this tier
+	 * it fully covers and every point at its edges into the bucket of the
+	 * given width it falls in
+	 * @param width the width of the buckets to fold into, 0 for a single
+	 * 			bucket
+	 * @param summaries filled with the buckets that have points
+	 */
+	private void _summarize(TimeseriesStore store, long from, long to,
+			long width, List<Summary> summaries) {
+
+		if (from > to) {
+			return;
+		}
+
+		// The first and the last bucket of this tier that fit in the range.
+		// Kept clear of overflows at either end of the timeline
+		long first = bucketStart(from, this._width);
+		boolean full = true;
+
+		if (first < from) {
+			full = first <= Long.MAX_VALUE - this._width;
+			first += this._width;
+		}
+
+		long last = bucketStart(to, this._width);
+
+		if (to - last < this._width - 1) {
+			full = full && last >= Long.MIN_VALUE + this._width;
+			last -= this._width;
+		}
+
+		full = full && first <= last;
+
+		if (!full) {
+			_fold(store.cursor(from, to), width, summaries);
+			return;
+		}
+
+		if (from < first) {
+			_fold(store.cursor(from, first - 1), width, summaries);
+		}
+
+		int index = _indexOf(first);
+		index = index < 0 ? -index - 1 : index;
+
+		for (; index < this._size && this._starts[index] <= last; index++) {
+
+			Summary summary = this._summaries[index];
+			_into(summaries, summary.getStart(), width).merge(summary);
+		}
+
+		if (to - last >= this._width) {
+			_fold(store.cursor(last + this._width, to), width, summaries);
+		}
+	}
+
+	/**
+	 * Fold the points under a cursor into buckets of a given width
+	 */
+	private static void _fold(TimeseriesCursor cursor, long width,
+			List<Summary> summaries) {
+
+		while (cursor.next()) {
+			_into(summaries, cursor.timestamp(), width).add(cursor.timestamp(),
+					cursor.doubleValue());
+		}
+	}
+
+	/**
+	 * Get the summary of the bucket a timestamp falls in, starting it if it
+	 * isn't the last one. Timestamps come in order
+	 */
+	private static Summary _into(List<Summary> summaries, long timestamp,
+			long width) {
+
+		long start = width == 0 ? 0 : bucketStart(timestamp, width);
+
+		if (!summaries.isEmpty()) {
+
+			Summary last = summaries.get(summaries.size() - 1);
+
+			if (last.getStart() == start) {
+				return last;
+			}
+		}
+
+		Summary summary = new Summary(start);
+		summaries.add(summary);
+		return summary;
+	}
+
+	/**
+	 * Build the summary of a bucket again from the points in the store,
+	 * dropping the bucket if it has none left
+	 * @param index the index of the bucket
+	 * @param store the store of the series
+	 * @return false if the bucket was dropped
+	 */
+	private boolean _summarizeAgain(int index, TimeseriesStore store) {
+
+		long start = this._starts[index];
+
+		Summary summary = new Summary(start);
+		TimeseriesCursor cursor = store.cursor(start, _endOf(start));
+
+		while (cursor.next()) {
+			summary.add(cursor.timestamp(), cursor.doubleValue());
+		}
+
+		if (summary.getCount() > 0) {
+			this._summaries[index] = summary;
+			return true;
+		}
+
+		System.arraycopy(this._starts, index + 1, this._starts, index,
+				this._size - index - 1);
+		System.arraycopy(this._summaries, index + 1, this._summaries, index,
+				this._size - index - 1);
+
+		this._summaries[--this._size] = null;
+		return false;
+	}
+
+	/**
+	 * Find the end of a bucket, clear of an overflow at the end of the
+	 * timeline
+	 * @param start the start of the bucket
+	 * @return its last milisecond
+	 */
+	private long _endOf(long start) {
+		return start <= Long.MAX_VALUE - (this._width - 1)
+				? start + this._width - 1 : Long.MAX_VALUE;
+	}
+
+	/**
+	 * Open an empty bucket at an index, after the buckets before it
+	 * @param index the index of the bucket
+	 * @param start the start of the bucket
+	 */
+	private void _insert(int index, long start) {
+
+		if (this._size == this._starts.length) {
+			int capacity = this._size * 2;
+			this._starts = Arrays.copyOf(this._starts, capacity);
+			this._summaries = Arrays.copyOf(this._summaries, capacity);
+		}
+
+		System.arraycopy(this._starts, index, this._starts, index + 1,
+				this._size - index);
+		System.arraycopy(this._summaries, index, this._summaries, index + 1,
+				this._size - index);
+
+		this._starts[index] = start;
+		this._summaries[index] = new Summary(start);
+		this._size++;
+	}
+
+	/**
+	 * Find a bucket by its start. Checks the last bucket first, which is
+	 * where the points of a series usually go
+	 * @param start the start of the bucket
+	 * @return the index of the bucket, or (-(insertion point) - 1) if
+	 * 			there is no such bucket, like Arrays.binarySearch()
+	 */
+	private int _indexOf(long start) {
+
+		if (this._size == 0 || start > this._starts[this._size - 1]) {
+			return -this._size - 1;
+		}
+
+		return Arrays.binarySearch(this._starts, 0, this._size, start);
+	}
+
+}
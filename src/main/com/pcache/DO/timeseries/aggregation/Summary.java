@@ -0,0 +1,227 @@
+package main.com.pcache.DO.timeseries.aggregation;
+
+import main.com.pcache.DO.timeseries.store.ValueType;
+
+/**
+ * The count, sum, min, max, first and last of the numbers in a bucket of
+ * time, along with the timestamps of the min, the max, the first and the
+ * last. Enough to answer every bucketed Resolution and every Aggregation
+ * but STDDEV and PERCENTILE without going back to the points.
+ *
+ * Of points with the same value, the min and the max are the earliest one,
+ * the way Downsampler picks them.
+ */
+public class Summary {
+
+	private final long _start;
+
+	private long _count;
+	private double _sum;
+
+	private double _min;
+	private long _minAt;
+	private double _max;
+	private long _maxAt;
+
+	private double _first;
+	private long _firstAt;
+	private double _last;
+	private long _lastAt;
+
+	/**
+	 * Constructor. Create an empty summary
+	 * @param start the start of the bucket, in miliseconds
+	 */
+	public Summary(long start) {
+		this._start = start;
+	}
+
+	/**
+	 * Add a point. Points can come in any order
+	 * @param timestamp the timestamp of the point, in miliseconds
+	 * @param value the value of the point
+	 */
+	public void add(long timestamp, double value) {
+		_merge(1, value, value, timestamp, value, timestamp, value, timestamp,
+				value, timestamp);
+	}
+
+	/**
+	 * Add the points of another summary
+	 * @param other the other summary, not empty
+	 */
+	public void merge(Summary other) {
+		_merge(other._count, other._sum, other._min, other._minAt, other._max,
+				other._maxAt, other._first, other._firstAt, other._last,
+				other._lastAt);
+	}
+
+	/**
+	 * Add the sum of a point whose value changed, when the change doesn't
+	 * touch the min, the max, the first or the last
+	 * @param timestamp the timestamp of the point
+	 * @param old the value the point had
+	 * @param value the value it has now
+	 * @return false if the change does touch them, in which case the
+	 * 			summary has to be built again from the points
+	 */
+	boolean update(long timestamp, double old, double value) {
+
+		if (!_isUntouched(timestamp, old) || !_isUntouched(timestamp, value)) {
+			return false;
+		}
+
+		this._sum += value - old;
+		return true;
+	}
+
+	/**
+	 * Take a point out, when it isn't the min, the max, the first or the last
+	 * @param timestamp the timestamp of the point
+	 * @param value the value of the point
+	 * @return false if it is one of them, in which case the summary has to
+	 * 			be built again from the points
+	 */
+	boolean remove(long timestamp, double value) {
+
+		if (!_isUntouched(timestamp, value)) {
+			return false;
+		}
+
+		this._count--;
+		this._sum -= value;
+		return true;
+	}
+
+	/**
+	 * @return the start of the bucket, in miliseconds
+	 */
+	public long getStart() {
+		return this._start;
+	}
+
+	/**
+	 * @return the no. of points
+	 */
+	public long getCount() {
+		return this._count;
+	}
+
+	/**
+	 * @return the sum of the values
+	 */
+	public double getSum() {
+		return this._sum;
+	}
+
+	/**
+	 * @return the lowest value
+	 */
+	public double getMin() {
+		return this._min;
+	}
+
+	/**
+	 * @return the timestamp of the earliest point with the lowest value
+	 */
+	public long getMinTimestamp() {
+		return this._minAt;
+	}
+
+	/**
+	 * @return the highest value
+	 */
+	public double getMax() {
+		return this._max;
+	}
+
+	/**
+	 * @return the timestamp of the earliest point with the highest value
+	 */
+	public long getMaxTimestamp() {
+		return this._maxAt;
+	}
+
+	/**
+	 * @return the value of the first point
+	 */
+	public double getFirst() {
+		return this._first;
+	}
+
+	/**
+	 * @return the timestamp of the first point
+	 */
+	public long getFirstTimestamp() {
+		return this._firstAt;
+	}
+
+	/**
+	 * @return the value of the last point
+	 */
+	public double getLast() {
+		return this._last;
+	}
+
+	/**
+	 * @return the timestamp of the last point
+	 */
+	public long getLastTimestamp() {
+		return this._lastAt;
+	}
+
+	/**
+	 * Check if the min, the max, the first and the last are the values of
+	 * their points exactly. They are kept as doubles, which whole nos. beyond
+	 * 2^53 don't survive the trip through
+	 * @param valueType the type of the values of the series
+	 * @return true if they are
+	 */
+	public boolean isExact(ValueType valueType) {
+		return valueType.isExact(this._min) && valueType.isExact(this._max)
+				&& valueType.isExact(this._first)
+				&& valueType.isExact(this._last);
+	}
+
+	private void _merge(long count, double sum, double min, long minAt,
+			double max, long maxAt, double first, long firstAt, double last,
+			long lastAt) {
+
+		boolean empty = this._count == 0;
+
+		this._count += count;
+		this._sum += sum;
+
+		if (empty || min < this._min
+				|| (min == this._min && minAt < this._minAt)) {
+			this._min = min;
+			this._minAt = minAt;
+		}
+
+		if (empty || max > this._max
+				|| (max == this._max && maxAt < this._maxAt)) {
+			this._max = max;
+			this._maxAt = maxAt;
+		}
+
+		if (empty || firstAt < this._firstAt) {
+			this._first = first;
+			this._firstAt = firstAt;
+		}
+
+		if (empty || lastAt > this._lastAt) {
+			this._last = last;
+			this._lastAt = lastAt;
+		}
+	}
+
+	/**
+	 * Check that a point neither is nor could become the min, the max, the
+	 * first or the last
+	 */
+	private boolean _isUntouched(long timestamp, double value) {
+		return value > this._min && value < this._max
+				&& timestamp > this._firstAt && timestamp < this._lastAt;
+	}
+
+}
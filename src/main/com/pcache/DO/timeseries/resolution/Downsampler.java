@@ -0,0 +1,481 @@
+package main.com.pcache.DO.timeseries.resolution;
+
+import java.util.Arrays;
+import java.util.List;
+
+import main.com.pcache.DO.timeseries.aggregation.Summary;
+import main.com.pcache.DO.timeseries.store.ColumnarStore;
+import main.com.pcache.DO.timeseries.store.TimeseriesCursor;
+import main.com.pcache.DO.timeseries.store.TimeseriesStore;
+import main.com.pcache.DO.timeseries.store.ValueType;
+import main.com.pcache.exceptions.PCacheException;
+import main.com.pcache.utils.Commons;
+
+import org.joda.time.DateTimeZone;
+
+/**
+ * Brings a range of points down to a lower resolution, see Resolution.
+ *
+ * The range is walked once with a cursor straight over the store. Only the
+ * points that make it to the result are copied out, except for LTTB which
+ * holds on to the points of 2 buckets at a time. The timestamps of the
+ * result are written out in the zone of the first point of the range.
+ */
+public class Downsampler {
+
+	private final Resolution _resolution;
+	private final long _parameter;
+
+	private final TimeseriesStore _result;
+	private DateTimeZone _zone;
+
+	private Downsampler(Resolution resolution, long parameter) {
+		this._resolution = resolution;
+		this._parameter = parameter;
+		this._result = new ColumnarStore();
+	}
+
+	/**
+	 * Downsample a range of points
+	 * @param cursor the cursor over the range, positioned before its first
+	 * 			point
+	 * @param timestampTo the end of the range, in miliseconds. Only used by
+	 * 			LTTB to split the range into buckets
+	 * @param resolution the resolution to bring the points down to
+	 * @param parameter the no. of points for NTH / LTTB, the width of the
+	 * 			buckets in miliseconds for the rest
+	 * @return a store holding the downsampled points
+	 * @throws PCacheException thrown if:
+	 * 			* The parameter isn't positive
+	 * 			* LTTB is asked to keep less than 3 points
+	 * 			* A value isn't a number when the resolution needs numbers
+	 */
+	public static TimeseriesStore downsample(TimeseriesCursor cursor,
+			long timestampTo, Resolution resolution, long parameter)
+					throws PCacheException {
+
+		if (parameter <= 0) {
+			throw new PCacheException(resolution.isBucketed()
+					? "The bucket width should be positive"
+					: "The no. of points should be positive");
+		}
+
+		if (resolution == Resolution.LTTB && parameter < 3) {
+			throw new PCacheException("LTTB has to keep at least 3 points");
+		}
+
+		Downsampler downsampler = new Downsampler(resolution, parameter);
+
+		switch (resolution) {
+
+		case NTH:
+			downsampler._everyNth(cursor);
+			break;
+
+		case LTTB:
+			downsampler._largestTriangleThreeBuckets(cursor, timestampTo);
+			break;
+
+		default:
+			downsampler._buckets(cursor);
+			break;
+		}
+
+		return downsampler._result;
+	}
+
+	/**
+	 * Downsample a range of points from the summaries of its buckets, see
+	 * Rollup. Gives the same points the buckets would, but for AVG which can
+	 * come out in the last digits since the values are added up in a
+	 * different order
+	 * @param cursor the cursor over the range, only used for the zone of its
+	 * 			first point
+	 * @param summaries the summaries of the buckets of the range with
+	 * 			points, in timestamp order
+	 * @param resolution the resolution to bring the points down to, one that
+	 * 			is bucketed
+	 * @param valueType the type of the values of the series
+	 * @return a store holding the downsampled points
+	 */
+	public static TimeseriesStore downsample(TimeseriesCursor cursor,
+			List<Summary> summaries, Resolution resolution,
+			ValueType valueType) {
+
+		Downsampler downsampler = new Downsampler(resolution, 0);
+
+		if (cursor.next()) {
+			downsampler._zoneOf(cursor);
+		}
+
+		for (Summary summary : summaries) {
+
+			switch (resolution) {
+
+			case FIRST:
+				downsampler._emit(summary.getFirstTimestamp(),
+						valueType.format(summary.getFirst()));
+				break;
+
+			case LAST:
+				downsampler._emit(summary.getLastTimestamp(),
+						valueType.format(summary.getLast()));
+				break;
+
+			case MIN:
+				downsampler._emit(summary.getMinTimestamp(),
+						valueType.format(summary.getMin()));
+				break;
+
+			case MAX:
+				downsampler._emit(summary.getMaxTimestamp(),
+						valueType.format(summary.getMax()));
+				break;
+
+			default:
+				downsampler._emit(summary.getStart(), Double.toString(
+						summary.getSum() / summary.getCount()));
+				break;
+			}
+		}
+
+		return downsampler._result;
+	}
+
+	private void _everyNth(TimeseriesCursor cursor) {
+
+		long index = 0;
+
+		while (cursor.next()) {
+
+			if (index++ % this._parameter == 0) {
+				_zoneOf(cursor);
+				_emit(cursor.timestamp(), cursor.value());
+			}
+		}
+	}
+
+	/**
+	 * One point per bucket. The points come in timestamp order so a bucket
+	 * is done with as soon as a point of the next one shows up
+	 */
+	private void _buckets(TimeseriesCursor cursor) throws PCacheException {
+
+		boolean numeric = this._resolution.isNumeric();
+
+		boolean open = false;
+		long bucket = 0;
+		long count = 0;
+		double sum = 0;
+
+		// The point picked for the bucket so far
+		long pickedTimestamp = 0;
+		String pickedValue = null;
+		double pickedNumber = 0;
+
+		while (cursor.next()) {
+
+			long timestamp = cursor.timestamp();
+			double number = numeric ? _number(cursor) : 0;
+			long bucketStart = _bucketStart(timestamp);
+
+			if (!open || bucketStart != bucket) {
+
+				if (open) {
+					_emitBucket(bucket, count, sum, pickedTimestamp, pickedValue);
+				}
+
+				else {
+					_zoneOf(cursor);
+				}
+
+				open = true;
+				bucket = bucketStart;
+				count = 0;
+				sum = 0;
+
+				pickedTimestamp = timestamp;
+				pickedValue = _pickedValue(cursor);
+				pickedNumber = number;
+			}
+
+			count++;
+			sum += number;
+
+			if ((this._resolution == Resolution.LAST)
+					|| (this._resolution == Resolution.MIN && number < pickedNumber)
+					|| (this._resolution == Resolution.MAX && number > pickedNumber)) {
+				pickedTimestamp = timestamp;
+				pickedValue = _pickedValue(cursor);
+				pickedNumber = number;
+			}
+		}
+
+		if (open) {
+			_emitBucket(bucket, count, sum, pickedTimestamp, pickedValue);
+		}
+	}
+
+	/**
+	 * Get the value of a point picked for its bucket, as it is written out.
+	 * The average of a bucket doesn't need the values of its points as
+	 * strings, only as numbers
+	 * @param cursor the cursor, on the point
+	 * @return the value, null if the resolution is AVG
+	 */
+	private String _pickedValue(TimeseriesCursor cursor) {
+		return this._resolution == Resolution.AVG ? null : cursor.value();
+	}
+
+	private void _emitBucket(long bucket, long count, double sum,
+			long pickedTimestamp, String pickedValue) {
+
+		if (this._resolution == Resolution.AVG) {
+			_emit(bucket, Double.toString(sum / count));
+		}
+
+		else {
+			_emit(pickedTimestamp, pickedValue);
+		}
+	}
+
+	/**
+	 * Largest-Triangle-Three-Buckets (Steinarsson, 2013). The points between
+	 * the first and the last are split into _parameter - 2 buckets of equal
+	 * time and the point of each bucket that makes the largest triangle with
+	 * the point picked before it and the average of the next bucket is kept.
+	 * Empty buckets are skipped
+	 */
+	private void _largestTriangleThreeBuckets(TimeseriesCursor cursor,
+			long timestampTo) throws PCacheException {
+
+		if (!cursor.next()) {
+			return;
+		}
+
+		_zoneOf(cursor);
+
+		long start = cursor.timestamp();
+		double span = Math.max(1, timestampTo - start);
+		long buckets = this._parameter - 2;
+
+		_emit(start, cursor.value());
+
+		// The point picked last, the corner of every triangle
+		Triangle triangle = new Triangle(0, _number(cursor));
+
+		// A bucket that is complete but needs the average of the next one
+		// before its point can be picked, and the bucket being filled
+		Points waiting = new Points();
+		Points filling = new Points();
+		long fillingBucket = -1;
+
+		while (cursor.next()) {
+
+			long timestamp = cursor.timestamp();
+			long bucket = Math.min(buckets - 1,
+					(long) ((timestamp - start - 1) / span * buckets));
+
+			if (filling.size > 0 && bucket != fillingBucket) {
+
+				if (waiting.size > 0) {
+					_pick(start, triangle, waiting, filling.averageTime(),
+							filling.averageNumber());
+				}
+
+				Points swap = waiting;
+				waiting = filling;
+				filling = swap;
+				filling.size = 0;
+			}
+
+			fillingBucket = bucket;
+			filling.add(timestamp - start, _number(cursor), cursor.value());
+		}
+
+		if (filling.size == 0) {
+			return;
+		}
+
+		// The last point is always kept, it isn't part of any bucket
+		int last = --filling.size;
+		long lastTime = filling.times[last];
+		double lastNumber = filling.numbers[last];
+
+		if (waiting.size > 0) {
+
+			if (filling.size > 0) {
+				_pick(start, triangle, waiting, filling.averageTime(),
+						filling.averageNumber());
+			}
+
+			else {
+				_pick(start, triangle, waiting, lastTime, lastNumber);
+			}
+		}
+
+		if (filling.size > 0) {
+			_pick(start, triangle, filling, lastTime, lastNumber);
+		}
+
+		_emit(start + lastTime, filling.values[last]);
+	}
+
+	/**
+	 * Keep the point of a bucket that makes the largest triangle with the
+	 * point picked before it and the given point of the next bucket
+	 * @param start the timestamp the times of the points are relative to
+	 * @param triangle holds the point picked before, moved on to the point
+	 * 			picked now
+	 * @param bucket the points of the bucket
+	 * @param nextTime the time of the point of the next bucket
+	 * @param nextNumber the value of the point of the next bucket
+	 */
+	private void _pick(long start, Triangle triangle, Points bucket, 
+			double nextTime, double nextNumber) {
+
+		int picked = 0;
+		double largestArea = -1;
+
+		for (int i=0; i<bucket.size; i++) {
+
+			// Twice the area, which is just as good for comparing
+			double area = Math.abs(
+					(triangle.time - nextTime) * (bucket.numbers[i] - triangle.number)
+					- (triangle.time - bucket.times[i]) * (nextNumber - triangle.number));
+
+			if (area > largestArea) {
+				largestArea = area;
+				picked = i;
+			}
+		}
+
+		triangle.time = bucket.times[picked];
+		triangle.number = bucket.numbers[picked];
+
+		_emit(start + bucket.times[picked], bucket.values[picked]);
+	}
+
+	/**
+	 * Get the start of the bucket a timestamp falls in
+	 * @param timestamp the timestamp in miliseconds
+	 * @return the start of its bucket in miliseconds
+	 */
+	private long _bucketStart(long timestamp) {
+
+		long offset = timestamp % this._parameter;
+
+		// Timestamps before EPOC leave a negative remainder
+		if (offset < 0) {
+			offset += this._parameter;
+		}
+
+		return timestamp - offset;
+	}
+
+	/**
+	 * Get the number the value of a point holds, without writing it out as a
+	 * string first if the store holds it as a number
+	 * @param cursor the cursor, on the point
+	 * @return the number
+	 * @throws PCacheException thrown if the value isn't a number
+	 */
+	private double _number(TimeseriesCursor cursor) throws PCacheException {
+
+		try {
+			return cursor.doubleValue();
+		}
+
+		catch (NumberFormatException ex) {
+			throw new PCacheException("Can't downsample with "
+					+ this._resolution + ", " + cursor.value()
+					+ " isn't a number", ex);
+		}
+	}
+
+	/**
+	 * Take the zone to write the result in from the point the cursor is on,
+	 * if it isn't known yet
+	 * @param cursor the cursor
+	 */
+	private void _zoneOf(TimeseriesCursor cursor) {
+
+		if (this._zone != null) {
+			return;
+		}
+
+		try {
+			this._zone = Commons.extractISO8601Zone(cursor.timestampISO8601());
+		}
+
+		catch (PCacheException ex) {
+			this._zone = DateTimeZone.UTC;
+		}
+	}
+
+	private void _emit(long timestamp, String value) {
+		this._result.put(timestamp,
+				Commons.convertMilisToISO8601(timestamp, this._zone), value);
+	}
+
+	/**
+	 * The corner of the triangles, i.e. the point picked last
+	 */
+	private static class Triangle {
+
+		double time;
+		double number;
+
+		Triangle(double time, double number) {
+			this.time = time;
+			this.number = number;
+		}
+	}
+
+	/**
+	 * The points of a bucket. Times are relative to the first point of the
+	 * range, which keeps the floating point arithmetic on them precise
+	 */
+	private static class Points {
+
+		long[] times = new long[16];
+		double[] numbers = new double[16];
+		String[] values = new String[16];
+		int size;
+
+		void add(long time, double number, String value) {
+
+			if (size == times.length) {
+				times = Arrays.copyOf(times, size * 2);
+				numbers = Arrays.copyOf(numbers, size * 2);
+				values = Arrays.copyOf(values, size * 2);
+			}
+
+			times[size] = time;
+			numbers[size] = number;
+			values[size] = value;
+			size++;
+		}
+
+		double averageTime() {
+
+			double sum = 0;
+			for (int i=0; i<size; i++) {
+				sum += times[i];
+			}
+
+			return sum / size;
+		}
+
+		double averageNumber() {
+
+			double sum = 0;
+			for (int i=0; i<size; i++) {
+				sum += numbers[i];
+			}
+
+			return sum / size;
+		}
+	}
+
+}
@@ -0,0 +1,126 @@
+package main.com.pcache.DO.timeseries.resolution;
+
+import main.com.pcache.exceptions.PCacheException;
+import main.com.pcache.utils.Commons;
+
+/**
+ * The ways a range of points can be brought down to a lower resolution.
+ *
+ * NTH and LTTB take a no. of points, the rest take the width of the time
+ * buckets the range is cut into. Buckets are aligned to EPOC so that the 
+ * same bucket always covers the same stretch of time.
+ */
+public enum Resolution {
+
+	/**
+	 * Every Nth point, starting with the first
+	 */
+	NTH(false, false),
+
+	/**
+	 * The first point of every bucket
+	 */
+	FIRST(true, false),
+
+	/**
+	 * The last point of every bucket
+	 */
+	LAST(true, false),
+
+	/**
+	 * The point with the lowest value in every bucket
+	 */
+	MIN(true, true),
+
+	/**
+	 * The point with the highest value in every bucket
+	 */
+	MAX(true, true),
+
+	/**
+	 * The average of the values in every bucket, put at the start of the
+	 * bucket
+	 */
+	AVG(true, true),
+
+	/**
+	 * Largest-Triangle-Three-Buckets. Picks at most N points that keep the 
+	 * shape of the series when plotted. The first and the last point are
+	 * always kept
+	 */
+	LTTB(false, true);
+
+	private final boolean _bucketed;
+	private final boolean _numeric;
+
+	private Resolution(boolean bucketed, boolean numeric) {
+		this._bucketed = bucketed;
+		this._numeric = numeric;
+	}
+
+	/**
+	 * @return true if this takes a bucket width, false if it takes a no. of
+	 * 			points
+	 */
+	public boolean isBucketed() {
+		return this._bucketed;
+	}
+
+	/**
+	 * @return true if this needs the values to be numbers
+	 */
+	public boolean isNumeric() {
+		return this._numeric;
+	}
+
+	/**
+	 * Read the parameter this resolution takes
+	 * @param parameter a no. of points, or the width of a bucket in 
+	 * 			miliseconds. The width can also be given with a unit i.e. 
+	 * 			500ms, 30s, 5m, 1h or 1d
+	 * @return the no. of points or the width of a bucket in miliseconds
+	 * @throws PCacheException thrown if the parameter can't be read
+	 */
+	public long parseParameter(String parameter) throws PCacheException {
+
+		if (parameter == null) {
+			throw new PCacheException("Resolution parameter can't be null");
+		}
+
+		// A bucket width is read like any other duration
+		if (this._bucketed) {
+			return Commons.parseDuration(parameter);
+		}
+
+		try {
+			return Long.parseLong(parameter.trim());
+		}
+
+		catch (NumberFormatException ex) {
+			throw new PCacheException("Invalid resolution parameter: " 
+					+ parameter, ex);
+		}
+	}
+
+	/**
+	 * Get the resolution from its name (case insensitive)
+	 * @param name the name of the resolution
+	 * @return the resolution
+	 * @throws PCacheException thrown if there is no such resolution
+	 */
+	public static Resolution fromString(String name) throws PCacheException {
+
+		try {
+			return Resolution.valueOf(name.trim().toUpperCase());
+		}
+
+		catch (NullPointerException ex) {
+			throw new PCacheException("Resolution can't be null", ex);
+		}
+
+		catch (IllegalArgumentException ex) {
+			throw new PCacheException("Unknown resolution: " + name, ex);
+		}
+	}
+
+}
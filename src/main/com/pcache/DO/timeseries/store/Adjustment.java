@@ -0,0 +1,111 @@
+package main.com.pcache.DO.timeseries.store;
+
+import main.com.pcache.exceptions.PCacheException;
+
+/**
+ * The ways the values of a range of points can be changed in bulk, each
+ * value by the same operand. Only numbers can be adjusted.
+ */
+public enum Adjustment {
+
+	/**
+	 * Add the operand to the value
+	 */
+	SHIFT,
+
+	/**
+	 * Multiply the value by the operand
+	 */
+	SCALE;
+
+	/**
+	 * Adjust a value
+	 * @param value the value
+	 * @param operand the operand
+	 * @return the adjusted value
+	 */
+	public double apply(double value, double operand) {
+		return this == SHIFT ? value + operand : value * operand;
+	}
+
+	/**
+	 * Get the function that adjusts the values of a store. The values of a
+	 * LONG store stay whole. Shifting or scaling one by a whole no. is done
+	 * without going through a double so that no precision is lost, by
+	 * anything else the result is cut to its whole part
+	 * @param type the type of the values, LONG or DOUBLE
+	 * @param operand the operand
+	 * @return the function. It throws an ArithmeticException if a LONG value
+	 * 			overflows or a DOUBLE value ends up infinite or not a no.
+	 */
+	public ValueFunction function(final ValueType type, final double operand) {
+
+		final boolean whole = operand == Math.rint(operand)
+				&& Math.abs(operand) < (this == SHIFT ? 0x1p53 : 0x1p63);
+
+		return new ValueFunction() {
+
+			@Override
+			public String apply(String value) {
+				return type == ValueType.LONG
+						? Long.toString(apply(Long.parseLong(value)))
+						: Double.toString(apply(Double.parseDouble(value)));
+			}
+
+			@Override
+			public long apply(long value) {
+
+				if (whole) {
+					return Adjustment.this == SHIFT
+							? Math.addExact(value, (long) operand)
+							: Math.multiplyExact(value, (long) operand);
+				}
+
+				double adjusted = Adjustment.this.apply(value, operand);
+
+				// (long) would saturate instead
+				if (Double.isNaN(adjusted) || adjusted >= 0x1p63
+						|| adjusted < -0x1p63) {
+					throw new ArithmeticException("long overflow");
+				}
+
+				return (long) adjusted;
+			}
+
+			@Override
+			public double apply(double value) {
+
+				double adjusted = Adjustment.this.apply(value, operand);
+
+				if (Double.isNaN(adjusted) || Double.isInfinite(adjusted)) {
+					throw new ArithmeticException(value + " " + Adjustment.this
+							+ " " + operand + " isn't a finite no.");
+				}
+
+				return adjusted;
+			}
+		};
+	}
+
+	/**
+	 * Get the adjustment from its name (case insensitive)
+	 * @param name the name of the adjustment
+	 * @return the adjustment
+	 * @throws PCacheException thrown if there is no such adjustment
+	 */
+	public static Adjustment fromString(String name) throws PCacheException {
+
+		try {
+			return Adjustment.valueOf(name.trim().toUpperCase());
+		}
+
+		catch (NullPointerException ex) {
+			throw new PCacheException("Adjustment can't be null", ex);
+		}
+
+		catch (IllegalArgumentException ex) {
+			throw new PCacheException("Unknown adjustment: " + name, ex);
+		}
+	}
+
+}
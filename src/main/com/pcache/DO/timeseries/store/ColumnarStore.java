@@ -0,0 +1,585 @@
+package main.com.pcache.DO.timeseries.store;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+import main.com.pcache.exceptions.PCacheException;
+import main.com.pcache.utils.Commons;
+import main.com.pcache.utils.HeapSize;
+
+import org.joda.time.DateTimeZone;
+
+/**
+ * A store backed by sorted parallel arrays.
+ *
+ * The timestamps are held as a primitive long[] and the values in an array
+ * running alongside it, so a point costs 8 bytes + a reference instead of a
+ * TreeMap entry, a PCacheTimestamp and its ISO8601 string. The values of
+ * numeric series' are primitives too, see ValueColumn. Lookups are binary
+ * searches. A range is a Slice, a view over the arrays of the store that
+ * holds no points of its own.
+ *
+ * The ISO8601 strings aren't kept. They are written back out in the zone of
+ * the first point put into the store.
+ */
+public class ColumnarStore implements TimeseriesStore {
+
+	private static final int _INITIAL_CAPACITY = 16;
+
+	private long[] _timestamps;
+	private ValueColumn _values;
+	private int _size;
+
+	// The zone the timestamps are written out in
+	private DateTimeZone _zone;
+
+	/**
+	 * Constructor. Create an empty store of strings
+	 */
+	public ColumnarStore() {
+		this(ValueType.STRING);
+	}
+
+	/**
+	 * Constructor. Create an empty store
+	 * @param valueType the type of the values, see ValueColumn
+	 */
+	public ColumnarStore(ValueType valueType) {
+		this(valueType, _INITIAL_CAPACITY, null);
+	}
+
+	/**
+	 * Constructor. Create an empty store that writes its timestamps out in a
+	 * given zone
+	 * @param valueType the type of the values
+	 * @param capacity the no. of points the store can hold before it grows
+	 * @param zone the zone to write the timestamps out in
+	 */
+	ColumnarStore(ValueType valueType, int capacity, DateTimeZone zone) {
+		this(new long[capacity], ValueColumn.of(valueType, capacity), 0, zone);
+	}
+
+	/**
+	 * Constructor. Create a store out of already sorted arrays. The arrays
+	 * are owned by the store from here on
+	 * @param timestamps the sorted timestamps
+	 * @param values the values associated to the timestamps
+	 * @param size the no. of points used in the arrays
+	 * @param zone the zone to write the timestamps out in
+	 */
+	private ColumnarStore(long[] timestamps, ValueColumn values, int size,
+			DateTimeZone zone) {
+		this._timestamps = timestamps;
+		this._values = values;
+		this._size = size;
+		this._zone = zone;
+	}
+
+	@Override
+	public StoreType getType() {
+		return StoreType.COLUMNAR;
+	}
+
+	/**
+	 * @return the type of the values
+	 */
+	public ValueType getValueType() {
+		return this._values.getType();
+	}
+
+	@Override
+	public boolean canHold(long timestamp) {
+		return true;
+	}
+
+	@Override
+	public int size() {
+		return this._size;
+	}
+
+	@Override
+	public boolean containsKey(long timestamp) {
+		return _indexOf(timestamp) >= 0;
+	}
+
+	@Override
+	public String get(long timestamp) {
+
+		int index = _indexOf(timestamp);
+		return index >= 0 ? this._values.get(index) : null;
+	}
+
+	@Override
+	public void put(long timestamp, String timestampISO8601, String value) {
+
+		if (this._zone == null) {
+			this._zone = _zoneOf(timestampISO8601);
+		}
+
+		// Appending at the tail is the common case, skip the search
+		if (this._size == 0 || timestamp > this._timestamps[this._size - 1]) {
+			_ensureCapacity(this._size + 1);
+			this._timestamps[this._size] = timestamp;
+			this._values.set(this._size, value);
+			this._size++;
+			return;
+		}
+
+		int index = _indexOf(timestamp);
+
+		// Exists, just update it
+		if (index >= 0) {
+			this._values.set(index, value);
+			return;
+		}
+
+		// Doesn't exist, shift everything after the insertion point
+		int insertAt = -(index + 1);
+		_ensureCapacity(this._size + 1);
+
+		System.arraycopy(this._timestamps, insertAt, this._timestamps,
+				insertAt + 1, this._size - insertAt);
+		this._values.move(insertAt, insertAt + 1, this._size - insertAt);
+
+		this._timestamps[insertAt] = timestamp;
+		this._values.set(insertAt, value);
+		this._size++;
+	}
+
+	/**
+	 * The timestamps are copied in with System.arraycopy(), and so are the
+	 * values when they are of the type of the store
+	 */
+	@Override
+	public void appendAll(long[] timestamps, String[] timestampsISO8601,
+			ValueArray values, int count) {
+
+		if (this._zone == null && count > 0) {
+			this._zone = _zoneOf(timestampsISO8601 == null ? null
+					: timestampsISO8601[0]);
+		}
+
+		append(timestamps, values, 0, count, this._zone);
+	}
+
+	/**
+	 * Add a run of points that all come after the last point of the store
+	 * @param timestamps the ascending timestamps
+	 * @param values the values associated to the timestamps
+	 * @param from the index of the first point to add
+	 * @param count the no. of points to add
+	 * @param zone the zone to write the timestamps out in, if the store
+	 * 			doesn't have one yet
+	 */
+	void append(long[] timestamps, ValueArray values, int from, int count,
+			DateTimeZone zone) {
+
+		if (this._zone == null) {
+			this._zone = zone;
+		}
+
+		_ensureCapacity(this._size + count);
+
+		System.arraycopy(timestamps, from, this._timestamps, this._size, count);
+		this._values.setAll(this._size, values, from, count);
+		this._size += count;
+	}
+
+	@Override
+	public boolean remove(long timestamp) {
+
+		int index = _indexOf(timestamp);
+
+		if (index < 0) {
+			return false;
+		}
+
+		System.arraycopy(this._timestamps, index + 1, this._timestamps,
+				index, this._size - index - 1);
+		this._values.move(index + 1, index, this._size - index - 1);
+
+		this._size--;
+		this._values.clear(this._size, this._size + 1);
+		return true;
+	}
+
+	@Override
+	public int removeRange(long timestampFrom, long timestampTo) {
+
+		int from = _lowerBound(timestampFrom);
+		int to = _upperBound(timestampTo);
+
+		if (from >= to) {
+			return 0;
+		}
+
+		int removed = to - from;
+
+		System.arraycopy(this._timestamps, to, this._timestamps, from,
+				this._size - to);
+		this._values.move(to, from, this._size - to);
+
+		this._size -= removed;
+		this._values.clear(this._size, this._size + removed);
+		return removed;
+	}
+
+	@Override
+	public int updateRange(long timestampFrom, long timestampTo,
+			ValueFunction function) {
+
+		int from = _lowerBound(timestampFrom);
+		int to = _upperBound(timestampTo);
+
+		for (int i=from; i<to; i++) {
+			this._values.update(i, function);
+		}
+
+		return Math.max(0, to - from);
+	}
+
+	@Override
+	public long firstKey() {
+
+		if (this._size == 0) {
+			throw new NoSuchElementException();
+		}
+
+		return this._timestamps[0];
+	}
+
+	@Override
+	public long lastKey() {
+
+		if (this._size == 0) {
+			throw new NoSuchElementException();
+		}
+
+		return this._timestamps[this._size - 1];
+	}
+
+	/**
+	 * Nothing is copied, the range is a view over the arrays of the store.
+	 * Like a sub map of a TreeMap it is bounded by the timestamps rather than
+	 * by the indexes, so it stays right as points are put into the store
+	 */
+	@Override
+	public TimeseriesStore subSeries(long timestampFrom, long timestampTo) {
+		return new Slice(this, timestampFrom, timestampTo);
+	}
+
+	@Override
+	public TimeseriesCursor cursor() {
+		return _cursor(0, this._size);
+	}
+
+	@Override
+	public TimeseriesCursor cursor(long timestampFrom, long timestampTo) {
+
+		int from = _lowerBound(timestampFrom);
+		int to = _upperBound(timestampTo);
+
+		return _cursor(from, Math.max(from, to));
+	}
+
+	@Override
+	public long heapSize() {
+		return HeapSize.align(HeapSize.OBJECT + 3 * HeapSize.REFERENCE + 4)
+				+ HeapSize.ofArray(this._timestamps.length, 8)
+				+ this._values.heapSize();
+	}
+
+	@Override
+	public void release() {
+		// Everything is on the heap
+	}
+
+	/**
+	 * Get a cursor over a range of indexes
+	 * @param from the first index
+	 * @param to the index after the last one
+	 * @return a cursor positioned before the first index
+	 */
+	private TimeseriesCursor _cursor(final int from, final int to) {
+
+		return new TimeseriesCursor() {
+
+			int _index = from - 1;
+
+			@Override
+			public boolean next() {
+				return ++_index < to;
+			}
+
+			@Override
+			public long timestamp() {
+				return _timestamps[_index];
+			}
+
+			@Override
+			public String timestampISO8601() {
+				return Commons.convertMilisToISO8601(_timestamps[_index], _zone);
+			}
+
+			@Override
+			public String value() {
+				return _values.get(_index);
+			}
+
+			@Override
+			public double doubleValue() {
+				return _values.getDouble(_index);
+			}
+
+			@Override
+			public long longValue() {
+				return _values.getLong(_index);
+			}
+		};
+	}
+
+	/**
+	 * A range of a ColumnarStore. The indexes it covers are found again by a
+	 * binary search every time it is used, the points are read straight out
+	 * of the arrays of the store. Points can only be put into the range
+	 */
+	private static class Slice implements TimeseriesStore {
+
+		// The slice itself, a reference to the store and the bounds
+		private static final long _SLICE = HeapSize.align(HeapSize.OBJECT
+				+ HeapSize.REFERENCE + 16);
+
+		private final ColumnarStore _store;
+		private final long _from;
+		private final long _to;
+
+		private Slice(ColumnarStore store, long from, long to) {
+			this._store = store;
+			this._from = from;
+			this._to = to;
+		}
+
+		@Override
+		public StoreType getType() {
+			return StoreType.COLUMNAR;
+		}
+
+		@Override
+		public int size() {
+			return _end() - _start();
+		}
+
+		@Override
+		public boolean containsKey(long timestamp) {
+			return canHold(timestamp) && this._store.containsKey(timestamp);
+		}
+
+		@Override
+		public String get(long timestamp) {
+			return canHold(timestamp) ? this._store.get(timestamp) : null;
+		}
+
+		@Override
+		public boolean canHold(long timestamp) {
+			return timestamp >= this._from && timestamp <= this._to;
+		}
+
+		/**
+		 * @throws IllegalArgumentException thrown if the point is out of the
+		 * 			range
+		 */
+		@Override
+		public void put(long timestamp, String timestampISO8601,
+				String value) {
+
+			if (!canHold(timestamp)) {
+				throw new IllegalArgumentException(timestamp + " is out of "
+						+ "the range of the slice");
+			}
+
+			this._store.put(timestamp, timestampISO8601, value);
+		}
+		/**
+		 * @throws IllegalArgumentException thrown if a point is out of the
+		 * 			range
+		 */
+		@Override
+		public void appendAll(long[] timestamps, String[] timestampsISO8601,
+				ValueArray values, int count) {
+
+			if (count > 0 && (!canHold(timestamps[0])
+					|| !canHold(timestamps[count - 1]))) {
+				throw new IllegalArgumentException("The points are out of "
+						+ "the range of the slice");
+			}
+
+			this._store.appendAll(timestamps, timestampsISO8601, values, count);
+		}
+
+
+		@Override
+		public boolean remove(long timestamp) {
+			return canHold(timestamp) && this._store.remove(timestamp);
+		}
+
+		@Override
+		public int removeRange(long timestampFrom, long timestampTo) {
+
+			long from = Math.max(timestampFrom, this._from);
+			long to = Math.min(timestampTo, this._to);
+
+			return from > to ? 0 : this._store.removeRange(from, to);
+		}
+
+		@Override
+		public int updateRange(long timestampFrom, long timestampTo,
+				ValueFunction function) {
+
+			long from = Math.max(timestampFrom, this._from);
+			long to = Math.min(timestampTo, this._to);
+
+			return from > to ? 0 : this._store.updateRange(from, to, function);
+		}
+
+		@Override
+		public long firstKey() {
+
+			int start = _start();
+
+			if (start == _end()) {
+				throw new NoSuchElementException();
+			}
+
+			return this._store._timestamps[start];
+		}
+
+		@Override
+		public long lastKey() {
+
+			int end = _end();
+
+			if (end == _start()) {
+				throw new NoSuchElementException();
+			}
+
+			return this._store._timestamps[end - 1];
+		}
+
+		@Override
+		public TimeseriesStore subSeries(long timestampFrom,
+				long timestampTo) {
+			return new Slice(this._store, Math.max(timestampFrom, this._from),
+					Math.min(timestampTo, this._to));
+		}
+
+		@Override
+		public TimeseriesCursor cursor() {
+			return this._store._cursor(_start(), _end());
+		}
+
+		@Override
+		public TimeseriesCursor cursor(long timestampFrom, long timestampTo) {
+
+			long from = Math.max(timestampFrom, this._from);
+			long to = Math.min(timestampTo, this._to);
+
+			if (from > to) {
+				return this._store._cursor(0, 0);
+			}
+
+			return this._store.cursor(from, to);
+		}
+
+		/**
+		 * Only the slice is counted, the arrays belong to the store
+		 */
+		@Override
+		public long heapSize() {
+			return _SLICE;
+		}
+
+		@Override
+		public void release() {
+			// The arrays belong to the store
+		}
+
+		/**
+		 * @return the index of the first point of the slice
+		 */
+		private int _start() {
+			return this._store._lowerBound(this._from);
+		}
+
+		/**
+		 * @return the index after the last point of the slice
+		 */
+		private int _end() {
+			return Math.max(_start(), this._store._upperBound(this._to));
+		}
+	}
+
+	/**
+	 * Find the index of a timestamp
+	 * @param timestamp the timestamp to look for
+	 * @return the index if found, (-(insertion point) - 1) otherwise
+	 */
+	private int _indexOf(long timestamp) {
+		return Arrays.binarySearch(this._timestamps, 0, this._size, timestamp);
+	}
+
+	/**
+	 * Find the index of the first timestamp that is greater than or equal to
+	 * the given timestamp
+	 * @param timestamp the timestamp
+	 * @return the index, _size if all timestamps are lesser
+	 */
+	private int _lowerBound(long timestamp) {
+
+		int index = _indexOf(timestamp);
+		return index >= 0 ? index : -(index + 1);
+	}
+
+	/**
+	 * Find the index of the first timestamp that is greater than the given
+	 * timestamp
+	 * @param timestamp the timestamp
+	 * @return the index, _size if all timestamps are lesser or equal
+	 */
+	private int _upperBound(long timestamp) {
+
+		int index = _indexOf(timestamp);
+		return index >= 0 ? index + 1 : -(index + 1);
+	}
+
+	/**
+	 * Grow the arrays if they can't hold the given no. of points
+	 * @param capacity the no. of points the arrays should be able to hold
+	 */
+	private void _ensureCapacity(int capacity) {
+
+		if (capacity <= this._timestamps.length) {
+			return;
+		}
+
+		int newCapacity = Math.max(capacity, this._timestamps.length * 2);
+		this._timestamps = Arrays.copyOf(this._timestamps, newCapacity);
+		this._values.ensureCapacity(newCapacity);
+	}
+
+	/**
+	 * Get the zone of a timestamp, falling back to UTC
+	 * @param timestampISO8601 the ISO8601 timestamp
+	 * @return the zone
+	 */
+	private static DateTimeZone _zoneOf(String timestampISO8601) {
+
+		try {
+			return Commons.extractISO8601Zone(timestampISO8601);
+		}
+
+		catch (PCacheException ex) {
+			return DateTimeZone.UTC;
+		}
+	}
+
+}
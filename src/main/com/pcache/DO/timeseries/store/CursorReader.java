@@ -0,0 +1,20 @@
+package main.com.pcache.DO.timeseries.store;
+
+import java.io.IOException;
+
+/**
+ * Reads the points of a timeseries through a cursor. Used to walk over a
+ * series while it is locked for reading, see VariableTimeseries.read()
+ * @param <T> the type of what is read out
+ */
+public interface CursorReader<T> {
+
+	/**
+	 * Read the points
+	 * @param cursor the cursor over the points, positioned before the first
+	 * @return whatever was read out
+	 * @throws IOException thrown if the points can't be written out
+	 */
+	public T read(TimeseriesCursor cursor) throws IOException;
+
+}
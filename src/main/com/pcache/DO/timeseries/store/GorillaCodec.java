@@ -0,0 +1,554 @@
+package main.com.pcache.DO.timeseries.store;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Compresses a run of points the way Facebook's Gorilla does (Pelkonen et
+ * al., 2015), for the sealed chunks of a SegmentStore.
+ *
+ * Timestamps are written as the difference between consecutive deltas,
+ * which is 0 for points at a regular interval and costs a single bit then.
+ * Values that are numbers are written as the XOR of the bits of the double
+ * with those of the previous value, which leaves only a few meaningful bits
+ * for values that change slowly. Values are strings in the cache though, so
+ * this is only done when every value of the run can be written back out
+ * exactly as it came in: as a whole no. (LONG) or as Double.toString()
+ * would (DOUBLE). Any other run keeps its values as UTF-8 strings (STRING).
+ *
+ * A run is laid out as the no. of points (int32), the format of the values
+ * (1 byte), the no. of bytes of bits that follow (int32), the bits of the
+ * timestamps and numeric values, one point after the other, and for STRING
+ * runs the length + 1 (varint, 0 for null) and UTF-8 bytes of every value.
+ *
+ * A run can only be read from the start, see Decoder.
+ */
+public class GorillaCodec {
+
+	private static final byte _STRING = 0;
+	private static final byte _LONG = 1;
+	private static final byte _DOUBLE = 2;
+
+	private static final int _HEADER_SIZE = 9;
+
+	// Whole nos. beyond this don't survive the trip through a double
+	private static final long _MAX_EXACT_LONG = 1L << 53;
+
+	/**
+	 * Compress a run of points
+	 * @param timestamps the sorted timestamps
+	 * @param values the values associated to the timestamps
+	 * @param from the index of the first point
+	 * @param to the index after the last point
+	 * @return the compressed run
+	 */
+	public static byte[] encode(long[] timestamps, String[] values, int from,
+			int to) {
+
+		byte format = _formatOf(values, from, to);
+
+		BitWriter bits = new BitWriter();
+		ByteWriter strings = new ByteWriter();
+
+		long timestamp = 0;
+		long delta = 0;
+
+		long valueBits = 0;
+		int leading = -1;
+		int trailing = 0;
+
+		for (int i=from; i<to; i++) {
+
+			// Timestamps
+			if (i == from) {
+				bits.write(timestamps[i], 64);
+			}
+
+			else {
+				long newDelta = timestamps[i] - timestamp;
+				_writeDeltaOfDelta(bits, newDelta - delta);
+				delta = newDelta;
+			}
+
+			timestamp = timestamps[i];
+
+			// Values
+			if (format == _STRING) {
+				_writeString(strings, values[i]);
+				continue;
+			}
+
+			long newValueBits = Double.doubleToRawLongBits(format == _LONG
+					? (double) Long.parseLong(values[i])
+					: Double.parseDouble(values[i]));
+
+			if (i == from) {
+				bits.write(newValueBits, 64);
+				valueBits = newValueBits;
+				continue;
+			}
+
+			long xor = newValueBits ^ valueBits;
+			valueBits = newValueBits;
+
+			if (xor == 0) {
+				bits.write(0, 1);
+				continue;
+			}
+
+			int newLeading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+			int newTrailing = Long.numberOfTrailingZeros(xor);
+
+			// Fits in the meaningful bits of the previous value
+			if (leading >= 0 && newLeading >= leading
+					&& newTrailing >= trailing) {
+				bits.write(0b10, 2);
+				bits.write(xor >>> trailing, 64 - leading - trailing);
+				continue;
+			}
+
+			leading = newLeading;
+			trailing = newTrailing;
+
+			int meaningful = 64 - leading - trailing;
+
+			bits.write(0b11, 2);
+			bits.write(leading, 5);
+			bits.write(meaningful & 63, 6);
+			bits.write(xor >>> trailing, meaningful);
+		}
+
+		int bitBytes = bits.byteLength();
+
+		ByteBuffer run = ByteBuffer.allocate(_HEADER_SIZE + bitBytes
+				+ strings.length);
+
+		run.putInt(to - from);
+		run.put(format);
+		run.putInt(bitBytes);
+		run.put(bits.bytes, 0, bitBytes);
+		run.put(strings.bytes, 0, strings.length);
+
+		return run.array();
+	}
+
+	/**
+	 * Pick the format the values of a run are written in
+	 */
+	private static byte _formatOf(String[] values, int from, int to) {
+
+		boolean isLong = true;
+		boolean isDouble = true;
+
+		for (int i=from; i<to && (isLong || isDouble); i++) {
+
+			String value = values[i];
+
+			if (value == null) {
+				return _STRING;
+			}
+
+			if (isLong) {
+
+				try {
+					long number = Long.parseLong(value);
+					isLong = Math.abs(number) <= _MAX_EXACT_LONG
+							&& Long.toString(number).equals(value);
+				}
+
+				catch (NumberFormatException ex) {
+					isLong = false;
+				}
+			}
+
+			if (isDouble) {
+
+				try {
+					isDouble = Double.toString(Double.parseDouble(value))
+							.equals(value);
+				}
+
+				catch (NumberFormatException ex) {
+					isDouble = false;
+				}
+			}
+		}
+
+		return isLong ? _LONG : isDouble ? _DOUBLE : _STRING;
+	}
+
+	/**
+	 * Write the change in the delta between timestamps in as few bits as the
+	 * range it falls in allows
+	 */
+	private static void _writeDeltaOfDelta(BitWriter bits, long deltaOfDelta) {
+
+		if (deltaOfDelta == 0) {
+			bits.write(0, 1);
+		}
+
+		else if (deltaOfDelta >= -63 && deltaOfDelta <= 64) {
+			bits.write(0b10, 2);
+			bits.write(deltaOfDelta + 63, 7);
+		}
+
+		else if (deltaOfDelta >= -255 && deltaOfDelta <= 256) {
+			bits.write(0b110, 3);
+			bits.write(deltaOfDelta + 255, 9);
+		}
+
+		else if (deltaOfDelta >= -2047 && deltaOfDelta <= 2048) {
+			bits.write(0b1110, 4);
+			bits.write(deltaOfDelta + 2047, 12);
+		}
+
+		else {
+			bits.write(0b1111, 4);
+			bits.write(deltaOfDelta, 64);
+		}
+	}
+
+	private static void _writeString(ByteWriter strings, String value) {
+
+		if (value == null) {
+			strings.writeVarint(0);
+			return;
+		}
+
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		strings.writeVarint(bytes.length + 1);
+		strings.write(bytes);
+	}
+
+	/**
+	 * Reads the points of a run one after the other. Only uses absolute gets
+	 * on the buffer, so any no. of decoders can read the same run at once
+	 */
+	public static class Decoder {
+
+		private final ByteBuffer _buffer;
+		private final int _count;
+		private final byte _format;
+
+		// Where the bits and the strings start, and how far each is read
+		private final int _bitsStart;
+		private long _bitPosition;
+		private int _stringPosition;
+
+		private int _index;
+
+		private long _timestamp;
+		private long _delta;
+
+		private long _valueBits;
+		private int _leading;
+		private int _trailing;
+
+		// The string of the current point, if it is a STRING run
+		private int _stringStart;
+		private int _stringLength;
+
+		// The value of the current point, once it is asked for
+		private String _value;
+
+		/**
+		 * Constructor
+		 * @param buffer the run, starting at index 0 of the buffer
+		 */
+		public Decoder(ByteBuffer buffer) {
+
+			this._buffer = buffer;
+			this._count = buffer.getInt(0);
+			this._format = buffer.get(4);
+
+			this._bitsStart = _HEADER_SIZE;
+			this._bitPosition = 0;
+			this._stringPosition = _HEADER_SIZE + buffer.getInt(5);
+
+			this._index = -1;
+		}
+
+		/**
+		 * Move to the next point
+		 * @return true if there is a point to read, false if the run is over
+		 */
+		public boolean next() {
+
+			if (this._index + 1 >= this._count) {
+				this._index = this._count;
+				return false;
+			}
+
+			this._index++;
+			this._value = null;
+
+			if (this._index == 0) {
+				this._timestamp = _read(64);
+			}
+
+			else {
+				this._delta += _readDeltaOfDelta();
+				this._timestamp += this._delta;
+			}
+
+			if (this._format == _STRING) {
+				_readString();
+			}
+
+			else if (this._index == 0) {
+				this._valueBits = _read(64);
+			}
+
+			else {
+				_readXor();
+			}
+
+			return true;
+		}
+
+		/**
+		 * @return the timestamp (miliseconds since EPOC) of the current point
+		 */
+		public long timestamp() {
+			return this._timestamp;
+		}
+
+		/**
+		 * @return the value of the current point
+		 */
+		public String value() {
+
+			if (this._value != null) {
+				return this._value;
+			}
+
+			switch (this._format) {
+
+			case _LONG:
+				this._value = Long.toString(
+						(long) Double.longBitsToDouble(this._valueBits));
+				break;
+
+			case _DOUBLE:
+				this._value = Double.toString(
+						Double.longBitsToDouble(this._valueBits));
+				break;
+
+			default:
+
+				if (this._stringLength < 0) {
+					return null;
+				}
+
+				// A duplicate of its own, the position of the shared buffer
+				// is never moved
+				ByteBuffer string = this._buffer.duplicate();
+				string.position(this._stringStart);
+
+				byte[] bytes = new byte[this._stringLength];
+				string.get(bytes);
+
+				this._value = new String(bytes, StandardCharsets.UTF_8);
+				break;
+			}
+
+			return this._value;
+		}
+
+		/**
+		 * @return the value of the current point as a double, read straight
+		 * 			from its bits if the run is numeric
+		 * @throws NumberFormatException thrown if the value isn't a number
+		 */
+		public double doubleValue() {
+			return this._format == _STRING ? ValueType.parseDouble(value())
+					: Double.longBitsToDouble(this._valueBits);
+		}
+
+		/**
+		 * @return the value of the current point as a long
+		 * @throws NumberFormatException thrown if the value isn't a whole no.
+		 * 			that fits in a long
+		 */
+		public long longValue() {
+
+			switch (this._format) {
+
+			case _LONG:
+				return (long) Double.longBitsToDouble(this._valueBits);
+
+			case _DOUBLE:
+				return ValueType.toLong(
+						Double.longBitsToDouble(this._valueBits));
+
+			default:
+				return Long.parseLong(value());
+			}
+		}
+
+		private long _readDeltaOfDelta() {
+
+			if (_read(1) == 0) {
+				return 0;
+			}
+
+			if (_read(1) == 0) {
+				return _read(7) - 63;
+			}
+
+			if (_read(1) == 0) {
+				return _read(9) - 255;
+			}
+
+			if (_read(1) == 0) {
+				return _read(12) - 2047;
+			}
+
+			return _read(64);
+		}
+
+		private void _readXor() {
+
+			if (_read(1) == 0) {
+				return;
+			}
+
+			if (_read(1) == 1) {
+
+				this._leading = (int) _read(5);
+
+				int meaningful = (int) _read(6);
+				if (meaningful == 0) {
+					meaningful = 64;
+				}
+
+				this._trailing = 64 - this._leading - meaningful;
+			}
+
+			this._valueBits ^= _read(64 - this._leading - this._trailing)
+					<< this._trailing;
+		}
+
+		private void _readString() {
+
+			int length = 0;
+			int shift = 0;
+			byte b;
+
+			do {
+				b = this._buffer.get(this._stringPosition++);
+				length |= (b & 0x7F) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+
+			this._stringLength = length - 1;
+			this._stringStart = this._stringPosition;
+
+			if (length > 0) {
+				this._stringPosition += length - 1;
+			}
+		}
+
+		/**
+		 * Read a no. of bits, most significant first
+		 * @param count the no. of bits, up to 64
+		 * @return the bits
+		 */
+		private long _read(int count) {
+
+			long result = 0;
+
+			while (count > 0) {
+
+				int bitOffset = (int) (this._bitPosition & 7);
+				int available = 8 - bitOffset;
+				int taken = Math.min(available, count);
+
+				int b = this._buffer.get(this._bitsStart
+						+ (int) (this._bitPosition >>> 3)) & 0xFF;
+
+				result = (result << taken)
+						| ((b >>> (available - taken)) & ((1 << taken) - 1));
+
+				count -= taken;
+				this._bitPosition += taken;
+			}
+
+			return result;
+		}
+	}
+
+	/**
+	 * Writes bits, most significant first, into a growing array
+	 */
+	private static class BitWriter {
+
+		byte[] bytes = new byte[256];
+		long position;
+
+		/**
+		 * Write the lowest bits of a value
+		 * @param value the value
+		 * @param count the no. of bits, up to 64
+		 */
+		void write(long value, int count) {
+
+			for (int i=count-1; i>=0; i--) {
+
+				int index = (int) (position >>> 3);
+
+				if (index == bytes.length) {
+					bytes = Arrays.copyOf(bytes, bytes.length * 2);
+				}
+
+				if (((value >>> i) & 1) != 0) {
+					bytes[index] |= 0x80 >>> (position & 7);
+				}
+
+				position++;
+			}
+		}
+
+		int byteLength() {
+			return (int) ((position + 7) >>> 3);
+		}
+	}
+
+	/**
+	 * Writes bytes into a growing array
+	 */
+	private static class ByteWriter {
+
+		byte[] bytes = new byte[256];
+		int length;
+
+		void write(byte[] data) {
+
+			_ensureCapacity(length + data.length);
+
+			System.arraycopy(data, 0, bytes, length, data.length);
+			length += data.length;
+		}
+
+		void writeVarint(int value) {
+
+			_ensureCapacity(length + 5);
+
+			while ((value & ~0x7F) != 0) {
+				bytes[length++] = (byte) ((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+
+			bytes[length++] = (byte) value;
+		}
+
+		private void _ensureCapacity(int capacity) {
+
+			if (capacity > bytes.length) {
+				bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, capacity));
+			}
+		}
+	}
+
+}
@@ -0,0 +1,548 @@
+package main.com.pcache.DO.timeseries.store;
+
+import java.util.BitSet;
+import java.util.NoSuchElementException;
+
+import main.com.pcache.exceptions.PCacheException;
+import main.com.pcache.utils.Commons;
+import main.com.pcache.utils.HeapSize;
+
+import org.joda.time.DateTimeZone;
+
+/**
+ * A store for points at a fixed interval.
+ *
+ * Only the timestamp of the first point (the base) and the interval (the
+ * step) are kept, point i is at base + i * step. The values are held in an
+ * array indexed by i, see ValueColumn, and a bitmap marks the slots that hold
+ * a point, so missing ticks are allowed. Lookups are arithmetic instead of searches.
+ *
+ * The step is the greatest common divisor of the gaps between the points,
+ * the same one StoreProfile works out, so a missing tick early on doesn't
+ * make the grid coarser than the series. A point that falls between 2 slots
+ * makes the step finer, spreading the slots out. Points that would leave
+ * more empty slots than points can't be held, see canHold(). The ISO8601
+ * strings aren't kept. They are written back out in the zone of the first
+ * point put into the store.
+ */
+public class RegularStore implements TimeseriesStore {
+
+	private static final int _INITIAL_CAPACITY = 16;
+
+	// A few empty slots are always allowed, gaps in small series
+	private static final int _MAX_EMPTY_SLOTS = 64;
+
+	private long _base;
+	private long _step;
+
+	// Slot i holds the point at _base + i * _step if bit i is set. Slot 0 and
+	// slot _slots - 1 are always set unless the store is empty
+	private ValueColumn _values;
+	private BitSet _present;
+	private int _slots;
+	private int _size;
+
+	// The zone the timestamps are written out in
+	private DateTimeZone _zone;
+
+	/**
+	 * Constructor. Create an empty store of strings
+	 */
+	public RegularStore() {
+		this(ValueType.STRING);
+	}
+
+	/**
+	 * Constructor. Create an empty store
+	 * @param valueType the type of the values, see ValueColumn
+	 */
+	public RegularStore(ValueType valueType) {
+		this._values = ValueColumn.of(valueType, _INITIAL_CAPACITY);
+		this._present = new BitSet();
+		this._slots = 0;
+		this._size = 0;
+	}
+
+	@Override
+	public StoreType getType() {
+		return StoreType.REGULAR;
+	}
+
+	@Override
+	public int size() {
+		return this._size;
+	}
+
+	/**
+	 * @return the interval between points in miliseconds, 0 if there are
+	 * 			less than 2 points
+	 */
+	public long getStep() {
+		return this._step;
+	}
+
+	/**
+	 * A point can be held if it is on the grid and doesn't leave the slots
+	 * mostly empty
+	 */
+	@Override
+	public boolean canHold(long timestamp) {
+
+		if (this._size == 0) {
+			return true;
+		}
+
+		long offset = timestamp - this._base;
+		long step = _gcd(this._step, Math.abs(offset));
+
+		if (step == 0) {
+			return true;
+		}
+
+		// The slots there are now, on the grid the point would make
+		long slots = this._step == 0 ? 1
+				: (this._slots - 1) * (this._step / step) + 1;
+
+		long index = offset / step;
+		slots = index < 0 ? slots - index : Math.max(slots, index + 1);
+
+		return slots <= 2L * (this._size + 1) + _MAX_EMPTY_SLOTS
+				&& slots <= Integer.MAX_VALUE;
+	}
+
+	@Override
+	public boolean containsKey(long timestamp) {
+		return _slotOf(timestamp) >= 0;
+	}
+
+	@Override
+	public String get(long timestamp) {
+
+		int slot = _slotOf(timestamp);
+		return slot >= 0 ? this._values.get(slot) : null;
+	}
+
+	/**
+	 * @throws IllegalArgumentException thrown if the point can't be held, see
+	 * 			canHold()
+	 */
+	@Override
+	public void put(long timestamp, String timestampISO8601, String value) {
+
+		if (!canHold(timestamp)) {
+			throw new IllegalArgumentException(timestamp + " isn't on the grid "
+					+ "of the store");
+		}
+
+		if (this._zone == null) {
+			this._zone = _zoneOf(timestampISO8601);
+		}
+
+		if (this._size == 0) {
+			this._base = timestamp;
+			this._slots = 0;
+		}
+
+		else {
+
+			long step = _gcd(this._step, Math.abs(timestamp - this._base));
+
+			// A point between 2 slots makes the grid finer
+			if (this._step != 0 && step != this._step) {
+				_spread((int) (this._step / step));
+			}
+
+			this._step = step;
+		}
+
+		long index = this._step == 0 ? 0 : (timestamp - this._base) / this._step;
+
+		// Before the first point, move everything up
+		if (index < 0) {
+			_shift((int) -index);
+			this._base = timestamp;
+			index = 0;
+		}
+
+		int slot = (int) index;
+		this._values.ensureCapacity(slot + 1);
+
+		if (!this._present.get(slot)) {
+			this._present.set(slot);
+			this._size++;
+		}
+
+		this._values.set(slot, value);
+		this._slots = Math.max(this._slots, slot + 1);
+	}
+
+	@Override
+	public void appendAll(long[] timestamps, String[] timestampsISO8601,
+			ValueArray values, int count) {
+
+		for (int i=0; i<count; i++) {
+			put(timestamps[i], timestampsISO8601 == null ? null
+					: timestampsISO8601[i], values.get(i));
+		}
+	}
+
+	@Override
+	public boolean remove(long timestamp) {
+
+		int slot = _slotOf(timestamp);
+
+		if (slot < 0) {
+			return false;
+		}
+
+		this._present.clear(slot);
+		this._values.clear(slot, slot + 1);
+		this._size--;
+
+		_trim();
+		return true;
+	}
+
+	@Override
+	public int removeRange(long timestampFrom, long timestampTo) {
+
+		int from = _fromSlot(timestampFrom);
+		int to = _toSlot(timestampTo);
+
+		if (from >= to) {
+			return 0;
+		}
+
+		int removed = this._present.get(from, to).cardinality();
+
+		if (removed == 0) {
+			return 0;
+		}
+
+		this._present.clear(from, to);
+		this._values.clear(from, to);
+		this._size -= removed;
+
+		_trim();
+		return removed;
+	}
+
+	@Override
+	public int updateRange(long timestampFrom, long timestampTo,
+			ValueFunction function) {
+
+		int from = _fromSlot(timestampFrom);
+		int to = _toSlot(timestampTo);
+		int updated = 0;
+
+		for (int slot = from < to ? this._present.nextSetBit(from) : -1;
+				slot >= 0 && slot < to;
+				slot = this._present.nextSetBit(slot + 1)) {
+
+			this._values.update(slot, function);
+			updated++;
+		}
+
+		return updated;
+	}
+
+	@Override
+	public long firstKey() {
+
+		if (this._size == 0) {
+			throw new NoSuchElementException();
+		}
+
+		return this._base;
+	}
+
+	@Override
+	public long lastKey() {
+
+		if (this._size == 0) {
+			throw new NoSuchElementException();
+		}
+
+		return this._base + (this._slots - 1) * this._step;
+	}
+
+	/**
+	 * The slots of the range are copied out as they are, no search involved
+	 */
+	@Override
+	public TimeseriesStore subSeries(long timestampFrom, long timestampTo) {
+
+		RegularStore subSeries = new RegularStore(this._values.getType());
+		subSeries._zone = this._zone;
+
+		int from = _fromSlot(timestampFrom);
+		int to = _toSlot(timestampTo);
+
+		// Trim the empty slots off both ends
+		int first = this._present.nextSetBit(from);
+		int last = to > 0 ? this._present.previousSetBit(to - 1) : -1;
+
+		if (first < 0 || last < first) {
+			return subSeries;
+		}
+
+		subSeries._base = this._base + first * this._step;
+		subSeries._step = this._step;
+		subSeries._values = this._values.copyOfRange(first, last + 1);
+		subSeries._present = this._present.get(first, last + 1);
+		subSeries._slots = last + 1 - first;
+		subSeries._size = subSeries._present.cardinality();
+
+		return subSeries;
+	}
+
+	@Override
+	public TimeseriesCursor cursor() {
+		return _cursor(0, this._slots);
+	}
+
+	@Override
+	public TimeseriesCursor cursor(long timestampFrom, long timestampTo) {
+
+		int from = _fromSlot(timestampFrom);
+		return _cursor(from, Math.max(from, _toSlot(timestampTo)));
+	}
+
+	@Override
+	public long heapSize() {
+		return HeapSize.align(HeapSize.OBJECT + 3 * HeapSize.REFERENCE + 24)
+				+ this._values.heapSize() + HeapSize.ofBitSet(this._present);
+	}
+
+	@Override
+	public void release() {
+		// Everything is on the heap
+	}
+
+	/**
+	 * Get a cursor over a range of slots
+	 * @param from the first slot
+	 * @param to the slot after the last one
+	 * @return a cursor positioned before the first point in the slots
+	 */
+	private TimeseriesCursor _cursor(final int from, final int to) {
+
+		return new TimeseriesCursor() {
+
+			int _slot = from - 1;
+
+			@Override
+			public boolean next() {
+
+				if (_slot >= to) {
+					return false;
+				}
+
+				_slot = _present.nextSetBit(_slot + 1);
+
+				if (_slot < 0 || _slot >= to) {
+					_slot = to;
+					return false;
+				}
+
+				return true;
+			}
+
+			@Override
+			public long timestamp() {
+				return _base + _slot * _step;
+			}
+
+			@Override
+			public String timestampISO8601() {
+				return Commons.convertMilisToISO8601(timestamp(), _zone);
+			}
+
+			@Override
+			public String value() {
+				return _values.get(_slot);
+			}
+
+			@Override
+			public double doubleValue() {
+				return _values.getDouble(_slot);
+			}
+
+			@Override
+			public long longValue() {
+				return _values.getLong(_slot);
+			}
+		};
+	}
+
+	/**
+	 * Find the first slot at or after a timestamp
+	 * @param timestamp the timestamp
+	 * @return the slot, _slots if every slot is before the timestamp
+	 */
+	private int _fromSlot(long timestamp) {
+
+		if (this._size == 0 || timestamp <= this._base) {
+			return 0;
+		}
+
+		if (timestamp > lastKey()) {
+			return this._slots;
+		}
+
+		long offset = timestamp - this._base;
+		return (int) ((offset + this._step - 1) / this._step);
+	}
+
+	/**
+	 * Find the slot after the last slot at or before a timestamp
+	 * @param timestamp the timestamp
+	 * @return the slot, 0 if every slot is after the timestamp
+	 */
+	private int _toSlot(long timestamp) {
+
+		if (this._size == 0 || timestamp < this._base) {
+			return 0;
+		}
+
+		if (timestamp >= lastKey()) {
+			return this._slots;
+		}
+
+		return (int) ((timestamp - this._base) / this._step) + 1;
+	}
+
+	/**
+	 * Find the slot of a timestamp
+	 * @param timestamp the timestamp to look for
+	 * @return the slot if there is a point at the timestamp, -1 otherwise
+	 */
+	private int _slotOf(long timestamp) {
+
+		if (this._size == 0 || timestamp < this._base) {
+			return -1;
+		}
+
+		if (this._step == 0) {
+			return timestamp == this._base ? 0 : -1;
+		}
+
+		long offset = timestamp - this._base;
+
+		if (offset % this._step != 0 || offset / this._step >= this._slots) {
+			return -1;
+		}
+
+		int slot = (int) (offset / this._step);
+		return this._present.get(slot) ? slot : -1;
+	}
+
+	/**
+	 * Drop the empty slots at either end once points are removed, so that
+	 * the first and the last slot are set
+	 */
+	private void _trim() {
+
+		// Learn the step again from whatever comes in next
+		if (this._size == 0) {
+			this._slots = 0;
+			this._step = 0;
+			return;
+		}
+
+		this._slots = this._present.length();
+
+		int first = this._present.nextSetBit(0);
+		if (first > 0) {
+			_shift(-first);
+			this._base += first * this._step;
+		}
+	}
+
+	/**
+	 * Move every slot up or down
+	 * @param by the no. of slots to move up by, negative to move down
+	 */
+	private void _shift(int by) {
+
+		if (by > 0) {
+
+			this._values.ensureCapacity(this._slots + by);
+
+			this._values.move(0, by, this._slots);
+			this._values.clear(0, by);
+
+			BitSet present = new BitSet(this._slots + by);
+			for (int i=this._present.nextSetBit(0); i>=0;
+					i=this._present.nextSetBit(i + 1)) {
+				present.set(i + by);
+			}
+
+			this._present = present;
+			this._slots += by;
+		}
+
+		else {
+
+			this._values.move(-by, 0, this._slots + by);
+			this._values.clear(this._slots + by, this._slots);
+
+			this._present = this._present.get(-by, this._slots);
+			this._slots += by;
+		}
+	}
+
+	/**
+	 * Make the grid finer, so that slot i is at slot i * by from here on
+	 * @param by the no. of slots each slot becomes
+	 */
+	private void _spread(int by) {
+
+		int slots = (this._slots - 1) * by + 1;
+		this._values.ensureCapacity(slots);
+
+		BitSet present = new BitSet(slots);
+
+		// From the last slot down, every slot moves up past the ones below it
+		for (int i=this._present.previousSetBit(this._slots - 1); i>0;
+				i=this._present.previousSetBit(i - 1)) {
+
+			this._values.move(i, i * by, 1);
+			this._values.clear(i, i + 1);
+			present.set(i * by);
+		}
+
+		present.set(0);
+
+		this._present = present;
+		this._slots = slots;
+	}
+
+	private static long _gcd(long a, long b) {
+
+		while (b != 0) {
+			long remainder = a % b;
+			a = b;
+			b = remainder;
+		}
+
+		return a;
+	}
+
+	/**
+	 * Get the zone of a timestamp, falling back to UTC
+	 * @param timestampISO8601 the ISO8601 timestamp
+	 * @return the zone
+	 */
+	private static DateTimeZone _zoneOf(String timestampISO8601) {
+
+		try {
+			return Commons.extractISO8601Zone(timestampISO8601);
+		}
+
+		catch (PCacheException ex) {
+			return DateTimeZone.UTC;
+		}
+	}
+
+}
@@ -0,0 +1,361 @@
+package main.com.pcache.DO.timeseries.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Hands out the memory the sealed chunks of SegmentStores live in.
+ *
+ * Memory is taken from the OS in large segments, either files mapped into
+ * memory from a directory or, if no directory is configured, direct
+ * buffers. Chunks are cut out of the current segment one after the other.
+ * The bytes of a chunk that is freed become a hole in its segment, merged
+ * with the holes right before and after it, and a chunk is cut out of the
+ * smallest hole it fits in, in any segment, before the current one is
+ * touched. A freed chunk at the end of what was cut out of the current
+ * segment gives its bytes back to it instead. A segment that is all holes is
+ * kept around to be handed out again if there is no other such segment, and
+ * let go of if there is. Chunks larger than a segment get a segment of their
+ * own, which is let go of once the chunk is freed.
+ *
+ * None of this is on the Java heap, so the GC neither has to walk it nor
+ * copy it around.
+ */
+public class SegmentAllocator {
+
+	private static final int _DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+	private static final Logger _log = Logger.getLogger(
+			SegmentAllocator.class.getName());
+
+	// Where the segments are mapped from, null for direct buffers
+	private static File _directory = null;
+	private static int _segmentSize = _DEFAULT_SEGMENT_SIZE;
+
+	// The segment chunks are being cut out of and a segment that is free to
+	// be used once it is full, null if there is none
+	private static Segment _current = null;
+	private static Segment _spare = null;
+
+	// The holes of all the segments by their size
+	private static final TreeMap<Integer, Set<Hole>> _holes = new TreeMap<>();
+
+	// Bytes taken from the OS and bytes of it used by chunks
+	private static long _allocatedBytes = 0;
+	private static long _usedBytes = 0;
+
+	/**
+	 * Set where the segments come from. Only affects the segments taken
+	 * after this, so should be done before any SegmentStore is created
+	 * @param directory the directory to map the segments from, null to use
+	 * 			direct buffers
+	 * @param segmentSize the size of a segment in bytes
+	 */
+	public static synchronized void configure(File directory, int segmentSize) {
+
+		if (segmentSize <= 0) {
+			throw new IllegalArgumentException("The segment size should be " +
+					"positive");
+		}
+
+		_directory = directory;
+		_segmentSize = segmentSize;
+	}
+
+	/**
+	 * @return the no. of bytes taken from the OS for segments
+	 */
+	public static synchronized long getAllocatedBytes() {
+		return _allocatedBytes;
+	}
+
+	/**
+	 * @return the no. of bytes of the segments used by chunks
+	 */
+	public static synchronized long getUsedBytes() {
+		return _usedBytes;
+	}
+
+	/**
+	 * Get a chunk of memory
+	 * @param size the size of the chunk in bytes
+	 * @return the chunk, its buffer spans exactly the bytes asked for
+	 */
+	static synchronized Allocation allocate(int size) {
+
+		Segment segment;
+		int offset;
+
+		// The smallest hole it fits in
+		Map.Entry<Integer, Set<Hole>> fit = size > _segmentSize ? null
+				: _holes.ceilingEntry(size);
+
+		if (size > _segmentSize) {
+			segment = _newSegment(size);
+			segment.dedicated = true;
+			offset = 0;
+		}
+
+		else if (fit != null) {
+
+			Hole hole = fit.getValue().iterator().next();
+			_removeHole(hole);
+
+			if (hole.length > size) {
+				_putHole(new Hole(hole.segment, hole.offset + size,
+						hole.length - size));
+			}
+
+			segment = hole.segment;
+			offset = hole.offset;
+		}
+
+		else {
+
+			if (_current == null
+					|| _current.buffer.capacity() - _current.position < size) {
+
+				Segment full = _current;
+
+				if (_spare != null) {
+					_current = _spare;
+					_spare = null;
+				}
+
+				else {
+					_current = _newSegment(_segmentSize);
+				}
+
+				// What is left of it is a hole like any other
+				if (full != null && full.position < full.buffer.capacity()) {
+					_addHole(full, full.position,
+							full.buffer.capacity() - full.position);
+				}
+			}
+
+			segment = _current;
+			offset = segment.position;
+			segment.position += size;
+		}
+
+		ByteBuffer buffer = segment.buffer.duplicate();
+		buffer.position(offset);
+		buffer.limit(offset + size);
+
+		_usedBytes += size;
+
+		return new Allocation(segment, offset, buffer.slice());
+	}
+
+	/**
+	 * Give a chunk back. Its buffer must not be used after this
+	 * @param allocation the chunk
+	 */
+	static synchronized void free(Allocation allocation) {
+
+		Segment segment = allocation.segment;
+		int size = allocation.buffer.capacity();
+
+		_usedBytes -= size;
+
+		// Let the GC unmap it
+		if (segment.dedicated) {
+			_allocatedBytes -= segment.buffer.capacity();
+			return;
+		}
+
+		_addHole(segment, allocation.offset, size);
+	}
+
+	/**
+	 * Make a run of bytes of a segment a hole, merging it with the holes
+	 * right before and after it
+	 * @param segment the segment, not a dedicated one
+	 * @param offset where the run starts
+	 * @param length the no. of bytes
+	 */
+	private static void _addHole(Segment segment, int offset, int length) {
+
+		Map.Entry<Integer, Hole> before = segment.holes.lowerEntry(offset);
+
+		if (before != null
+				&& before.getKey() + before.getValue().length == offset) {
+			_removeHole(before.getValue());
+			offset = before.getKey();
+			length += before.getValue().length;
+		}
+
+		Hole after = segment.holes.get(offset + length);
+
+		if (after != null) {
+			_removeHole(after);
+			length += after.length;
+		}
+
+		// Chunks are cut out of the end of it anyway
+		if (segment == _current && offset + length == segment.position) {
+			segment.position = offset;
+			return;
+		}
+
+		if (length < segment.buffer.capacity()) {
+			_putHole(new Hole(segment, offset, length));
+			return;
+		}
+
+		// Nothing left in it, keep it for when the current one fills up or
+		// let the GC unmap it
+		if (_spare == null) {
+			segment.position = 0;
+			_spare = segment;
+		}
+
+		else {
+			_allocatedBytes -= segment.buffer.capacity();
+		}
+	}
+
+	private static void _putHole(Hole hole) {
+
+		hole.segment.holes.put(hole.offset, hole);
+
+		Set<Hole> holes = _holes.get(hole.length);
+
+		if (holes == null) {
+			holes = new LinkedHashSet<>();
+			_holes.put(hole.length, holes);
+		}
+
+		holes.add(hole);
+	}
+
+	private static void _removeHole(Hole hole) {
+
+		hole.segment.holes.remove(hole.offset);
+
+		Set<Hole> holes = _holes.get(hole.length);
+		holes.remove(hole);
+
+		if (holes.isEmpty()) {
+			_holes.remove(hole.length);
+		}
+	}
+
+	/**
+	 * Take a new segment from the OS. A mapped segment's file is deleted
+	 * right away, the mapping keeps the memory around till it is unmapped
+	 * @param size the size of the segment in bytes
+	 * @return the segment
+	 */
+	private static Segment _newSegment(int size) {
+
+		ByteBuffer buffer = null;
+
+		if (_directory != null) {
+
+			try {
+				buffer = _map(size);
+			}
+
+			catch (IOException ex) {
+				_log.error("Couldn't map a segment from " + _directory
+						+ ", falling back to direct memory", ex);
+			}
+		}
+
+		if (buffer == null) {
+			buffer = ByteBuffer.allocateDirect(size);
+		}
+
+		_allocatedBytes += size;
+
+		return new Segment(buffer);
+	}
+
+	private static ByteBuffer _map(int size) throws IOException {
+
+		File file = File.createTempFile("pcache", ".segment", _directory);
+
+		try (RandomAccessFile randomAccessFile = new RandomAccessFile(file,
+				"rw")) {
+
+			randomAccessFile.setLength(size);
+
+			return randomAccessFile.getChannel().map(
+					FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+
+		finally {
+
+			if (!file.delete()) {
+				file.deleteOnExit();
+			}
+		}
+	}
+
+	/**
+	 * A segment taken from the OS. Guarded by the allocator's lock
+	 */
+	private static class Segment {
+
+		final ByteBuffer buffer;
+
+		// Where the next chunk is cut out from, if it is the current one
+		int position;
+
+		// The runs of bytes of it no chunk is cut out of, by where they
+		// start. Those of the current one are all below its position
+		final TreeMap<Integer, Hole> holes;
+
+		// Holds a single chunk that didn't fit in a regular segment
+		boolean dedicated;
+
+		Segment(ByteBuffer buffer) {
+			this.buffer = buffer;
+			this.holes = new TreeMap<>();
+		}
+	}
+
+	/**
+	 * A run of bytes of a segment that is free to be cut out of. Guarded by
+	 * the allocator's lock
+	 */
+	private static class Hole {
+
+		final Segment segment;
+		final int offset;
+		final int length;
+
+		Hole(Segment segment, int offset, int length) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * A chunk handed out, and the segment it was cut out of
+	 */
+	static class Allocation {
+
+		private final Segment segment;
+		private final int offset;
+		final ByteBuffer buffer;
+
+		private Allocation(Segment segment, int offset, ByteBuffer buffer) {
+			this.segment = segment;
+			this.offset = offset;
+			this.buffer = buffer;
+		}
+	}
+
+}
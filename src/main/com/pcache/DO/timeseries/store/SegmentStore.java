@@ -0,0 +1,792 @@
+package main.com.pcache.DO.timeseries.store;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import main.com.pcache.exceptions.PCacheException;
+import main.com.pcache.utils.Commons;
+import main.com.pcache.utils.HeapSize;
+
+import org.joda.time.DateTimeZone;
+
+/**
+ * A store that keeps most of its points off the Java heap.
+ *
+ * Points are appended to a small ColumnarStore, the head. Once the head
+ * holds _CHUNK_SIZE points it is sealed: its points are written to a chunk
+ * of memory handed out by SegmentAllocator and the head starts over. The
+ * only thing left on the heap for a sealed chunk is a small index entry with
+ * its first and last timestamps, so the heap (and the time the GC takes)
+ * stays flat no matter how many points the store holds.
+ *
+ * Chunks are compressed with GorillaCodec, which takes points at a regular
+ * interval with slowly changing numeric values down to a byte or two each.
+ * A chunk can only be decoded from its start, so a lookup decodes the one
+ * chunk the index points it to and a range read only the chunks that
+ * overlap the range.
+ *
+ * Chunks are never changed. Putting or removing a point that falls in a
+ * sealed chunk writes a new chunk and frees the old one, so this store suits
+ * series' that are mostly appended to and read, cold series' in particular.
+ *
+ * The ISO8601 strings aren't kept. They are written back out in the zone of
+ * the first point put into the store.
+ */
+public class SegmentStore implements TimeseriesStore {
+
+	private static final int _CHUNK_SIZE = 1024;
+
+	// What is left on the heap for a sealed chunk: the index entry, its
+	// Allocation and the buffer over the chunk. And the list of chunks
+	private static final long _CHUNK = 40 + 24 + 64;
+	private static final long _LIST = 24;
+
+	// Sealed chunks, ordered by timestamp. They don't overlap and every point
+	// of the head comes after the last of them
+	private final List<Chunk> _chunks;
+	private ColumnarStore _head;
+	private int _size;
+
+	// The type of the values, the head holds them in primitive form
+	private final ValueType _valueType;
+
+	// The zone the timestamps are written out in
+	private DateTimeZone _zone;
+
+	/**
+	 * Constructor. Create an empty store of strings
+	 */
+	public SegmentStore() {
+		this(ValueType.STRING);
+	}
+
+	/**
+	 * Constructor. Create an empty store
+	 * @param valueType the type of the values
+	 */
+	public SegmentStore(ValueType valueType) {
+		this._chunks = new ArrayList<>();
+		this._valueType = valueType;
+		this._head = new ColumnarStore(valueType);
+		this._size = 0;
+	}
+
+	@Override
+	public StoreType getType() {
+		return StoreType.SEGMENT;
+	}
+
+	@Override
+	public boolean canHold(long timestamp) {
+		return true;
+	}
+
+	@Override
+	public int size() {
+		return this._size;
+	}
+
+	@Override
+	public boolean containsKey(long timestamp) {
+
+		if (_inHead(timestamp)) {
+			return this._head.containsKey(timestamp);
+		}
+
+		int chunkIndex = _chunkOf(timestamp);
+		return chunkIndex >= 0
+				&& this._chunks.get(chunkIndex).find(timestamp) != null;
+	}
+
+	@Override
+	public String get(long timestamp) {
+
+		if (_inHead(timestamp)) {
+			return this._head.get(timestamp);
+		}
+
+		int chunkIndex = _chunkOf(timestamp);
+
+		if (chunkIndex < 0) {
+			return null;
+		}
+
+		GorillaCodec.Decoder point = this._chunks.get(chunkIndex).find(timestamp);
+		return point != null ? point.value() : null;
+	}
+
+	@Override
+	public void put(long timestamp, String timestampISO8601, String value) {
+
+		if (this._zone == null) {
+			this._zone = _zoneOf(timestampISO8601);
+		}
+
+		if (_inHead(timestamp)) {
+
+			int sizeBefore = this._head.size();
+			this._head.put(timestamp, timestampISO8601, value);
+			this._size += this._head.size() - sizeBefore;
+
+			if (this._head.size() >= _CHUNK_SIZE) {
+				_seal();
+			}
+
+			return;
+		}
+
+		// Falls before the head, rewrite the chunk it belongs in. Points
+		// before the first chunk go into the first chunk
+		int chunkIndex = Math.max(0, _chunkOf(timestamp));
+		Chunk chunk = this._chunks.get(chunkIndex);
+
+		int count = chunk.count;
+		long[] timestamps = new long[count + 1];
+		String[] values = new String[count + 1];
+
+		chunk.decode(timestamps, values);
+
+		int index = Arrays.binarySearch(timestamps, 0, count, timestamp);
+
+		if (index >= 0) {
+			values[index] = value;
+		}
+
+		else {
+
+			int insertAt = -(index + 1);
+
+			System.arraycopy(timestamps, insertAt, timestamps, insertAt + 1,
+					count - insertAt);
+			System.arraycopy(values, insertAt, values, insertAt + 1,
+					count - insertAt);
+
+			timestamps[insertAt] = timestamp;
+			values[insertAt] = value;
+
+			count++;
+			this._size++;
+		}
+
+		_replace(chunkIndex, timestamps, values, count);
+	}
+
+	/**
+	 * The points go into the head, which is sealed every time it fills up.
+	 * The whole chunks of a run of strings are written straight from the
+	 * array, without going through the head
+	 */
+	@Override
+	public void appendAll(long[] timestamps, String[] timestampsISO8601,
+			ValueArray values, int count) {
+
+		if (this._zone == null && count > 0) {
+			this._zone = _zoneOf(timestampsISO8601 == null ? null
+					: timestampsISO8601[0]);
+		}
+
+		int from = 0;
+
+		while (from < count) {
+
+			if (this._valueType == ValueType.STRING
+					&& values.getType() == ValueType.STRING
+					&& this._head.size() == 0 && count - from >= _CHUNK_SIZE) {
+
+				this._chunks.add(Chunk.write(timestamps,
+						(String[]) values.array(), from, from + _CHUNK_SIZE));
+				from += _CHUNK_SIZE;
+				continue;
+			}
+
+			int run = Math.min(count - from, _CHUNK_SIZE - this._head.size());
+
+			this._head.append(timestamps, values, from, run, this._zone);
+			from += run;
+
+			if (this._head.size() >= _CHUNK_SIZE) {
+				_seal();
+			}
+		}
+
+		this._size += count;
+	}
+
+	@Override
+	public boolean remove(long timestamp) {
+
+		if (_inHead(timestamp)) {
+
+			if (!this._head.remove(timestamp)) {
+				return false;
+			}
+
+			this._size--;
+			return true;
+		}
+
+		int chunkIndex = _chunkOf(timestamp);
+
+		if (chunkIndex < 0) {
+			return false;
+		}
+
+		Chunk chunk = this._chunks.get(chunkIndex);
+
+		if (chunk.find(timestamp) == null) {
+			return false;
+		}
+
+		int count = chunk.count;
+		long[] timestamps = new long[count];
+		String[] values = new String[count];
+
+		chunk.decode(timestamps, values);
+
+		int index = Arrays.binarySearch(timestamps, 0, count, timestamp);
+
+		System.arraycopy(timestamps, index + 1, timestamps, index,
+				count - index - 1);
+		System.arraycopy(values, index + 1, values, index,
+				count - index - 1);
+
+		this._size--;
+
+		_replace(chunkIndex, timestamps, values, count - 1);
+		return true;
+	}
+
+	/**
+	 * Chunks that fall wholly in the range are freed without being decoded,
+	 * only the ones at either end of it are written again
+	 */
+	@Override
+	public int removeRange(long timestampFrom, long timestampTo) {
+
+		// The head comes after every chunk
+		int removed = this._head.removeRange(timestampFrom, timestampTo);
+
+		// The chunks that overlap the range
+		int first = Math.max(0, _chunkOf(timestampFrom));
+		int last = _chunkOf(timestampTo);
+
+		if (first < this._chunks.size()
+				&& this._chunks.get(first).last < timestampFrom) {
+			first++;
+		}
+
+		if (first <= last) {
+
+			// Points are left in the chunks at the ends the range cuts
+			// through, so they stay where they are in the list
+			if (this._chunks.get(last).last > timestampTo) {
+				removed += _cut(last, timestampFrom, timestampTo);
+				last--;
+			}
+
+			if (first <= last && this._chunks.get(first).first < timestampFrom) {
+				removed += _cut(first, timestampFrom, timestampTo);
+				first++;
+			}
+
+			List<Chunk> covered = this._chunks.subList(first, last + 1);
+
+			for (Chunk chunk : covered) {
+				SegmentAllocator.free(chunk.allocation);
+				removed += chunk.count;
+			}
+
+			covered.clear();
+		}
+
+		this._size -= removed;
+		return removed;
+	}
+
+	/**
+	 * Only the chunks that overlap the range are decoded and written again,
+	 * each once
+	 */
+	@Override
+	public int updateRange(long timestampFrom, long timestampTo,
+			ValueFunction function) {
+
+		int updated = this._head.updateRange(timestampFrom, timestampTo,
+				function);
+
+		int first = Math.max(0, _chunkOf(timestampFrom));
+		int last = _chunkOf(timestampTo);
+
+		for (int i=first; i<=last; i++) {
+
+			Chunk chunk = this._chunks.get(i);
+
+			if (chunk.last < timestampFrom) {
+				continue;
+			}
+
+			int count = chunk.count;
+			long[] timestamps = new long[count];
+			String[] values = new String[count];
+
+			chunk.decode(timestamps, values);
+
+			for (int j=0; j<count; j++) {
+
+				if (timestamps[j] >= timestampFrom
+						&& timestamps[j] <= timestampTo) {
+					values[j] = function.apply(values[j]);
+					updated++;
+				}
+			}
+
+			_replace(i, timestamps, values, count);
+		}
+
+		return updated;
+	}
+
+	@Override
+	public long firstKey() {
+
+		if (!this._chunks.isEmpty()) {
+			return this._chunks.get(0).first;
+		}
+
+		return this._head.firstKey();
+	}
+
+	@Override
+	public long lastKey() {
+
+		if (this._head.size() > 0) {
+			return this._head.lastKey();
+		}
+
+		if (this._chunks.isEmpty()) {
+			throw new NoSuchElementException();
+		}
+
+		return this._chunks.get(this._chunks.size() - 1).last;
+	}
+
+	/**
+	 * The range is copied back onto the heap, into a ColumnarStore
+	 */
+	@Override
+	public TimeseriesStore subSeries(long timestampFrom, long timestampTo) {
+
+		ColumnarStore subSeries = new ColumnarStore(this._valueType, 16,
+				this._zone);
+
+		TimeseriesCursor cursor = cursor(timestampFrom, timestampTo);
+
+		while (cursor.next()) {
+			subSeries.put(cursor.timestamp(), null, cursor.value());
+		}
+
+		return subSeries;
+	}
+
+	@Override
+	public TimeseriesCursor cursor() {
+		return cursor(Long.MIN_VALUE, Long.MAX_VALUE);
+	}
+
+	@Override
+	public TimeseriesCursor cursor(final long timestampFrom,
+			final long timestampTo) {
+
+		// The first chunk that may hold points in the range
+		int first = Math.max(0, _chunkOf(timestampFrom));
+
+		final int firstChunk = first < this._chunks.size()
+				&& this._chunks.get(first).last < timestampFrom
+				? first + 1 : first;
+
+		return new TimeseriesCursor() {
+
+			int _chunkIndex = firstChunk;
+
+			// The chunk being decoded, null once the chunks are done with
+			GorillaCodec.Decoder _chunk = _chunkIndex < _chunks.size()
+					? _chunks.get(_chunkIndex).seek(timestampFrom) : null;
+
+			// Whether _chunk is on a point that hasn't been returned yet
+			boolean _sought = _chunk != null;
+
+			// Set once the chunks are done with and the head is walked
+			TimeseriesCursor _headCursor;
+
+			@Override
+			public boolean next() {
+
+				while (_chunk != null) {
+
+					if (_sought || _chunk.next()) {
+
+						_sought = false;
+
+						if (_chunk.timestamp() > timestampTo) {
+							_chunk = null;
+							_headCursor = _EMPTY;
+							return false;
+						}
+
+						return true;
+					}
+
+					_chunkIndex++;
+					_chunk = _chunkIndex < _chunks.size()
+							? _chunks.get(_chunkIndex).decoder() : null;
+				}
+
+				if (_headCursor == null) {
+					_headCursor = _head.cursor(timestampFrom, timestampTo);
+				}
+
+				return _headCursor.next();
+			}
+
+			@Override
+			public long timestamp() {
+				return _chunk != null
+						? _chunk.timestamp() : _headCursor.timestamp();
+			}
+
+			@Override
+			public String timestampISO8601() {
+				return _chunk != null
+						? Commons.convertMilisToISO8601(_chunk.timestamp(), _zone)
+						: _headCursor.timestampISO8601();
+			}
+
+			@Override
+			public String value() {
+				return _chunk != null ? _chunk.value() : _headCursor.value();
+			}
+
+			@Override
+			public double doubleValue() {
+				return _chunk != null
+						? _chunk.doubleValue() : _headCursor.doubleValue();
+			}
+
+			@Override
+			public long longValue() {
+				return _chunk != null
+						? _chunk.longValue() : _headCursor.longValue();
+			}
+		};
+	}
+
+	/**
+	 * Only the index entries of the sealed chunks count, their points are
+	 * off the heap
+	 */
+	@Override
+	public long heapSize() {
+		return HeapSize.align(HeapSize.OBJECT + 4 * HeapSize.REFERENCE + 4)
+				+ _LIST + HeapSize.ofArray(this._chunks.size(),
+						HeapSize.REFERENCE)
+				+ (long) this._chunks.size() * _CHUNK
+				+ this._head.heapSize();
+	}
+
+	/**
+	 * Gives the chunks back to SegmentAllocator
+	 */
+	@Override
+	public void release() {
+
+		for (Chunk chunk : this._chunks) {
+			SegmentAllocator.free(chunk.allocation);
+		}
+
+		this._chunks.clear();
+		this._head = new ColumnarStore(this._valueType);
+		this._size = 0;
+	}
+
+	/**
+	 * @return the no. of sealed chunks, i.e. the ones off the heap
+	 */
+	int getChunkCount() {
+		return this._chunks.size();
+	}
+
+	/**
+	 * Check if a timestamp belongs in the head, i.e. comes after every sealed
+	 * point
+	 * @param timestamp the timestamp
+	 * @return true if it does
+	 */
+	private boolean _inHead(long timestamp) {
+		return this._chunks.isEmpty()
+				|| timestamp > this._chunks.get(this._chunks.size() - 1).last;
+	}
+
+	/**
+	 * Find the last chunk whose first timestamp is lesser than or equal to the
+	 * given timestamp
+	 * @param timestamp the timestamp
+	 * @return the index of the chunk, -1 if the timestamp comes before every
+	 * 			chunk
+	 */
+	private int _chunkOf(long timestamp) {
+
+		int low = 0;
+		int high = this._chunks.size() - 1;
+
+		while (low <= high) {
+
+			int middle = (low + high) >>> 1;
+
+			if (this._chunks.get(middle).first <= timestamp) {
+				low = middle + 1;
+			}
+
+			else {
+				high = middle - 1;
+			}
+		}
+
+		return low - 1;
+	}
+
+	/**
+	 * Move the points of the head off the heap
+	 */
+	private void _seal() {
+
+		int count = this._head.size();
+		long[] timestamps = new long[count];
+		String[] values = new String[count];
+
+		TimeseriesCursor cursor = this._head.cursor();
+
+		for (int i=0; cursor.next(); i++) {
+			timestamps[i] = cursor.timestamp();
+			values[i] = cursor.value();
+		}
+
+		this._chunks.add(Chunk.write(timestamps, values, 0, count));
+		this._head = new ColumnarStore(this._valueType, _CHUNK_SIZE,
+				this._zone);
+	}
+
+	/**
+	 * Write a chunk again without the points in a range
+	 * @param chunkIndex the index of the chunk
+	 * @param timestampFrom the start of the range
+	 * @param timestampTo the end of the range
+	 * @return the no. of points removed
+	 */
+	private int _cut(int chunkIndex, long timestampFrom, long timestampTo) {
+
+		Chunk chunk = this._chunks.get(chunkIndex);
+
+		int count = chunk.count;
+		long[] timestamps = new long[count];
+		String[] values = new String[count];
+
+		chunk.decode(timestamps, values);
+
+		int kept = 0;
+
+		for (int i=0; i<count; i++) {
+
+			if (timestamps[i] < timestampFrom || timestamps[i] > timestampTo) {
+				timestamps[kept] = timestamps[i];
+				values[kept] = values[i];
+				kept++;
+			}
+		}
+
+		_replace(chunkIndex, timestamps, values, kept);
+		return count - kept;
+	}
+
+	/**
+	 * Replace a chunk with one holding the given points. The chunk is
+	 * dropped if there are none and split in 2 if it has grown too large
+	 * @param chunkIndex the index of the chunk
+	 * @param timestamps the timestamps of the points
+	 * @param values the values of the points
+	 * @param count the no. of points
+	 */
+	private void _replace(int chunkIndex, long[] timestamps, String[] values,
+			int count) {
+
+		SegmentAllocator.free(this._chunks.get(chunkIndex).allocation);
+
+		if (count == 0) {
+			this._chunks.remove(chunkIndex);
+		}
+
+		else if (count > 2 * _CHUNK_SIZE) {
+			int half = count / 2;
+			this._chunks.set(chunkIndex, Chunk.write(timestamps, values, 0, half));
+			this._chunks.add(chunkIndex + 1,
+					Chunk.write(timestamps, values, half, count));
+		}
+
+		else {
+			this._chunks.set(chunkIndex,
+					Chunk.write(timestamps, values, 0, count));
+		}
+	}
+
+	/**
+	 * Get the zone of a timestamp, falling back to UTC
+	 * @param timestampISO8601 the ISO8601 timestamp
+	 * @return the zone
+	 */
+	private static DateTimeZone _zoneOf(String timestampISO8601) {
+
+		try {
+			return Commons.extractISO8601Zone(timestampISO8601);
+		}
+
+		catch (PCacheException ex) {
+			return DateTimeZone.UTC;
+		}
+	}
+
+	private static final TimeseriesCursor _EMPTY = new TimeseriesCursor() {
+
+		@Override
+		public boolean next() {
+			return false;
+		}
+
+		@Override
+		public long timestamp() {
+			throw new NoSuchElementException();
+		}
+
+		@Override
+		public String timestampISO8601() {
+			throw new NoSuchElementException();
+		}
+
+		@Override
+		public String value() {
+			throw new NoSuchElementException();
+		}
+
+		@Override
+		public double doubleValue() {
+			throw new NoSuchElementException();
+		}
+
+		@Override
+		public long longValue() {
+			throw new NoSuchElementException();
+		}
+	};
+
+	/**
+	 * A sealed chunk. Only its index entry is on the heap
+	 */
+	private static class Chunk {
+
+		final SegmentAllocator.Allocation allocation;
+		final int count;
+		final long first;
+		final long last;
+
+		private Chunk(SegmentAllocator.Allocation allocation, int count,
+				long first, long last) {
+			this.allocation = allocation;
+			this.count = count;
+			this.first = first;
+			this.last = last;
+		}
+
+		/**
+		 * Compress points into a new chunk
+		 * @param timestamps the sorted timestamps
+		 * @param values the values associated to the timestamps
+		 * @param from the index of the first point to write
+		 * @param to the index after the last point to write
+		 * @return the chunk
+		 */
+		static Chunk write(long[] timestamps, String[] values, int from,
+				int to) {
+
+			byte[] encoded = GorillaCodec.encode(timestamps, values, from, to);
+
+			SegmentAllocator.Allocation allocation =
+					SegmentAllocator.allocate(encoded.length);
+
+			// A duplicate of its own, the position of the shared buffer is
+			// never moved
+			ByteBuffer buffer = allocation.buffer.duplicate();
+			buffer.put(encoded);
+
+			return new Chunk(allocation, to - from, timestamps[from],
+					timestamps[to - 1]);
+		}
+
+		/**
+		 * @return a decoder positioned before the first point
+		 */
+		GorillaCodec.Decoder decoder() {
+			return new GorillaCodec.Decoder(this.allocation.buffer);
+		}
+
+		/**
+		 * Decode up to the first point at or after a timestamp
+		 * @param timestamp the timestamp
+		 * @return a decoder positioned on that point, null if every point is
+		 * 			before the timestamp
+		 */
+		GorillaCodec.Decoder seek(long timestamp) {
+
+			GorillaCodec.Decoder decoder = decoder();
+
+			while (decoder.next()) {
+
+				if (decoder.timestamp() >= timestamp) {
+					return decoder;
+				}
+			}
+
+			return null;
+		}
+
+		/**
+		 * Find a point
+		 * @param timestamp the timestamp of the point
+		 * @return a decoder positioned on the point, null if it doesn't exist
+		 */
+		GorillaCodec.Decoder find(long timestamp) {
+
+			GorillaCodec.Decoder decoder = seek(timestamp);
+			return decoder != null && decoder.timestamp() == timestamp
+					? decoder : null;
+		}
+
+		/**
+		 * Decode every point back onto the heap
+		 * @param timestamps the array to decode the timestamps into, at least
+		 * 			count long
+		 * @param values the array to decode the values into, at least count
+		 * 			long
+		 */
+		void decode(long[] timestamps, String[] values) {
+
+			GorillaCodec.Decoder decoder = decoder();
+
+			for (int i=0; decoder.next(); i++) {
+				timestamps[i] = decoder.timestamp();
+				values[i] = decoder.value();
+			}
+		}
+	}
+
+}
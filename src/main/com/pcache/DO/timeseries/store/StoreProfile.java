@@ -0,0 +1,184 @@
+package main.com.pcache.DO.timeseries.store;
+
+/**
+ * The shape and use of a timeseries, used to pick the store an AUTO series
+ * is best held in.
+ *
+ * The shape is taken by walking over the points once: whether they are at
+ * a regular interval (every gap a multiple of the same step) and densely so,
+ * and whether every value is a number. The use is the no. of reads and
+ * writes since the series was last profiled.
+ *
+ * Series' that are neither written to nor read much are cold and go off the
+ * heap into a SEGMENT store, where numbers compress best. Regular, dense
+ * series' go into a REGULAR store, everything else into a COLUMNAR one.
+ * TREEMAP is never picked since it is the only store that keeps the zone of
+ * every point, and a series shouldn't come out differently depending on
+ * where it is held at the time.
+ */
+public class StoreProfile {
+
+	// A series read more often than this between 2 profiles is hot
+	private static final long _HOT_READS = 16;
+
+	// Smaller series' aren't worth sealing off the heap
+	private static final int _MIN_COLD_SIZE = 1024;
+	private static final int _MIN_COLD_SIZE_NOT_NUMERIC = 8 * 1024;
+
+	// Same as RegularStore, a few empty slots are always allowed
+	private static final int _MAX_EMPTY_SLOTS = 64;
+
+	private final int _size;
+	private final long _step;
+	private final boolean _dense;
+	private final boolean _numeric;
+	private final long _reads;
+	private final long _writes;
+
+	private StoreProfile(int size, long step, boolean dense, boolean numeric,
+			long reads, long writes) {
+		this._size = size;
+		this._step = step;
+		this._dense = dense;
+		this._numeric = numeric;
+		this._reads = reads;
+		this._writes = writes;
+	}
+
+	/**
+	 * Profile a series
+	 * @param cursor a cursor over every point of the series
+	 * @param reads the no. of reads since the series was last profiled
+	 * @param writes the no. of points written since the series was last
+	 * 			profiled
+	 * @return the profile
+	 */
+	public static StoreProfile of(TimeseriesCursor cursor, long reads,
+			long writes) {
+
+		int size = 0;
+		long first = 0;
+		long previous = 0;
+		long step = 0;
+		boolean numeric = true;
+
+		while (cursor.next()) {
+
+			long timestamp = cursor.timestamp();
+
+			if (size == 0) {
+				first = timestamp;
+			}
+
+			else {
+				step = _gcd(step, timestamp - previous);
+			}
+
+			if (numeric) {
+				numeric = _isNumber(cursor.value());
+			}
+
+			previous = timestamp;
+			size++;
+		}
+
+		// The no. of slots a RegularStore would need
+		long slots = step == 0 ? size : (previous - first) / step + 1;
+		boolean dense = slots <= 2L * size + _MAX_EMPTY_SLOTS;
+
+		return new StoreProfile(size, step, dense, numeric && size > 0, reads,
+				writes);
+	}
+
+	/**
+	 * Pick the store the series is best held in
+	 * @return the type of the store
+	 */
+	public StoreType choose() {
+
+		boolean cold = this._writes == 0 && this._reads < _HOT_READS;
+
+		if (cold && this._size >= (this._numeric ? _MIN_COLD_SIZE
+				: _MIN_COLD_SIZE_NOT_NUMERIC)) {
+			return StoreType.SEGMENT;
+		}
+
+		if (isRegular() && this._dense) {
+			return StoreType.REGULAR;
+		}
+
+		return StoreType.COLUMNAR;
+	}
+
+	/**
+	 * @return true if the points are at a regular interval
+	 */
+	public boolean isRegular() {
+		return this._step > 0;
+	}
+
+	/**
+	 * @return the interval of the points in miliseconds, 0 if they aren't
+	 * 			regular
+	 */
+	public long getStep() {
+		return this._step;
+	}
+
+	/**
+	 * @return true if there are no more empty slots between the points than
+	 * 			there are points
+	 */
+	public boolean isDense() {
+		return this._dense;
+	}
+
+	/**
+	 * @return true if every value is a number
+	 */
+	public boolean isNumeric() {
+		return this._numeric;
+	}
+
+	/**
+	 * @return the no. of reads since the series was last profiled
+	 */
+	public long getReads() {
+		return this._reads;
+	}
+
+	/**
+	 * @return the no. of points written since the series was last profiled
+	 */
+	public long getWrites() {
+		return this._writes;
+	}
+
+	private static long _gcd(long a, long b) {
+
+		while (b != 0) {
+			long remainder = a % b;
+			a = b;
+			b = remainder;
+		}
+
+		return a;
+	}
+
+	private static boolean _isNumber(String value) {
+
+		if (value == null) {
+			return false;
+		}
+
+		try {
+			Double.parseDouble(value);
+			return true;
+		}
+
+		catch (NumberFormatException ex) {
+			return false;
+		}
+	}
+
+}
@@ -0,0 +1,115 @@
+package main.com.pcache.DO.timeseries.store;
+
+import main.com.pcache.exceptions.PCacheException;
+
+/**
+ * The kinds of stores a timeseries can be backed by
+ */
+public enum StoreType {
+
+	/**
+	 * A TreeMap keyed by PCacheTimestamp. Keeps the ISO8601 string of every
+	 * point around. Cheap inserts anywhere in the series.
+	 */
+	TREEMAP,
+
+	/**
+	 * Sorted parallel arrays of timestamps and values. Much smaller per point
+	 * and range lookups are binary searches, a range being a view over the
+	 * arrays rather than a copy of them. Inserts that aren't at the tail
+	 * have to shift the arrays.
+	 */
+	COLUMNAR,
+
+	/**
+	 * Sealed chunks of points off the Java heap, see SegmentStore. For large
+	 * and cold series' that are mostly appended to and read. Changes to
+	 * points that are already sealed rewrite their chunk.
+	 */
+	SEGMENT,
+
+	/**
+	 * Points at a fixed interval, see RegularStore. Timestamps aren't stored
+	 * and lookups are arithmetic. A series moves to COLUMNAR once a point
+	 * that is off the interval comes in.
+	 */
+	REGULAR,
+
+	/**
+	 * Not a store itself. The series starts out COLUMNAR and is moved between
+	 * the other types as its shape and use change, see StoreProfile.
+	 */
+	AUTO,
+
+	/**
+	 * The store of a RegularTimeseries, see TickStore. The grid is declared
+	 * when the series is allocated, so a TICK store can't be asked for by
+	 * type alone.
+	 */
+	TICK;
+
+	/**
+	 * Create an empty store of this type, for strings
+	 * @return the new store
+	 * @throws UnsupportedOperationException thrown for TICK, which needs a
+	 * 			start and a step
+	 */
+	public TimeseriesStore newStore() {
+		return newStore(ValueType.STRING);
+	}
+
+	/**
+	 * Create an empty store of this type
+	 * @param valueType the type of the values the store is to hold
+	 * @return the new store
+	 * @throws UnsupportedOperationException thrown for TICK, which needs a
+	 * 			start and a step
+	 */
+	public TimeseriesStore newStore(ValueType valueType) {
+
+		switch (this) {
+
+		case COLUMNAR:
+			return new ColumnarStore(valueType);
+
+		case SEGMENT:
+			return new SegmentStore(valueType);
+
+		case REGULAR:
+			return new RegularStore(valueType);
+
+		case AUTO:
+			return new ColumnarStore(valueType);
+
+		case TICK:
+			throw new UnsupportedOperationException("A TICK store needs a " +
+					"start and a step, see TickStore");
+
+		default:
+			return new TreeMapStore(valueType);
+		}
+
+	}
+
+	/**
+	 * Get the store type from its name (case insensitive)
+	 * @param name the name of the store type
+	 * @return the store type
+	 * @throws PCacheException thrown if there is no such store type
+	 */
+	public static StoreType fromString(String name) throws PCacheException {
+
+		try {
+			return StoreType.valueOf(name.trim().toUpperCase());
+		}
+
+		catch (NullPointerException ex) {
+			throw new PCacheException("Store type can't be null", ex);
+		}
+
+		catch (IllegalArgumentException ex) {
+			throw new PCacheException("Unknown store type: " + name, ex);
+		}
+	}
+
+}
@@ -0,0 +1,534 @@
+package main.com.pcache.DO.timeseries.store;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.NoSuchElementException;
+
+import main.com.pcache.utils.Commons;
+import main.com.pcache.utils.HeapSize;
+
+import org.joda.time.DateTimeZone;
+
+/**
+ * A store for the points of a RegularTimeseries, which are at a fixed
+ * interval that is declared up front.
+ *
+ * Unlike a RegularStore, the start and the step of the grid are given when
+ * the store is created and never change. The values are held as doubles in
+ * a primitive array whose slot i is the point at origin + i * step, a bitmap
+ * marks the slots that hold a point. Finding a point is a division, a range
+ * is a slice of the array.
+ *
+ * The origin is a point on the grid at or before the first point held. It
+ * moves up once the slots before the first point are as many as those after
+ * it, as they become when old points are removed, and the array is shrunk
+ * once it is far larger than the points need. So a series that keeps only
+ * its recent points holds on to as many slots as they span, however long
+ * it runs. The points held have to be less than MAX_SLOTS steps apart.
+ *
+ * Only numbers can be held, the store is always of ValueType.DOUBLE. The
+ * ISO8601 strings aren't kept, the timestamps are written out in the zone
+ * the store was created with.
+ */
+public class TickStore implements TimeseriesStore {
+
+	private static final int _INITIAL_CAPACITY = 16;
+
+	/**
+	 * How many steps apart the points of a store have to be less than, which
+	 * keeps a stray timestamp far from the others from taking all the memory
+	 */
+	public static final int MAX_SLOTS = 1 << 24;
+
+	private final long _start;
+	private final long _step;
+
+	// Slot i holds the point at _origin + i * _step if bit i is set
+	private long _origin;
+	private double[] _values;
+	private BitSet _present;
+	private int _size;
+
+	// The zone the timestamps are written out in
+	private final DateTimeZone _zone;
+
+	/**
+	 * Constructor. Create an empty store
+	 * @param start the timestamp of the first slot, in miliseconds
+	 * @param step the interval between slots in miliseconds
+	 * @param zone the zone to write the timestamps out in
+	 */
+	public TickStore(long start, long step, DateTimeZone zone) {
+
+		if (step <= 0) {
+			throw new IllegalArgumentException("The step should be positive");
+		}
+
+		this._start = start;
+		this._step = step;
+		this._origin = start;
+		this._values = new double[_INITIAL_CAPACITY];
+		this._present = new BitSet();
+		this._size = 0;
+		this._zone = zone == null ? DateTimeZone.UTC : zone;
+	}
+
+	@Override
+	public StoreType getType() {
+		return StoreType.TICK;
+	}
+
+	@Override
+	public int size() {
+		return this._size;
+	}
+
+	/**
+	 * @return the start of the grid in miliseconds
+	 */
+	public long getStart() {
+		return this._start;
+	}
+
+	/**
+	 * @return the interval between slots in miliseconds
+	 */
+	public long getStep() {
+		return this._step;
+	}
+
+	/**
+	 * @return the zone the timestamps are written out in
+	 */
+	public DateTimeZone getZone() {
+		return this._zone;
+	}
+
+	/**
+	 * A point can be held if it is on the grid, at or after the start, and
+	 * less than MAX_SLOTS steps from the points held
+	 */
+	@Override
+	public boolean canHold(long timestamp) {
+		return isOnGrid(timestamp) && canSpan(timestamp, timestamp);
+	}
+
+	/**
+	 * Check if a timestamp is on the grid of the store, at or after the start
+	 * @param timestamp the timestamp in miliseconds
+	 * @return true if it is
+	 */
+	public boolean isOnGrid(long timestamp) {
+
+		long offset = timestamp - this._start;
+		return offset >= 0 && offset % this._step == 0;
+	}
+
+	/**
+	 * Check if points in a range can be held along with those in the store,
+	 * going by how far apart they would be
+	 * @param timestampFrom the first timestamp of the range
+	 * @param timestampTo the last timestamp of the range
+	 * @return true if the points held and the range together span less than
+	 * 			MAX_SLOTS steps
+	 */
+	public boolean canSpan(long timestampFrom, long timestampTo) {
+
+		long first = timestampFrom;
+		long last = timestampTo;
+
+		if (this._size > 0) {
+			first = Math.min(first, firstKey());
+			last = Math.max(last, lastKey());
+		}
+
+		return (last - first) / this._step < MAX_SLOTS;
+	}
+
+	@Override
+	public boolean containsKey(long timestamp) {
+		return _slotOf(timestamp) >= 0;
+	}
+
+	@Override
+	public String get(long timestamp) {
+
+		int slot = _slotOf(timestamp);
+		return slot >= 0 ? Double.toString(this._values[slot]) : null;
+	}
+
+	/**
+	 * @throws IllegalArgumentException thrown if the point isn't on the grid
+	 * 			or the value isn't a number
+	 */
+	@Override
+	public void put(long timestamp, String timestampISO8601, String value) {
+
+		if (!canHold(timestamp)) {
+			throw new IllegalArgumentException(timestamp + " isn't on the grid "
+					+ "of the store or is too far from its points");
+		}
+
+		if (value == null) {
+			throw new IllegalArgumentException("Values should be numbers");
+		}
+
+		// A NumberFormatException is an IllegalArgumentException
+		double number = Double.parseDouble(value);
+
+		// The slots of an empty store can start anywhere
+		if (this._size == 0) {
+			this._origin = timestamp;
+		}
+
+		else if (timestamp < this._origin) {
+			_shiftUp((int) ((this._origin - timestamp) / this._step));
+		}
+
+		int slot = (int) ((timestamp - this._origin) / this._step);
+		_ensureCapacity(slot + 1);
+
+		if (!this._present.get(slot)) {
+			this._present.set(slot);
+			this._size++;
+		}
+
+		this._values[slot] = number;
+	}
+
+	@Override
+	public void appendAll(long[] timestamps, String[] timestampsISO8601,
+			ValueArray values, int count) {
+
+		for (int i=0; i<count; i++) {
+			put(timestamps[i], timestampsISO8601 == null ? null
+					: timestampsISO8601[i], values.get(i));
+		}
+	}
+
+	@Override
+	public boolean remove(long timestamp) {
+
+		int slot = _slotOf(timestamp);
+
+		if (slot < 0) {
+			return false;
+		}
+
+		this._present.clear(slot);
+		this._size--;
+
+		_compact();
+		return true;
+	}
+
+	/**
+	 * The grid is fixed, the slots before the first point left are dropped
+	 * once they are as many as those after it
+	 */
+	@Override
+	public int removeRange(long timestampFrom, long timestampTo) {
+
+		int from = _fromSlot(timestampFrom);
+		int to = _toSlot(timestampTo);
+
+		if (from >= to) {
+			return 0;
+		}
+
+		int removed = this._present.get(from, to).cardinality();
+
+		this._present.clear(from, to);
+		this._size -= removed;
+
+		_compact();
+		return removed;
+	}
+
+	/**
+	 * The values are held as doubles and are updated as doubles
+	 */
+	@Override
+	public int updateRange(long timestampFrom, long timestampTo,
+			ValueFunction function) {
+
+		int from = _fromSlot(timestampFrom);
+		int to = _toSlot(timestampTo);
+		int updated = 0;
+
+		for (int slot = from < to ? this._present.nextSetBit(from) : -1;
+				slot >= 0 && slot < to;
+				slot = this._present.nextSetBit(slot + 1)) {
+
+			this._values[slot] = function.apply(this._values[slot]);
+			updated++;
+		}
+
+		return updated;
+	}
+
+	@Override
+	public long firstKey() {
+
+		if (this._size == 0) {
+			throw new NoSuchElementException();
+		}
+
+		return this._origin + this._present.nextSetBit(0) * this._step;
+	}
+
+	@Override
+	public long lastKey() {
+
+		if (this._size == 0) {
+			throw new NoSuchElementException();
+		}
+
+		return this._origin + (this._present.length() - 1) * this._step;
+	}
+
+	/**
+	 * The slots of the range are copied out as they are, no search involved.
+	 * The slots of the range start at its first point
+	 */
+	@Override
+	public TimeseriesStore subSeries(long timestampFrom, long timestampTo) {
+
+		int from = _fromSlot(timestampFrom);
+		int to = _toSlot(timestampTo);
+
+		int first = from < to ? this._present.nextSetBit(from) : -1;
+		int last = to > 0 ? this._present.previousSetBit(to - 1) : -1;
+
+		if (first < 0 || last < first) {
+			return new TickStore(this._start, this._step, this._zone);
+		}
+
+		TickStore subSeries = new TickStore(this._start, this._step,
+				this._zone);
+
+		subSeries._origin = this._origin + first * this._step;
+		subSeries._values = Arrays.copyOfRange(this._values, first, last + 1);
+		subSeries._present = this._present.get(first, last + 1);
+		subSeries._size = subSeries._present.cardinality();
+
+		return subSeries;
+	}
+
+	@Override
+	public TimeseriesCursor cursor() {
+		return _cursor(0, this._present.length());
+	}
+
+	@Override
+	public TimeseriesCursor cursor(long timestampFrom, long timestampTo) {
+
+		int from = _fromSlot(timestampFrom);
+		return _cursor(from, Math.max(from, _toSlot(timestampTo)));
+	}
+
+	@Override
+	public long heapSize() {
+		return HeapSize.align(HeapSize.OBJECT + 3 * HeapSize.REFERENCE + 28)
+				+ HeapSize.ofArray(this._values.length, 8)
+				+ HeapSize.ofBitSet(this._present);
+	}
+
+	@Override
+	public void release() {
+		// Everything is on the heap
+	}
+
+	/**
+	 * Get a cursor over a range of slots
+	 * @param from the first slot
+	 * @param to the slot after the last one
+	 * @return a cursor positioned before the first point in the slots
+	 */
+	private TimeseriesCursor _cursor(final int from, final int to) {
+
+		return new TimeseriesCursor() {
+
+			int _slot = from - 1;
+
+			@Override
+			public boolean next() {
+
+				if (_slot >= to) {
+					return false;
+				}
+
+				_slot = _present.nextSetBit(_slot + 1);
+
+				if (_slot < 0 || _slot >= to) {
+					_slot = to;
+					return false;
+				}
+
+				return true;
+			}
+
+			@Override
+			public long timestamp() {
+				return _origin + _slot * _step;
+			}
+
+			@Override
+			public String timestampISO8601() {
+				return Commons.convertMilisToISO8601(timestamp(), _zone);
+			}
+
+			@Override
+			public String value() {
+				return Double.toString(_values[_slot]);
+			}
+
+			@Override
+			public double doubleValue() {
+				return _values[_slot];
+			}
+
+			@Override
+			public long longValue() {
+				return ValueType.toLong(_values[_slot]);
+			}
+		};
+	}
+
+	/**
+	 * Find the first slot at or after a timestamp
+	 * @param timestamp the timestamp
+	 * @return the slot, the no. of slots in use if every slot is before the
+	 * 			timestamp
+	 */
+	private int _fromSlot(long timestamp) {
+
+		int slots = this._present.length();
+
+		if (timestamp <= this._origin) {
+			return 0;
+		}
+
+		long offset = timestamp - this._origin;
+		long slot = (offset + this._step - 1) / this._step;
+
+		return (int) Math.min(slot, slots);
+	}
+
+	/**
+	 * Find the slot after the last slot at or before a timestamp
+	 * @param timestamp the timestamp
+	 * @return the slot, 0 if every slot is after the timestamp
+	 */
+	private int _toSlot(long timestamp) {
+
+		if (timestamp < this._origin) {
+			return 0;
+		}
+
+		long slot = (timestamp - this._origin) / this._step + 1;
+
+		return (int) Math.min(slot, this._present.length());
+	}
+
+	/**
+	 * Find the slot of a timestamp
+	 * @param timestamp the timestamp to look for
+	 * @return the slot if there is a point at the timestamp, -1 otherwise
+	 */
+	private int _slotOf(long timestamp) {
+
+		long offset = timestamp - this._origin;
+
+		if (offset < 0 || offset % this._step != 0
+				|| offset / this._step >= this._present.length()) {
+			return -1;
+		}
+
+		int slot = (int) (offset / this._step);
+		return this._present.get(slot) ? slot : -1;
+	}
+
+	/**
+	 * Grow the values if they can't hold the given no. of slots
+	 * @param capacity the no. of slots the values should be able to hold
+	 */
+	private void _ensureCapacity(int capacity) {
+
+		if (capacity <= this._values.length) {
+			return;
+		}
+
+		int newCapacity = Math.max(capacity, this._values.length * 2);
+		this._values = Arrays.copyOf(this._values, newCapacity);
+	}
+
+	/**
+	 * Move the points up by a no. of slots, to make room for points before
+	 * the origin
+	 * @param by the no. of slots
+	 */
+	private void _shiftUp(int by) {
+
+		int used = this._present.length();
+
+		double[] values = new double[Math.max(this._values.length,
+				used + by)];
+		System.arraycopy(this._values, 0, values, by, used);
+
+		BitSet present = new BitSet(used + by);
+
+		for (int slot = this._present.nextSetBit(0); slot >= 0;
+				slot = this._present.nextSetBit(slot + 1)) {
+			present.set(slot + by);
+		}
+
+		this._values = values;
+		this._present = present;
+		this._origin -= by * this._step;
+	}
+
+	/**
+	 * Drop the slots before the first point once they are as many as those
+	 * after it, and shrink the values once they are more than 4 times as
+	 * many as the slots in use. Either way a slot is moved a constant no. of
+	 * times on average, however the points are removed
+	 */
+	private void _compact() {
+
+		if (this._size == 0) {
+
+			if (this._values.length > _INITIAL_CAPACITY) {
+				this._values = new double[_INITIAL_CAPACITY];
+			}
+
+			this._present = new BitSet();
+			this._origin = this._start;
+			return;
+		}
+
+		int first = this._present.nextSetBit(0);
+		int used = this._present.length() - first;
+
+		boolean rebase = first > 0 && first >= used;
+		boolean shrink = this._values.length
+				> 4 * Math.max(_INITIAL_CAPACITY, used);
+
+		if (!rebase && !shrink) {
+			return;
+		}
+
+		if (shrink) {
+			this._values = Arrays.copyOfRange(this._values, first,
+					first + Math.max(_INITIAL_CAPACITY, 2 * used));
+		}
+
+		else {
+			System.arraycopy(this._values, first, this._values, 0, used);
+		}
+
+		this._present = this._present.get(first, first + used);
+		this._origin += first * this._step;
+	}
+
+}
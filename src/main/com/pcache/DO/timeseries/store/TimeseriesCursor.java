@@ -0,0 +1,47 @@
+package main.com.pcache.DO.timeseries.store;
+
+/**
+ * A forward only cursor over the points of a store.
+ *
+ * Unlike an iterator over map entries, the cursor doesn't create an object
+ * per point. Call next() before reading the first point.
+ */
+public interface TimeseriesCursor {
+
+	/**
+	 * Move to the next point
+	 * @return true if there is a point to read, false if the end is reached
+	 */
+	public boolean next();
+
+	/**
+	 * @return the timestamp (miliseconds since EPOC) of the current point
+	 */
+	public long timestamp();
+
+	/**
+	 * @return the ISO8601 representation of the current point's timestamp
+	 */
+	public String timestampISO8601();
+
+	/**
+	 * @return the value of the current point
+	 */
+	public String value();
+
+	/**
+	 * Read the value of the current point as a number, without the string
+	 * value() would build if the store holds it as a primitive
+	 * @return the value as a double
+	 * @throws NumberFormatException thrown if the value isn't a number
+	 */
+	public double doubleValue();
+
+	/**
+	 * @return the value of the current point as a long, see doubleValue()
+	 * @throws NumberFormatException thrown if the value isn't a whole no.
+	 * 			that fits in a long
+	 */
+	public long longValue();
+
+}
@@ -0,0 +1,148 @@
+package main.com.pcache.DO.timeseries.store;
+
+/**
+ * The underlying storage of a timeseries.
+ *
+ * A store holds points ordered by their timestamp (miliseconds since EPOC).
+ * The ISO8601 representation of the timestamp is passed along when points
+ * are put in so that stores which want to keep it around can do so; stores
+ * that don't, have to be able to render it back out through the cursor.
+ */
+public interface TimeseriesStore {
+
+	/**
+	 * Get the kind of store this is
+	 * @return the type of the store
+	 */
+	public StoreType getType();
+
+	/**
+	 * Get the no. of points in the store
+	 * @return the no. of points
+	 */
+	public int size();
+
+	/**
+	 * Check if a point exists for the given timestamp
+	 * @param timestamp the timestamp (miliseconds since EPOC) to look for
+	 * @return true/false based on its existance
+	 */
+	public boolean containsKey(long timestamp);
+
+	/**
+	 * Get the value stored against a timestamp
+	 * @param timestamp the timestamp (miliseconds since EPOC) to look for
+	 * @return the value, null if the timestamp isn't present
+	 */
+	public String get(long timestamp);
+
+	/**
+	 * Check if a point can be put into the store. Only stores that lay their
+	 * points out on a grid refuse any, the rest can hold every point
+	 * @param timestamp the timestamp (miliseconds since EPOC) of the point
+	 * @return true if the point can be put
+	 */
+	public boolean canHold(long timestamp);
+
+	/**
+	 * Add or update a point
+	 * @param timestamp the timestamp (miliseconds since EPOC)
+	 * @param timestampISO8601 the ISO8601 representation of the timestamp
+	 * @param value the value associated to the timestamp
+	 */
+	public void put(long timestamp, String timestampISO8601, String value);
+
+	/**
+	 * Add a run of points that all come after the last point of the store,
+	 * in timestamp order, in one go rather than one point at a time
+	 * @param timestamps the timestamps (miliseconds since EPOC), ascending
+	 * @param timestampsISO8601 the ISO8601 representations of the timestamps,
+	 * 			null if they came in as miliseconds
+	 * @param values the values associated to the timestamps
+	 * @param count the no. of points to add, from the start of the arrays
+	 */
+	public void appendAll(long[] timestamps, String[] timestampsISO8601,
+			ValueArray values, int count);
+
+	/**
+	 * Remove a point
+	 * @param timestamp the timestamp (miliseconds since EPOC) to remove
+	 * @return true if a point was removed, false if it didn't exist
+	 */
+	public boolean remove(long timestamp);
+
+	/**
+	 * Remove every point between 2 timestamps in one go, rather than one
+	 * point at a time. Both ends are inclusive
+	 * @param timestampFrom the timestamp to start from
+	 * @param timestampTo the timestamp to end at. Has to be greater than or
+	 * 			equal to timestampFrom
+	 * @return the no. of points removed
+	 */
+	public int removeRange(long timestampFrom, long timestampTo);
+
+	/**
+	 * Change the value of every point between 2 timestamps in one pass over
+	 * the range, rather than one point at a time. Both ends are inclusive
+	 * @param timestampFrom the timestamp to start from
+	 * @param timestampTo the timestamp to end at. Has to be greater than or
+	 * 			equal to timestampFrom
+	 * @param function works out the new value of each point from its old one
+	 * @return the no. of points changed
+	 */
+	public int updateRange(long timestampFrom, long timestampTo,
+			ValueFunction function);
+
+	/**
+	 * Get the first (lowest) timestamp in the store
+	 * @return the first timestamp
+	 * @throws java.util.NoSuchElementException thrown if the store is empty
+	 */
+	public long firstKey();
+
+	/**
+	 * Get the last (highest) timestamp in the store
+	 * @return the last timestamp
+	 * @throws java.util.NoSuchElementException thrown if the store is empty
+	 */
+	public long lastKey();
+
+	/**
+	 * Get the points between 2 timestamps. Both ends are inclusive.
+	 * @param timestampFrom the timestamp to start from
+	 * @param timestampTo the timestamp to end at. Has to be greater than or
+	 * 			equal to timestampFrom
+	 * @return a store holding only the points in the range
+	 */
+	public TimeseriesStore subSeries(long timestampFrom, long timestampTo);
+
+	/**
+	 * Get a cursor to walk over the points in timestamp order
+	 * @return a cursor positioned before the first point
+	 */
+	public TimeseriesCursor cursor();
+
+	/**
+	 * Get a cursor to walk over the points between 2 timestamps in timestamp
+	 * order, without copying them out of the store. Both ends are inclusive.
+	 * @param timestampFrom the timestamp to start from
+	 * @param timestampTo the timestamp to end at. Has to be greater than or
+	 * 			equal to timestampFrom
+	 * @return a cursor positioned before the first point in the range
+	 */
+	public TimeseriesCursor cursor(long timestampFrom, long timestampTo);
+
+	/**
+	 * Estimate how much of the Java heap the store holds on to, see HeapSize.
+	 * Whatever it holds outside the heap isn't counted
+	 * @return the no. of bytes
+	 */
+	public long heapSize();
+
+	/**
+	 * Free whatever the store holds outside the Java heap. Called once the
+	 * store is no longer used
+	 */
+	public void release();
+
+}
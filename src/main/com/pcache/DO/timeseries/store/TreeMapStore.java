@@ -0,0 +1,250 @@
+package main.com.pcache.DO.timeseries.store;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import main.com.pcache.DO.PCacheTimestamp;
+import main.com.pcache.utils.HeapSize;
+
+/**
+ * A store backed by a TreeMap.
+ * A treemap is favourable here because of the inbuilt ordering that comes
+ * along with it. This allows the points that are inserted later on to
+ * find the right place. Also treemaps have a neat "submap" feature that
+ * allows to get a subset of a map
+ */
+public class TreeMapStore implements TimeseriesStore {
+
+	// The map and the store, and an entry of the map
+	private static final long _TREE_MAP = 64;
+	private static final long _ENTRY = 40;
+
+	private NavigableMap<PCacheTimestamp, String> _timeseries;
+
+	// Values are kept as strings, in the form their type writes them out in
+	private final ValueType _valueType;
+
+	/**
+	 * Constructor. Create an empty store of strings
+	 */
+	public TreeMapStore() {
+		this(ValueType.STRING);
+	}
+
+	/**
+	 * Constructor. Create an empty store
+	 * @param valueType the type of the values
+	 */
+	public TreeMapStore(ValueType valueType) {
+		this._timeseries = new TreeMap<PCacheTimestamp, String>();
+		this._valueType = valueType;
+	}
+
+	/**
+	 * Constructor. Create a store out of an existing mapping. If the mapping
+	 * isn't already ordered, it is copied into a TreeMap
+	 * @param timeseries the timestamp - value mapping
+	 */
+	public TreeMapStore(Map<PCacheTimestamp, String> timeseries) {
+
+		this._valueType = ValueType.STRING;
+
+		if (timeseries instanceof NavigableMap) {
+			this._timeseries = (NavigableMap<PCacheTimestamp, String>) timeseries;
+		}
+
+		else {
+			this._timeseries = new TreeMap<PCacheTimestamp, String>(timeseries);
+		}
+	}
+
+	@Override
+	public StoreType getType() {
+		return StoreType.TREEMAP;
+	}
+
+	@Override
+	public boolean canHold(long timestamp) {
+		return true;
+	}
+
+	@Override
+	public int size() {
+		return this._timeseries.size();
+	}
+
+	@Override
+	public boolean containsKey(long timestamp) {
+		return this._timeseries.containsKey(_key(timestamp));
+	}
+
+	@Override
+	public String get(long timestamp) {
+		return this._timeseries.get(_key(timestamp));
+	}
+
+	@Override
+	public void put(long timestamp, String timestampISO8601, String value) {
+		this._timeseries.put(new PCacheTimestamp(timestamp, timestampISO8601),
+				this._valueType.normalize(value));
+	}
+
+	@Override
+	public void appendAll(long[] timestamps, String[] timestampsISO8601,
+			ValueArray values, int count) {
+
+		for (int i=0; i<count; i++) {
+			put(timestamps[i], timestampsISO8601 == null ? null
+					: timestampsISO8601[i], values.get(i));
+		}
+	}
+
+	@Override
+	public boolean remove(long timestamp) {
+		return this._timeseries.remove(_key(timestamp)) != null;
+	}
+
+	@Override
+	public int removeRange(long timestampFrom, long timestampTo) {
+
+		Map<PCacheTimestamp, String> range = this._timeseries.subMap(
+				_key(timestampFrom), true, _key(timestampTo), true);
+
+		int removed = range.size();
+		range.clear();
+		return removed;
+	}
+
+	/**
+	 * The values are set through the entries of the sub map, the tree isn't
+	 * searched again for each point
+	 */
+	@Override
+	public int updateRange(long timestampFrom, long timestampTo,
+			ValueFunction function) {
+
+		Map<PCacheTimestamp, String> range = this._timeseries.subMap(
+				_key(timestampFrom), true, _key(timestampTo), true);
+
+		for (Entry<PCacheTimestamp, String> entry : range.entrySet()) {
+			entry.setValue(this._valueType.normalize(
+					function.apply(entry.getValue())));
+		}
+
+		return range.size();
+	}
+
+	@Override
+	public long firstKey() {
+		return this._timeseries.firstKey().getTimestampMilis();
+	}
+
+	@Override
+	public long lastKey() {
+		return this._timeseries.lastKey().getTimestampMilis();
+	}
+
+	@Override
+	public TimeseriesStore subSeries(long timestampFrom, long timestampTo) {
+		return new TreeMapStore(this._timeseries.subMap(_key(timestampFrom),
+				true, _key(timestampTo), true));
+	}
+
+	@Override
+	public TimeseriesCursor cursor() {
+		return _cursor(this._timeseries);
+	}
+
+	@Override
+	public TimeseriesCursor cursor(long timestampFrom, long timestampTo) {
+		return _cursor(this._timeseries.subMap(_key(timestampFrom), true, 
+				_key(timestampTo), true));
+	}
+
+	@Override
+	public long heapSize() {
+
+		long size = _TREE_MAP;
+
+		for (Entry<PCacheTimestamp, String> point
+				: this._timeseries.entrySet()) {
+			size += _ENTRY + point.getKey().heapSize()
+					+ HeapSize.ofString(point.getValue());
+		}
+
+		return size;
+	}
+
+	@Override
+	public void release() {
+		// Everything is on the heap
+	}
+
+	/**
+	 * Get a cursor over a map of points
+	 * @param points the map, or a view of a part of it
+	 * @return a cursor positioned before the first point
+	 */
+	private static TimeseriesCursor _cursor(
+			Map<PCacheTimestamp, String> points) {
+
+		final Iterator<Entry<PCacheTimestamp, String>> iterator =
+				points.entrySet().iterator();
+
+		return new TimeseriesCursor() {
+
+			Entry<PCacheTimestamp, String> _current;
+
+			@Override
+			public boolean next() {
+
+				if (!iterator.hasNext()) {
+					_current = null;
+					return false;
+				}
+
+				_current = iterator.next();
+				return true;
+			}
+
+			@Override
+			public long timestamp() {
+				return _current.getKey().getTimestampMilis();
+			}
+
+			@Override
+			public String timestampISO8601() {
+				return _current.getKey().toString();
+			}
+
+			@Override
+			public String value() {
+				return _current.getValue();
+			}
+
+			@Override
+			public double doubleValue() {
+				return ValueType.parseDouble(_current.getValue());
+			}
+
+			@Override
+			public long longValue() {
+				return Long.parseLong(_current.getValue());
+			}
+		};
+	}
+
+	/**
+	 * Build a key to look up the map with. Comparisons only look at the
+	 * miliseconds so the ISO8601 string isn't needed
+	 * @param timestamp the timestamp in miliseconds
+	 * @return the lookup key
+	 */
+	private PCacheTimestamp _key(long timestamp) {
+		return new PCacheTimestamp(timestamp, null);
+	}
+
+}
@@ -0,0 +1,205 @@
+package main.com.pcache.DO.timeseries.store;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * The values of a run of points, held in an array of their own kind.
+ *
+ * Values that come in as numbers, as they do over the binary protocol, are
+ * kept as numbers rather than turned into strings only for the store to
+ * parse them back. The stores that hold values in primitive form copy them
+ * over as they are, see ValueColumn. Everything else reads the values as a
+ * list of strings, each written out as it is asked for, the way
+ * Long.toString() / Double.toString() would.
+ */
+public abstract class ValueArray extends AbstractList<String>
+		implements RandomAccess {
+
+	/**
+	 * Wrap an array of strings. The array isn't copied
+	 * @param values the values
+	 * @return the values as a ValueArray
+	 */
+	public static ValueArray of(String[] values) {
+		return new Strings(values);
+	}
+
+	/**
+	 * Wrap an array of whole nos. The array isn't copied
+	 * @param values the values
+	 * @return the values as a ValueArray
+	 */
+	public static ValueArray of(long[] values) {
+		return new Longs(values);
+	}
+
+	/**
+	 * Wrap an array of nos. The array isn't copied
+	 * @param values the values
+	 * @return the values as a ValueArray
+	 */
+	public static ValueArray of(double[] values) {
+		return new Doubles(values);
+	}
+
+	/**
+	 * Get a list of values as a ValueArray, copying them to an array unless
+	 * they already are one
+	 * @param values the values
+	 * @return the values as a ValueArray
+	 */
+	public static ValueArray of(List<String> values) {
+
+		if (values instanceof ValueArray) {
+			return (ValueArray) values;
+		}
+
+		return new Strings(values.toArray(new String[values.size()]));
+	}
+
+	/**
+	 * @return the kind of values in the array, STRING if they came in as
+	 * 			strings, whatever they hold
+	 */
+	public abstract ValueType getType();
+
+	/**
+	 * @param index the index of the value
+	 * @return the value as a long
+	 * @throws NumberFormatException thrown if the value isn't a whole no.
+	 */
+	public abstract long getLong(int index);
+
+	/**
+	 * @param index the index of the value
+	 * @return the value as a double
+	 * @throws NumberFormatException thrown if the value isn't a number
+	 */
+	public abstract double getDouble(int index);
+
+	/**
+	 * @return the array the values are held in, a String[], long[] or
+	 * 			double[] going by getType()
+	 */
+	abstract Object array();
+
+	private static class Strings extends ValueArray {
+
+		private final String[] _values;
+
+		Strings(String[] values) {
+			this._values = values;
+		}
+
+		@Override
+		public ValueType getType() {
+			return ValueType.STRING;
+		}
+
+		@Override
+		public String get(int index) {
+			return this._values[index];
+		}
+
+		@Override
+		public long getLong(int index) {
+			return Long.parseLong(this._values[index]);
+		}
+
+		@Override
+		public double getDouble(int index) {
+			return ValueType.parseDouble(this._values[index]);
+		}
+
+		@Override
+		public int size() {
+			return this._values.length;
+		}
+
+		@Override
+		Object array() {
+			return this._values;
+		}
+	}
+
+	private static class Longs extends ValueArray {
+
+		private final long[] _values;
+
+		Longs(long[] values) {
+			this._values = values;
+		}
+
+		@Override
+		public ValueType getType() {
+			return ValueType.LONG;
+		}
+
+		@Override
+		public String get(int index) {
+			return Long.toString(this._values[index]);
+		}
+
+		@Override
+		public long getLong(int index) {
+			return this._values[index];
+		}
+
+		@Override
+		public double getDouble(int index) {
+			return this._values[index];
+		}
+
+		@Override
+		public int size() {
+			return this._values.length;
+		}
+
+		@Override
+		Object array() {
+			return this._values;
+		}
+	}
+
+	private static class Doubles extends ValueArray {
+
+		private final double[] _values;
+
+		Doubles(double[] values) {
+			this._values = values;
+		}
+
+		@Override
+		public ValueType getType() {
+			return ValueType.DOUBLE;
+		}
+
+		@Override
+		public String get(int index) {
+			return Double.toString(this._values[index]);
+		}
+
+		@Override
+		public long getLong(int index) {
+			return ValueType.toLong(this._values[index]);
+		}
+
+		@Override
+		public double getDouble(int index) {
+			return this._values[index];
+		}
+
+		@Override
+		public int size() {
+			return this._values.length;
+		}
+
+		@Override
+		Object array() {
+			return this._values;
+		}
+	}
+
+}
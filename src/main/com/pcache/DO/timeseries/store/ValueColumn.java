@@ -0,0 +1,414 @@
+package main.com.pcache.DO.timeseries.store;
+
+import java.util.Arrays;
+
+import main.com.pcache.utils.HeapSize;
+
+/**
+ * A growable array of values, indexed the way the store that owns it lays
+ * out its points.
+ *
+ * The values of a STRING series are held as they are. Those of a LONG or a
+ * DOUBLE series are parsed as they are put in and held in a primitive
+ * array, 8 bytes each instead of a String of 40 bytes or more, and are only
+ * turned back into strings as they are read out.
+ */
+abstract class ValueColumn {
+
+	/**
+	 * Create an empty column
+	 * @param valueType the type of the values
+	 * @param capacity the no. of values the column can hold before it grows
+	 * @return the column
+	 */
+	static ValueColumn of(ValueType valueType, int capacity) {
+
+		switch (valueType) {
+
+		case LONG:
+			return new LongColumn(new long[capacity]);
+
+		case DOUBLE:
+			return new DoubleColumn(new double[capacity]);
+
+		default:
+			return new StringColumn(new String[capacity]);
+		}
+	}
+
+	/**
+	 * Wrap an existing array of strings. The array is owned by the column
+	 * from here on
+	 * @param values the values
+	 * @return the column
+	 */
+	static ValueColumn of(String[] values) {
+		return new StringColumn(values);
+	}
+
+	/**
+	 * @return the type of the values
+	 */
+	abstract ValueType getType();
+
+	/**
+	 * @return the no. of values the column can hold before it grows
+	 */
+	abstract int capacity();
+
+	/**
+	 * Grow the column if it can't hold the given no. of values
+	 * @param capacity the no. of values the column should be able to hold
+	 */
+	abstract void ensureCapacity(int capacity);
+
+	/**
+	 * @param index the index of the value
+	 * @return the value, as it is written out
+	 */
+	abstract String get(int index);
+
+	/**
+	 * @param index the index of the value
+	 * @return the value as a double
+	 * @throws NumberFormatException thrown if the value isn't a number
+	 */
+	abstract double getDouble(int index);
+
+	/**
+	 * @param index the index of the value
+	 * @return the value as a long
+	 * @throws NumberFormatException thrown if the value isn't a whole no.
+	 */
+	abstract long getLong(int index);
+
+	/**
+	 * @param index the index of the value
+	 * @param value the value, which the type of the column can hold
+	 */
+	abstract void set(int index, String value);
+
+	/**
+	 * Set a run of values in one go, copied over with System.arraycopy()
+	 * when they are of the type of the column
+	 * @param index the index of the first value to set
+	 * @param values the values, which the type of the column can hold
+	 * @param from the index of the first of the values to set
+	 * @param count the no. of values to set
+	 */
+	abstract void setAll(int index, ValueArray values, int from, int count);
+
+	/**
+	 * Replace a value with the one a function works out from it, without
+	 * turning a primitive value into a string and back
+	 * @param index the index of the value
+	 * @param function the function
+	 */
+	abstract void update(int index, ValueFunction function);
+
+	/**
+	 * Move a run of values within the column, like System.arraycopy()
+	 * @param from the index of the first value to move
+	 * @param to the index to move it to
+	 * @param length the no. of values to move
+	 */
+	abstract void move(int from, int to, int length);
+
+	/**
+	 * Let go of the values in a range, so they can be collected
+	 * @param from the first index
+	 * @param to the index after the last one
+	 */
+	abstract void clear(int from, int to);
+
+	/**
+	 * Copy out a range of values
+	 * @param from the first index
+	 * @param to the index after the last one
+	 * @return a new column holding the values
+	 */
+	abstract ValueColumn copyOfRange(int from, int to);
+
+	/**
+	 * @return the no. of bytes the column takes on the heap, see HeapSize
+	 */
+	abstract long heapSize();
+
+	// The column itself, a header and a reference to its array
+	private static final long _COLUMN = HeapSize.align(HeapSize.OBJECT
+			+ HeapSize.REFERENCE);
+
+	private static int _grow(int length, int capacity) {
+		return Math.max(capacity, length * 2);
+	}
+
+	private static class StringColumn extends ValueColumn {
+
+		private String[] _values;
+
+		StringColumn(String[] values) {
+			this._values = values;
+		}
+
+		@Override
+		ValueType getType() {
+			return ValueType.STRING;
+		}
+
+		@Override
+		int capacity() {
+			return this._values.length;
+		}
+
+		@Override
+		void ensureCapacity(int capacity) {
+
+			if (capacity > this._values.length) {
+				this._values = Arrays.copyOf(this._values,
+						_grow(this._values.length, capacity));
+			}
+		}
+
+		@Override
+		String get(int index) {
+			return this._values[index];
+		}
+
+		@Override
+		double getDouble(int index) {
+			return ValueType.parseDouble(this._values[index]);
+		}
+
+		@Override
+		long getLong(int index) {
+			return Long.parseLong(this._values[index]);
+		}
+
+		@Override
+		void set(int index, String value) {
+			this._values[index] = value;
+		}
+
+		@Override
+		void setAll(int index, ValueArray values, int from, int count) {
+
+			if (values.getType() == ValueType.STRING) {
+				System.arraycopy(values.array(), from, this._values, index,
+						count);
+				return;
+			}
+
+			for (int i=0; i<count; i++) {
+				this._values[index + i] = values.get(from + i);
+			}
+		}
+
+		@Override
+		void update(int index, ValueFunction function) {
+			this._values[index] = function.apply(this._values[index]);
+		}
+
+		@Override
+		void move(int from, int to, int length) {
+			System.arraycopy(this._values, from, this._values, to, length);
+		}
+
+		@Override
+		void clear(int from, int to) {
+			Arrays.fill(this._values, from, to, null);
+		}
+
+		@Override
+		ValueColumn copyOfRange(int from, int to) {
+			return new StringColumn(Arrays.copyOfRange(this._values, from, to));
+		}
+
+		@Override
+		long heapSize() {
+
+			long size = _COLUMN + HeapSize.ofArray(this._values.length,
+					HeapSize.REFERENCE);
+
+			for (String value : this._values) {
+				size += HeapSize.ofString(value);
+			}
+
+			return size;
+		}
+	}
+
+	private static class LongColumn extends ValueColumn {
+
+		private long[] _values;
+
+		LongColumn(long[] values) {
+			this._values = values;
+		}
+
+		@Override
+		ValueType getType() {
+			return ValueType.LONG;
+		}
+
+		@Override
+		int capacity() {
+			return this._values.length;
+		}
+
+		@Override
+		void ensureCapacity(int capacity) {
+
+			if (capacity > this._values.length) {
+				this._values = Arrays.copyOf(this._values,
+						_grow(this._values.length, capacity));
+			}
+		}
+
+		@Override
+		String get(int index) {
+			return Long.toString(this._values[index]);
+		}
+
+		@Override
+		double getDouble(int index) {
+			return this._values[index];
+		}
+
+		@Override
+		long getLong(int index) {
+			return this._values[index];
+		}
+
+		@Override
+		void set(int index, String value) {
+			this._values[index] = Long.parseLong(value);
+		}
+
+		@Override
+		void setAll(int index, ValueArray values, int from, int count) {
+
+			if (values.getType() == ValueType.LONG) {
+				System.arraycopy(values.array(), from, this._values, index,
+						count);
+				return;
+			}
+
+			for (int i=0; i<count; i++) {
+				this._values[index + i] = values.getLong(from + i);
+			}
+		}
+
+		@Override
+		void update(int index, ValueFunction function) {
+			this._values[index] = function.apply(this._values[index]);
+		}
+
+		@Override
+		void move(int from, int to, int length) {
+			System.arraycopy(this._values, from, this._values, to, length);
+		}
+
+		@Override
+		void clear(int from, int to) {
+			// Nothing to collect
+		}
+
+		@Override
+		ValueColumn copyOfRange(int from, int to) {
+			return new LongColumn(Arrays.copyOfRange(this._values, from, to));
+		}
+
+		@Override
+		long heapSize() {
+			return _COLUMN + HeapSize.ofArray(this._values.length, 8);
+		}
+	}
+
+	private static class DoubleColumn extends ValueColumn {
+
+		private double[] _values;
+
+		DoubleColumn(double[] values) {
+			this._values = values;
+		}
+
+		@Override
+		ValueType getType() {
+			return ValueType.DOUBLE;
+		}
+
+		@Override
+		int capacity() {
+			return this._values.length;
+		}
+
+		@Override
+		void ensureCapacity(int capacity) {
+
+			if (capacity > this._values.length) {
+				this._values = Arrays.copyOf(this._values,
+						_grow(this._values.length, capacity));
+			}
+		}
+
+		@Override
+		String get(int index) {
+			return Double.toString(this._values[index]);
+		}
+
+		@Override
+		double getDouble(int index) {
+			return this._values[index];
+		}
+
+		@Override
+		long getLong(int index) {
+			return ValueType.toLong(this._values[index]);
+		}
+
+		@Override
+		void set(int index, String value) {
+			this._values[index] = Double.parseDouble(value);
+		}
+
+		@Override
+		void setAll(int index, ValueArray values, int from, int count) {
+
+			if (values.getType() == ValueType.DOUBLE) {
+				System.arraycopy(values.array(), from, this._values, index,
+						count);
+				return;
+			}
+
+			for (int i=0; i<count; i++) {
+				this._values[index + i] = values.getDouble(from + i);
+			}
+		}
+
+		@Override
+		void update(int index, ValueFunction function) {
+			this._values[index] = function.apply(this._values[index]);
+		}
+
+		@Override
+		void move(int from, int to, int length) {
+			System.arraycopy(this._values, from, this._values, to, length);
+		}
+
+		@Override
+		void clear(int from, int to) {
+			// Nothing to collect
+		}
+
+		@Override
+		ValueColumn copyOfRange(int from, int to) {
+			return new DoubleColumn(Arrays.copyOfRange(this._values, from, to));
+		}
+
+		@Override
+		long heapSize() {
+			return _COLUMN + HeapSize.ofArray(this._values.length, 8);
+		}
+	}
+
+}
@@ -0,0 +1,30 @@
+package main.com.pcache.DO.timeseries.store;
+
+/**
+ * Works out the new value of a point from its old one, for changing the
+ * values of a range of points in place, see TimeseriesStore.updateRange().
+ *
+ * Stores that hold the values of a numeric series as primitives call the
+ * primitive forms, the rest call the one that takes a string.
+ */
+public interface ValueFunction {
+
+	/**
+	 * @param value the value of the point, as the store writes it out
+	 * @return the new value of the point, one the store can hold
+	 */
+	public String apply(String value);
+
+	/**
+	 * @param value the value of a point of a LONG series
+	 * @return the new value of the point
+	 */
+	public long apply(long value);
+
+	/**
+	 * @param value the value of a point of a DOUBLE series
+	 * @return the new value of the point
+	 */
+	public double apply(double value);
+
+}
@@ -0,0 +1,165 @@
+package main.com.pcache.DO.timeseries.store;
+
+import main.com.pcache.exceptions.PCacheException;
+
+/**
+ * The kinds of values a timeseries can be declared to hold.
+ *
+ * Values come in and go out as strings. A numeric series parses them once
+ * as they come in, rejecting any that aren't numbers of its kind, and the
+ * stores that can hold them in primitive form do so, see ValueColumn. They
+ * are written back out the way Long.toString() / Double.toString() would,
+ * so "1.50" comes back out of a DOUBLE series as "1.5".
+ */
+public enum ValueType {
+
+	/**
+	 * Any value, kept as it came in. Values can be null
+	 */
+	STRING,
+
+	/**
+	 * Whole nos. that fit in a long
+	 */
+	LONG,
+
+	/**
+	 * Nos. that can be parsed as a double
+	 */
+	DOUBLE;
+
+	// Every whole no. below it has a double of its own
+	private static final double _MAX_EXACT_LONG = 1L << 53;
+
+	/**
+	 * Check if a value can be held in a series of this type
+	 * @param value the value
+	 * @return true if it can be
+	 */
+	public boolean canHold(String value) {
+
+		if (this == STRING) {
+			return true;
+		}
+
+		if (value == null) {
+			return false;
+		}
+
+		try {
+
+			if (this == LONG) {
+				Long.parseLong(value);
+			}
+
+			else {
+				Double.parseDouble(value);
+			}
+
+			return true;
+		}
+
+		catch (NumberFormatException ex) {
+			return false;
+		}
+	}
+
+	/**
+	 * Bring a value to the form it is written back out in
+	 * @param value the value, that can be held by this type
+	 * @return the value as it is written out
+	 */
+	public String normalize(String value) {
+
+		switch (this) {
+
+		case LONG:
+			return Long.toString(Long.parseLong(value));
+
+		case DOUBLE:
+			return Double.toString(Double.parseDouble(value));
+
+		default:
+			return value;
+		}
+	}
+
+	/**
+	 * Write out a number the way the values of a numeric series are. Whole
+	 * nos. beyond 2^53 don't survive the trip through a double
+	 * @param number the number
+	 * @return the number as a value of this type
+	 */
+	public String format(double number) {
+		return this == LONG ? Long.toString((long) number)
+				: Double.toString(number);
+	}
+
+	/**
+	 * Check if a number read off a value of this type is the value exactly,
+	 * so that format() writes it back out as it was
+	 * @param number the number
+	 * @return false for a LONG beyond 2^53 that may have been rounded
+	 */
+	public boolean isExact(double number) {
+		return this != LONG || Math.abs(number) < _MAX_EXACT_LONG;
+	}
+
+	/**
+	 * Read a value as a double, the way a numeric value is read out of a
+	 * series that doesn't hold it as one
+	 * @param value the value
+	 * @return the value as a double
+	 * @throws NumberFormatException thrown if the value is null or isn't a
+	 * 			number
+	 */
+	static double parseDouble(String value) {
+
+		if (value == null) {
+			throw new NumberFormatException("null");
+		}
+
+		return Double.parseDouble(value);
+	}
+
+	/**
+	 * Read a double that holds a whole no. as a long
+	 * @param number the number
+	 * @return the number as a long
+	 * @throws NumberFormatException thrown if it isn't a whole no. or
+	 * 			doesn't fit in a long
+	 */
+	static long toLong(double number) {
+
+		// 2^63 itself doesn't fit, though (long) would saturate to it
+		if (number != Math.rint(number) || number >= 0x1p63
+				|| number < -0x1p63) {
+			throw new NumberFormatException(Double.toString(number)
+					+ " isn't a whole no. that fits in a long");
+		}
+
+		return (long) number;
+	}
+
+	/**
+	 * Get the value type from its name (case insensitive)
+	 * @param name the name of the value type
+	 * @return the value type
+	 * @throws PCacheException thrown if there is no such value type
+	 */
+	public static ValueType fromString(String name) throws PCacheException {
+
+		try {
+			return ValueType.valueOf(name.trim().toUpperCase());
+		}
+
+		catch (NullPointerException ex) {
+			throw new PCacheException("Value type can't be null", ex);
+		}
+
+		catch (IllegalArgumentException ex) {
+			throw new PCacheException("Unknown value type: " + name, ex);
+		}
+	}
+
+}
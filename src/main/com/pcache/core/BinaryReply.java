@@ -0,0 +1,172 @@
+package main.com.pcache.core;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A reply of the binary protocol, written into a list of chunks.
+ *
+ * How large a reply is isn't known till the last of it is written. Rather
+ * than a buffer that is copied into one twice its size every time it fills
+ * up, a new chunk is started, twice the size of the last one up to
+ * _MAX_CHUNK_SIZE. Nothing written is copied again: the chunks are handed to
+ * the connection as they are, and those of the part of a reply written on
+ * its own, as for each series of an MGET, are taken over by the whole, see
+ * append().
+ *
+ * A framed reply starts with room for the frame header, which is filled in
+ * by frame() once the size of the payload is known.
+ */
+public class BinaryReply {
+
+	private static final int _MIN_CHUNK_SIZE = 256;
+	private static final int _MAX_CHUNK_SIZE = 64 * 1024;
+
+	private final List<ByteBuffer> _chunks;
+
+	// The chunk being written to, the last of _chunks. null before the first
+	private ByteBuffer _chunk;
+	private long _size;
+
+	// The frame header, null if the reply is a part of another
+	private final ByteBuffer _header;
+
+	/**
+	 * Create an empty reply
+	 * @param framed true if the reply is to be framed, false if it is a part
+	 * 			to be appended to another
+	 */
+	BinaryReply(boolean framed) {
+
+		this._chunks = new ArrayList<>();
+		this._size = 0;
+		this._header = framed ? reserve(1 + BinaryRequestHandler.HEADER_SIZE)
+				: null;
+	}
+
+	/**
+	 * @return the no. of bytes written, the frame header included
+	 */
+	long size() {
+		return this._size;
+	}
+
+	void put(byte value) {
+		_ensureRemaining(1).put(value);
+		this._size++;
+	}
+
+	void putInt(int value) {
+		_ensureRemaining(4).putInt(value);
+		this._size += 4;
+	}
+
+	void putLong(long value) {
+		_ensureRemaining(8).putLong(value);
+		this._size += 8;
+	}
+
+	void putDouble(double value) {
+		_ensureRemaining(8).putDouble(value);
+		this._size += 8;
+	}
+
+	/**
+	 * Write a run of bytes, across as many chunks as it takes
+	 * @param bytes the bytes
+	 */
+	void put(byte[] bytes) {
+
+		int offset = 0;
+
+		while (offset < bytes.length) {
+
+			ByteBuffer chunk = _ensureRemaining(1);
+			int length = Math.min(bytes.length - offset, chunk.remaining());
+
+			chunk.put(bytes, offset, length);
+			offset += length;
+		}
+
+		this._size += bytes.length;
+	}
+
+	/**
+	 * Set aside a run of bytes to be filled in later, like a count that is
+	 * only known once what it counts is written
+	 * @param length the no. of bytes
+	 * @return a buffer over the bytes, to be written to with the absolute
+	 * 			put methods
+	 */
+	ByteBuffer reserve(int length) {
+
+		ByteBuffer chunk = _ensureRemaining(length);
+
+		ByteBuffer reserved = chunk.slice();
+		reserved.limit(length);
+
+		chunk.position(chunk.position() + length);
+		this._size += length;
+		return reserved;
+	}
+
+	/**
+	 * Take over the chunks of another reply, as they are. The other reply
+	 * can't be written to any more
+	 * @param part the reply, not framed
+	 */
+	void append(BinaryReply part) {
+
+		this._chunks.addAll(part._chunks);
+		this._chunk = part._chunk;
+		this._size += part._size;
+	}
+
+	/**
+	 * Fill in the frame header, and get the chunks ready to be written out
+	 * @param status the status of the reply
+	 * @return the reply
+	 */
+	BinaryReply frame(byte status) {
+
+		this._header.put(0, BinaryRequestHandler.MAGIC);
+		this._header.put(1, status);
+		this._header.putInt(2, (int) (this._size - this._header.limit()));
+
+		for (ByteBuffer chunk : this._chunks) {
+			chunk.flip();
+		}
+
+		return this;
+	}
+
+	/**
+	 * @return the chunks of the reply, in order and ready to be read from
+	 * 			once it is framed
+	 */
+	public List<ByteBuffer> getChunks() {
+		return this._chunks;
+	}
+
+	/**
+	 * Get a chunk that can take the given no. of bytes in one go, starting a
+	 * new one if the current one can't
+	 * @param needed the no. of bytes, at most _MIN_CHUNK_SIZE
+	 * @return the chunk
+	 */
+	private ByteBuffer _ensureRemaining(int needed) {
+
+		if (this._chunk != null && this._chunk.remaining() >= needed) {
+			return this._chunk;
+		}
+
+		int capacity = this._chunk == null ? _MIN_CHUNK_SIZE
+				: Math.min(this._chunk.capacity() * 2, _MAX_CHUNK_SIZE);
+
+		this._chunk = ByteBuffer.allocate(capacity);
+		this._chunks.add(this._chunk);
+		return this._chunk;
+	}
+
+}
@@ -0,0 +1,674 @@
+package main.com.pcache.core;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import main.com.pcache.DO.timeseries.VariableTimeseries;
+import main.com.pcache.DO.timeseries.aggregation.Aggregation;
+import main.com.pcache.DO.timeseries.resolution.Resolution;
+import main.com.pcache.DO.timeseries.store.CursorReader;
+import main.com.pcache.DO.timeseries.store.StoreType;
+import main.com.pcache.DO.timeseries.store.ValueArray;
+import main.com.pcache.DO.timeseries.store.ValueType;
+import main.com.pcache.DO.timeseries.store.TimeseriesCursor;
+import main.com.pcache.engines.Batch;
+import main.com.pcache.engines.VariableTimeseriesEngine;
+import main.com.pcache.exceptions.PCacheException;
+
+import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
+
+/**
+ * Handles the commands of the binary protocol.
+ *
+ * The binary protocol runs alongside the text one on the same port. A frame
+ * starts with the MAGIC byte, which no text command starts with, followed by
+ * an opcode (1 byte) and the length of the payload (int32). Replies are
+ * framed the same way with a status in place of the opcode. All numbers are
+ * big endian.
+ *
+ * Timestamps are int64 miliseconds since EPOC. A point is written as its
+ * timestamp followed by a typed value: a type byte and then 8 bytes for
+ * DOUBLE and LONG, or an int32 length and that many UTF-8 bytes for BYTES.
+ *
+ * Payloads:
+ * 	PING								-> empty
+ * 	ALLOC	storetype(1) count(4) points	-> id(8)
+ * 	ALLOCTYPED	storetype(1) valuetype(1) count(4) points	-> id(8)
+ * 	ADD		id(8) count(4) points			-> count(4)
+ * 	MOD		id(8) count(4) points			-> count(4)
+ * 	UPSERT	id(8) count(4) points			-> count(4)
+ * 	DEL		id(8) count(4) timestamps		-> count(4)
+ * 	GETALL	id(8)							-> count(4) points
+ * 	GETRANGE	id(8) from(8) to(8)			-> count(4) points
+ * 	SIZE	id(8)							-> size(4)
+ * 	DEALLOC	id(8)							-> empty
+ * 	GETRES	id(8) from(8) to(8) resolution(1) parameter(8)
+ * 											-> count(4) points
+ * 	AGG		id(8) from(8) to(8) aggregation(1) parameter(8, double)
+ * 											-> value
+ * 	MGET	count(4) [id(8) from(8) to(8)]...	-> count(4) [count(4) points]...
+ * 	MADD	count(4) [id(8) count(4) points]...	-> count(4)
+ * The value type of ALLOCTYPED is one of the types of values, BYTES for a
+ * STRING series. The values of a LONG or DOUBLE series are sent back as
+ * LONG or DOUBLE, the rest as BYTES. AGG sends COUNT back as a LONG, FIRST
+ * and LAST as values of the series and the rest as DOUBLEs.
+ * MGET and MADD work on every series they are given in parallel, see Batch.
+ * MGET replies with the points of each series in the order they were asked
+ * for, MADD with the total no. of points added. The IDs of an MADD can't
+ * repeat. If the points of a series of an MADD can't be added, the ERR
+ * names the series' they were added to anyway.
+ * UPSERT adds the points that don't exist and replaces the ones that do.
+ * An ERR reply carries the UTF-8 error message as its payload.
+ */
+public class BinaryRequestHandler {
+
+	public static final byte MAGIC = (byte) 0xFE;
+
+	// The opcode and the payload length that follow the MAGIC
+	public static final int HEADER_SIZE = 5;
+	public static final int MAX_PAYLOAD_SIZE = 16 * 1024 * 1024;
+
+	public static final byte OP_PING = 0x01;
+	public static final byte OP_ALLOC = 0x02;
+	public static final byte OP_ADD = 0x03;
+	public static final byte OP_MOD = 0x04;
+	public static final byte OP_DEL = 0x05;
+	public static final byte OP_GETALL = 0x06;
+	public static final byte OP_GETRANGE = 0x07;
+	public static final byte OP_SIZE = 0x08;
+	public static final byte OP_DEALLOC = 0x09;
+	public static final byte OP_GETRES = 0x0A;
+	public static final byte OP_ALLOC_TYPED = 0x0B;
+	public static final byte OP_AGG = 0x0C;
+	public static final byte OP_MGET = 0x0D;
+	public static final byte OP_MADD = 0x0E;
+	public static final byte OP_UPSERT = 0x0F;
+
+	public static final byte STATUS_OK = 0x00;
+	public static final byte STATUS_ERR = 0x01;
+
+	public static final byte TYPE_DOUBLE = 0x01;
+	public static final byte TYPE_LONG = 0x02;
+	public static final byte TYPE_BYTES = 0x03;
+
+	private static final Logger _log = Logger.getLogger(
+			BinaryRequestHandler.class.getName());
+
+	private String _clientAddress;
+
+	public BinaryRequestHandler(String clientAddress) {
+		this._clientAddress = clientAddress;
+	}
+
+	/**
+	 * Handle one binary command
+	 * @param opcode the opcode of the command
+	 * @param payload the payload of the command, ready to be read from.
+	 * 			null if the frame couldn't be read
+	 * @return the framed reply, ready to be written out
+	 */
+	public BinaryReply handleRequest(byte opcode, ByteBuffer payload) {
+
+		long operationStartTime = System.currentTimeMillis();
+
+		try {
+
+			if (payload == null) {
+				throw new PCacheException("Invalid frame");
+			}
+
+			BinaryReply reply;
+
+			switch (opcode) {
+
+			case OP_PING: {
+				reply = _newReply();
+				break;
+			}
+
+			case OP_ALLOC:
+			case OP_ALLOC_TYPED: {
+
+				StoreType storeType = _readStoreType(payload);
+				ValueType valueType = opcode == OP_ALLOC_TYPED 
+						? _readValueType(payload) : ValueType.STRING;
+				int count = payload.getInt();
+
+				long[] timestamps = new long[_checkCount(count, payload, 13)];
+				ValueArray dataPoints = _readPoints(payload, timestamps);
+
+				long ID = VariableTimeseriesEngine.allocate(timestamps,
+						dataPoints, storeType, valueType);
+
+				reply = _newReply();
+				reply.putLong(ID);
+				break;
+			}
+
+			case OP_ADD:
+			case OP_MOD:
+			case OP_UPSERT: {
+
+				long ID = payload.getLong();
+				int count = payload.getInt();
+
+				long[] timestamps = new long[_checkCount(count, payload, 13)];
+				ValueArray dataPoints = _readPoints(payload, timestamps);
+
+				if (opcode == OP_ADD) {
+					VariableTimeseriesEngine.addPoints(ID, timestamps, dataPoints);
+				}
+
+				else if (opcode == OP_MOD) {
+					VariableTimeseriesEngine.modifyPoints(ID, timestamps,
+							dataPoints);
+				}
+
+				else {
+					VariableTimeseriesEngine.upsertPoints(ID, timestamps,
+							dataPoints);
+				}
+
+				reply = _newReply();
+				reply.putInt(count);
+				break;
+			}
+
+			case OP_DEL: {
+
+				long ID = payload.getLong();
+				int count = payload.getInt();
+
+				long[] timestamps = new long[_checkCount(count, payload, 8)];
+				payload.asLongBuffer().get(timestamps);
+
+				VariableTimeseriesEngine.removePoints(ID, timestamps);
+
+				reply = _newReply();
+				reply.putInt(count);
+				break;
+			}
+
+			case OP_GETALL: {
+
+				long ID = payload.getLong();
+
+				reply = _newReply();
+				_writePoints(reply, VariableTimeseriesEngine.getAll(ID));
+				break;
+			}
+
+			case OP_GETRANGE: {
+
+				long ID = payload.getLong();
+				long from = payload.getLong();
+				long to = payload.getLong();
+
+				reply = _newReply();
+				_writePoints(reply, VariableTimeseriesEngine.getBetween(ID,
+						from, to));
+				break;
+			}
+
+			case OP_SIZE: {
+
+				long ID = payload.getLong();
+
+				reply = _newReply();
+				reply.putInt(VariableTimeseriesEngine.size(ID));
+				break;
+			}
+
+			case OP_DEALLOC: {
+
+				long ID = payload.getLong();
+				VariableTimeseriesEngine.deallocate(ID);
+
+				reply = _newReply();
+				break;
+			}
+
+			case OP_GETRES: {
+
+				long ID = payload.getLong();
+				long from = payload.getLong();
+				long to = payload.getLong();
+				Resolution resolution = _readResolution(payload);
+				long parameter = payload.getLong();
+
+				reply = _newReply();
+				_writePoints(reply, VariableTimeseriesEngine.getAtResolution(
+						ID, from, to, resolution, parameter));
+				break;
+			}
+
+			case OP_AGG: {
+
+				long ID = payload.getLong();
+				long from = payload.getLong();
+				long to = payload.getLong();
+				Aggregation aggregation = _readAggregation(payload);
+				double parameter = payload.getDouble();
+
+				String result = VariableTimeseriesEngine.aggregate(ID, from,
+						to, aggregation, parameter);
+
+				// FIRST and LAST are values of the series, the rest are nos.
+				ValueType valueType;
+
+				switch (aggregation) {
+
+				case COUNT:
+					valueType = ValueType.LONG;
+					break;
+
+				case FIRST:
+				case LAST:
+					valueType = VariableTimeseriesEngine.getValueType(ID);
+					break;
+
+				default:
+					valueType = ValueType.DOUBLE;
+					break;
+				}
+
+				reply = _newReply();
+				_putValue(reply, valueType, result);
+				break;
+			}
+
+			case OP_MGET: {
+
+				int count = _checkCount(payload.getInt(), payload, 24);
+				final long[] IDs = new long[count];
+				final long[] froms = new long[count];
+				final long[] tos = new long[count];
+
+				for (int i=0; i<count; i++) {
+					IDs[i] = payload.getLong();
+					froms[i] = payload.getLong();
+					tos[i] = payload.getLong();
+				}
+
+				List<BinaryReply> replies = Batch.run(count,
+						new Batch.Part<BinaryReply>() {
+
+					@Override
+					public BinaryReply run(int index)
+							throws PCacheException, IOException {
+
+						BinaryReply seriesReply = new BinaryReply(false);
+						_writePoints(seriesReply,
+								VariableTimeseriesEngine.getBetween(IDs[index],
+										froms[index], tos[index]));
+						return seriesReply;
+					}
+				});
+
+				reply = _newReply();
+				reply.putInt(count);
+
+				// The chunks of every series are taken over as they are
+				for (BinaryReply seriesReply : replies) {
+					reply.append(seriesReply);
+				}
+
+				break;
+			}
+
+			case OP_MADD: {
+
+				int count = _checkCount(payload.getInt(), payload, 12);
+				final long[] IDs = new long[count];
+				final List<long[]> timestamps = new ArrayList<>(count);
+				final List<ValueArray> dataPoints = new ArrayList<>(count);
+
+				for (int i=0; i<count; i++) {
+
+					IDs[i] = payload.getLong();
+					timestamps.add(new long[_checkCount(payload.getInt(),
+							payload, 13)]);
+					dataPoints.add(_readPoints(payload, timestamps.get(i)));
+				}
+
+				Batch.exceptIfRepeated(IDs);
+
+				// An ERR says which of the series' were added to anyway
+				Batch.runWrites(IDs, new Batch.Part<Void>() {
+
+					@Override
+					public Void run(int index) throws PCacheException {
+						VariableTimeseriesEngine.addPoints(IDs[index],
+								timestamps.get(index), dataPoints.get(index));
+						return null;
+					}
+				});
+
+				int added = 0;
+
+				for (long[] seriesTimestamps : timestamps) {
+					added += seriesTimestamps.length;
+				}
+
+				reply = _newReply();
+				reply.putInt(added);
+				break;
+			}
+
+			default: {
+				throw new PCacheException("Command not supported");
+			}
+
+			}
+
+			String logMessage = _clientAddress
+					+ " ["+DateTime.now().toString("d/m/Y:H:M:s z")+"] "
+					+ "BINARY " + opcode
+					+ " ["+(System.currentTimeMillis() - operationStartTime)/1000.0+"s]";
+
+			_log.info(logMessage);
+
+			if (reply.size() - 1 - HEADER_SIZE > Integer.MAX_VALUE) {
+				return error("Reply is larger than a frame can hold");
+			}
+
+			return reply.frame(STATUS_OK);
+		}
+
+		catch (PCacheException ex) {
+			return error(ex.getMessage());
+		}
+
+		catch (BufferUnderflowException ex) {
+			return error("Frame is shorter than its command needs");
+		}
+
+		catch (IOException ex) {
+			return error(ex.getMessage());
+		}
+	}
+
+	/**
+	 * Read a set of points off the payload. Values that are all DOUBLEs or
+	 * all LONGs are kept as numbers, see ValueArray. Values of more than one
+	 * type are all taken as strings
+	 * @param payload the payload, positioned at the first point
+	 * @param timestamps filled with the timestamps of the points
+	 * @return the values of the points
+	 * @throws PCacheException thrown if a value is of an unknown type
+	 */
+	private static ValueArray _readPoints(ByteBuffer payload,
+			long[] timestamps) throws PCacheException {
+
+		long[] longs = null;
+		double[] doubles = null;
+		String[] strings = null;
+
+		for (int i=0; i<timestamps.length; i++) {
+
+			timestamps[i] = payload.getLong();
+			byte type = payload.get();
+
+			if (type == TYPE_LONG && doubles == null && strings == null) {
+
+				if (longs == null) {
+					longs = new long[timestamps.length];
+				}
+
+				longs[i] = payload.getLong();
+				continue;
+			}
+
+			if (type == TYPE_DOUBLE && longs == null && strings == null) {
+
+				if (doubles == null) {
+					doubles = new double[timestamps.length];
+				}
+
+				doubles[i] = payload.getDouble();
+				continue;
+			}
+
+			// The nos. read so far are written out the way they would have
+			// been had they come in as strings
+			if (strings == null) {
+
+				strings = new String[timestamps.length];
+
+				for (int j=0; j<i; j++) {
+					strings[j] = longs != null ? Long.toString(longs[j])
+							: Double.toString(doubles[j]);
+				}
+			}
+
+			strings[i] = _readValue(payload, type);
+		}
+
+		if (strings != null) {
+			return ValueArray.of(strings);
+		}
+
+		if (longs != null) {
+			return ValueArray.of(longs);
+		}
+
+		if (doubles != null) {
+			return ValueArray.of(doubles);
+		}
+
+		return ValueArray.of(new String[0]);
+	}
+
+	/**
+	 * Read a typed value off the payload as a string
+	 * @param payload the payload, positioned after the type
+	 * @param type the type of the value
+	 * @return the value
+	 * @throws PCacheException thrown if the value is of an unknown type
+	 */
+	private static String _readValue(ByteBuffer payload, byte type)
+			throws PCacheException {
+
+		switch (type) {
+
+		case TYPE_DOUBLE:
+			return Double.toString(payload.getDouble());
+
+		case TYPE_LONG:
+			return Long.toString(payload.getLong());
+
+		case TYPE_BYTES: {
+			int length = payload.getInt();
+			if (length < 0 || length > payload.remaining()) {
+				throw new BufferUnderflowException();
+			}
+			String value = new String(payload.array(),
+					payload.arrayOffset() + payload.position(), length,
+					StandardCharsets.UTF_8);
+			payload.position(payload.position() + length);
+			return value;
+		}
+
+		default:
+			throw new PCacheException("Unknown value type: " + type);
+		}
+	}
+
+	/**
+	 * Write the points of a timeseries into a reply
+	 * @param reply the reply
+	 * @param timeseries the timeseries
+	 * @throws IOException never, the points are written to memory
+	 */
+	private static void _writePoints(final BinaryReply reply,
+			VariableTimeseries timeseries) throws IOException {
+
+		final ValueType valueType = timeseries.getValueType();
+
+		timeseries.read(new CursorReader<Void>() {
+
+			@Override
+			public Void read(TimeseriesCursor cursor) {
+
+				ByteBuffer countField = reply.reserve(4);
+				int count = 0;
+
+				while (cursor.next()) {
+
+					reply.putLong(cursor.timestamp());
+
+					// Numbers go straight from the store, without a string
+					if (valueType == ValueType.LONG) {
+						reply.put(TYPE_LONG);
+						reply.putLong(cursor.longValue());
+					}
+
+					else if (valueType == ValueType.DOUBLE) {
+						reply.put(TYPE_DOUBLE);
+						reply.putDouble(cursor.doubleValue());
+					}
+
+					else {
+						_putValue(reply, valueType, cursor.value());
+					}
+
+					count++;
+				}
+
+				countField.putInt(0, count);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Write a typed value into a reply
+	 * @param reply the reply
+	 * @param valueType the type of the series the value is from. The values
+	 * 			of a LONG or DOUBLE series go as LONG or DOUBLE, the rest as
+	 * 			BYTES
+	 * @param value the value
+	 */
+	private static void _putValue(BinaryReply reply, ValueType valueType,
+			String value) {
+
+		if (valueType == ValueType.LONG) {
+			reply.put(TYPE_LONG);
+			reply.putLong(Long.parseLong(value));
+		}
+
+		else if (valueType == ValueType.DOUBLE) {
+			reply.put(TYPE_DOUBLE);
+			reply.putDouble(Double.parseDouble(value));
+		}
+
+		else {
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+
+			reply.put(TYPE_BYTES);
+			reply.putInt(bytes.length);
+			reply.put(bytes);
+		}
+	}
+
+	/**
+	 * Make sure a count read off a payload isn't larger than what the rest of
+	 * the payload could hold, so that a bad count doesn't allocate a huge
+	 * array. A point takes at least 13 bytes: the timestamp, the type and 
+	 * 4 bytes of value
+	 * @param count the count
+	 * @param payload the payload
+	 * @param minSize the min. no. of bytes each of the counted items takes
+	 * @return the count
+	 */
+	private static int _checkCount(int count, ByteBuffer payload, int minSize) {
+
+		if (count < 0 || count > payload.remaining() / minSize) {
+			throw new BufferUnderflowException();
+		}
+
+		return count;
+	}
+
+	private static StoreType _readStoreType(ByteBuffer payload)
+			throws PCacheException {
+
+		byte storeType = payload.get();
+
+		if (storeType < 0 || storeType >= StoreType.values().length) {
+			throw new PCacheException("Unknown store type: " + storeType);
+		}
+
+		return StoreType.values()[storeType];
+	}
+
+	private static ValueType _readValueType(ByteBuffer payload)
+			throws PCacheException {
+
+		byte valueType = payload.get();
+
+		switch (valueType) {
+
+		case TYPE_DOUBLE:
+			return ValueType.DOUBLE;
+
+		case TYPE_LONG:
+			return ValueType.LONG;
+
+		case TYPE_BYTES:
+			return ValueType.STRING;
+
+		default:
+			throw new PCacheException("Unknown value type: " + valueType);
+		}
+	}
+
+	private static Aggregation _readAggregation(ByteBuffer payload)
+			throws PCacheException {
+
+		byte aggregation = payload.get();
+
+		if (aggregation < 0 || aggregation >= Aggregation.values().length) {
+			throw new PCacheException("Unknown aggregation: " + aggregation);
+		}
+
+		return Aggregation.values()[aggregation];
+	}
+
+	private static Resolution _readResolution(ByteBuffer payload)
+			throws PCacheException {
+
+		byte resolution = payload.get();
+
+		if (resolution < 0 || resolution >= Resolution.values().length) {
+			throw new PCacheException("Unknown resolution: " + resolution);
+		}
+
+		return Resolution.values()[resolution];
+	}
+
+	/**
+	 * @return an empty reply, with room for the frame header
+	 */
+	private static BinaryReply _newReply() {
+		return new BinaryReply(true);
+	}
+
+	/**
+	 * Create an ERR reply
+	 * @param message the error message
+	 * @return the framed reply, ready to be written out
+	 */
+	static BinaryReply error(String message) {
+
+		BinaryReply reply = _newReply();
+		reply.put(String.valueOf(message).getBytes(StandardCharsets.UTF_8));
+		return reply.frame(STATUS_ERR);
+	}
+
+}
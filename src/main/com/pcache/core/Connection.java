@@ -0,0 +1,563 @@
+package main.com.pcache.core;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The state of a single client connection on the Server.
+ *
+ * The selector thread feeds the bytes read off the channel into the
+ * connection, which cuts them into command lines. The commands of one
+ * connection are handled one after the other on a worker thread, so replies
+ * come back in the order the commands were sent even when they are
+ * pipelined. Replies are queued up as buffers which the selector thread
+ * writes out whenever the channel can take them.
+ *
+ * A command that starts with BinaryRequestHandler.MAGIC is a binary frame
+ * rather than a line, see BinaryRequestHandler. Both kinds can be mixed on
+ * one connection.
+ *
+ * A line longer than _MAX_LINE_SIZE is answered with an ERR and the
+ * connection is closed, as is one whose command fails in a way the handlers
+ * don't turn into an ERR themselves. Either way there is no telling what
+ * the client meant to send next.
+ *
+ * A reply is produced without waiting on the client, since it may be
+ * written while a series is locked. Once more than _MAX_PENDING_OUTPUT is
+ * waiting to be written, the worker stops taking commands and lets go of
+ * the connection instead, and the selector thread hands it back to a worker
+ * once the client has taken enough of it, see _stall(). The points of the
+ * series' a text command reads are written a piece at a time, with the
+ * same check between pieces, see RequestHandler.writeReply(). So however
+ * slow a client is, what waits for it is about _MAX_PENDING_OUTPUT, a piece
+ * or a binary reply, and no worker waits with it.
+ */
+public class Connection {
+
+	private static final int _INITIAL_LINE_SIZE = 256;
+
+	// The longest line taken, large enough for an ALLOC of a few hundred
+	// thousand points. A line buffer grown past _KEPT_LINE_SIZE is let go of
+	// once its line is read
+	private static final int _MAX_LINE_SIZE = 16 * 1024 * 1024;
+	private static final int _KEPT_LINE_SIZE = 64 * 1024;
+
+	// Queued up in place of a line that was too long
+	private static final Object _LINE_TOO_LONG = new Object();
+
+	// The payload of a binary frame starts out this large and is doubled as
+	// its bytes come in, so a frame costs what was sent of it rather than
+	// what its header claims
+	private static final int _INITIAL_PAYLOAD_SIZE = 64 * 1024;
+
+	private static final Logger _log = Logger.getLogger(
+			Connection.class.getName());
+
+	// The worker doesn't take the next command, or write the next piece of
+	// a reply, while this much output is waiting to be written
+	private static final long _MAX_PENDING_OUTPUT = 1024 * 1024;
+
+	private final SocketChannel _channel;
+	private final SelectionKey _key;
+	private final Server _server;
+	private final RequestHandler _handler;
+	private final BinaryRequestHandler _binaryHandler;
+
+	// The line that is being read. Only touched by the selector thread
+	private byte[] _line;
+	private int _lineLength;
+
+	// The binary frame that is being read, null while reading lines. Only 
+	// touched by the selector thread
+	private ByteBuffer _frameHeader;
+	private ByteBuffer _framePayload;
+
+	// Commands read but not handled yet. Either a String (a text command) or
+	// a BinaryFrame
+	private final Queue<Object> _commands;
+
+	// Whether a worker is handling (or about to handle) the commands
+	private final AtomicBoolean _scheduled;
+
+	// Set once a worker lets go of the commands because too much output is
+	// waiting, for the selector thread to hand them back once it is written
+	private final AtomicBoolean _stalled;
+
+	// Replies waiting to be written, and their size in bytes
+	private final Queue<ByteBuffer> _output;
+	private final AtomicLong _pendingOutput;
+	private final PrintWriter _out;
+
+	// Set once the client quits or closes its end. No more commands are taken
+	private volatile boolean _closing;
+
+	// Set once the client quits. Only touched by the worker on the commands
+	private boolean _quit;
+
+	public Connection(SocketChannel channel, SelectionKey key, Server server) {
+
+		this._channel = channel;
+		this._key = key;
+		this._server = server;
+		String clientAddress = channel.socket().getInetAddress().toString();
+		this._handler = new RequestHandler(clientAddress);
+		this._binaryHandler = new BinaryRequestHandler(clientAddress);
+
+		this._line = new byte[_INITIAL_LINE_SIZE];
+		this._lineLength = 0;
+
+		this._commands = new ConcurrentLinkedQueue<>();
+		this._scheduled = new AtomicBoolean(false);
+		this._stalled = new AtomicBoolean(false);
+
+		this._output = new ConcurrentLinkedQueue<>();
+		this._pendingOutput = new AtomicLong(0);
+		this._out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(
+				new ConnectionOutputStream(this), StandardCharsets.UTF_8)));
+
+		this._closing = false;
+		this._quit = false;
+	}
+
+	/**
+	 * @return the selection key of the connection's channel
+	 */
+	public SelectionKey getKey() {
+		return this._key;
+	}
+
+	/**
+	 * Take in bytes read off the channel. Every complete line is queued up as
+	 * a command. Called from the selector thread
+	 * @param buffer the bytes read, ready to be read from
+	 */
+	public void onRead(ByteBuffer buffer) {
+
+		boolean commandsQueued = false;
+
+		while (buffer.hasRemaining()) {
+
+			if (this._frameHeader != null) {
+				commandsQueued |= _readFrame(buffer);
+				continue;
+			}
+
+			byte b = buffer.get();
+
+			// A binary frame can only start where a line would
+			if (b == BinaryRequestHandler.MAGIC && this._lineLength == 0) {
+				this._frameHeader = ByteBuffer.allocate(
+						BinaryRequestHandler.HEADER_SIZE);
+				continue;
+			}
+
+			if (b == '\n') {
+
+				// Strip the carriage return of a CRLF
+				int length = this._lineLength;
+				if (length > 0 && this._line[length - 1] == '\r') {
+					length--;
+				}
+
+				if (!this._closing) {
+					this._commands.add(new String(this._line, 0, length,
+							StandardCharsets.UTF_8));
+					commandsQueued = true;
+				}
+
+				this._lineLength = 0;
+
+				if (this._line.length > _KEPT_LINE_SIZE) {
+					this._line = new byte[_INITIAL_LINE_SIZE];
+				}
+
+				continue;
+			}
+
+			if (this._lineLength == _MAX_LINE_SIZE) {
+
+				// Answer it and take nothing more from this client
+				if (!this._closing) {
+					this._commands.add(_LINE_TOO_LONG);
+					commandsQueued = true;
+				}
+
+				this._closing = true;
+				this._line = new byte[_INITIAL_LINE_SIZE];
+				this._lineLength = 0;
+				buffer.position(buffer.limit());
+				break;
+			}
+
+			if (this._lineLength == this._line.length) {
+				this._line = Arrays.copyOf(this._line,
+						Math.min(this._line.length * 2, _MAX_LINE_SIZE));
+			}
+
+			this._line[this._lineLength++] = b;
+		}
+
+		if (commandsQueued) {
+			_schedule();
+		}
+	}
+
+	/**
+	 * Read as much of the binary frame as there is in the buffer
+	 * @param buffer the bytes read
+	 * @return true if a complete frame was queued up as a command
+	 */
+	private boolean _readFrame(ByteBuffer buffer) {
+
+		if (this._framePayload == null) {
+
+			_copy(buffer, this._frameHeader);
+
+			if (this._frameHeader.hasRemaining()) {
+				return false;
+			}
+
+			int length = this._frameHeader.getInt(1);
+
+			// There is no telling where the next command starts after a bad
+			// length. Answer it and take nothing more from this client
+			if (length < 0 || length > BinaryRequestHandler.MAX_PAYLOAD_SIZE) {
+				this._commands.add(new BinaryFrame(this._frameHeader.get(0), 
+						null));
+				this._closing = true;
+				this._frameHeader = null;
+				buffer.position(buffer.limit());
+				return true;
+			}
+
+			this._framePayload = ByteBuffer.allocate(Math.min(length,
+					_INITIAL_PAYLOAD_SIZE));
+		}
+
+		_copy(buffer, this._framePayload);
+
+		int length = this._frameHeader.getInt(1);
+
+		while (!this._framePayload.hasRemaining()
+				&& this._framePayload.capacity() < length) {
+
+			ByteBuffer grown = ByteBuffer.allocate((int) Math.min(length,
+					this._framePayload.capacity() * 2L));
+
+			this._framePayload.flip();
+			grown.put(this._framePayload);
+			this._framePayload = grown;
+
+			_copy(buffer, this._framePayload);
+		}
+
+		if (this._framePayload.hasRemaining()) {
+			return false;
+		}
+
+		this._framePayload.flip();
+
+		if (!this._closing) {
+			this._commands.add(new BinaryFrame(this._frameHeader.get(0), 
+					this._framePayload));
+		}
+
+		this._frameHeader = null;
+		this._framePayload = null;
+		return true;
+	}
+
+	/**
+	 * Copy as many bytes as fit from one buffer to another
+	 * @param from the buffer to copy from
+	 * @param to the buffer to copy to
+	 */
+	private static void _copy(ByteBuffer from, ByteBuffer to) {
+
+		int toCopy = Math.min(from.remaining(), to.remaining());
+
+		ByteBuffer slice = from.slice();
+		slice.limit(toCopy);
+		to.put(slice);
+
+		from.position(from.position() + toCopy);
+	}
+
+	/**
+	 * The client closed its end. Commands already read are still handled and
+	 * their replies written. Called from the selector thread
+	 */
+	public void onEndOfInput() {
+		this._closing = true;
+	}
+
+	/**
+	 * Write out as much of the queued replies as the channel takes. Called
+	 * from the selector thread
+	 * @return true if everything queued was written
+	 * @throws IOException thrown if the channel can't be written to
+	 */
+	public boolean writeOutput() throws IOException {
+
+		ByteBuffer buffer;
+
+		while ((buffer = this._output.peek()) != null) {
+
+			this._channel.write(buffer);
+
+			if (buffer.hasRemaining()) {
+				return false;
+			}
+
+			this._output.poll();
+
+			// Hand the commands back to a worker if one let go of them
+			if (this._pendingOutput.addAndGet(-buffer.limit()) 
+					<= _MAX_PENDING_OUTPUT 
+					&& this._stalled.compareAndSet(true, false)) {
+				_schedule();
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Check if the connection can be closed, i.e. the client is gone or has
+	 * quit and every reply owed to it has been written
+	 * @return true if the connection is done with
+	 */
+	public boolean isDone() {
+		return this._closing && !this._scheduled.get()
+				&& this._commands.isEmpty() && this._output.isEmpty();
+	}
+
+	/**
+	 * Queue a reply buffer to be written out. Called by the worker
+	 * @param buffer the buffer, ready to be read from
+	 */
+	void enqueueOutput(ByteBuffer buffer) {
+
+		// Nobody left to write to
+		if (!this._channel.isOpen()) {
+			return;
+		}
+
+		this._pendingOutput.addAndGet(buffer.remaining());
+		this._output.add(buffer);
+		this._server.requestWrite(this);
+	}
+
+	/**
+	 * Queue the chunks of a binary reply to be written out
+	 * @param reply the reply, framed
+	 */
+	void enqueueOutput(BinaryReply reply) {
+
+		for (ByteBuffer chunk : reply.getChunks()) {
+			enqueueOutput(chunk);
+		}
+	}
+
+	/**
+	 * Check if the client has too much output waiting for it to take on
+	 * more. If it has, the connection is marked stalled for the selector
+	 * thread to schedule it again once enough of it is written. Called by
+	 * the worker between commands and between the pieces of a reply
+	 * @return true if the worker has to let go of the commands
+	 */
+	private boolean _stall() {
+
+		if (this._pendingOutput.get() <= _MAX_PENDING_OUTPUT) {
+			return false;
+		}
+
+		// What is buffered has to go out too for the output to drain
+		this._out.flush();
+		this._stalled.set(true);
+
+		// The output may have drained before the mark was there to be seen
+		return this._pendingOutput.get() > _MAX_PENDING_OUTPUT 
+				|| !this._stalled.compareAndSet(true, false);
+	}
+
+	/**
+	 * Hand the queued commands to a worker unless one is already on them
+	 */
+	private void _schedule() {
+
+		if (this._scheduled.compareAndSet(false, true)) {
+			this._server.execute(_drain);
+		}
+	}
+
+	/**
+	 * Handles the queued commands in order. Only one of these runs per
+	 * connection at any time
+	 */
+	private final Runnable _drain = new Runnable() {
+
+		@Override
+		public void run() {
+
+			try {
+
+				do {
+
+					try {
+
+						// Not while a reply is being written, a series may be
+						// locked then
+						while (!_stall()) {
+
+							if (_handler.isReplying()) {
+								_writeReply();
+								continue;
+							}
+
+							Object command = _commands.poll();
+
+							if (command == null) {
+								break;
+							}
+
+							// Anything pipelined after a QUIT is dropped
+							if (_quit || !_channel.isOpen()) {
+								continue;
+							}
+
+							_handle(command);
+						}
+
+						// Only flush once there are no more pipelined commands
+						_out.flush();
+					}
+
+					finally {
+						_scheduled.set(false);
+					}
+
+				} while (!_stalled.get() 
+						&& (!_commands.isEmpty() || _handler.isReplying())
+						&& _scheduled.compareAndSet(false, true));
+			}
+
+			finally {
+				// Let the selector thread know, it may have a connection to
+				// close
+				_server.requestWrite(Connection.this);
+			}
+		}
+	};
+
+	/**
+	 * Handle one command. A failure the handlers don't answer themselves is
+	 * answered with an ERR, and the connection is closed after it since
+	 * part of a reply may have gone out already
+	 * @param command a String, a BinaryFrame or _LINE_TOO_LONG
+	 */
+	private void _handle(Object command) {
+
+		boolean binary = command instanceof BinaryFrame;
+
+		try {
+
+			if (command == _LINE_TOO_LONG) {
+				this._out.println("ERR: Line is longer than " + _MAX_LINE_SIZE 
+						+ " bytes");
+				this._quit = true;
+				return;
+			}
+
+			if (binary) {
+
+				BinaryFrame frame = (BinaryFrame) command;
+
+				// Text replies before this one have to go out first
+				this._out.flush();
+				enqueueOutput(this._binaryHandler.handleRequest(frame.opcode, 
+						frame.payload));
+				return;
+			}
+
+			if (!this._handler.handleRequest((String) command, this._out)) {
+				this._quit = true;
+				this._closing = true;
+			}
+		}
+
+		catch (RuntimeException ex) {
+
+			_log.error("Command failed, closing the connection", ex);
+
+			if (binary) {
+				enqueueOutput(BinaryRequestHandler.error("Internal error"));
+			}
+
+			else {
+				this._out.println("ERR: Internal error");
+			}
+
+			this._quit = true;
+			this._closing = true;
+		}
+	}
+
+	/**
+	 * Write the next piece of the reply of a text command. A failure is
+	 * handled the way _handle() handles one, though part of the reply is out
+	 * already, so the client can tell from the ERR that follows it
+	 */
+	private void _writeReply() {
+
+		try {
+
+			// Nobody left to write to
+			if (!this._channel.isOpen()) {
+				this._handler.dropReply();
+				return;
+			}
+
+			this._handler.writeReply(this._out);
+		}
+
+		catch (IOException | RuntimeException ex) {
+
+			_log.error("Reply failed, closing the connection", ex);
+
+			this._handler.dropReply();
+			this._out.println();
+			this._out.println("ERR: Internal error");
+			this._quit = true;
+			this._closing = true;
+		}
+	}
+
+	/**
+	 * A binary command that has been read completely
+	 */
+	private static class BinaryFrame {
+
+		final byte opcode;
+		final ByteBuffer payload;
+
+		BinaryFrame(byte opcode, ByteBuffer payload) {
+			this.opcode = opcode;
+			this.payload = payload;
+		}
+	}
+
+}
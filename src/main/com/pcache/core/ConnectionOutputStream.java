@@ -0,0 +1,75 @@
+package main.com.pcache.core;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * The stream replies to a client are written to.
+ *
+ * Bytes are gathered into fixed size chunks. A chunk is handed to the
+ * connection to be written out as soon as it fills up, so a large reply
+ * starts going out before the whole of it is produced. flush() hands over
+ * whatever is gathered so far.
+ *
+ * Handing a chunk over never waits on the client, since the reply may be
+ * written while a series is locked. The connection bounds how much of it
+ * can pile up by not taking on more while too much is, see Connection.
+ */
+public class ConnectionOutputStream extends OutputStream {
+
+	private static final int _CHUNK_SIZE = 8 * 1024;
+
+	private final Connection _connection;
+	private ByteBuffer _chunk;
+
+	public ConnectionOutputStream(Connection connection) {
+		this._connection = connection;
+		this._chunk = ByteBuffer.allocate(_CHUNK_SIZE);
+	}
+
+	@Override
+	public void write(int b) {
+
+		if (!this._chunk.hasRemaining()) {
+			_handOver();
+		}
+
+		this._chunk.put((byte) b);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+
+		while (len > 0) {
+
+			if (!this._chunk.hasRemaining()) {
+				_handOver();
+			}
+
+			int toCopy = Math.min(len, this._chunk.remaining());
+			this._chunk.put(b, off, toCopy);
+
+			off += toCopy;
+			len -= toCopy;
+		}
+	}
+
+	@Override
+	public void flush() {
+
+		if (this._chunk.position() > 0) {
+			_handOver();
+		}
+	}
+
+	/**
+	 * Hand the current chunk to the connection and start a new one
+	 */
+	private void _handOver() {
+
+		this._chunk.flip();
+		this._connection.enqueueOutput(this._chunk);
+		this._chunk = ByteBuffer.allocate(_CHUNK_SIZE);
+	}
+
+}
@@ -0,0 +1,213 @@
+package main.com.pcache.core;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import main.com.pcache.DO.timeseries.VariableTimeseries;
+import main.com.pcache.DO.timeseries.store.CursorReader;
+import main.com.pcache.DO.timeseries.store.TimeseriesCursor;
+import main.com.pcache.utils.Commons;
+import main.com.pcache.utils.CountingWriter;
+
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * The JSON of ranges of one or more series, as a text reply written out a
+ * piece at a time.
+ *
+ * A range can be far larger than what a client takes in before it is read
+ * again. So rather than being written out whole while its series is locked,
+ * _POINTS_PER_PIECE of its points are written at a time, each piece under a
+ * hold of the lock of its own, and the Connection only asks for the next
+ * piece once the client has taken most of what was written. The reply holds
+ * on to a piece at most, whatever the size of the range. The range is read
+ * off the series itself, from the point after the last one written, so it
+ * doesn't matter what the series is moved to in between. A series written to
+ * in between is seen by each piece as it is then.
+ *
+ * The JSON of a range is written the same way VariableTimeseries.writeJson()
+ * writes it, that of several ranges as an object with a member for each.
+ */
+class JsonReply {
+
+	private static final int _POINTS_PER_PIECE = 4096;
+
+	private final CountingWriter _out;
+	private final JsonWriter _json;
+
+	// Whether the ranges are members of an object, or there is only one
+	private final boolean _named;
+
+	private final List<Range> _ranges;
+	private final int _precision;
+
+	// The range being written, and whether its object was begun
+	private int _range;
+	private boolean _begun;
+
+	/**
+	 * Create a reply with no ranges in it yet
+	 * @param out where the reply is written to
+	 * @param named true if the ranges are to be members of an object, each
+	 * 			under its name. false if there is to be only one
+	 * @param precision the max. no. of decimals of the values,
+	 * 			VariableTimeseries.FULL_PRECISION to write them as they are
+	 */
+	JsonReply(Writer out, boolean named, int precision) {
+
+		this._out = new CountingWriter(out);
+
+		// Written the same way Gson writes out a map
+		this._json = new JsonWriter(this._out);
+		this._json.setHtmlSafe(true);
+		this._json.setSerializeNulls(false);
+
+		this._named = named;
+		this._ranges = new ArrayList<>();
+		this._precision = precision;
+		this._range = 0;
+		this._begun = false;
+	}
+
+	/**
+	 * Add a range to be written after those added before it
+	 * @param name the name of its member, null if the ranges aren't named
+	 * @param series the series
+	 * @param from the timestamp to start from, in miliseconds
+	 * @param to the timestamp to end at, in miliseconds
+	 */
+	void add(String name, VariableTimeseries series, long from, long to) {
+		this._ranges.add(new Range(name, series, from, to));
+	}
+
+	/**
+	 * @return the no. of bytes written so far, as encoded in UTF-8
+	 */
+	long getBytesWritten() {
+		return this._out.getBytesWritten();
+	}
+
+	/**
+	 * Write the next piece of the reply
+	 * @return true once the whole of it is written
+	 * @throws IOException thrown if the writer fails
+	 */
+	boolean writePiece() throws IOException {
+
+		if (!this._begun) {
+
+			if (this._named) {
+				this._json.beginObject();
+			}
+
+			this._begun = true;
+		}
+
+		int written = 0;
+
+		while (this._range < this._ranges.size()
+				&& written < _POINTS_PER_PIECE) {
+
+			Range range = this._ranges.get(this._range);
+
+			if (!range.begun) {
+
+				if (range.name != null) {
+					this._json.name(range.name);
+				}
+
+				this._json.beginObject();
+				range.begun = true;
+			}
+
+			int points = range.series.read(range.from, range.to,
+					new Piece(range, _POINTS_PER_PIECE - written));
+
+			written += points;
+
+			// Every point up to the end was written
+			if (points == 0 || range.from > range.to) {
+				this._json.endObject();
+				this._range++;
+			}
+		}
+
+		if (this._range < this._ranges.size()) {
+			return false;
+		}
+
+		if (this._named) {
+			this._json.endObject();
+		}
+
+		return true;
+	}
+
+	/**
+	 * Writes up to a no. of the points of a range, and moves the range on
+	 * past them
+	 */
+	private class Piece implements CursorReader<Integer> {
+
+		private final Range _range;
+		private final int _maxPoints;
+
+		Piece(Range range, int maxPoints) {
+			this._range = range;
+			this._maxPoints = maxPoints;
+		}
+
+		@Override
+		public Integer read(TimeseriesCursor cursor) throws IOException {
+
+			int points = 0;
+
+			while (points < this._maxPoints && cursor.next()) {
+
+				_json.name(cursor.timestampISO8601());
+				_json.value(_precision == VariableTimeseries.FULL_PRECISION
+						? cursor.value()
+						: Commons.roundDecimal(cursor.value(), _precision));
+
+				long timestamp = cursor.timestamp();
+				points++;
+
+				// Nothing can come after the last timestamp there is
+				if (timestamp == Long.MAX_VALUE) {
+					this._range.to = Long.MIN_VALUE;
+					break;
+				}
+
+				this._range.from = timestamp + 1;
+			}
+
+			return points;
+		}
+	}
+
+	/**
+	 * A range of a series, and how far into it the reply got
+	 */
+	private static class Range {
+
+		final String name;
+		final VariableTimeseries series;
+
+		// The range that is left to write
+		long from;
+		long to;
+
+		boolean begun;
+
+		Range(String name, VariableTimeseries series, long from, long to) {
+			this.name = name;
+			this.series = series;
+			this.from = from;
+			this.to = to;
+			this.begun = false;
+		}
+	}
+
+}
@@ -1,64 +1,72 @@
 package main.com.pcache.core;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.PrintWriter;
-import java.net.Socket;
 import java.util.Arrays;
 import java.util.List;
 
+import main.com.pcache.DO.timeseries.Retention;
+import main.com.pcache.DO.timeseries.VariableTimeseries;
+import main.com.pcache.DO.timeseries.aggregation.Aggregation;
+import main.com.pcache.DO.timeseries.resolution.Resolution;
+import main.com.pcache.DO.timeseries.store.Adjustment;
+import main.com.pcache.DO.timeseries.store.SegmentAllocator;
+import main.com.pcache.DO.timeseries.store.StoreType;
+import main.com.pcache.DO.timeseries.store.ValueType;
+import main.com.pcache.engines.Batch;
 import main.com.pcache.engines.VariableTimeseriesEngine;
 import main.com.pcache.exceptions.PCacheException;
+import main.com.pcache.utils.Commons;
 
 import org.apache.log4j.Logger;
-import org.apache.log4j.PropertyConfigurator;
 import org.joda.time.DateTime;
 
 
-public class RequestHandler implements Runnable {
+/**
+ * Handles the commands of a single client connection.
+ * 
+ * The connection is kept open and commands are handed in one line at a time 
+ * until the client sends QUIT or closes its end. Clients are free to pipeline
+ * i.e. send several commands without waiting for the replies. The Connection
+ * makes sure that the commands of one client are handled one after the other 
+ * so the replies are written in the order the commands came in.
+ */
+public class RequestHandler {
 
-	private Socket _socket;
-	Logger _log;
+	private static final Logger _log = Logger.getLogger(
+			RequestHandler.class.getName());
 
-	public RequestHandler(Socket socket) {
-		this._socket = socket;
-		
-		PropertyConfigurator.configure("properties/log4j.properties");
-		_log = Logger.getLogger(RequestHandler.class.getName());
-	}
-
-	public void run() {
-
-		try ( 
-				PrintWriter out = new PrintWriter(_socket.getOutputStream(), true);
-
-				BufferedReader in = new BufferedReader(new InputStreamReader(
-						_socket.getInputStream())); 
-		) {
-
-			String line = in.readLine();
-
-			if (line == null) {
-				out.println("ERR: No command to run");
-				_socket.close();
-				return;
-			}
+	private String _clientAddress;
 
-			handleRequest(line, out);
-
-		} catch (IOException e) {
-			e.printStackTrace();
-		} 
+	// The reply of the last command if it is still being written, with what
+	// it is logged as once it is
+	private JsonReply _reply;
+	private String _replyCommand;
+	private long _replyStartTime;
 
+	public RequestHandler(String clientAddress) {
+		this._clientAddress = clientAddress;
 	}
 
-	private void handleRequest(String line, PrintWriter out)
+	/**
+	 * Handle one command, writing its reply out. The reply of a command that
+	 * reads the points of series' is only begun, it is written by
+	 * writeReply()
+	 * @param line the command line as sent by the client
+	 * @param out where the reply is written to
+	 * @return false if the client asked for the connection to be closed
+	 */
+	public boolean handleRequest(String line, PrintWriter out)
 	{
 
+		if (line.trim().equalsIgnoreCase("QUIT")) {
+			out.println("BYE");
+			return false;
+		}
+
 		String[] tokens = line.split(" ");
 		long operationStartTime = 0L;
-		long operationEndTime = 0L;
+		long bytesWritten = 0L;
 
 		try {
 
@@ -83,11 +91,149 @@ public class RequestHandler implements Runnable {
 				break;
 			}
 
-			case "ALLOC": {
+			case "STORES": {
+
+				// The no. of series' held in each kind of store
+				int[] counts = VariableTimeseriesEngine.countByStoreType();
+				StringBuilder stores = new StringBuilder();
+
+				for (StoreType storeType : StoreType.values()) {
+
+					if (storeType == StoreType.AUTO) {
+						continue;
+					}
+
+					if (stores.length() > 0) {
+						stores.append(' ');
+					}
+
+					stores.append(storeType).append(':')
+							.append(counts[storeType.ordinal()]);
+				}
+
+				out.println(stores);
+
+				break;
+			}
+
+			case "MEMORY": {
+
+				// Bytes of the heap held by the series', bytes of segments
+				// taken off it, the budget for both (0 for no limit) and the
+				// no. of series' spilled off the heap
+				out.println("used:" + VariableTimeseriesEngine.heapSize()
+						+ " offheap:" + SegmentAllocator.getAllocatedBytes()
+						+ " budget:" + VariableTimeseriesEngine.getMemoryBudget()
+						+ " spilled:" + VariableTimeseriesEngine.countSpilled());
+
+				break;
+			}
+
+			case "STORE": {
+
+				if (tokens.length != 2) {
+					throw new PCacheException("STORE takes 1 argument. " +
+							"Usage: STORE <ID>");
+				}
+
+				long ID = Long.parseLong(tokens[1]);
+
+				StoreType storeType = VariableTimeseriesEngine.getStoreType(ID);
+				ValueType valueType = VariableTimeseriesEngine.getValueType(ID);
+
+				out.println((VariableTimeseriesEngine.isAdaptive(ID) 
+						? storeType + " " + StoreType.AUTO : storeType) 
+						+ " " + valueType);
+
+				break;
+			}
+
+			case "ROLLUP": {
+
+				if (tokens.length != 2 && tokens.length != 3) {
+					throw new PCacheException("ROLLUP takes 1 or 2 arguments. " +
+							"Usage: ROLLUP <ID> [<WIDTHS>|NONE]");
+				}
+
+				long ID = Long.parseLong(tokens[1]);
+
+				if (tokens.length == 3) {
+
+					String[] widthsList = tokens[2].equalsIgnoreCase("NONE")
+							? new String[0] : tokens[2].split(",");
+					long[] widths = new long[widthsList.length];
+
+					for (int i=0; i<widths.length; i++) {
+						widths[i] = Commons.parseDuration(widthsList[i]);
+					}
+
+					VariableTimeseriesEngine.setRollups(ID, widths);
+				}
+
+				long[] widths = VariableTimeseriesEngine.getRollups(ID);
+				StringBuilder reply = new StringBuilder();
+
+				for (long width : widths) {
+					reply.append(reply.length() == 0 ? "" : ",").append(width);
+				}
+
+				out.println(widths.length == 0 ? "NONE" : reply);
+
+				break;
+			}
+
+			case "RETENTION": {
+
+				if (tokens.length != 2 && tokens.length != 4) {
+					throw new PCacheException("RETENTION takes 1 or 3 " +
+							"arguments. Usage: RETENTION <ID> " +
+							"[<MAXAGE>|NONE <MAXPOINTS>|NONE]");
+				}
+
+				long ID = Long.parseLong(tokens[1]);
+
+				if (tokens.length == 4) {
+
+					long maxAge = tokens[2].equalsIgnoreCase("NONE") ? 0
+							: Commons.parseDuration(tokens[2]);
+					int maxPoints = tokens[3].equalsIgnoreCase("NONE") ? 0
+							: Integer.parseInt(tokens[3]);
+
+					VariableTimeseriesEngine.setRetention(ID, maxAge, maxPoints);
+				}
+
+				out.println(_formatRetention(
+						VariableTimeseriesEngine.getRetention(ID)));
+
+				break;
+			}
+
+			case "EXPIRE": {
 
 				if (tokens.length != 3) {
-					throw new PCacheException("ALLOCATE takes 2 arguments. " +
-							"Usage: ALLOCATE <TIMESTAMPS> <DATAPOINTS>");
+					throw new PCacheException("EXPIRE takes 2 arguments. " +
+							"Usage: EXPIRE <ID> <TTL>|NONE");
+				}
+
+				long ID = Long.parseLong(tokens[1]);
+
+				VariableTimeseriesEngine.expire(ID,
+						tokens[2].equalsIgnoreCase("NONE") ? 0
+								: Commons.parseDuration(tokens[2]));
+
+				out.println(_formatRetention(
+						VariableTimeseriesEngine.getRetention(ID)));
+
+				break;
+			}
+
+			case "ALLOC": {
+
+				if (tokens.length < 3 || tokens.length > 5) {
+					throw new PCacheException("ALLOCATE takes 2 to 4 arguments. " +
+							"Usage: ALLOCATE <TIMESTAMPS> <DATAPOINTS> " +
+							"[TREEMAP|COLUMNAR|SEGMENT|REGULAR|AUTO] " +
+							"[STRING|LONG|DOUBLE]");
 				}
 
 				String timestampsList = tokens[1];
@@ -98,8 +244,39 @@ public class RequestHandler implements Runnable {
 				List<String> dataPoints = Arrays.asList(dataPointsList
 						.split(","));
 
+				StoreType storeType = StoreType.TREEMAP;
+				if (tokens.length >= 4) {
+					storeType = StoreType.fromString(tokens[3]);
+				}
+
+				ValueType valueType = ValueType.STRING;
+				if (tokens.length == 5) {
+					valueType = ValueType.fromString(tokens[4]);
+				}
+
 				long ID = VariableTimeseriesEngine.allocate(timestamps, 
-						dataPoints);
+						dataPoints, storeType, valueType);
+				out.println(ID);
+
+				break;
+			}
+			
+			case "ALLOCREG": {
+
+				if (tokens.length != 4) {
+					throw new PCacheException("ALLOCREG takes 3 arguments. " +
+							"Usage: ALLOCREG <START TIMESTAMP> <STEP> <DATAPOINTS>");
+				}
+
+				// i.e. 60000 or 1m
+				long step = Commons.parseDuration(tokens[2]);
+
+				// Keep the trailing gaps
+				List<String> dataPoints = Arrays.asList(tokens[3].trim()
+						.split(",", -1));
+
+				long ID = VariableTimeseriesEngine.allocateRegular(
+						tokens[1].trim(), step, dataPoints);
 				out.println(ID);
 
 				break;
@@ -138,44 +315,209 @@ public class RequestHandler implements Runnable {
 			
 			case "GETALL": {
 				
-				if (tokens.length != 2) {
-					throw new PCacheException("GETALL takes 1 argument. " +
-							"Usage: GETALL <ID>");
+				if (tokens.length != 2 && tokens.length != 3) {
+					throw new PCacheException("GETALL takes 1 or 2 arguments. " +
+							"Usage: GETALL <ID> [PRECISION]");
 				}
 				
 				long ID = Long.parseLong(tokens[1]);
+				int precision = _parsePrecision(tokens, 2);
 				
-				out.println(VariableTimeseriesEngine.getAll(ID).toJson());
+				VariableTimeseries ts = VariableTimeseriesEngine.getAll(ID);
+				
+				_reply = new JsonReply(out, false, precision);
+				_reply.add(null, ts, Long.MIN_VALUE, Long.MAX_VALUE);
 				
 				break;
 			}
 			
 			case "GETFROM": {
 				
-				if (tokens.length != 3) {
-					throw new PCacheException("GETFROM takes 2 arguments. " +
-							"Usage: GETFROM <ID> <FROM TIMESTAMP>");
+				if (tokens.length != 3 && tokens.length != 4) {
+					throw new PCacheException("GETFROM takes 2 or 3 arguments. " +
+							"Usage: GETFROM <ID> <FROM TIMESTAMP> [PRECISION]");
 				}
 				
 				long ID = Long.parseLong(tokens[1]);
-				String timestampFrom = tokens[2].trim();
+				long timestampFrom = Commons.convertISO8601toMilis(tokens[2].trim());
+				int precision = _parsePrecision(tokens, 3);
 				
-				out.println(VariableTimeseriesEngine.getFrom(ID, timestampFrom).toJson());
+				VariableTimeseries ts = VariableTimeseriesEngine.getAll(ID);
+				long timestampTo = ts.getRangeFromEnd(timestampFrom);
+				
+				_reply = new JsonReply(out, false, precision);
+				_reply.add(null, ts, timestampFrom, timestampTo);
 				
 				break;
 			}
 			
 			case "GETTO": {
 				
-				if (tokens.length != 3) {
-					throw new PCacheException("GETTO takes 2 arguments. " +
-							"Usage: GETTO <ID> <TO TIMESTAMP>");
+				if (tokens.length != 3 && tokens.length != 4) {
+					throw new PCacheException("GETTO takes 2 or 3 arguments. " +
+							"Usage: GETTO <ID> <TO TIMESTAMP> [PRECISION]");
+				}
+				
+				long ID = Long.parseLong(tokens[1]);
+				long timestampTo = Commons.convertISO8601toMilis(tokens[2].trim());
+				int precision = _parsePrecision(tokens, 3);
+				
+				VariableTimeseries ts = VariableTimeseriesEngine.getAll(ID);
+				long timestampFrom = ts.getRangeToStart(timestampTo);
+				
+				_reply = new JsonReply(out, false, precision);
+				_reply.add(null, ts, timestampFrom, timestampTo);
+				
+				break;
+			}
+			
+			case "GETRES": {
+				
+				if (tokens.length != 5 && tokens.length != 6) {
+					throw new PCacheException("GETRES takes 4 or 5 arguments. " +
+							"Usage: GETRES <ID> <FROM TIMESTAMP> <TO TIMESTAMP> " +
+							"<N|BUCKET> [NTH|FIRST|LAST|MIN|MAX|AVG|LTTB]");
+				}
+				
+				long ID = Long.parseLong(tokens[1]);
+				long timestampFrom = Commons.convertISO8601toMilis(tokens[2].trim());
+				long timestampTo = Commons.convertISO8601toMilis(tokens[3].trim());
+				
+				Resolution resolution = Resolution.NTH;
+				if (tokens.length == 6) {
+					resolution = Resolution.fromString(tokens[5]);
+				}
+				
+				long parameter = resolution.parseParameter(tokens[4]);
+				
+				bytesWritten = VariableTimeseriesEngine.getAtResolution(ID, 
+						timestampFrom, timestampTo, resolution, parameter)
+						.writeJson(out);
+				out.println();
+				
+				break;
+			}
+			
+			case "AGG": {
+				
+				if (tokens.length != 5 && tokens.length != 6) {
+					throw new PCacheException("AGG takes 4 or 5 arguments. " +
+							"Usage: AGG <ID> <FROM TIMESTAMP> <TO TIMESTAMP> " +
+							"<COUNT|SUM|MIN|MAX|MEAN|STDDEV|FIRST|LAST|" +
+							"PERCENTILE> [P]");
 				}
 				
 				long ID = Long.parseLong(tokens[1]);
-				String timestampFrom = tokens[2].trim();
+				long timestampFrom = Commons.convertISO8601toMilis(tokens[2].trim());
+				long timestampTo = Commons.convertISO8601toMilis(tokens[3].trim());
+				
+				Aggregation aggregation = Aggregation.fromString(tokens[4]);
+				
+				if (aggregation.isParameterized() != (tokens.length == 6)) {
+					throw new PCacheException(aggregation.isParameterized()
+							? aggregation + " takes a parameter"
+							: aggregation + " doesn't take a parameter");
+				}
+				
+				double parameter = aggregation.isParameterized() 
+						? aggregation.parseParameter(tokens[5]) : 0;
+				
+				out.println(VariableTimeseriesEngine.aggregate(ID, 
+						timestampFrom, timestampTo, aggregation, parameter));
+				
+				break;
+			}
+			
+			case "MGET": {
+				
+				if (tokens.length < 2 || tokens.length > 5) {
+					throw new PCacheException("MGET takes 1 to 4 arguments. " +
+							"Usage: MGET <IDS> [<FROM TIMESTAMPS> " +
+							"<TO TIMESTAMPS>] [PRECISION]");
+				}
+				
+				final long[] IDs = _parseIds(tokens[1]);
+				final boolean ranged = tokens.length >= 4;
+				final int precision = _parsePrecision(tokens, ranged ? 4 : 2);
+				
+				// A range per ID, or one range for all of them
+				final long[] froms = ranged 
+						? _parseTimestamps(tokens[2], IDs.length) : null;
+				final long[] tos = ranged 
+						? _parseTimestamps(tokens[3], IDs.length) : null;
+				
+				// Every series is looked up before anything is written, so
+				// that a bad ID is an ERR rather than half a reply. Then
+				// they are written out one after the other, in order
+				JsonReply reply = new JsonReply(out, true, precision);
+				
+				for (int i=0; i<IDs.length; i++) {
+					
+					if (ranged && froms[i] > tos[i]) {
+						throw new PCacheException("The from timestamp should " +
+								"preceed the to timestamp");
+					}
+					
+					reply.add(String.valueOf(IDs[i]), 
+							VariableTimeseriesEngine.getAll(IDs[i]), 
+							ranged ? froms[i] : Long.MIN_VALUE, 
+							ranged ? tos[i] : Long.MAX_VALUE);
+				}
+				
+				_reply = reply;
+				
+				break;
+			}
+			
+			case "MADD": {
+				
+				if (tokens.length != 4) {
+					throw new PCacheException("MADD takes 3 arguments. " +
+							"Usage: MADD <IDS> <TIMESTAMPS;...> " +
+							"<DATAPOINTS;...>");
+				}
+				
+				final long[] IDs = _parseIds(tokens[1]);
+				final String[] timestampsLists = tokens[2].split(";");
+				final String[] dataPointsLists = tokens[3].split(";");
 				
-				out.println(VariableTimeseriesEngine.getTo(ID, timestampFrom).toJson());
+				if (timestampsLists.length != IDs.length 
+						|| dataPointsLists.length != IDs.length) {
+					throw new PCacheException("MADD takes a list of " +
+							"timestamps and a list of datapoints per ID");
+				}
+				
+				Batch.exceptIfRepeated(IDs);
+				
+				final int[] counts = new int[IDs.length];
+				
+				// An ERR says which of the series' were added to anyway
+				Batch.runWrites(IDs, new Batch.Part<Void>() {
+					
+					@Override
+					public Void run(int index) throws PCacheException {
+						
+						List<String> timestamps = Arrays.asList(
+								timestampsLists[index].split(","));
+						List<String> dataPoints = Arrays.asList(
+								dataPointsLists[index].split(","));
+						
+						VariableTimeseriesEngine.addPoints(IDs[index], 
+								timestamps, dataPoints);
+						
+						counts[index] = timestamps.size();
+						return null;
+					}
+				});
+				
+				int added = 0;
+				
+				for (int count : counts) {
+					added += count;
+				}
+				
+				out.println("DONE. " + added + " points added to " 
+						+ IDs.length + " series'");
 				
 				break;
 			}
@@ -199,6 +541,25 @@ public class RequestHandler implements Runnable {
 				break;
 			}
 			
+			case "UPSERT": {
+				
+				if (tokens.length != 4) {
+					throw new PCacheException("UPSERT takes 3 arguments. " +
+							"Usage: UPSERT <ID> <TIMESTAMPS> <DATAPOINTS>");
+				}
+				
+				long ID = Long.parseLong(tokens[1]);
+				
+				List<String> timestamps = Arrays.asList(tokens[2].split(","));
+				List<String> dataPoints = Arrays.asList(tokens[3].split(","));
+				
+				VariableTimeseriesEngine.upsertPoints(ID, timestamps, dataPoints);
+				
+				out.println("DONE. "+timestamps.size()+" points upserted");
+				
+				break;
+			}
+			
 			case "MOD": {
 				
 				if (tokens.length != 4) {
@@ -236,6 +597,56 @@ public class RequestHandler implements Runnable {
 				break;
 			}
 			
+			case "DELRANGE": {
+				
+				if (tokens.length != 4) {
+					throw new PCacheException("DELRANGE takes 3 arguments. " +
+							"Usage: DELRANGE <ID> <FROM TIMESTAMP> <TO TIMESTAMP>");
+				}
+				
+				long ID = Long.parseLong(tokens[1]);
+				long timestampFrom = Commons.convertISO8601toMilis(tokens[2].trim());
+				long timestampTo = Commons.convertISO8601toMilis(tokens[3].trim());
+				
+				int removed = VariableTimeseriesEngine.removeRange(ID, 
+						timestampFrom, timestampTo);
+				
+				out.println("DONE. "+removed+" points deleted");
+				
+				break;
+			}
+			
+			case "MODRANGE": {
+				
+				if (tokens.length != 6) {
+					throw new PCacheException("MODRANGE takes 5 arguments. " +
+							"Usage: MODRANGE <ID> <FROM TIMESTAMP> " +
+							"<TO TIMESTAMP> <SHIFT|SCALE> <OPERAND>");
+				}
+				
+				long ID = Long.parseLong(tokens[1]);
+				long timestampFrom = Commons.convertISO8601toMilis(tokens[2].trim());
+				long timestampTo = Commons.convertISO8601toMilis(tokens[3].trim());
+				
+				Adjustment adjustment = Adjustment.fromString(tokens[4]);
+				double operand;
+				
+				try {
+					operand = Double.parseDouble(tokens[5]);
+				}
+				
+				catch (NumberFormatException ex) {
+					throw new PCacheException("Invalid operand: " + tokens[5]);
+				}
+				
+				int updated = VariableTimeseriesEngine.adjustRange(ID, 
+						timestampFrom, timestampTo, adjustment, operand);
+				
+				out.println("DONE. "+updated+" points modified");
+				
+				break;
+			}
+			
 			default: {
 				out.println("ERR: Command not supported");
 				break;
@@ -243,31 +654,188 @@ public class RequestHandler implements Runnable {
 			
 			}
 
-			operationEndTime = System.currentTimeMillis();
+			// Logged once it is written
+			if (_reply != null) {
+				_replyCommand = command;
+				_replyStartTime = operationStartTime;
+				return true;
+			}
 
-			String logMessage = _socket.getInetAddress() 
-					+ " ["+DateTime.now().toString("d/m/Y:H:M:s z")+"] " 
-					+ command 
-					+ " ["+(operationEndTime - operationStartTime)/1000.0+"s]";
-			
-			_log.info(logMessage);
+			_logOperation(command, operationStartTime, bytesWritten);
 		}
 
 		catch (PCacheException ex) {
 			out.println("ERR: " + ex.getMessage());
 		}
 
-		finally {
-			try
-			{
-				_socket.close();
-			} catch (IOException e)
-			{
-				e.printStackTrace();
+		catch (NumberFormatException ex) {
+			out.println("ERR: Invalid ID");
+		}
+
+		catch (IOException ex) {
+			out.println("ERR: " + ex.getMessage());
+		}
+
+		return true;
+
+	}
+
+	/**
+	 * @return true if the reply of the last command is still being written,
+	 * 			see writeReply()
+	 */
+	public boolean isReplying() {
+		return _reply != null;
+	}
+
+	/**
+	 * Write the next piece of the reply of the last command. The points of
+	 * the series' a command reads are written a few thousand at a time, so
+	 * that a series isn't locked while the whole of a large range is written
+	 * out, and the connection can hold off on the rest while the client is
+	 * slow to take it
+	 * @param out where the reply is written to
+	 * @throws IOException thrown if the writer fails. Part of the reply may
+	 * 			have been written
+	 */
+	public void writeReply(PrintWriter out) throws IOException {
+
+		if (!_reply.writePiece()) {
+			return;
+		}
+
+		out.println();
+		_logOperation(_replyCommand, _replyStartTime, 
+				_reply.getBytesWritten());
+
+		_reply = null;
+		_replyCommand = null;
+	}
+
+	/**
+	 * Throw out the rest of the reply of the last command, as when the
+	 * client is gone
+	 */
+	public void dropReply() {
+		_reply = null;
+		_replyCommand = null;
+	}
+
+	/**
+	 * Log a command that was handled
+	 * @param command the command
+	 * @param operationStartTime when it was taken, in miliseconds
+	 * @param bytesWritten the no. of bytes of JSON in its reply, 0 if it
+	 * 			doesn't have any
+	 */
+	private void _logOperation(String command, long operationStartTime, 
+			long bytesWritten) {
+
+		long operationEndTime = System.currentTimeMillis();
+
+		String logMessage = _clientAddress 
+				+ " ["+DateTime.now().toString("d/m/Y:H:M:s z")+"] " 
+				+ command 
+				+ " ["+(operationEndTime - operationStartTime)/1000.0+"s]"
+				+ (bytesWritten > 0 ? " ["+bytesWritten+" bytes]" : "");
+		
+		_log.info(logMessage);
+	}
+
+	/**
+	 * Read the IDs of a batch command
+	 * @param list the comma separated IDs
+	 * @return the IDs
+	 * @throws NumberFormatException thrown if an ID isn't a no.
+	 */
+	private static long[] _parseIds(String list) {
+
+		String[] tokens = list.split(",");
+		long[] IDs = new long[tokens.length];
+
+		for (int i=0; i<tokens.length; i++) {
+			IDs[i] = Long.parseLong(tokens[i].trim());
+		}
+
+		return IDs;
+	}
+
+	/**
+	 * Read the timestamps of a batch command, one per ID or one for all
+	 * @param list the comma separated ISO8601 timestamps
+	 * @param count the no. of IDs
+	 * @return a timestamp in miliseconds per ID
+	 * @throws PCacheException thrown if a timestamp isn't in ISO8601 format
+	 * 			or there is neither one nor one per ID
+	 */
+	private static long[] _parseTimestamps(String list, int count) 
+			throws PCacheException {
+
+		String[] tokens = list.split(",");
+
+		if (tokens.length != 1 && tokens.length != count) {
+			throw new PCacheException("Give one timestamp per ID, or one " +
+					"for all of them");
+		}
+
+		long[] timestamps = new long[count];
+
+		for (int i=0; i<count; i++) {
+			timestamps[i] = Commons.convertISO8601toMilis(
+					tokens[tokens.length == 1 ? 0 : i].trim());
+		}
+
+		return timestamps;
+	}
+
+	/**
+	 * Read the optional precision argument of a GET command
+	 * @param tokens the tokens of the command
+	 * @param index where the precision is expected
+	 * @return the no. of decimals to round values to, 
+	 * 			VariableTimeseries.FULL_PRECISION if it isn't there
+	 * @throws PCacheException thrown if the precision isn't a no. between 0
+	 * 			and 20
+	 */
+	private static int _parsePrecision(String[] tokens, int index) 
+			throws PCacheException {
+
+		if (tokens.length <= index) {
+			return VariableTimeseries.FULL_PRECISION;
+		}
+
+		try {
+			int precision = Integer.parseInt(tokens[index].trim());
+
+			if (precision >= 0 && precision <= 20) {
+				return precision;
 			}
 		}
 
+		catch (NumberFormatException ex) {
+			// Same as out of range
+		}
+
+		throw new PCacheException("Invalid precision: " + tokens[index] 
+				+ ". Should be between 0 and 20");
 	}
 
+	/**
+	 * Write out the retention of a series as RETENTION and EXPIRE reply it
+	 * @param retention the retention
+	 * @return the max age and the time left to live in miliseconds, and the
+	 * 			max no. of points, NONE for each that isn't set
+	 */
+	private static String _formatRetention(Retention retention) {
+
+		long expiresAt = retention.getExpiresAt();
+
+		return "maxage:" + (retention.getMaxAge() == 0 ? "NONE"
+					: retention.getMaxAge())
+				+ " maxpoints:" + (retention.getMaxPoints() == 0 ? "NONE"
+					: retention.getMaxPoints())
+				+ " ttl:" + (expiresAt == 0 ? "NONE"
+					: Math.max(0, expiresAt - System.currentTimeMillis()));
+	}
 
 }
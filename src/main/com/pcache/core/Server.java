@@ -1,9 +1,27 @@
 package main.com.pcache.core;
 
+import java.io.File;
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import main.com.pcache.DO.timeseries.store.SegmentAllocator;
+import main.com.pcache.engines.Eviction;
+import main.com.pcache.engines.Snapshot;
+import main.com.pcache.engines.VariableTimeseriesEngine;
+import main.com.pcache.engines.WriteAheadLog;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -11,20 +29,94 @@ import org.apache.commons.cli.GnuParser;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
+import org.apache.log4j.PropertyConfigurator;
 
+/**
+ * The PCache server.
+ *
+ * A single selector thread accepts connections and does all of the network
+ * I/O without blocking. Idle connections don't hold on to any thread. The
+ * commands read off a connection are handed to a pool of worker threads
+ * which run them against the engines, see Connection.
+ */
 public class Server {
 
 	private static int _PORT_NUMBER=6369;
 	private static int _POOL_SIZE = 10;
+	private static int _BACKLOG = 400;
+	private static int _READ_BUFFER_SIZE = 64 * 1024;
+	private static String _WAL_FILE = null;
+	private static long _WAL_FLUSH_INTERVAL = 1000;
+	private static String _SNAPSHOT_FILE = null;
+	private static long _SNAPSHOT_INTERVAL = 5 * 60 * 1000;
+	private static String _SEGMENT_DIR = null;
+	private static int _SEGMENT_SIZE = 64 * 1024 * 1024;
+	private static long _ADAPT_INTERVAL = 60 * 1000;
+	private static long _MEMORY_BUDGET = 0;
+	private static Eviction _EVICTION = Eviction.SPILL;
+	private static long _EVICT_INTERVAL = 1000;
+	private static long _SWEEP_INTERVAL = 1000;
+
+	private final Selector _selector;
+	private final ServerSocketChannel _serverChannel;
+	private final ExecutorService _workers;
+
+	// Reused for every read. Only touched by the selector thread
+	private final ByteBuffer _readBuffer;
+
+	// Connections that have something to write, or may need closing
+	private final Queue<Connection> _pendingWrites;
+
+	public Server(int port, int poolSize) throws IOException {
+
+		this._selector = Selector.open();
+
+		this._serverChannel = ServerSocketChannel.open();
+		this._serverChannel.configureBlocking(false);
+		this._serverChannel.socket().setReuseAddress(true);
+		this._serverChannel.socket().bind(new InetSocketAddress(port), _BACKLOG);
+		this._serverChannel.register(this._selector, SelectionKey.OP_ACCEPT);
+
+		this._workers = Executors.newFixedThreadPool(poolSize);
+		this._readBuffer = ByteBuffer.allocateDirect(_READ_BUFFER_SIZE);
+		this._pendingWrites = new ConcurrentLinkedQueue<>();
+	}
 
 	public static void main (String[] args) {
 
 		Options options = new Options();
 
-		Option pool_size = new Option("pool_size", true, "No. of threads to use to handle connections");
+		Option pool_size = new Option("pool_size", true, "No. of threads to use to handle commands");
 		pool_size.isRequired();
 
 		options.addOption(pool_size);
+		options.addOption(new Option("wal", true, "File to log changes to and " +
+				"recover them from on startup. Nothing is logged if not given"));
+		options.addOption(new Option("wal_interval", true, "How often the log " +
+				"is synced to disk, in miliseconds. Defaults to 1000"));
+		options.addOption(new Option("snapshot", true, "File to take snapshots " +
+				"to and restore from on startup. No snapshots if not given"));
+		options.addOption(new Option("snapshot_interval", true, "How often a " +
+				"snapshot is taken, in miliseconds. Defaults to 300000"));
+		options.addOption(new Option("segment_dir", true, "Directory to map " +
+				"the off heap segments of SEGMENT time series' from. Direct " +
+				"memory is used if not given"));
+		options.addOption(new Option("segment_size", true, "Size of an off " +
+				"heap segment, in bytes. Defaults to 67108864"));
+		options.addOption(new Option("adapt_interval", true, "How often AUTO " +
+				"time series' are moved to the store that suits them best, in " +
+				"miliseconds. Defaults to 60000"));
+		options.addOption(new Option("memory_budget", true, "No. of bytes of " +
+				"the heap and of off heap segments the time series' can hold " +
+				"on to. No limit if not given"));
+		options.addOption(new Option("eviction", true, "What is done with the " +
+				"least recently used time series' past the memory budget, SPILL " +
+				"them off the heap or DROP them. Defaults to SPILL"));
+		options.addOption(new Option("evict_interval", true, "How often the " +
+				"memory budget is checked, in miliseconds. Defaults to 1000"));
+		options.addOption(new Option("sweep_interval", true, "How often old " +
+				"points and expired time series' are dropped, in miliseconds. " +
+				"Defaults to 1000"));
 
 		CommandLineParser parser = new GnuParser();
 		CommandLine cmd;
@@ -34,23 +126,344 @@ public class Server {
 			if (cmd.hasOption("pool_size")) {
 				_POOL_SIZE = Integer.parseInt(cmd.getOptionValue("pool_size"));
 			}
+			if (cmd.hasOption("wal")) {
+				_WAL_FILE = cmd.getOptionValue("wal");
+			}
+			if (cmd.hasOption("wal_interval")) {
+				_WAL_FLUSH_INTERVAL = Long.parseLong(
+						cmd.getOptionValue("wal_interval"));
+			}
+			if (cmd.hasOption("snapshot")) {
+				_SNAPSHOT_FILE = cmd.getOptionValue("snapshot");
+			}
+			if (cmd.hasOption("snapshot_interval")) {
+				_SNAPSHOT_INTERVAL = Long.parseLong(
+						cmd.getOptionValue("snapshot_interval"));
+			}
+			if (cmd.hasOption("segment_dir")) {
+				_SEGMENT_DIR = cmd.getOptionValue("segment_dir");
+			}
+			if (cmd.hasOption("segment_size")) {
+				_SEGMENT_SIZE = Integer.parseInt(
+						cmd.getOptionValue("segment_size"));
+			}
+			if (cmd.hasOption("adapt_interval")) {
+				_ADAPT_INTERVAL = Long.parseLong(
+						cmd.getOptionValue("adapt_interval"));
+			}
+			if (cmd.hasOption("memory_budget")) {
+				_MEMORY_BUDGET = Long.parseLong(
+						cmd.getOptionValue("memory_budget"));
+			}
+			if (cmd.hasOption("eviction")) {
+				_EVICTION = Eviction.valueOf(
+						cmd.getOptionValue("eviction").toUpperCase());
+			}
+			if (cmd.hasOption("evict_interval")) {
+				_EVICT_INTERVAL = Long.parseLong(
+						cmd.getOptionValue("evict_interval"));
+			}
+			if (cmd.hasOption("sweep_interval")) {
+				_SWEEP_INTERVAL = Long.parseLong(
+						cmd.getOptionValue("sweep_interval"));
+			}
 		} catch (ParseException e1)
 		{
 			e1.printStackTrace();
 		}
 
+		PropertyConfigurator.configure("properties/log4j.properties");
+
 		System.out.println("Starting PCache Server");
 		System.out.println("PORT: " + _PORT_NUMBER);
 		System.out.println("THREAD POOL SIZE: " + _POOL_SIZE);
 
-		ExecutorService executorService = Executors.newFixedThreadPool(_POOL_SIZE);
+		SegmentAllocator.configure(
+				_SEGMENT_DIR == null ? null : new File(_SEGMENT_DIR), _SEGMENT_SIZE);
+
+		try {
+
+			_recover();
+
+			_runPeriodically("adapter", _ADAPT_INTERVAL, new Runnable() {
+
+				@Override
+				public void run() {
+					VariableTimeseriesEngine.adapt();
+				}
+			});
+
+			_runPeriodically("sweeper", _SWEEP_INTERVAL, new Runnable() {
+
+				@Override
+				public void run() {
+					VariableTimeseriesEngine.sweep();
+				}
+			});
+
+			if (_MEMORY_BUDGET > 0) {
+
+				System.out.println("MEMORY BUDGET: " + _MEMORY_BUDGET + " (" +
+						_EVICTION + ")");
+
+				VariableTimeseriesEngine.setMemoryBudget(_MEMORY_BUDGET,
+						_EVICTION);
+
+				_runPeriodically("evictor", _EVICT_INTERVAL, new Runnable() {
+
+					@Override
+					public void run() {
+						VariableTimeseriesEngine.evict();
+					}
+				});
+			}
+
+			new Server(_PORT_NUMBER, _POOL_SIZE).listen();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Run a task every so often in the background, i.e. moving AUTO
+	 * timeseries' to the store that suits them best, dropping what their
+	 * retention doesn't keep or keeping them within the memory budget
+	 * @param name the name of the thread the task runs on
+	 * @param interval the time between runs, in miliseconds
+	 * @param task the task
+	 */
+	private static void _runPeriodically(final String name, long interval,
+			final Runnable task) {
+
+		ScheduledExecutorService scheduler = 
+				Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, name);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+
+				// Let the next run happen regardless
+				try {
+					task.run();
+				}
+
+				catch (RuntimeException ex) {
+					ex.printStackTrace();
+				}
+			}
+
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Restore the snapshot, replay the write ahead log on top of it and keep
+	 * logging to it / taking snapshots. The log is written out one last time
+	 * when the server is shut down
+	 * @throws IOException thrown if the snapshot or the log can't be read
+	 */
+	private static void _recover() throws IOException {
+
+		final WriteAheadLog wal = _WAL_FILE == null ? null 
+				: new WriteAheadLog(new File(_WAL_FILE), _WAL_FLUSH_INTERVAL);
+
+		final Snapshot snapshot = _SNAPSHOT_FILE == null ? null
+				: new Snapshot(new File(_SNAPSHOT_FILE), wal);
+
+		if (snapshot != null) {
+
+			System.out.println("SNAPSHOT: " + _SNAPSHOT_FILE + " (taken every " 
+					+ _SNAPSHOT_INTERVAL + "ms)");
+
+			long startTime = System.currentTimeMillis();
+			int restored = snapshot.restore(
+					Runtime.getRuntime().availableProcessors());
+
+			System.out.println("Restored " + restored + " time series' ["
+					+ (System.currentTimeMillis() - startTime) / 1000.0 + "s]");
+		}
+
+		if (wal != null) {
+
+			System.out.println("WRITE AHEAD LOG: " + _WAL_FILE + " (synced every " 
+					+ _WAL_FLUSH_INTERVAL + "ms)");
+
+			int replayed = VariableTimeseriesEngine.recover(wal);
+
+			System.out.println("Replayed " + replayed + " changes, " 
+					+ VariableTimeseriesEngine.noOfTimeseries() + " time series'");
+		}
+
+		if (snapshot != null) {
+			snapshot.takePeriodically(_SNAPSHOT_INTERVAL);
+		}
+
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+
+			@Override
+			public void run() {
+
+				if (snapshot != null) {
+					snapshot.stop();
+				}
+
+				try {
+					if (wal != null) {
+						wal.close();
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Run the selector loop. Doesn't return unless the selector fails
+	 * @throws IOException thrown if the selector can't be used anymore
+	 */
+	public void listen() throws IOException {
+
+		while (true) {
+
+			this._selector.select();
+
+			_processPendingWrites();
+
+			Iterator<SelectionKey> keys = this._selector.selectedKeys().iterator();
+
+			while (keys.hasNext()) {
+
+				SelectionKey key = keys.next();
+				keys.remove();
+
+				if (!key.isValid()) {
+					continue;
+				}
+
+				try {
+
+					if (key.isAcceptable()) {
+						_accept();
+						continue;
+					}
+
+					if (key.isReadable()) {
+						_read(key);
+					}
+
+					if (key.isValid() && key.isWritable()) {
+						_write(key);
+					}
+				}
+
+				catch (IOException e) {
+					_close(key);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Ask for a connection's queued replies to be written out. Can be called
+	 * from any thread
+	 * @param connection the connection
+	 */
+	void requestWrite(Connection connection) {
+		this._pendingWrites.add(connection);
+		this._selector.wakeup();
+	}
+
+	/**
+	 * Run a task on the worker pool
+	 * @param task the task
+	 */
+	void execute(Runnable task) {
+		this._workers.execute(task);
+	}
+
+	private void _processPendingWrites() {
+
+		Connection connection;
+
+		while ((connection = this._pendingWrites.poll()) != null) {
 
-		boolean listening = true;
-		try (ServerSocket serverSocket = new ServerSocket(_PORT_NUMBER,400)) {
+			SelectionKey key = connection.getKey();
 
-			while (listening) {
-				executorService.execute(new RequestHandler(serverSocket.accept()));
+			if (key.isValid()) {
+				key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
 			}
+		}
+	}
+
+	private void _accept() throws IOException {
+
+		SocketChannel channel;
+
+		while ((channel = this._serverChannel.accept()) != null) {
+
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+
+			SelectionKey key = channel.register(this._selector,
+					SelectionKey.OP_READ);
+			key.attach(new Connection(channel, key, this));
+		}
+	}
+
+	private void _read(SelectionKey key) throws IOException {
+
+		Connection connection = (Connection) key.attachment();
+		SocketChannel channel = (SocketChannel) key.channel();
+
+		this._readBuffer.clear();
+		int read = channel.read(this._readBuffer);
+
+		if (read == -1) {
+
+			// Nothing more to read, close once the replies are out
+			connection.onEndOfInput();
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+
+			if (connection.isDone()) {
+				_close(key);
+			}
+
+			return;
+		}
+
+		this._readBuffer.flip();
+		connection.onRead(this._readBuffer);
+	}
+
+	private void _write(SelectionKey key) throws IOException {
+
+		Connection connection = (Connection) key.attachment();
+
+		if (connection.writeOutput()) {
+
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+
+			if (connection.isDone()) {
+				_close(key);
+			}
+		}
+	}
+
+	private void _close(SelectionKey key) {
+
+		key.cancel();
+
+		try {
+			key.channel().close();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -0,0 +1,220 @@
+package main.com.pcache.engines;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import main.com.pcache.exceptions.PCacheException;
+
+/**
+ * Runs the parts of a command that spans many timeseries', one part per
+ * series, in parallel.
+ *
+ * Every part goes through VariableTimeseriesEngine like a command of its
+ * own would, so it only locks the series it works on and parts on different
+ * series' don't wait on each other. The parts run on a pool shared by every
+ * connection, sized to the no. of processors, and the results come back in
+ * the order of the parts.
+ */
+public class Batch {
+
+	private static final ExecutorService _pool = Executors.newFixedThreadPool(
+			Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "batch");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/**
+	 * The part of a batch that works on one series
+	 */
+	public interface Part<T> {
+
+		/**
+		 * @param index the index of the part in the batch
+		 * @return the result of the part
+		 * @throws PCacheException thrown if the engine won't do the part
+		 * @throws IOException thrown if the result can't be written
+		 */
+		T run(int index) throws PCacheException, IOException;
+	}
+
+	private Batch() {
+	}
+
+	/**
+	 * Throw an exception if an ID shows up more than once in a batch that
+	 * writes, where the order the parts run in would matter
+	 * @param ids the IDs of the batch
+	 * @throws PCacheException thrown if an ID is repeated
+	 */
+	public static void exceptIfRepeated(long[] ids) throws PCacheException {
+
+		long[] sorted = ids.clone();
+		Arrays.sort(sorted);
+
+		for (int i=1; i<sorted.length; i++) {
+
+			if (sorted[i] == sorted[i - 1]) {
+				throw new PCacheException("ID " + sorted[i] + " is repeated");
+			}
+		}
+	}
+
+	/**
+	 * Run the parts of a batch that writes, one per series, and wait for all
+	 * of them. A part that fails doesn't stop the rest, and what they wrote
+	 * isn't undone, so a failure says which of the series' were written to
+	 * @param ids the IDs of the series' the parts write to, in order
+	 * @param part what to do for each of them
+	 * @throws PCacheException thrown if a part fails. The message is that of
+	 * 			the first one in order, prefixed with its ID, followed by the
+	 * 			IDs of the parts that were done if there are any
+	 * @throws IOException thrown if a part can't write its result
+	 */
+	public static void runWrites(final long[] ids, final Part<Void> part)
+			throws PCacheException, IOException {
+
+		List<PCacheException> failures = run(ids.length,
+				new Part<PCacheException>() {
+
+			@Override
+			public PCacheException run(int index) throws IOException {
+
+				try {
+					part.run(index);
+					return null;
+				}
+
+				catch (PCacheException ex) {
+					return ex;
+				}
+			}
+		});
+
+		int failed = -1;
+		StringBuilder done = new StringBuilder();
+
+		for (int i=0; i<ids.length; i++) {
+
+			if (failures.get(i) == null) {
+				done.append(done.length() == 0 ? "" : ",").append(ids[i]);
+			}
+
+			else if (failed < 0) {
+				failed = i;
+			}
+		}
+
+		if (failed < 0) {
+			return;
+		}
+
+		PCacheException failure = failures.get(failed);
+		String message = ids[failed] + ": " + failure.getMessage();
+
+		if (done.length() > 0) {
+			message += ". Series' " + done + " were written to";
+		}
+
+		throw new PCacheException(message, failure);
+	}
+
+	/**
+	 * Run the parts of a batch and wait for all of them. Parts that aren't
+	 * done when one fails still run, the writes of a batch aren't undone
+	 * @param size the no. of parts
+	 * @param part what to do for each of them
+	 * @return the results of the parts, in order
+	 * @throws PCacheException thrown if a part fails, the first one in order
+	 * @throws IOException thrown if the result of a part can't be written
+	 */
+	public static <T> List<T> run(int size, final Part<T> part)
+			throws PCacheException, IOException {
+
+		List<T> results = new ArrayList<>(size);
+
+		// Not worth a trip to the pool
+		if (size == 1) {
+			results.add(part.run(0));
+			return results;
+		}
+
+		List<Future<T>> futures = new ArrayList<>(size);
+
+		for (int i=0; i<size; i++) {
+
+			final int index = i;
+
+			futures.add(_pool.submit(new Callable<T>() {
+
+				@Override
+				public T call() throws PCacheException, IOException {
+					return part.run(index);
+				}
+			}));
+		}
+
+		boolean interrupted = false;
+		Throwable failure = null;
+
+		for (Future<T> future : futures) {
+
+			while (true) {
+
+				try {
+					results.add(future.get());
+					break;
+				}
+
+				catch (InterruptedException ex) {
+					interrupted = true;
+				}
+
+				catch (ExecutionException ex) {
+
+					if (failure == null) {
+						failure = ex.getCause();
+					}
+
+					results.add(null);
+					break;
+				}
+			}
+		}
+
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+
+		if (failure instanceof PCacheException) {
+			throw (PCacheException) failure;
+		}
+
+		if (failure instanceof IOException) {
+			throw (IOException) failure;
+		}
+
+		if (failure instanceof RuntimeException) {
+			throw (RuntimeException) failure;
+		}
+
+		if (failure != null) {
+			throw (Error) failure;
+		}
+
+		return results;
+	}
+
+}
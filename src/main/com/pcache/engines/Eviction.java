@@ -0,0 +1,22 @@
+package main.com.pcache.engines;
+
+/**
+ * What is done with the timeseries' that were used the least recently once
+ * the ones in the system hold on to more memory than the memory budget
+ * allows, see VariableTimeseriesEngine.evict().
+ */
+public enum Eviction {
+
+	/**
+	 * Move their points off the heap into a SEGMENT store, to a file if the
+	 * segments are mapped from a directory. They are brought back onto the
+	 * heap the next time the series is used. Nothing is lost
+	 */
+	SPILL,
+
+	/**
+	 * Deallocate them, as DEALLOC would. What they held is lost
+	 */
+	DROP
+
+}
@@ -1,11 +1,39 @@
 package main.com.pcache.engines;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 public class IDEngine
 {
 
-	private static long _lastGeneratedID = 1;
+	private static AtomicLong _lastGeneratedID = new AtomicLong(1);
 	
 	public static long generateID() {
-		return _lastGeneratedID++;
+		return _lastGeneratedID.getAndIncrement();
+	}
+
+	/**
+	 * @return the ID that will be generated next
+	 */
+	static long peek() {
+		return _lastGeneratedID.get();
+	}
+
+	/**
+	 * Make sure an ID that is already in use is never generated again, i.e.
+	 * one brought back from disk
+	 * @param id the ID in use
+	 */
+	static void reserve(long id) {
+
+		long next;
+
+		do {
+			next = _lastGeneratedID.get();
+
+			if (next > id) {
+				return;
+			}
+
+		} while (!_lastGeneratedID.compareAndSet(next, id + 1));
 	}
 }
@@ -0,0 +1,621 @@
+package main.com.pcache.engines;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import main.com.pcache.DO.timeseries.RegularTimeseries;
+import main.com.pcache.DO.timeseries.Retention;
+import main.com.pcache.DO.timeseries.VariableTimeseries;
+import main.com.pcache.DO.timeseries.store.CursorReader;
+import main.com.pcache.DO.timeseries.store.StoreType;
+import main.com.pcache.DO.timeseries.store.TickStore;
+import main.com.pcache.DO.timeseries.store.TimeseriesCursor;
+import main.com.pcache.DO.timeseries.store.TimeseriesStore;
+import main.com.pcache.DO.timeseries.store.ValueType;
+import main.com.pcache.exceptions.PCacheException;
+import main.com.pcache.utils.Commons;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A point in time copy of every timeseries in VariableTimeseriesEngine, so
+ * that a restart doesn't have to replay the whole WriteAheadLog.
+ *
+ * Writers aren't stopped while a snapshot is taken. Each series is copied
+ * out under its own read lock, one after the other, so every series is
+ * consistent in itself but series' are cut at different times. The log is
+ * rotated out before the first series is copied and is only deleted once
+ * the snapshot is complete, so whatever happened during the snapshot is
+ * replayed on top of it on a restart.
+ *
+ * The file starts with a header: a magic no. (int32), the version (int32)
+ * and the next ID IDEngine would hand out (int64). Every series follows as
+ * its ID (int64), the length of its block (int64, int32 before version 5)
+ * and the block: the store type (1 byte, AUTO for adaptive series'), the
+ * value type (1 byte, not in version 1 snapshots), for TICK the ISO8601
+ * start and the step (int64) of the series, the no. of rollup tiers
+ * (int32) and the width of each (int64, neither in version 1 or 2
+ * snapshots), its retention as the max age (int64), the max no. of points
+ * (int32) and the time of expiry (int64), not in version 1 to 3 snapshots,
+ * and then its points, a timestamp (int64), the ISO8601 timestamp and the
+ * value. Strings are an int32 length, -1 for null, and that many UTF-8
+ * bytes. An ID of -1 ends the file. The snapshot is written to a temporary
+ * file and moved in place once it is on disk.
+ */
+public class Snapshot {
+
+	private static final int _MAGIC = 0x50435350;
+	private static final int _VERSION = 5;
+
+	// Before value types came in, before rollups did, before retention did
+	// and before blocks could be longer than 2GB
+	private static final int _VERSION_UNTYPED = 1;
+	private static final int _VERSION_NO_ROLLUPS = 2;
+	private static final int _VERSION_NO_RETENTION = 3;
+	private static final int _VERSION_INT_LENGTHS = 4;
+	private static final int _HEADER_SIZE = 16;
+	private static final long _END = -1L;
+
+	private static final Logger _log = Logger.getLogger(
+			Snapshot.class.getName());
+
+	private final File _file;
+	private final WriteAheadLog _wal;
+
+	private ScheduledExecutorService _scheduler;
+
+	/**
+	 * Constructor
+	 * @param file the file of the snapshot
+	 * @param wal the log changes are written to, null if there is none
+	 */
+	public Snapshot(File file, WriteAheadLog wal) {
+		this._file = file;
+		this._wal = wal;
+	}
+
+	/**
+	 * Take a snapshot of every timeseries, replacing the previous one
+	 * @return the no. of timeseries' in the snapshot
+	 * @throws IOException thrown if the snapshot can't be written, the
+	 * 			previous one is kept
+	 */
+	public synchronized int take() throws IOException {
+
+		long startTime = System.currentTimeMillis();
+
+		if (this._wal != null) {
+			this._wal.rotate();
+		}
+
+		// Read before any series is, IDs handed out during the snapshot are
+		// in the log
+		long nextId = IDEngine.peek();
+
+		File temporaryFile = new File(this._file.getPath() + ".tmp");
+		int count = 0;
+
+		try (FileChannel channel = FileChannel.open(temporaryFile.toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+
+			CountingOutputStream counter = new CountingOutputStream(
+					new BufferedOutputStream(Channels.newOutputStream(channel),
+							1024 * 1024));
+			DataOutputStream out = new DataOutputStream(counter);
+
+			out.writeInt(_MAGIC);
+			out.writeInt(_VERSION);
+			out.writeLong(nextId);
+
+			// Where the length of every block goes and the length, filled in
+			// once the blocks are on disk
+			List<long[]> lengths = new ArrayList<>();
+
+			for (Entry<Long, VariableTimeseries> entry
+					: VariableTimeseriesEngine.timeseries().entrySet()) {
+
+				out.writeLong(entry.getKey());
+
+				long lengthAt = counter.count();
+				out.writeLong(0L);
+
+				_copy(entry.getValue(), out);
+
+				lengths.add(new long[] { lengthAt,
+						counter.count() - lengthAt - 8 });
+				count++;
+			}
+
+			out.writeLong(_END);
+			out.flush();
+
+			ByteBuffer length = ByteBuffer.allocate(8);
+
+			for (long[] entry : lengths) {
+
+				length.clear();
+				length.putLong(0, entry[1]);
+
+				while (length.hasRemaining()) {
+					channel.write(length, entry[0] + length.position());
+				}
+			}
+
+			channel.force(true);
+		}
+
+		Files.move(temporaryFile.toPath(), this._file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+
+		if (this._wal != null) {
+			this._wal.deleteRotated();
+		}
+
+		_log.info("Snapshot of " + count + " time series' written to "
+				+ this._file + " ["
+				+ (System.currentTimeMillis() - startTime) / 1000.0 + "s]");
+
+		return count;
+	}
+
+	/**
+	 * Copy a timeseries out as a block of the snapshot. Holds the read lock
+	 * of the series for as long as the copy takes
+	 * @param ts the timeseries
+	 * @param out where the block is written to
+	 * @throws IOException thrown if the block can't be written
+	 */
+	private static void _copy(VariableTimeseries ts,
+			final DataOutputStream out) throws IOException {
+
+		final StoreType storeType = ts.getResidentStoreType();
+		final boolean adaptive = ts.isAdaptive();
+		final ValueType valueType = ts.getValueType();
+		final long[] rollups = ts.getRollups();
+		final Retention retention = ts.getRetention();
+		final RegularTimeseries regular = ts instanceof RegularTimeseries
+				? (RegularTimeseries) ts : null;
+
+		ts.read(new CursorReader<Void>() {
+
+			@Override
+			public Void read(TimeseriesCursor cursor) throws IOException {
+
+				// An adaptive series is profiled again once restored
+				out.writeByte(adaptive ? StoreType.AUTO.ordinal()
+						: storeType.ordinal());
+				out.writeByte(valueType.ordinal());
+
+				// The grid of a regular series
+				if (regular != null) {
+					_writeString(out, regular.getStartISO8601());
+					out.writeLong(regular.getStep());
+				}
+
+				out.writeInt(rollups.length);
+
+				for (long width : rollups) {
+					out.writeLong(width);
+				}
+
+				out.writeLong(retention.getMaxAge());
+				out.writeInt(retention.getMaxPoints());
+				out.writeLong(retention.getExpiresAt());
+
+				boolean first = true;
+
+				while (cursor.next()) {
+
+					out.writeLong(cursor.timestamp());
+
+					// Only tree map stores keep the zone of every point
+					_writeString(out, first || storeType == StoreType.TREEMAP
+							? cursor.timestampISO8601() : null);
+					_writeString(out, cursor.value());
+
+					first = false;
+				}
+
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Load the snapshot into VariableTimeseriesEngine. The file is mapped
+	 * into memory and its series' are loaded in parallel. Should be done
+	 * before the WriteAheadLog is replayed
+	 * @param threads the no. of threads to load the series' with
+	 * @return the no. of timeseries' restored, 0 if there is no snapshot
+	 * @throws IOException thrown if the snapshot can't be read
+	 */
+	public int restore(int threads) throws IOException {
+
+		if (!this._file.exists()) {
+			return 0;
+		}
+
+		try (FileChannel channel = FileChannel.open(this._file.toPath(),
+				StandardOpenOption.READ)) {
+
+			ByteBuffer header = _read(channel, 0, _HEADER_SIZE);
+
+			if (header.getInt() != _MAGIC) {
+				throw new IOException(this._file + " isn't a snapshot");
+			}
+
+			final int version = header.getInt();
+
+			if (version < _VERSION_UNTYPED || version > _VERSION) {
+				throw new IOException(this._file + " is of an unknown " +
+						"version: " + version);
+			}
+
+			long nextId = header.getLong();
+
+			// Find where every series is without reading any of them
+			List<long[]> blocks = new ArrayList<>();
+			long position = _HEADER_SIZE;
+
+			while (true) {
+
+				long id = _read(channel, position, 8).getLong();
+
+				if (id == _END) {
+					break;
+				}
+
+				int lengthSize = version > _VERSION_INT_LENGTHS ? 8 : 4;
+				ByteBuffer lengthBuffer = _read(channel, position + 8,
+						lengthSize);
+				long length = lengthSize == 8 ? lengthBuffer.getLong()
+						: lengthBuffer.getInt();
+
+				blocks.add(new long[] { id, position + 8 + lengthSize,
+						length });
+
+				position += 8 + lengthSize + length;
+			}
+
+			ExecutorService pool = Executors.newFixedThreadPool(threads);
+			List<Future<Void>> loads = new ArrayList<>();
+
+			try {
+
+				for (final long[] block : blocks) {
+
+					loads.add(pool.submit(new Callable<Void>() {
+
+						@Override
+						public Void call() throws IOException {
+
+							VariableTimeseriesEngine.restore(block[0],
+									_load(new MappedBlock(channel, block[1],
+											block[2]), version));
+							return null;
+						}
+					}));
+				}
+
+				for (Future<Void> load : loads) {
+					load.get();
+				}
+			}
+
+			catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while restoring "
+						+ this._file, ex);
+			}
+
+			catch (ExecutionException ex) {
+				throw new IOException("Couldn't restore " + this._file,
+						ex.getCause());
+			}
+
+			finally {
+				pool.shutdownNow();
+			}
+
+			IDEngine.reserve(nextId - 1);
+
+			return blocks.size();
+		}
+	}
+
+	/**
+	 * Build a timeseries back out of its block
+	 * @param block the block
+	 * @param version the version of the snapshot
+	 * @return the timeseries
+	 * @throws IOException thrown if the start of a regular series or the
+	 * 			rollups of a series can't be read
+	 */
+	private static VariableTimeseries _load(MappedBlock block, int version)
+			throws IOException {
+
+		StoreType storeType = StoreType.values()[block.get()];
+		ValueType valueType = version == _VERSION_UNTYPED ? ValueType.STRING
+				: ValueType.values()[block.get()];
+		TimeseriesStore store;
+
+		if (storeType == StoreType.TICK) {
+
+			String start = _readString(block);
+			long step = block.getLong();
+
+			try {
+				store = new TickStore(Commons.convertISO8601toMilis(start), step,
+						Commons.extractISO8601Zone(start));
+			}
+
+			catch (PCacheException ex) {
+				throw new IOException("Invalid start of a regular series: "
+						+ start, ex);
+			}
+		}
+
+		else {
+			store = storeType.newStore(valueType);
+		}
+
+		long[] rollups = new long[version > _VERSION_NO_ROLLUPS
+				? block.getInt() : 0];
+
+		for (int i=0; i<rollups.length; i++) {
+			rollups[i] = block.getLong();
+		}
+
+		Retention retention = Retention.NONE;
+
+		if (version > _VERSION_NO_RETENTION) {
+
+			long maxAge = block.getLong();
+			int maxPoints = block.getInt();
+
+			retention = new Retention(maxAge, maxPoints, block.getLong());
+		}
+
+		while (block.hasRemaining()) {
+
+			long timestamp = block.getLong();
+			String timestampISO8601 = _readString(block);
+
+			store.put(timestamp, timestampISO8601, _readString(block));
+		}
+
+		VariableTimeseries ts = storeType == StoreType.TICK
+				? new RegularTimeseries((TickStore) store)
+				: new VariableTimeseries(store, storeType == StoreType.AUTO,
+						valueType);
+
+		try {
+			ts.setRollups(rollups);
+			ts.setRetention(retention);
+		}
+
+		catch (PCacheException ex) {
+			throw new IOException("Invalid rollups of a series", ex);
+		}
+
+		return ts;
+	}
+
+	/**
+	 * Take a snapshot every so often, in the background
+	 * @param interval the time between snapshots, in miliseconds
+	 */
+	public synchronized void takePeriodically(long interval) {
+
+		this._scheduler = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "snapshot");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		this._scheduler.scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+
+				try {
+					take();
+				}
+
+				catch (IOException ex) {
+					_log.error("Couldn't take a snapshot to " + _file, ex);
+				}
+			}
+
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stop taking snapshots in the background
+	 */
+	public synchronized void stop() {
+
+		if (this._scheduler != null) {
+			this._scheduler.shutdownNow();
+		}
+	}
+
+	/**
+	 * Read a no. of bytes at a position of a file
+	 * @param channel the file
+	 * @param position where to read from
+	 * @param size the no. of bytes
+	 * @return the bytes, ready to be read from
+	 * @throws IOException thrown if the file ends before that
+	 */
+	private ByteBuffer _read(FileChannel channel, long position, int size)
+			throws IOException {
+
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+
+		while (buffer.hasRemaining()) {
+
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new EOFException(this._file + " is incomplete");
+			}
+		}
+
+		buffer.flip();
+		return buffer;
+	}
+
+	private static void _writeString(DataOutputStream out, String string)
+			throws IOException {
+
+		if (string == null) {
+			out.writeInt(-1);
+			return;
+		}
+
+		byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String _readString(MappedBlock buffer) throws IOException {
+
+		int length = buffer.getInt();
+
+		if (length < 0) {
+			return null;
+		}
+
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Counts the bytes written through it, so that the position of the
+	 * length of a block is known without flushing
+	 */
+	private static class CountingOutputStream extends FilterOutputStream {
+
+		private long _count;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			this.out.write(b);
+			this._count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			this.out.write(b, off, len);
+			this._count += len;
+		}
+
+		long count() {
+			return this._count;
+		}
+	}
+
+	/**
+	 * A block of the snapshot, mapped into memory a window at a time, since
+	 * a single mapping can't be longer than 2GB
+	 */
+	private static class MappedBlock {
+
+		private static final long _WINDOW = 256L * 1024 * 1024;
+
+		private final FileChannel _channel;
+		private final long _end;
+
+		// The window and where in the file it starts
+		private ByteBuffer _window = ByteBuffer.allocate(0);
+		private long _position;
+
+		MappedBlock(FileChannel channel, long position, long length) {
+			this._channel = channel;
+			this._position = position;
+			this._end = position + length;
+		}
+
+		boolean hasRemaining() {
+			return this._position + this._window.position() < this._end;
+		}
+
+		byte get() throws IOException {
+			return _ensure(1).get();
+		}
+
+		int getInt() throws IOException {
+			return _ensure(4).getInt();
+		}
+
+		long getLong() throws IOException {
+			return _ensure(8).getLong();
+		}
+
+		void get(byte[] bytes) throws IOException {
+			_ensure(bytes.length).get(bytes);
+		}
+
+		/**
+		 * Map the next window if what is left of this one is too short
+		 * @param size the no. of bytes about to be read
+		 * @return the window to read them from
+		 * @throws IOException thrown if the block ends before that
+		 */
+		private ByteBuffer _ensure(int size) throws IOException {
+
+			if (this._window.remaining() >= size) {
+				return this._window;
+			}
+
+			long at = this._position + this._window.position();
+			long length = Math.min(Math.max(_WINDOW, size), this._end - at);
+
+			if (length < size) {
+				throw new EOFException("A block of the snapshot is incomplete");
+			}
+
+			this._window = this._channel.map(FileChannel.MapMode.READ_ONLY,
+					at, length);
+			this._position = at;
+
+			return this._window;
+		}
+	}
+
+}
@@ -1,10 +1,26 @@
 package main.com.pcache.engines;
 
-import java.util.HashMap;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+import main.com.pcache.DO.timeseries.RegularTimeseries;
+import main.com.pcache.DO.timeseries.Retention;
 import main.com.pcache.DO.timeseries.VariableTimeseries;
+import main.com.pcache.DO.timeseries.aggregation.Aggregation;
+import main.com.pcache.DO.timeseries.resolution.Resolution;
+import main.com.pcache.DO.timeseries.store.Adjustment;
+import main.com.pcache.DO.timeseries.store.CursorReader;
+import main.com.pcache.DO.timeseries.store.SegmentAllocator;
+import main.com.pcache.DO.timeseries.store.StoreType;
+import main.com.pcache.DO.timeseries.store.TimeseriesCursor;
+import main.com.pcache.DO.timeseries.store.ValueType;
 import main.com.pcache.exceptions.PCacheException;
 
 
@@ -17,16 +33,79 @@ import main.com.pcache.exceptions.PCacheException;
  * 
  * The timestamps are to be in the ISO8601 format. Anything that isn't of the
  * ISO8601 standard will not be put into the cache.
+ * 
+ * There is no global lock. The map is a concurrent one and every timeseries
+ * guards itself with its own read/write lock, so operations on different
+ * IDs never wait on each other and reads of the same ID run side by side.
+ *
+ * Once recovered from a WriteAheadLog, every change that is made is logged
+ * to it. The changes to a timeseries are applied and logged under the 
+ * timeseries' monitor so that they are logged in the order they were made.
+ *
+ * Every timeseries can have a Retention, which sweep() enforces by dropping
+ * old points in ranges and expired series' as a whole.
+ *
+ * The timeseries' can be held to a memory budget, a no. of bytes of the
+ * heap and of the segments SegmentAllocator took off it. evict() spills or
+ * drops the ones that were looked up the least recently until they fit in
+ * it again, see Eviction.
  *
  */
 public class VariableTimeseriesEngine
 {
 	// Map to hold the mapping
-	private static Map<Long, VariableTimeseries> _idVarTsMap;
+	private static ConcurrentMap<Long, VariableTimeseries> _idVarTsMap;
+
+	// Where changes are logged to, null if they aren't
+	private static volatile WriteAheadLog _wal;
+
+	// The no. of bytes of the heap and off it the timeseries' can hold on
+	// to, 0 if there is no limit, and what is done with them past it
+	private static volatile long _memoryBudget = 0;
+	private static volatile Eviction _eviction = Eviction.SPILL;
+
+	// How far under the budget an eviction brings the timeseries', so that
+	// the writes that come in next don't put them over it right away
+	private static final int _EVICT_TO_PERCENT = 90;
 
 	// Static block to initialize the map
 	static {
-		_idVarTsMap = new HashMap<>();
+		_idVarTsMap = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Bring back the timeseries' in a write ahead log and log every change 
+	 * made from here on to it
+	 * @param wal the log
+	 * @return the no. of changes replayed
+	 * @throws IOException thrown if the log can't be read
+	 */
+	public static int recover(WriteAheadLog wal) throws IOException {
+
+		int replayed = wal.replay();
+		_wal = wal;
+
+		return replayed;
+	}
+
+	/**
+	 * Get every timeseries in the system. Changes made while the map is
+	 * being walked over may or may not be seen
+	 * @return a read only view of the map between the IDs and the timeseries
+	 */
+	static Map<Long, VariableTimeseries> timeseries() {
+		return Collections.unmodifiableMap(_idVarTsMap);
+	}
+
+	/**
+	 * Put back a timeseries under the ID it was allocated
+	 * @param id the ID of the timeseries
+	 * @param ts the timeseries
+	 */
+	static void restore(long id, VariableTimeseries ts) {
+
+		IDEngine.reserve(id);
+		_idVarTsMap.put(id, ts);
 	}
 	
 	/**
@@ -38,27 +117,162 @@ public class VariableTimeseriesEngine
 	 * 			* Lengths are unequal
 	 * 			* Nulls
 	 */
-	public synchronized static long allocate(List<String> timestamps, 
+	public static long allocate(List<String> timestamps, 
 			List<String> dataPoints) throws PCacheException {
 
+		return allocate(timestamps, dataPoints, StoreType.TREEMAP);
+	}
+
+	/**
+	 * Create a new timeseries held in a given kind of store and allocate it 
+	 * an ID 
+	 * @param timestamps The list of timestamps to create
+	 * @param dataPoints The list of dataPoints associated with the timeseries
+	 * @param storeType The kind of store to hold the timeseries in
+	 * @return an ID that can be used to refer to the timeseries
+	 * @throws PCacheException thrown if:
+	 * 			* Lengths are unequal
+	 * 			* Nulls
+	 * 			* The store type is TICK
+	 */
+	public static long allocate(List<String> timestamps, 
+			List<String> dataPoints, StoreType storeType) 
+					throws PCacheException {
+
+		return allocate(timestamps, dataPoints, storeType, ValueType.STRING);
+	}
+
+	/**
+	 * Create a new timeseries of a given type of values held in a given kind
+	 * of store and allocate it an ID 
+	 * @param timestamps The list of timestamps to create
+	 * @param dataPoints The list of dataPoints associated with the timeseries
+	 * @param storeType The kind of store to hold the timeseries in
+	 * @param valueType The type of the values of the timeseries
+	 * @return an ID that can be used to refer to the timeseries
+	 * @throws PCacheException thrown if:
+	 * 			* Lengths are unequal
+	 * 			* Nulls
+	 * 			* The store type is TICK
+	 * 			* A data point isn't of the value type
+	 */
+	public static long allocate(List<String> timestamps, 
+			List<String> dataPoints, StoreType storeType, ValueType valueType) 
+					throws PCacheException {
+
+		_exceptIfTick(storeType);
+
 		// Create a new variable timeseries with the given set of data
-		VariableTimeseries ts = new VariableTimeseries(timestamps, dataPoints);
+		VariableTimeseries ts = new VariableTimeseries(timestamps, dataPoints,
+				storeType, valueType);
 
 		// Fetch a new ID
 		long id = IDEngine.generateID();
 
+		// Log it before anyone else can see the ID
+		WriteAheadLog wal = _wal;
+		if (wal != null) {
+			wal.logAllocate(id, storeType, valueType, timestamps, null, 
+					dataPoints);
+		}
+
 		// Add it to the map, return the ID
 		_idVarTsMap.put(id, ts);
 		return id;
 	}
 	
-	public synchronized static void deallocate(long id) throws PCacheException {
-		
-		// Sanity check
-		_exceptIfInvalidId(id);
+	/**
+	 * Create a new timeseries out of already parsed timestamps and allocate 
+	 * it an ID 
+	 * @param timestamps The list of timestamps, in miliseconds since EPOC
+	 * @param dataPoints The list of dataPoints associated with the timeseries
+	 * @param storeType The kind of store to hold the timeseries in
+	 * @return an ID that can be used to refer to the timeseries
+	 * @throws PCacheException thrown if:
+	 * 			* Lengths are unequal
+	 * 			* Nulls
+	 * 			* The store type is TICK
+	 */
+	public static long allocate(long[] timestamps, List<String> dataPoints, 
+			StoreType storeType) throws PCacheException {
+
+		return allocate(timestamps, dataPoints, storeType, ValueType.STRING);
+	}
+
+	/**
+	 * Create a new timeseries of a given type of values out of already 
+	 * parsed timestamps and allocate it an ID 
+	 * @see #allocate(List, List, StoreType, ValueType)
+	 */
+	public static long allocate(long[] timestamps, List<String> dataPoints, 
+			StoreType storeType, ValueType valueType) throws PCacheException {
+
+		_exceptIfTick(storeType);
+
+		VariableTimeseries ts = new VariableTimeseries(timestamps, dataPoints,
+				storeType, valueType);
+
+		long id = IDEngine.generateID();
+
+		WriteAheadLog wal = _wal;
+		if (wal != null) {
+			wal.logAllocate(id, storeType, valueType, null, timestamps, 
+					dataPoints);
+		}
+
+		_idVarTsMap.put(id, ts);
+		return id;
+	}
+	
+	/**
+	 * Create a new timeseries of points at a fixed interval and allocate it
+	 * an ID, see RegularTimeseries
+	 * @param start the ISO8601 timestamp of the first point
+	 * @param step the interval between points in miliseconds
+	 * @param dataPoints the values, the i'th one at start + i * step. A null
+	 * 			or empty value is a gap
+	 * @return an ID that can be used to refer to the timeseries
+	 * @throws PCacheException thrown if:
+	 * 			* Nulls
+	 * 			* The start isn't in ISO8601 format
+	 * 			* The step isn't positive
+	 * 			* One or more of the values isn't a number
+	 */
+	public static long allocateRegular(String start, long step, 
+			List<String> dataPoints) throws PCacheException {
+
+		RegularTimeseries ts = new RegularTimeseries(start, step, dataPoints);
+
+		long id = IDEngine.generateID();
+
+		WriteAheadLog wal = _wal;
+		if (wal != null) {
+			wal.logAllocateRegular(id, start, step, dataPoints);
+		}
+
+		_idVarTsMap.put(id, ts);
+		return id;
+	}
+	
+	public static void deallocate(long id) throws PCacheException {
 		
-		// Throw it from the map
-		_idVarTsMap.remove(id);
+		// Not touched, a spilled series isn't brought back in to be thrown out
+		VariableTimeseries ts = _lookUp(id);
+
+		synchronized (ts) {
+
+			// Throw it from the map
+			if (!_idVarTsMap.remove(id, ts)) {
+				_exceptIfInvalidId(id);
+			}
+
+			ts.release();
+
+			WriteAheadLog wal = _wal;
+			if (wal != null) {
+				wal.logDeallocate(id);
+			}
+		}
 		
 	}
 
@@ -74,14 +288,102 @@ public class VariableTimeseriesEngine
 	 * 			* ID passed doesn't exist
 	 * 			* If points passed already exist
 	 */
-	public synchronized static void addPoints(long id, 
+	public static void addPoints(long id, 
 			List<String> timestamps, List<String> dataPoints) 
 					throws PCacheException {
 
 		// Sanity checks
-		_exceptIfInvalidId(id);
+		VariableTimeseries ts = _getTimeseries(id);
+
+		synchronized (ts) {
 
-		_idVarTsMap.get(id).addPoints(timestamps, dataPoints);
+			_exceptIfDeallocated(id, ts);
+
+			ts.addPoints(timestamps, dataPoints);
+
+			WriteAheadLog wal = _wal;
+			if (wal != null) {
+				wal.logAdd(id, timestamps, null, dataPoints);
+			}
+		}
+
+	}
+
+	/**
+	 * Add points to a given timeseries
+	 * @see #addPoints(long, List, List)
+	 */
+	public static void addPoints(long id, long[] timestamps, 
+			List<String> dataPoints) throws PCacheException {
+
+		VariableTimeseries ts = _getTimeseries(id);
+
+		synchronized (ts) {
+
+			_exceptIfDeallocated(id, ts);
+
+			ts.addPoints(timestamps, dataPoints);
+
+			WriteAheadLog wal = _wal;
+			if (wal != null) {
+				wal.logAdd(id, null, timestamps, dataPoints);
+			}
+		}
+
+	}
+
+	/**
+	 * Add points to a given timeseries, replacing the ones that already
+	 * exist, without checking which do first
+	 * @param id the Identifier of the timeseries to put points into
+	 * @param timestamps the set of timestamps to add or update
+	 * @param dataPoints the set of data points associated to the timestamps
+	 * @throws PCacheException thrown if
+	 * 			* Lengths are unequal
+	 * 			* Nulls
+	 * 			* ID passed doesn't exist
+	 * 			* A data point isn't of the type of the series
+	 */
+	public static void upsertPoints(long id,
+			List<String> timestamps, List<String> dataPoints)
+					throws PCacheException {
+
+		VariableTimeseries ts = _getTimeseries(id);
+
+		synchronized (ts) {
+
+			_exceptIfDeallocated(id, ts);
+
+			ts.upsertPoints(timestamps, dataPoints);
+
+			WriteAheadLog wal = _wal;
+			if (wal != null) {
+				wal.logUpsert(id, timestamps, null, dataPoints);
+			}
+		}
+
+	}
+
+	/**
+	 * Add points to a given timeseries, replacing the ones that already exist
+	 * @see #upsertPoints(long, List, List)
+	 */
+	public static void upsertPoints(long id, long[] timestamps,
+			List<String> dataPoints) throws PCacheException {
+
+		VariableTimeseries ts = _getTimeseries(id);
+
+		synchronized (ts) {
+
+			_exceptIfDeallocated(id, ts);
+
+			ts.upsertPoints(timestamps, dataPoints);
+
+			WriteAheadLog wal = _wal;
+			if (wal != null) {
+				wal.logUpsert(id, null, timestamps, dataPoints);
+			}
+		}
 
 	}
 
@@ -96,14 +398,47 @@ public class VariableTimeseriesEngine
 	 * 			* ID passed doesn't exist
 	 * 			* If points passed don't exist
 	 */
-	public synchronized static void modifyPoints(long id,
+	public static void modifyPoints(long id,
 			List<String> timestampsToModify, List<String> newDataPoints) 
 					throws PCacheException {
 
 		// Sanity checks
-		_exceptIfInvalidId(id);
+		VariableTimeseries ts = _getTimeseries(id);
+
+		synchronized (ts) {
+
+			_exceptIfDeallocated(id, ts);
+
+			ts.updatePoints(timestampsToModify, newDataPoints);
+
+			WriteAheadLog wal = _wal;
+			if (wal != null) {
+				wal.logModify(id, timestampsToModify, null, newDataPoints);
+			}
+		}
+
+	}
+
+	/**
+	 * Modify points in a given timeseries
+	 * @see #modifyPoints(long, List, List)
+	 */
+	public static void modifyPoints(long id, long[] timestampsToModify, 
+			List<String> newDataPoints) throws PCacheException {
+
+		VariableTimeseries ts = _getTimeseries(id);
+
+		synchronized (ts) {
+
+			_exceptIfDeallocated(id, ts);
 
-		_idVarTsMap.get(id).updatePoints(timestampsToModify, newDataPoints);
+			ts.updatePoints(timestampsToModify, newDataPoints);
+
+			WriteAheadLog wal = _wal;
+			if (wal != null) {
+				wal.logModify(id, null, timestampsToModify, newDataPoints);
+			}
+		}
 
 	}
 
@@ -116,19 +451,170 @@ public class VariableTimeseriesEngine
 	 * 			* ID passed doesn't exist
 	 * 			* If points passed don't exist
 	 */
-	public synchronized static void removePoints(long id, List<String> timestampsToRemove) 
+	public static void removePoints(long id, List<String> timestampsToRemove) 
 			throws PCacheException {
 
 		// Sanity checks
-		_exceptIfInvalidId(id);
+		VariableTimeseries ts = _getTimeseries(id);
+
+		synchronized (ts) {
+
+			_exceptIfDeallocated(id, ts);
 
-		_idVarTsMap.get(id).removePoints(timestampsToRemove);
+			ts.removePoints(timestampsToRemove);
+
+			WriteAheadLog wal = _wal;
+			if (wal != null) {
+				wal.logRemove(id, timestampsToRemove, null);
+			}
+		}
 	}
 	
-	public synchronized static String get(long id, String timestamp) throws PCacheException {
+	/**
+	 * Remove points from a given timeseries
+	 * @see #removePoints(long, List)
+	 */
+	public static void removePoints(long id, long[] timestampsToRemove) 
+			throws PCacheException {
+
+		VariableTimeseries ts = _getTimeseries(id);
+
+		synchronized (ts) {
+
+			_exceptIfDeallocated(id, ts);
+
+			ts.removePoints(timestampsToRemove);
+
+			WriteAheadLog wal = _wal;
+			if (wal != null) {
+				wal.logRemove(id, null, timestampsToRemove);
+			}
+		}
+	}
+	
+	/**
+	 * Remove every point between 2 timestamps of a given timeseries. Both
+	 * ends are inclusive
+	 * @param id the Identifier of the timeseries to remove points from
+	 * @param timestampFrom the timestamp to start from, in miliseconds
+	 * @param timestampTo the timestamp to end at, in miliseconds
+	 * @return the no. of points removed
+	 * @throws PCacheException thrown if:
+	 * 			* ID passed doesn't exist
+	 * 			* From is greater than to
+	 */
+	public static int removeRange(long id, long timestampFrom,
+			long timestampTo) throws PCacheException {
+
+		VariableTimeseries ts = _getTimeseries(id);
+
+		synchronized (ts) {
+			_exceptIfDeallocated(id, ts);
+
+			return _removeRange(id, ts, timestampFrom, timestampTo);
+		}
+	}
+
+	/**
+	 * Remove a range of points and log it if any were. Has to be called
+	 * under the monitor of the timeseries
+	 * @see #removeRange(long, long, long)
+	 */
+	private static int _removeRange(long id, VariableTimeseries ts,
+			long timestampFrom, long timestampTo) throws PCacheException {
+
+		int removed = ts.removeRange(timestampFrom, timestampTo);
+
+		WriteAheadLog wal = _wal;
+		if (wal != null && removed > 0) {
+			wal.logRemoveRange(id, timestampFrom, timestampTo);
+		}
+
+		return removed;
+	}
+
+	/**
+	 * Shift or scale the value of every point between 2 timestamps of a given
+	 * timeseries. Both ends are inclusive. Replaying the adjustment itself
+	 * would apply it twice to what a snapshot already holds, so the points it
+	 * left behind are logged as modified instead
+	 * @param id the Identifier of the timeseries to adjust
+	 * @param timestampFrom the timestamp to start from, in miliseconds
+	 * @param timestampTo the timestamp to end at, in miliseconds
+	 * @param adjustment how to change the values
+	 * @param operand what to change them by
+	 * @return the no. of points changed
+	 * @throws PCacheException thrown if:
+	 * 			* ID passed doesn't exist
+	 * 			* From is greater than to
+	 * 			* The series doesn't hold numbers
+	 */
+	public static int adjustRange(final long id, long timestampFrom,
+			long timestampTo, Adjustment adjustment, double operand)
+			throws PCacheException {
+
+		VariableTimeseries ts = _getTimeseries(id);
+
+		synchronized (ts) {
+
+			_exceptIfDeallocated(id, ts);
+
+			final int updated = ts.adjustRange(timestampFrom, timestampTo,
+					adjustment, operand);
+
+			final WriteAheadLog wal = _wal;
+			if (wal != null && updated > 0) {
+
+				// The range can be any size, it is logged a few points at a
+				// time as it is walked
+				try {
+					ts.read(timestampFrom, timestampTo, new CursorReader<Void>() {
+
+						@Override
+						public Void read(TimeseriesCursor cursor) {
+
+							long[] timestamps = new long[Math.min(updated,
+									WriteAheadLog.MAX_POINTS_PER_RECORD)];
+							List<String> dataPoints = new ArrayList<>(
+									timestamps.length);
+							int count = 0;
+
+							while (cursor.next()) {
+
+								timestamps[count++] = cursor.timestamp();
+								dataPoints.add(cursor.value());
+
+								if (count == timestamps.length) {
+									wal.logModify(id, null, timestamps,
+											dataPoints);
+									dataPoints.clear();
+									count = 0;
+								}
+							}
+
+							if (count > 0) {
+								wal.logModify(id, null, Arrays.copyOf(
+										timestamps, count), dataPoints);
+							}
+
+							return null;
+						}
+					});
+				}
+
+				catch (IOException ex) {
+					// Can't happen, nothing is written out
+				}
+			}
+
+			return updated;
+		}
+	}
+
+	public static String get(long id, String timestamp) throws PCacheException {
 		
 		// Sanity Checks
-		_exceptIfInvalidId(id);
+		_getTimeseries(id);
 		
 		return null;
 	}
@@ -140,12 +626,12 @@ public class VariableTimeseriesEngine
 	 * @throws PCacheException thrown if:
 	 * 			* ID passed doesn't exist
 	 */
-	public synchronized static VariableTimeseries getAll(long id) throws PCacheException {
+	public static VariableTimeseries getAll(long id) throws PCacheException {
 
 		// Sanity checks
-		_exceptIfInvalidId(id);
+		VariableTimeseries ts = _getTimeseries(id);
 
-		return _idVarTsMap.get(id).getAll();
+		return ts.getAll();
 	}
 
 	/**
@@ -159,13 +645,13 @@ public class VariableTimeseriesEngine
 	 * 			* Nulls
 	 * 			* Timestamp isn't in ISO8601 format
 	 */
-	public synchronized static VariableTimeseries getFrom(long id, String timestampFrom) 
+	public static VariableTimeseries getFrom(long id, String timestampFrom) 
 			throws PCacheException {
 
 		// Sanity checks
-		_exceptIfInvalidId(id);
+		VariableTimeseries ts = _getTimeseries(id);
 
-		return _idVarTsMap.get(id).getRangeFrom(timestampFrom);
+		return ts.getRangeFrom(timestampFrom);
 	}
 
 	/**
@@ -179,13 +665,76 @@ public class VariableTimeseriesEngine
 	 * 			* Nulls
 	 * 			* Timestamp isn't in ISO8601 format
 	 */
-	public synchronized static VariableTimeseries getTo(long id, String timestampTo) 
+	public static VariableTimeseries getTo(long id, String timestampTo) 
 			throws PCacheException {
 		
 		// Sanity checks
-		_exceptIfInvalidId(id);
+		VariableTimeseries ts = _getTimeseries(id);
 		
-		return _idVarTsMap.get(id).getRangeTo(timestampTo);
+		return ts.getRangeTo(timestampTo);
+	}
+
+	/**
+	 * Get a list of ALL points BETWEEN 2 timestamps in a given timeseries
+	 * @param id the Identifier of the timeseries
+	 * @param timestampFrom the timestamp to fetch points FROM, in miliseconds
+	 * @param timestampTo the timestamp to fetch points TILL, in miliseconds
+	 * @return the points between the timestamps. INCLUDES both of them
+	 * @throws PCacheException thrown if:
+	 * 			* ID passed doesn't exist
+	 * 			* From is after to
+	 */
+	public static VariableTimeseries getBetween(long id, long timestampFrom,
+			long timestampTo) throws PCacheException {
+
+		return _getTimeseries(id).getRangeBetween(timestampFrom, timestampTo);
+	}
+
+	/**
+	 * Get the points BETWEEN 2 timestamps in a given timeseries at a lower
+	 * resolution
+	 * @param id the Identifier of the timeseries
+	 * @param timestampFrom the timestamp to fetch points FROM, in miliseconds
+	 * @param timestampTo the timestamp to fetch points TILL, in miliseconds
+	 * @param resolution the resolution to bring the points down to
+	 * @param parameter the no. of points for NTH / LTTB, the width of the
+	 * 			buckets in miliseconds for the rest
+	 * @return the downsampled points between the timestamps
+	 * @throws PCacheException thrown if:
+	 * 			* ID passed doesn't exist
+	 * 			* From is after to
+	 * 			* The parameter isn't valid for the resolution
+	 * 			* The values aren't numbers and the resolution needs them to be
+	 */
+	public static VariableTimeseries getAtResolution(long id, 
+			long timestampFrom, long timestampTo, Resolution resolution,
+			long parameter) throws PCacheException {
+
+		return _getTimeseries(id).getAtResolution(timestampFrom, timestampTo,
+				resolution, parameter);
+	}
+
+	/**
+	 * Bring the points BETWEEN 2 timestamps in a given timeseries down to a
+	 * single value
+	 * @param id the Identifier of the timeseries
+	 * @param timestampFrom the timestamp to aggregate FROM, in miliseconds
+	 * @param timestampTo the timestamp to aggregate TILL, in miliseconds
+	 * @param aggregation what to bring the points down to
+	 * @param parameter the percentile for PERCENTILE, ignored by the rest
+	 * @return the result of the aggregation
+	 * @throws PCacheException thrown if:
+	 * 			* ID passed doesn't exist
+	 * 			* From is after to
+	 * 			* The range is empty, for anything but COUNT and SUM
+	 * 			* The values aren't numbers and the aggregation needs them to be
+	 */
+	public static String aggregate(long id, long timestampFrom,
+			long timestampTo, Aggregation aggregation, double parameter)
+					throws PCacheException {
+
+		return _getTimeseries(id).aggregate(timestampFrom, timestampTo,
+				aggregation, parameter);
 	}
 
 	/**
@@ -196,32 +745,538 @@ public class VariableTimeseriesEngine
 	 * 			* Nulls
 	 * 			* ID passed doesn't exist
 	 */
-	public synchronized static int size(long id) throws PCacheException {
+	public static int size(long id) throws PCacheException {
 
 		// Sanity checks
-		_exceptIfInvalidId(id);
+		VariableTimeseries ts = _getTimeseries(id);
 
-		return _idVarTsMap.get(id).size();
+		return ts.size();
 	}
 	
-	public synchronized static int noOfTimeseries() {
+	public static int noOfTimeseries() {
 		
 		return _idVarTsMap.size();
 		
 	}
 
 	/**
-	 * Throw an exception if the ID passed doesn't exist in the map
+	 * Get the kind of store a timeseries is held in
+	 * @param id the Identifier of the timeseries
+	 * @return the type of the store
+	 * @throws PCacheException thrown if:
+	 * 			* ID passed doesn't exist
+	 */
+	public static StoreType getStoreType(long id) throws PCacheException {
+		return _getTimeseries(id).getStoreType();
+	}
+
+	/**
+	 * Get the type of the values a timeseries holds
+	 * @param id the Identifier of the timeseries
+	 * @return the type of the values
+	 * @throws PCacheException thrown if:
+	 * 			* ID passed doesn't exist
+	 */
+	public static ValueType getValueType(long id) throws PCacheException {
+		return _getTimeseries(id).getValueType();
+	}
+
+	/**
+	 * Check if the store of a timeseries is picked by adapt()
+	 * @param id the Identifier of the timeseries
+	 * @return true if the series was allocated with StoreType.AUTO
+	 * @throws PCacheException thrown if:
+	 * 			* ID passed doesn't exist
+	 */
+	public static boolean isAdaptive(long id) throws PCacheException {
+		return _getTimeseries(id).isAdaptive();
+	}
+
+	/**
+	 * Keep rollup tiers of a timeseries, replacing the ones it has
+	 * @param id the Identifier of the timeseries
+	 * @param widths the widths of the buckets of the tiers, in miliseconds.
+	 * 			Empty to do away with the tiers
+	 * @throws PCacheException thrown if:
+	 * 			* ID passed doesn't exist
+	 * 			* The series isn't a LONG or a DOUBLE one
+	 * 			* A width isn't positive
+	 */
+	public static void setRollups(long id, long[] widths)
+			throws PCacheException {
+
+		VariableTimeseries ts = _getTimeseries(id);
+
+		synchronized (ts) {
+
+			_exceptIfDeallocated(id, ts);
+
+			ts.setRollups(widths);
+
+			WriteAheadLog wal = _wal;
+			if (wal != null) {
+				wal.logRollups(id, widths);
+			}
+		}
+	}
+
+	/**
+	 * Get the rollup tiers a timeseries keeps
+	 * @param id the Identifier of the timeseries
+	 * @return the widths of the buckets of the tiers in miliseconds, from
+	 * 			the finest to the coarsest
+	 * @throws PCacheException thrown if:
+	 * 			* ID passed doesn't exist
+	 */
+	public static long[] getRollups(long id) throws PCacheException {
+		return _getTimeseries(id).getRollups();
+	}
+
+	/**
+	 * Limit how long the points of a timeseries are kept. Points past the
+	 * limits are dropped by the next sweep()
+	 * @param id the Identifier of the timeseries
+	 * @param maxAge the age of the oldest point to keep relative to the
+	 * 			newest one, in miliseconds. 0 for no limit
+	 * @param maxPoints the no. of newest points to keep, 0 for no limit
+	 * @throws PCacheException thrown if:
+	 * 			* ID passed doesn't exist
+	 * 			* A limit is negative
+	 */
+	public static void setRetention(long id, long maxAge, int maxPoints)
+			throws PCacheException {
+
+		if (maxAge < 0 || maxPoints < 0) {
+			throw new PCacheException("The max age and the max no. of " +
+					"points can't be negative");
+		}
+
+		VariableTimeseries ts = _getTimeseries(id);
+
+		synchronized (ts) {
+			_exceptIfDeallocated(id, ts);
+
+			setRetention(id, ts.getRetention().withLimits(maxAge, maxPoints));
+		}
+	}
+
+	/**
+	 * Have a timeseries expire after a while, from now. It is deallocated by
+	 * the first sweep() after that
+	 * @param id the Identifier of the timeseries
+	 * @param ttl the time to live, in miliseconds. 0 for the series to never
+	 * 			expire
+	 * @throws PCacheException thrown if:
+	 * 			* ID passed doesn't exist
+	 * 			* The time to live is negative
+	 */
+	public static void expire(long id, long ttl) throws PCacheException {
+
+		if (ttl < 0) {
+			throw new PCacheException("The time to live can't be negative");
+		}
+
+		VariableTimeseries ts = _getTimeseries(id);
+
+		synchronized (ts) {
+			_exceptIfDeallocated(id, ts);
+
+			setRetention(id, ts.getRetention().withExpiry(
+					ttl == 0 ? 0 : System.currentTimeMillis() + ttl));
+		}
+	}
+
+	/**
+	 * Replace the retention of a timeseries. The time of expiry is logged
+	 * as it is, so a replayed series expires when the original would have
+	 * @param id the Identifier of the timeseries
+	 * @param retention the retention
+	 * @throws PCacheException thrown if the ID passed doesn't exist
+	 */
+	static void setRetention(long id, Retention retention)
+			throws PCacheException {
+
+		VariableTimeseries ts = _getTimeseries(id);
+
+		synchronized (ts) {
+
+			_exceptIfDeallocated(id, ts);
+
+			ts.setRetention(retention);
+
+			WriteAheadLog wal = _wal;
+			if (wal != null) {
+				wal.logRetention(id, retention);
+			}
+		}
+	}
+
+	/**
+	 * Get how long the points of a timeseries and the series are kept
+	 * @param id the Identifier of the timeseries
+	 * @return the retention
+	 * @throws PCacheException thrown if:
+	 * 			* ID passed doesn't exist
+	 */
+	public static Retention getRetention(long id) throws PCacheException {
+		return _getTimeseries(id).getRetention();
+	}
+
+	/**
+	 * Enforce the retention of every timeseries, one after the other:
+	 * deallocate the ones that expired and drop the points past the limits
+	 * of the rest. The old points of a series are dropped as a single range,
+	 * logged as such. Spilled series' are swept where they are
+	 * @return the no. of timeseries' that were deallocated or had points
+	 * 			dropped
+	 */
+	public static int sweep() {
+
+		long now = System.currentTimeMillis();
+		int swept = 0;
+
+		for (Map.Entry<Long, VariableTimeseries> entry
+				: _idVarTsMap.entrySet()) {
+
+			long id = entry.getKey();
+			VariableTimeseries ts = entry.getValue();
+			Retention retention = ts.getRetention();
+
+			if (retention.isExpired(now)) {
+
+				try {
+					deallocate(id);
+					swept++;
+				}
+
+				catch (PCacheException ex) {
+					// Deallocated in the meantime
+				}
+
+				continue;
+			}
+
+			if (!retention.isLimited()) {
+				continue;
+			}
+
+			// Writes that would make more points old wait for the sweep
+			synchronized (ts) {
+
+				// Deallocated in the meantime, nothing to log against it
+				if (_idVarTsMap.get(id) != ts) {
+					continue;
+				}
+
+				long retainedFrom = ts.getRetainedFrom();
+
+				try {
+
+					if (retainedFrom != Long.MIN_VALUE && _removeRange(id, ts,
+							Long.MIN_VALUE, retainedFrom - 1) > 0) {
+						swept++;
+					}
+				}
+
+				catch (PCacheException ex) {
+					// Can't happen, the range is never empty
+				}
+			}
+		}
+
+		return swept;
+	}
+
+	/**
+	 * Count the timeseries' held in each kind of store
+	 * @return the no. of timeseries' per store type, in the order of
+	 * 			StoreType. AUTO is always 0, adaptive series' are counted
+	 * 			under the store they are in
+	 */
+	public static int[] countByStoreType() {
+
+		int[] counts = new int[StoreType.values().length];
+
+		for (VariableTimeseries ts : _idVarTsMap.values()) {
+			counts[ts.getStoreType().ordinal()]++;
+		}
+
+		return counts;
+	}
+
+	/**
+	 * Move every adaptive timeseries to the store that suits it best, one
+	 * after the other. The contents of a series don't change, so nothing is
+	 * logged
+	 * @return the no. of timeseries' that were moved
+	 */
+	public static int adapt() {
+
+		int moved = 0;
+
+		for (VariableTimeseries ts : _idVarTsMap.values()) {
+
+			if (!ts.isAdaptive()) {
+				continue;
+			}
+
+			StoreType before = ts.getStoreType();
+
+			if (ts.adapt() != before) {
+				moved++;
+			}
+		}
+
+		return moved;
+	}
+
+	/**
+	 * Hold the timeseries' to a memory budget from here on
+	 * @param budget the no. of bytes of the heap and of the segments off it
+	 * 			they can hold on to, 0 for no limit
+	 * @param eviction what to do with the least recently used timeseries'
+	 * 			when they hold on to more
+	 */
+	public static void setMemoryBudget(long budget, Eviction eviction) {
+
+		if (budget < 0) {
+			throw new IllegalArgumentException("The budget can't be negative");
+		}
+
+		_eviction = eviction;
+		_memoryBudget = budget;
+	}
+
+	/**
+	 * @return the no. of bytes of the heap and of the segments off it the
+	 * 			timeseries' can hold on to, 0 if there is no limit
+	 */
+	public static long getMemoryBudget() {
+		return _memoryBudget;
+	}
+
+	/**
+	 * Estimate how much of the heap the timeseries' hold on to
+	 * @return the no. of bytes
+	 */
+	public static long heapSize() {
+
+		long heapSize = 0;
+
+		for (VariableTimeseries ts : _idVarTsMap.values()) {
+			heapSize += ts.heapSize();
+		}
+
+		return heapSize;
+	}
+
+	/**
+	 * Count the timeseries' whose points were spilled off the heap
+	 * @return the no. of timeseries'
+	 */
+	public static int countSpilled() {
+
+		int spilled = 0;
+
+		for (VariableTimeseries ts : _idVarTsMap.values()) {
+
+			if (ts.isSpilled()) {
+				spilled++;
+			}
+		}
+
+		return spilled;
+	}
+
+	/**
+	 * If the timeseries' hold on to more of the heap and of the segments off
+	 * it than the memory budget allows, spill or drop the ones that were
+	 * looked up the least recently until they are under it again, with some
+	 * room to spare. Series' that can't be spilled are passed over. The
+	 * segments a spill takes count against it like any other, as does the
+	 * room in them the chunks that are freed leave. Spilling doesn't change
+	 * what a series holds so it isn't logged, dropping is logged as a
+	 * deallocate
+	 * @return the no. of timeseries' that were spilled or dropped
+	 */
+	public static int evict() {
+
+		long budget = _memoryBudget;
+		Eviction eviction = _eviction;
+
+		if (budget == 0) {
+			return 0;
+		}
+
+		// Taken once, the last access of a series can change while sorting
+		List<Candidate> candidates = new ArrayList<>(_idVarTsMap.size());
+		long heapSize = 0;
+
+		for (Map.Entry<Long, VariableTimeseries> entry
+				: _idVarTsMap.entrySet()) {
+
+			Candidate candidate = new Candidate(entry.getKey(),
+					entry.getValue());
+
+			candidates.add(candidate);
+			heapSize += candidate.heapSize;
+		}
+
+		if (heapSize + SegmentAllocator.getAllocatedBytes() <= budget) {
+			return 0;
+		}
+
+		Collections.sort(candidates, new Comparator<Candidate>() {
+
+			@Override
+			public int compare(Candidate c1, Candidate c2) {
+				// nanoTime() values are only ordered by their difference
+				return Long.signum(c1.lastAccess - c2.lastAccess);
+			}
+		});
+
+		long target = budget / 100 * _EVICT_TO_PERCENT;
+		int evicted = 0;
+
+		for (Candidate candidate : candidates) {
+
+			if (heapSize + SegmentAllocator.getAllocatedBytes() <= target) {
+				break;
+			}
+
+			if (eviction == Eviction.SPILL) {
+
+				synchronized (candidate.ts) {
+
+					// Deallocated in the meantime, its store is released
+					if (_idVarTsMap.get(candidate.id) != candidate.ts) {
+						continue;
+					}
+
+					long freed = candidate.ts.spill();
+
+					if (freed > 0) {
+						heapSize -= freed;
+						evicted++;
+					}
+				}
+
+				continue;
+			}
+
+			try {
+				deallocate(candidate.id);
+				evicted++;
+			}
+
+			catch (PCacheException ex) {
+				// Deallocated in the meantime, it doesn't count anymore
+			}
+
+			heapSize -= candidate.heapSize;
+		}
+
+		return evicted;
+	}
+
+	/**
+	 * A timeseries up for eviction, with what it was like when evict() went
+	 * over the map
+	 */
+	private static class Candidate {
+
+		final long id;
+		final VariableTimeseries ts;
+		final long lastAccess;
+		final long heapSize;
+
+		Candidate(long id, VariableTimeseries ts) {
+			this.id = id;
+			this.ts = ts;
+			this.lastAccess = ts.getLastAccess();
+			this.heapSize = ts.heapSize();
+		}
+	}
+
+	/**
+	 * Get the timeseries for an ID. The lookup and the sanity check are one 
+	 * and the same so that a concurrent deallocate can't slip in between them
+	 * @param id the Identifier of the timeseries
+	 * @return the timeseries
+	 * @throws PCacheException thrown if:
+	 * 			* ID passed doesn't exist
+	 */
+	private static VariableTimeseries _getTimeseries(long id) 
+			throws PCacheException {
+
+		VariableTimeseries ts = _lookUp(id);
+
+		// Brings it back onto the heap if it was spilled
+		ts.touch();
+
+		return ts;
+	}
+
+	/**
+	 * Get the timeseries for an ID without touching it, for the callers that
+	 * don't use its points and shouldn't bring it back if it was spilled
 	 * @param id the Identifier of the timeseries
+	 * @return the timeseries
 	 * @throws PCacheException thrown if:
 	 * 			* ID passed doesn't exist
 	 */
-	private synchronized static void _exceptIfInvalidId(long id) throws PCacheException {
+	private static VariableTimeseries _lookUp(long id) throws PCacheException {
+
+		VariableTimeseries ts = _idVarTsMap.get(id);
+
+		if (ts == null) {
+			_exceptIfInvalidId(id);
+		}
+
+		return ts;
+	}
+
+	/**
+	 * Throw an exception if a series is to be allocated into a TICK store,
+	 * which only regular series' are held in
+	 * @param storeType the kind of store asked for
+	 * @throws PCacheException thrown if the store type is TICK
+	 */
+	private static void _exceptIfTick(StoreType storeType)
+			throws PCacheException {
 
-		if (_idVarTsMap.get(id) == null) {
-			throw new PCacheException("That ID doesn't exist anymore in the " +
-					"list of timeseries'. Maybe it is already deleted?");
+		if (storeType == StoreType.TICK) {
+			throw new PCacheException("A TICK series needs a start and a " +
+					"step. Allocate it with allocateRegular()/ALLOCREG");
 		}
+	}
+
+	/**
+	 * Throw an exception if a timeseries was deallocated after it was looked
+	 * up, so that a write racing with DEALLOC isn't applied to a released
+	 * store and logged against an ID that is gone. Has to be called under
+	 * the monitor of the timeseries, which DEALLOC takes too
+	 * @param id the Identifier of the timeseries
+	 * @param ts the timeseries the ID was looked up to
+	 * @throws PCacheException thrown if the ID doesn't map to it anymore
+	 */
+	private static void _exceptIfDeallocated(long id, VariableTimeseries ts)
+			throws PCacheException {
+
+		if (_idVarTsMap.get(id) != ts) {
+			_exceptIfInvalidId(id);
+		}
+	}
+
+	/**
+	 * Throw an exception saying the ID passed doesn't exist in the map
+	 * @param id the Identifier of the timeseries
+	 * @throws PCacheException thrown always
+	 */
+	private static void _exceptIfInvalidId(long id) throws PCacheException {
+
+		throw new PCacheException("That ID doesn't exist anymore in the " +
+				"list of timeseries'. Maybe it is already deleted?");
 
 	}
 }
@@ -0,0 +1,826 @@
+package main.com.pcache.engines;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import main.com.pcache.DO.timeseries.RegularTimeseries;
+import main.com.pcache.DO.timeseries.Retention;
+import main.com.pcache.DO.timeseries.VariableTimeseries;
+import main.com.pcache.DO.timeseries.store.StoreType;
+import main.com.pcache.DO.timeseries.store.ValueType;
+import main.com.pcache.exceptions.PCacheException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * An append-only log of every change made to the timeseries'.
+ *
+ * Changes are logged once they have been applied, as records in a memory
+ * buffer. A background thread writes the buffer out and fsyncs it every
+ * flush interval, so the writers never wait on the disk and the cost of a
+ * sync is shared by all the changes made during the interval. The price is
+ * that the changes of the last interval can be lost on a crash.
+ *
+ * A record is its length (int32), the CRC32 of its body (int32) and the
+ * body: the type of record (1 byte), the ID of the timeseries (int64) and
+ * whatever the type carries. Timestamps are kept in the form they came in,
+ * ISO8601 strings or miliseconds, so a replayed series is written out just
+ * like the original was. A record that is cut short or doesn't match its
+ * CRC marks the end of the log, the rest is what a crash left half written.
+ *
+ * When a Snapshot is taken, the log is rotated out and only deleted once the
+ * snapshot is safely on disk. Replaying changes that are already in the 
+ * snapshot leaves the series' as they were, so the snapshot doesn't need to
+ * stop the writers to line up with the log.
+ *
+ * @see VariableTimeseriesEngine#recover(WriteAheadLog)
+ */
+public class WriteAheadLog {
+
+	private static final byte _ALLOC = 0x01;
+	private static final byte _ADD = 0x02;
+	private static final byte _MOD = 0x03;
+	private static final byte _DEL = 0x04;
+	private static final byte _DEALLOC = 0x05;
+	private static final byte _ALLOC_REGULAR = 0x06;
+	private static final byte _ALLOC_TYPED = 0x07;
+	private static final byte _ROLLUP = 0x08;
+	private static final byte _RETENTION = 0x09;
+	private static final byte _DEL_RANGE = 0x0A;
+	private static final byte _UPSERT = 0x0B;
+
+	private static final byte _TIMESTAMPS_ISO8601 = 0x01;
+	private static final byte _TIMESTAMPS_MILIS = 0x02;
+
+	// Records larger than this can only come from a corrupt length
+	private static final int _MAX_RECORD_SIZE = 512 * 1024 * 1024;
+
+	// The most points to log in one record when the points aren't bounded by
+	// the size of a request, like those changed by an adjustRange
+	static final int MAX_POINTS_PER_RECORD = 64 * 1024;
+
+	private static final Logger _log = Logger.getLogger(
+			WriteAheadLog.class.getName());
+
+	private final File _file;
+	private final File _rotatedFile;
+	private final long _flushInterval;
+
+	// Replaced when the log is rotated. Guarded by _flushLock
+	private FileChannel _channel;
+	private OutputStream _out;
+
+	// Records not written out yet. Guarded by this
+	private ByteArrayOutputStream _pending;
+	private ByteArrayOutputStream _spare;
+
+	// Held while writing out, so that only one flush runs at a time
+	private final Object _flushLock;
+
+	private final Thread _flusher;
+	private volatile boolean _closed;
+
+	/**
+	 * Constructor. Open a log, creating the file if it doesn't exist.
+	 * Nothing is logged till the log has been replayed
+	 * @param file the file of the log
+	 * @param flushInterval how often the log is written out and synced, in
+	 * 			miliseconds
+	 * @throws IOException thrown if the file can't be opened
+	 */
+	public WriteAheadLog(File file, long flushInterval) throws IOException {
+
+		this._file = file;
+		this._rotatedFile = new File(file.getPath() + ".1");
+		this._flushInterval = flushInterval;
+
+		_open();
+
+		this._pending = new ByteArrayOutputStream();
+		this._spare = new ByteArrayOutputStream();
+		this._flushLock = new Object();
+
+		this._flusher = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				_flushPeriodically();
+			}
+
+		}, "wal-flusher");
+		this._flusher.setDaemon(true);
+	}
+
+	/**
+	 * Open the log file, positioned at its end
+	 * @throws IOException thrown if the file can't be opened
+	 */
+	private void _open() throws IOException {
+
+		this._channel = FileChannel.open(this._file.toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		this._channel.position(this._channel.size());
+		this._out = Channels.newOutputStream(this._channel);
+	}
+
+	/**
+	 * @return the file of the log
+	 */
+	public File getFile() {
+		return this._file;
+	}
+
+	/**
+	 * Apply every complete record in the log to VariableTimeseriesEngine,
+	 * then start logging after the last one. Whatever follows the last
+	 * complete record is cut off. Records that can't be applied, i.e. a
+	 * change to a series deallocated in the meantime, are skipped. A log
+	 * that was rotated out for a snapshot that never completed is replayed
+	 * first
+	 * @return the no. of records applied
+	 * @throws IOException thrown if the log can't be read
+	 */
+	int replay() throws IOException {
+
+		int applied = 0;
+
+		if (this._rotatedFile.exists()) {
+
+			try (FileChannel rotated = FileChannel.open(
+					this._rotatedFile.toPath(), StandardOpenOption.READ)) {
+				applied += _replay(rotated, this._rotatedFile, false);
+			}
+		}
+
+		applied += _replay(this._channel, this._file, true);
+		this._flusher.start();
+
+		return applied;
+	}
+
+	/**
+	 * Apply the records of one log file
+	 * @param channel the log file
+	 * @param file the name of the log file
+	 * @param cutOffTail whether to cut off what follows the last complete
+	 * 			record and carry on logging after it
+	 * @return the no. of records applied
+	 * @throws IOException thrown if the log can't be read
+	 */
+	private static int _replay(FileChannel channel, File file, 
+			boolean cutOffTail) throws IOException {
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				Channels.newInputStream(channel.position(0)), 64 * 1024));
+
+		CRC32 crc = new CRC32();
+		long validLength = 0;
+		int applied = 0;
+
+		while (true) {
+
+			byte[] body;
+
+			try {
+				int length = in.readInt();
+				int checksum = in.readInt();
+
+				if (length <= 0 || length > _MAX_RECORD_SIZE) {
+					break;
+				}
+
+				body = new byte[length];
+				in.readFully(body);
+
+				crc.reset();
+				crc.update(body, 0, length);
+
+				if ((int) crc.getValue() != checksum) {
+					break;
+				}
+			}
+
+			catch (EOFException ex) {
+				break;
+			}
+
+			try {
+				_apply(new DataInputStream(new ByteArrayInputStream(body)));
+				applied++;
+			}
+
+			catch (PCacheException | IOException ex) {
+				_log.warn("Skipped a record of " + file + ": "
+						+ ex.getMessage());
+			}
+
+			validLength += 8 + body.length;
+		}
+
+		if (validLength < channel.size()) {
+
+			_log.warn((channel.size() - validLength) + " bytes of incomplete " +
+					"records at the end of " + file);
+
+			if (cutOffTail) {
+				channel.truncate(validLength);
+			}
+		}
+
+		if (cutOffTail) {
+			channel.position(validLength);
+		}
+
+		return applied;
+	}
+
+	/**
+	 * Apply one record to the engine
+	 * @param in the body of the record
+	 * @throws PCacheException thrown if the engine won't take the change
+	 * @throws IOException thrown if the record can't be read
+	 */
+	private static void _apply(DataInputStream in)
+			throws PCacheException, IOException {
+
+		byte type = in.readByte();
+		long id = in.readLong();
+
+		switch (type) {
+
+		case _ALLOC:
+		case _ALLOC_TYPED: {
+
+			StoreType storeType = StoreType.values()[in.readByte()];
+			ValueType valueType = type == _ALLOC_TYPED 
+					? ValueType.values()[in.readByte()] : ValueType.STRING;
+			VariableTimeseries ts;
+
+			if (in.readByte() == _TIMESTAMPS_ISO8601) {
+				List<String> timestamps = _readStrings(in);
+				ts = new VariableTimeseries(timestamps, _readStrings(in),
+						storeType, valueType);
+			}
+
+			else {
+				long[] timestamps = _readMilis(in);
+				ts = new VariableTimeseries(timestamps, _readStrings(in),
+						storeType, valueType);
+			}
+
+			VariableTimeseriesEngine.restore(id, ts);
+			break;
+		}
+
+		case _ADD:
+		case _MOD:
+		case _UPSERT: {
+
+			if (in.readByte() == _TIMESTAMPS_ISO8601) {
+
+				List<String> timestamps = _readStrings(in);
+				List<String> dataPoints = _readStrings(in);
+
+				if (type == _ADD) {
+					VariableTimeseriesEngine.addPoints(id, timestamps, dataPoints);
+				}
+
+				else if (type == _MOD) {
+					VariableTimeseriesEngine.modifyPoints(id, timestamps,
+							dataPoints);
+				}
+
+				else {
+					VariableTimeseriesEngine.upsertPoints(id, timestamps,
+							dataPoints);
+				}
+			}
+
+			else {
+
+				long[] timestamps = _readMilis(in);
+				List<String> dataPoints = _readStrings(in);
+
+				if (type == _ADD) {
+					VariableTimeseriesEngine.addPoints(id, timestamps, dataPoints);
+				}
+
+				else if (type == _MOD) {
+					VariableTimeseriesEngine.modifyPoints(id, timestamps,
+							dataPoints);
+				}
+
+				else {
+					VariableTimeseriesEngine.upsertPoints(id, timestamps,
+							dataPoints);
+				}
+			}
+
+			break;
+		}
+
+		case _DEL: {
+
+			if (in.readByte() == _TIMESTAMPS_ISO8601) {
+				VariableTimeseriesEngine.removePoints(id, _readStrings(in));
+			}
+
+			else {
+				VariableTimeseriesEngine.removePoints(id, _readMilis(in));
+			}
+
+			break;
+		}
+
+		case _DEALLOC: {
+			VariableTimeseriesEngine.deallocate(id);
+			break;
+		}
+
+		case _ALLOC_REGULAR: {
+
+			String start = _readStrings(in).get(0);
+			long step = in.readLong();
+
+			VariableTimeseriesEngine.restore(id, new RegularTimeseries(start,
+					step, _readStrings(in)));
+			break;
+		}
+
+		case _ROLLUP: {
+			VariableTimeseriesEngine.setRollups(id, _readMilis(in));
+			break;
+		}
+
+		case _RETENTION: {
+
+			long maxAge = in.readLong();
+			int maxPoints = in.readInt();
+
+			VariableTimeseriesEngine.setRetention(id, new Retention(maxAge,
+					maxPoints, in.readLong()));
+			break;
+		}
+
+		case _DEL_RANGE: {
+
+			long from = in.readLong();
+			VariableTimeseriesEngine.removeRange(id, from, in.readLong());
+			break;
+		}
+
+		default:
+			throw new PCacheException("Unknown record type: " + type);
+		}
+	}
+
+	/**
+	 * Log the allocation of a timeseries. Series' of strings are logged the
+	 * way they were before value types came in
+	 * @param id the ID of the timeseries
+	 * @param storeType the kind of store the timeseries is held in
+	 * @param valueType the type of the values of the timeseries
+	 * @param timestamps the ISO8601 timestamps, null if given in miliseconds
+	 * @param timestampsMilis the timestamps in miliseconds, null if given as
+	 * 			ISO8601
+	 * @param dataPoints the values
+	 */
+	void logAllocate(long id, StoreType storeType, ValueType valueType,
+			List<String> timestamps, long[] timestampsMilis, 
+			List<String> dataPoints) {
+
+		RecordWriter record;
+
+		if (valueType == ValueType.STRING) {
+			record = new RecordWriter(_ALLOC, id);
+			record.writeByte(storeType.ordinal());
+		}
+
+		else {
+			record = new RecordWriter(_ALLOC_TYPED, id);
+			record.writeByte(storeType.ordinal());
+			record.writeByte(valueType.ordinal());
+		}
+
+		record.writePoints(timestamps, timestampsMilis, dataPoints);
+		_append(record);
+	}
+
+	/**
+	 * Log the allocation of a regular timeseries
+	 * @param id the ID of the timeseries
+	 * @param start the ISO8601 timestamp of the first point
+	 * @param step the interval between points in miliseconds
+	 * @param dataPoints the values, null or empty for gaps
+	 */
+	void logAllocateRegular(long id, String start, long step,
+			List<String> dataPoints) {
+
+		RecordWriter record = new RecordWriter(_ALLOC_REGULAR, id);
+		record.writeRegular(start, step, dataPoints);
+		_append(record);
+	}
+
+	/**
+	 * Log points added to a timeseries
+	 * @see #logAllocate(long, StoreType, ValueType, List, long[], List)
+	 */
+	void logAdd(long id, List<String> timestamps, long[] timestampsMilis,
+			List<String> dataPoints) {
+
+		RecordWriter record = new RecordWriter(_ADD, id);
+		record.writePoints(timestamps, timestampsMilis, dataPoints);
+		_append(record);
+	}
+
+	/**
+	 * Log points modified in a timeseries
+	 * @see #logAllocate(long, StoreType, ValueType, List, long[], List)
+	 */
+	void logModify(long id, List<String> timestamps, long[] timestampsMilis,
+			List<String> dataPoints) {
+
+		RecordWriter record = new RecordWriter(_MOD, id);
+		record.writePoints(timestamps, timestampsMilis, dataPoints);
+		_append(record);
+	}
+
+	/**
+	 * Log points added to or replaced in a timeseries
+	 * @see #logAllocate(long, StoreType, ValueType, List, long[], List)
+	 */
+	void logUpsert(long id, List<String> timestamps, long[] timestampsMilis,
+			List<String> dataPoints) {
+
+		RecordWriter record = new RecordWriter(_UPSERT, id);
+		record.writePoints(timestamps, timestampsMilis, dataPoints);
+		_append(record);
+	}
+
+	/**
+	 * Log points removed from a timeseries
+	 * @see #logAllocate(long, StoreType, ValueType, List, long[], List)
+	 */
+	void logRemove(long id, List<String> timestamps, long[] timestampsMilis) {
+
+		RecordWriter record = new RecordWriter(_DEL, id);
+		record.writePoints(timestamps, timestampsMilis, null);
+		_append(record);
+	}
+
+	/**
+	 * Log the rollup tiers of a timeseries being set
+	 * @param id the ID of the timeseries
+	 * @param widths the widths of the buckets of the tiers, in miliseconds
+	 */
+	void logRollups(long id, long[] widths) {
+
+		RecordWriter record = new RecordWriter(_ROLLUP, id);
+		record.writeMilis(widths);
+		_append(record);
+	}
+
+	/**
+	 * Log the retention of a timeseries being set
+	 * @param id the ID of the timeseries
+	 * @param retention the retention
+	 */
+	void logRetention(long id, Retention retention) {
+
+		RecordWriter record = new RecordWriter(_RETENTION, id);
+		record.writeLong(retention.getMaxAge());
+		record.writeInt(retention.getMaxPoints());
+		record.writeLong(retention.getExpiresAt());
+		_append(record);
+	}
+
+	/**
+	 * Log a range of points removed from a timeseries
+	 * @param id the ID of the timeseries
+	 * @param from the start of the range, in miliseconds
+	 * @param to the end of the range, in miliseconds
+	 */
+	void logRemoveRange(long id, long from, long to) {
+
+		RecordWriter record = new RecordWriter(_DEL_RANGE, id);
+		record.writeLong(from);
+		record.writeLong(to);
+		_append(record);
+	}
+
+	/**
+	 * Log the deallocation of a timeseries
+	 * @param id the ID of the timeseries
+	 */
+	void logDeallocate(long id) {
+		_append(new RecordWriter(_DEALLOC, id));
+	}
+
+	/**
+	 * Write out and sync everything logged so far
+	 * @throws IOException thrown if the log can't be written to
+	 */
+	public void flush() throws IOException {
+
+		synchronized (this._flushLock) {
+
+			ByteArrayOutputStream toWrite;
+
+			synchronized (this) {
+
+				if (this._pending.size() == 0) {
+					return;
+				}
+
+				toWrite = this._pending;
+				this._pending = this._spare;
+				this._spare = toWrite;
+			}
+
+			// The spare isn't touched by the writers, no need to hold this
+			toWrite.writeTo(this._out);
+			toWrite.reset();
+
+			this._channel.force(false);
+		}
+	}
+
+	/**
+	 * Move everything logged so far out of the way, to a file next to the
+	 * log, and carry on logging to an empty one. Done when a snapshot is
+	 * started; once it is complete, the rotated log is deleted. Should the
+	 * snapshot fail, the next rotation adds on to the rotated log
+	 * @throws IOException thrown if the log can't be written to or moved
+	 * @see #deleteRotated()
+	 */
+	public void rotate() throws IOException {
+
+		synchronized (this._flushLock) {
+
+			flush();
+
+			if (!this._rotatedFile.exists()) {
+
+				this._channel.close();
+				Files.move(this._file.toPath(), this._rotatedFile.toPath(), 
+						StandardCopyOption.ATOMIC_MOVE);
+
+				_open();
+				return;
+			}
+
+			try (FileChannel rotated = FileChannel.open(
+					this._rotatedFile.toPath(), StandardOpenOption.WRITE,
+					StandardOpenOption.APPEND)) {
+
+				long size = this._channel.size();
+				long copied = 0;
+
+				while (copied < size) {
+					copied += this._channel.transferTo(copied, size - copied, 
+							rotated);
+				}
+
+				rotated.force(false);
+			}
+
+			this._channel.truncate(0);
+			this._channel.force(false);
+		}
+	}
+
+	/**
+	 * Delete the log rotated out by rotate(). Its changes are in a snapshot
+	 * by now
+	 * @throws IOException thrown if the file can't be deleted
+	 */
+	public void deleteRotated() throws IOException {
+		Files.deleteIfExists(this._rotatedFile.toPath());
+	}
+
+	/**
+	 * Stop the background flushing, write out what is left and close the
+	 * file
+	 * @throws IOException thrown if the log can't be written to
+	 */
+	public void close() throws IOException {
+
+		this._closed = true;
+		this._flusher.interrupt();
+
+		try {
+			flush();
+		}
+
+		finally {
+			this._channel.close();
+		}
+	}
+
+	/**
+	 * Queue a record to be written out with the next flush. The record is
+	 * framed before the lock is taken
+	 * @param record the record
+	 */
+	private void _append(RecordWriter record) {
+
+		byte[] bytes = record.toByteArray();
+
+		synchronized (this) {
+
+			if (this._closed) {
+				_log.warn("Change made after " + this._file + " was closed, " +
+						"not logged");
+				return;
+			}
+
+			this._pending.write(bytes, 0, bytes.length);
+		}
+	}
+
+	private void _flushPeriodically() {
+
+		while (!this._closed) {
+
+			try {
+				Thread.sleep(this._flushInterval);
+				flush();
+			}
+
+			catch (InterruptedException ex) {
+				// Closing
+			}
+
+			catch (IOException ex) {
+				_log.error("Couldn't write out " + this._file, ex);
+			}
+		}
+	}
+
+	private static List<String> _readStrings(DataInputStream in)
+			throws IOException {
+
+		int count = in.readInt();
+		List<String> strings = new ArrayList<>(count);
+
+		for (int i=0; i<count; i++) {
+
+			byte[] bytes = new byte[in.readInt()];
+			in.readFully(bytes);
+			strings.add(new String(bytes, StandardCharsets.UTF_8));
+		}
+
+		return strings;
+	}
+
+	private static long[] _readMilis(DataInputStream in) throws IOException {
+
+		long[] milis = new long[in.readInt()];
+
+		for (int i=0; i<milis.length; i++) {
+			milis[i] = in.readLong();
+		}
+
+		return milis;
+	}
+
+	/**
+	 * Builds up a record. Only ever writes to memory
+	 */
+	private static class RecordWriter {
+
+		private final ByteArrayOutputStream _body;
+
+		RecordWriter(byte type, long id) {
+			this._body = new ByteArrayOutputStream(64);
+			writeByte(type);
+			_writeLong(id);
+		}
+
+		void writeByte(int value) {
+			this._body.write(value);
+		}
+
+		void writeInt(int value) {
+			_writeInt(this._body, value);
+		}
+
+		void writeLong(long value) {
+			_writeLong(value);
+		}
+
+		/**
+		 * Write the timestamps, in whichever form they were given, followed
+		 * by the values if there are any
+		 */
+		void writePoints(List<String> timestamps, long[] timestampsMilis,
+				List<String> dataPoints) {
+
+			if (timestamps != null) {
+				writeByte(_TIMESTAMPS_ISO8601);
+				_writeStrings(timestamps);
+			}
+
+			else {
+				writeByte(_TIMESTAMPS_MILIS);
+				writeMilis(timestampsMilis);
+			}
+
+			if (dataPoints != null) {
+				_writeStrings(dataPoints);
+			}
+		}
+
+		/**
+		 * Write a count followed by that many int64s
+		 */
+		void writeMilis(long[] milis) {
+
+			_writeInt(this._body, milis.length);
+
+			for (long value : milis) {
+				_writeLong(value);
+			}
+		}
+
+		/**
+		 * Write the start and the step of a regular series followed by its
+		 * values, gaps as empty strings
+		 */
+		void writeRegular(String start, long step, List<String> dataPoints) {
+
+			_writeStrings(Collections.singletonList(start));
+			_writeLong(step);
+
+			List<String> values = new ArrayList<>(dataPoints.size());
+
+			for (String value : dataPoints) {
+				values.add(value == null ? "" : value);
+			}
+
+			_writeStrings(values);
+		}
+
+		/**
+		 * Frame the record with its length and CRC
+		 * @return the record as it goes into the log
+		 */
+		byte[] toByteArray() {
+
+			byte[] body = this._body.toByteArray();
+
+			CRC32 crc = new CRC32();
+			crc.update(body, 0, body.length);
+
+			ByteArrayOutputStream record = new ByteArrayOutputStream(
+					8 + body.length);
+			_writeInt(record, body.length);
+			_writeInt(record, (int) crc.getValue());
+			record.write(body, 0, body.length);
+
+			return record.toByteArray();
+		}
+
+		private void _writeStrings(List<String> strings) {
+
+			_writeInt(this._body, strings.size());
+
+			for (String string : strings) {
+				byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+				_writeInt(this._body, bytes.length);
+				this._body.write(bytes, 0, bytes.length);
+			}
+		}
+
+		private void _writeLong(long value) {
+			_writeInt(this._body, (int) (value >>> 32));
+			_writeInt(this._body, (int) value);
+		}
+
+		// Big endian, the way DataInputStream reads it back
+		private static void _writeInt(ByteArrayOutputStream out, int value) {
+			out.write(value >>> 24);
+			out.write(value >>> 16);
+			out.write(value >>> 8);
+			out.write(value);
+		}
+	}
+
+}
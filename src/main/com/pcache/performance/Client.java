@@ -4,6 +4,8 @@ import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
 import java.net.Socket;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
 
 import org.apache.log4j.Logger;
@@ -11,7 +13,7 @@ import org.apache.log4j.PropertyConfigurator;
 
 public class Client implements Runnable{
 
-	private String _command;
+	private List<String> _commands;
 	private Logger _logger;
 	private CountDownLatch _latch;
 	
@@ -21,12 +23,22 @@ public class Client implements Runnable{
 	}
 
 	public Client() {
-		_command = null;
+		_commands = null;
 		_initializeLogger();
 	}
 
 	public Client(String command, CountDownLatch latch) {
-		this._command = command;
+		this(Arrays.asList(command), latch);
+	}
+
+	/**
+	 * Send a batch of commands over one connection. The commands are 
+	 * pipelined i.e. all of them are sent before any reply is read
+	 * @param commands the commands to send
+	 * @param latch counted down once all the replies are read
+	 */
+	public Client(List<String> commands, CountDownLatch latch) {
+		this._commands = commands;
 		this._latch = latch;
 		_initializeLogger();
 	}
@@ -42,11 +54,17 @@ public class Client implements Runnable{
 				BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
 			) {
 			
-			if (_command != null) {
-				out.println(_command);
+			if (_commands != null) {
+				for (String command : _commands) {
+					out.println(command);
+				}
 			}
 			//out.println("SIZE 1");
 
+			// Connections are kept open by the server till told otherwise
+			out.println("QUIT");
+			out.flush();
+
 			String line = "";
 			while ((line = in.readLine()) != null) {
 				System.out.println(line);
@@ -60,7 +78,9 @@ public class Client implements Runnable{
 			_logger.error(ex.getMessage());
 		}  
 		finally {
-			_latch.countDown();
+			if (_latch != null) {
+				_latch.countDown();
+			}
 		}
 
 	}
@@ -1,11 +1,14 @@
 package main.com.pcache.utils;
 
+import java.math.BigDecimal;
+import java.math.RoundingMode;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
 
 import main.com.pcache.exceptions.PCacheException;
 
+import org.joda.time.DateTimeZone;
 import org.joda.time.format.DateTimeFormatter;
 import org.joda.time.format.ISODateTimeFormat;
 
@@ -16,21 +19,107 @@ public class Commons
 	public static long convertISO8601toMilis(String timestamp) 
 			throws PCacheException {
 		
+		return ISO8601Parser.parse(timestamp);
+	}
+	
+	/**
+	 * Get the offset (zone) an ISO8601 timestamp was written in
+	 * @param timestamp the ISO8601 timestamp
+	 * @return the zone of the timestamp
+	 * @throws PCacheException thrown if the timestamp isn't in ISO8601 format
+	 */
+	public static DateTimeZone extractISO8601Zone(String timestamp)
+			throws PCacheException {
+
 		try {
-			DateTimeFormatter ISO8601Formatter = ISODateTimeFormat.dateTime();
-			return ISO8601Formatter.parseDateTime(timestamp).getMillis();
+			DateTimeFormatter ISO8601Formatter = ISODateTimeFormat.dateTime()
+					.withOffsetParsed();
+			return ISO8601Formatter.parseDateTime(timestamp).getZone();
 		}
-		
+
 		catch (NullPointerException ex) {
 			throw new PCacheException("Timestamp can't be null", ex);
 		}
-		
+
 		catch (IllegalArgumentException ex) {
 			throw new PCacheException("Invalid timestamp format, Format is " +
 					"restricted to ISO8601", ex);
 		}
 	}
-	
+
+	/**
+	 * Convert a UNIX time representation (in miliseconds) back to ISO8601
+	 * @param milis the no. of miliseconds since EPOC
+	 * @param zone the zone to write the timestamp in
+	 * @return the ISO8601 timestamp. i.e. 2014-03-30T20:13:00.000+05:30
+	 */
+	public static String convertMilisToISO8601(long milis, DateTimeZone zone) {
+		return ISODateTimeFormat.dateTime().withZone(zone).print(milis);
+	}
+
+	/**
+	 * Read a duration, i.e. a step, a bucket width or a TTL
+	 * @param duration the duration in miliseconds. It can also be given with
+	 * 			a unit i.e. 500ms, 30s, 5m, 1h or 1d
+	 * @return the duration in miliseconds
+	 * @throws PCacheException thrown if the duration can't be read, is
+	 * 			negative or doesn't fit in a long
+	 */
+	public static long parseDuration(String duration) throws PCacheException {
+
+		if (duration == null) {
+			throw new PCacheException("Duration can't be null");
+		}
+
+		String number = duration.trim().toLowerCase();
+		long unit = 1;
+
+		if (number.endsWith("ms")) {
+			number = number.substring(0, number.length() - 2);
+		}
+
+		else if (number.endsWith("s")) {
+			unit = 1000L;
+		}
+
+		else if (number.endsWith("m")) {
+			unit = 60 * 1000L;
+		}
+
+		else if (number.endsWith("h")) {
+			unit = 60 * 60 * 1000L;
+		}
+
+		else if (number.endsWith("d")) {
+			unit = 24 * 60 * 60 * 1000L;
+		}
+
+		if (unit != 1) {
+			number = number.substring(0, number.length() - 1);
+		}
+
+		long value;
+
+		try {
+			value = Long.parseLong(number);
+		}
+
+		catch (NumberFormatException ex) {
+			throw new PCacheException("Invalid duration: " + duration, ex);
+		}
+
+		if (value < 0) {
+			throw new PCacheException("Duration can't be negative: "
+					+ duration);
+		}
+
+		if (value > Long.MAX_VALUE / unit) {
+			throw new PCacheException("Duration is too large: " + duration);
+		}
+
+		return value * unit;
+	}
+
 	/**
 	 * Convert the given timestamps to UNIX time representation (in miliseconds)
 	 * @param timestamps the set of timestamps to convert
@@ -59,6 +148,133 @@ public class Commons
 
 	}
 	
+	/**
+	 * Round a decimal value to a no. of decimals, half away from zero. The
+	 * rounding is done on the digits of the string so values come out the 
+	 * way they were sent in, without the noise of going through a double. 
+	 * Trailing zeros after the decimal point are dropped
+	 * @param value the value. i.e. 1234.56789
+	 * @param precision the max. no. of decimals to keep
+	 * @return the rounded value. i.e. 1234.57 for a precision of 2. Values 
+	 * 			that aren't numbers are returned as they are
+	 */
+	public static String roundDecimal(String value, int precision) {
+
+		if (value == null || precision < 0) {
+			return value;
+		}
+
+		int length = value.length();
+		int start = length > 0 && (value.charAt(0) == '-' 
+				|| value.charAt(0) == '+') ? 1 : 0;
+		int dot = -1;
+
+		for (int i=start; i<length; i++) {
+
+			char c = value.charAt(i);
+
+			if (c == '.' && dot == -1) {
+				dot = i;
+			}
+
+			else if (c < '0' || c > '9') {
+				return _roundDecimalExact(value, precision);
+			}
+		}
+
+		// Nothing to round
+		if (dot == -1 || length - dot - 1 <= precision) {
+			return value;
+		}
+
+		int end = precision == 0 ? dot : dot + 1 + precision;
+		char[] digits = new char[end + 1];
+
+		// Leave a spot in front for a carry that runs off the first digit
+		value.getChars(0, end, digits, 1);
+		digits[0] = '0';
+
+		if (value.charAt(dot + 1 + precision) >= '5') {
+
+			int i = end;
+
+			while (true) {
+
+				char c = digits[i];
+
+				if (c == '.') {
+					i--;
+					continue;
+				}
+
+				if (c == '-' || c == '+') {
+					// The sign has to stay in front, shift it to the spare spot
+					digits[0] = c;
+					digits[i] = '1';
+					break;
+				}
+
+				if (c == '9') {
+					digits[i--] = '0';
+					continue;
+				}
+
+				digits[i] = (char) (c + 1);
+				break;
+			}
+		}
+
+		// Unless a carry ran into it, the spot in front isn't part of it
+		int from = digits[0] == '0' ? 1 : 0;
+		int to = end + 1;
+
+		// Drop the trailing zeros of the decimals, and the point if that's all
+		if (precision > 0) {
+
+			while (digits[to - 1] == '0') {
+				to--;
+			}
+
+			if (digits[to - 1] == '.') {
+				to--;
+			}
+		}
+
+		String rounded = new String(digits, from, to - from);
+
+		// Whatever rounds to nothing is a plain zero, i.e. -0.001 or .4
+		switch (rounded) {
+
+		case "":
+		case "-":
+		case "+":
+		case "-0":
+		case "+0":
+			return "0";
+
+		default:
+			return rounded;
+		}
+	}
+
+	/**
+	 * Round a value that isn't a plain decimal, i.e. 1.5e-3
+	 * @see #roundDecimal(String, int)
+	 */
+	private static String _roundDecimalExact(String value, int precision) {
+
+		try {
+			BigDecimal rounded = new BigDecimal(value).setScale(precision, 
+					RoundingMode.HALF_UP);
+			return rounded.signum() == 0 ? "0"
+					: rounded.stripTrailingZeros().toPlainString();
+		}
+
+		catch (NumberFormatException ex) {
+			return value;
+		}
+	}
+
 	public static int safeLongToInt(long l) {
 	    if (l < Integer.MIN_VALUE || l > Integer.MAX_VALUE) {
 	        throw new IllegalArgumentException
@@ -0,0 +1,85 @@
+package main.com.pcache.utils;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * A writer that passes everything on to another writer and keeps count of 
+ * how many bytes that makes once encoded in UTF-8
+ */
+public class CountingWriter extends Writer
+{
+
+	private Writer _out;
+	private long _bytesWritten;
+
+	public CountingWriter(Writer out) {
+		this._out = out;
+		this._bytesWritten = 0;
+	}
+
+	/**
+	 * Get the no. of bytes written so far
+	 * @return the no. of bytes, as encoded in UTF-8
+	 */
+	public long getBytesWritten() {
+		return this._bytesWritten;
+	}
+
+	@Override
+	public void write(int c) throws IOException {
+		this._bytesWritten += _utf8Length((char) c);
+		this._out.write(c);
+	}
+
+	@Override
+	public void write(char[] cbuf, int off, int len) throws IOException {
+
+		for (int i=off; i<off+len; i++) {
+			this._bytesWritten += _utf8Length(cbuf[i]);
+		}
+
+		this._out.write(cbuf, off, len);
+	}
+
+	@Override
+	public void write(String str, int off, int len) throws IOException {
+
+		for (int i=off; i<off+len; i++) {
+			this._bytesWritten += _utf8Length(str.charAt(i));
+		}
+
+		this._out.write(str, off, len);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		this._out.flush();
+	}
+
+	/**
+	 * Doesn't close the writer underneath, it isn't ours to close
+	 */
+	@Override
+	public void close() throws IOException {
+		flush();
+	}
+
+	/**
+	 * The no. of bytes a char takes in UTF-8. A surrogate pair takes 4 bytes
+	 * altogether so each half is counted as 2
+	 */
+	private static int _utf8Length(char c) {
+
+		if (c < 0x80) {
+			return 1;
+		}
+
+		else if (c < 0x800 || Character.isSurrogate(c)) {
+			return 2;
+		}
+
+		return 3;
+	}
+
+}
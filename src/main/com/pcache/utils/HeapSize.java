@@ -0,0 +1,72 @@
+package main.com.pcache.utils;
+
+import java.util.BitSet;
+
+/**
+ * Estimates of the no. of bytes objects take on the Java heap, for keeping
+ * the cache within its memory budget.
+ *
+ * The figures are those of a 64 bit JVM with compressed references, the
+ * default for heaps under 32GB: a 12 byte object header, 4 byte references
+ * and everything padded to 8 bytes. Strings are taken to hold a byte per
+ * character, which is what Latin-1 strings hold from Java 9 on.
+ */
+public class HeapSize {
+
+	/**
+	 * The header of an object
+	 */
+	public static final int OBJECT = 12;
+
+	/**
+	 * A reference to an object
+	 */
+	public static final int REFERENCE = 4;
+
+	// The header of an array, its length included
+	private static final int _ARRAY = 16;
+
+	// A String and the header of the array behind it
+	private static final int _STRING = 24 + _ARRAY;
+
+	private HeapSize() {
+	}
+
+	/**
+	 * Round a no. of bytes up to the 8 bytes objects are padded to
+	 * @param bytes the no. of bytes
+	 * @return the no. of bytes the object takes
+	 */
+	public static long align(long bytes) {
+		return (bytes + 7) & ~7L;
+	}
+
+	/**
+	 * @param length the length of the array
+	 * @param elementSize the no. of bytes an element takes, REFERENCE for an
+	 * 			array of objects
+	 * @return the no. of bytes the array takes, without the objects it
+	 * 			refers to
+	 */
+	public static long ofArray(int length, int elementSize) {
+		return align(_ARRAY + (long) length * elementSize);
+	}
+
+	/**
+	 * @param string the string, can be null
+	 * @return the no. of bytes the string takes, 0 for null
+	 */
+	public static long ofString(String string) {
+		return string == null ? 0 : _STRING + align(string.length());
+	}
+
+	/**
+	 * @param bits the bit set
+	 * @return the no. of bytes the bit set takes, its words included
+	 */
+	public static long ofBitSet(BitSet bits) {
+		return align(OBJECT + REFERENCE + 4 + 1)
+				+ ofArray(bits.size() / Long.SIZE, 8);
+	}
+
+}
@@ -0,0 +1,231 @@
+package main.com.pcache.utils;
+
+import main.com.pcache.exceptions.PCacheException;
+
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+
+/**
+ * Parses ISO8601 timestamps to miliseconds since EPOC.
+ *
+ * Timestamps in the form the cache documents, i.e.
+ * YYYY-MM-DDTHH:MM:SS.SSS followed by Z or +HH:MM / -HH:MM, are parsed a
+ * char at a time without creating any objects. Anything else is handed to
+ * Joda, which is what decides whether it is valid ISO8601 or not, so the
+ * set of timestamps accepted is the same as before. The results of the Joda
+ * path are kept in a small cache since that path is slow and the odd formats
+ * that go down it tend to repeat.
+ */
+public class ISO8601Parser
+{
+
+	// Length of YYYY-MM-DDTHH:MM:SS.SSSZ and YYYY-MM-DDTHH:MM:SS.SSS+HH:MM
+	private static final int _LENGTH_UTC = 24;
+	private static final int _LENGTH_OFFSET = 29;
+
+	private static final long _MILIS_PER_DAY = 86400000L;
+
+	// Cache of the timestamps that went down the Joda path. Direct mapped,
+	// a new entry just replaces whatever was in its slot
+	private static final int _CACHE_SIZE = 1024;
+	private static final CacheEntry[] _cache = new CacheEntry[_CACHE_SIZE];
+
+	private static final DateTimeFormatter _ISO8601Formatter =
+			ISODateTimeFormat.dateTime();
+
+	/**
+	 * Parse an ISO8601 timestamp
+	 * @param timestamp the timestamp. i.e. 2014-03-30T20:13:00.000+05:30
+	 * @return the no. of miliseconds since EPOC
+	 * @throws PCacheException thrown if the timestamp is null or isn't in
+	 * 			ISO8601 format
+	 */
+	public static long parse(String timestamp) throws PCacheException {
+
+		if (timestamp == null) {
+			throw new PCacheException("Timestamp can't be null");
+		}
+
+		int length = timestamp.length();
+
+		if (length == _LENGTH_UTC || length == _LENGTH_OFFSET) {
+
+			long milis = _parseDateTime(timestamp);
+			int offsetMinutes = _parseOffset(timestamp);
+
+			if (milis != Long.MIN_VALUE && offsetMinutes != Integer.MIN_VALUE) {
+				return milis - offsetMinutes * 60000L;
+			}
+		}
+
+		return _parseWithJoda(timestamp);
+	}
+
+	/**
+	 * Parse the date and time part of YYYY-MM-DDTHH:MM:SS.SSS
+	 * @param ts the timestamp
+	 * @return the miliseconds since EPOC as if the time was in UTC,
+	 * 			Long.MIN_VALUE if the timestamp isn't in that form
+	 */
+	private static long _parseDateTime(String ts) {
+
+		if (ts.charAt(4) != '-' || ts.charAt(7) != '-' || ts.charAt(10) != 'T'
+				|| ts.charAt(13) != ':' || ts.charAt(16) != ':'
+				|| ts.charAt(19) != '.') {
+			return Long.MIN_VALUE;
+		}
+
+		int year = _digits(ts, 0, 4);
+		int month = _digits(ts, 5, 2);
+		int day = _digits(ts, 8, 2);
+		int hour = _digits(ts, 11, 2);
+		int minute = _digits(ts, 14, 2);
+		int second = _digits(ts, 17, 2);
+		int milis = _digits(ts, 20, 3);
+
+		if (year < 0 || month < 1 || month > 12 || day < 1
+				|| day > _daysInMonth(year, month) || hour < 0 || hour > 23
+				|| minute < 0 || minute > 59 || second < 0 || second > 59
+				|| milis < 0) {
+			return Long.MIN_VALUE;
+		}
+
+		return _daysSinceEpoc(year, month, day) * _MILIS_PER_DAY
+				+ hour * 3600000L + minute * 60000L + second * 1000L + milis;
+	}
+
+	/**
+	 * Parse the offset that follows the time, either Z or +HH:MM / -HH:MM
+	 * @param ts the timestamp
+	 * @return the offset in minutes, Integer.MIN_VALUE if there is no valid
+	 * 			offset
+	 */
+	private static int _parseOffset(String ts) {
+
+		char sign = ts.charAt(23);
+
+		if (ts.length() == _LENGTH_UTC) {
+			return sign == 'Z' ? 0 : Integer.MIN_VALUE;
+		}
+
+		if ((sign != '+' && sign != '-') || ts.charAt(26) != ':') {
+			return Integer.MIN_VALUE;
+		}
+
+		int hours = _digits(ts, 24, 2);
+		int minutes = _digits(ts, 27, 2);
+
+		if (hours < 0 || hours > 23 || minutes < 0 || minutes > 59) {
+			return Integer.MIN_VALUE;
+		}
+
+		int offset = hours * 60 + minutes;
+		return sign == '+' ? offset : -offset;
+	}
+
+	/**
+	 * Read a fixed no. of decimal digits
+	 * @param ts the string to read from
+	 * @param start where the digits start
+	 * @param count the no. of digits
+	 * @return the value, -1 if one of the chars isn't a digit
+	 */
+	private static int _digits(String ts, int start, int count) {
+
+		int value = 0;
+
+		for (int i=start; i<start+count; i++) {
+
+			int digit = ts.charAt(i) - '0';
+
+			if (digit < 0 || digit > 9) {
+				return -1;
+			}
+
+			value = value * 10 + digit;
+		}
+
+		return value;
+	}
+
+	private static int _daysInMonth(int year, int month) {
+
+		switch (month) {
+
+		case 2:
+			boolean leap = (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+			return leap ? 29 : 28;
+
+		case 4:
+		case 6:
+		case 9:
+		case 11:
+			return 30;
+
+		default:
+			return 31;
+		}
+	}
+
+	/**
+	 * The no. of days between 1970-01-01 and a date in the proleptic
+	 * gregorian calendar
+	 */
+	private static long _daysSinceEpoc(int year, int month, int day) {
+
+		// Count years from March so that the leap day is the last of the year
+		long y = month <= 2 ? year - 1 : year;
+		long era = (y >= 0 ? y : y - 399) / 400;
+		long yearOfEra = y - era * 400;
+		long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5
+				+ day - 1;
+		long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100
+				+ dayOfYear;
+
+		return era * 146097 + dayOfEra - 719468;
+	}
+
+	/**
+	 * Parse a timestamp that isn't in the usual form with Joda
+	 * @param timestamp the timestamp
+	 * @return the no. of miliseconds since EPOC
+	 * @throws PCacheException thrown if the timestamp isn't in ISO8601 format
+	 */
+	private static long _parseWithJoda(String timestamp)
+			throws PCacheException {
+
+		int slot = timestamp.hashCode() & (_CACHE_SIZE - 1);
+		CacheEntry entry = _cache[slot];
+
+		if (entry != null && entry.timestamp.equals(timestamp)) {
+			return entry.milis;
+		}
+
+		try {
+			long milis = _ISO8601Formatter.parseDateTime(timestamp).getMillis();
+			_cache[slot] = new CacheEntry(timestamp, milis);
+			return milis;
+		}
+
+		catch (IllegalArgumentException ex) {
+			throw new PCacheException("Invalid timestamp format, Format is " +
+					"restricted to ISO8601", ex);
+		}
+	}
+
+	/**
+	 * A cached result. Immutable, so that it can be shared between threads
+	 * without locking
+	 */
+	private static class CacheEntry {
+
+		final String timestamp;
+		final long milis;
+
+		CacheEntry(String timestamp, long milis) {
+			this.timestamp = timestamp;
+			this.milis = milis;
+		}
+	}
+
+}
@@ -0,0 +1,261 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import main.com.pcache.core.BinaryRequestHandler;
+
+import org.junit.Test;
+
+public class BinaryRequestHandlerTest
+{
+
+	private BinaryRequestHandler _handler = new BinaryRequestHandler("test");
+
+	// The chunks of a reply, put together
+	private ByteBuffer _handle(byte opcode, ByteBuffer payload)
+	{
+		List<ByteBuffer> chunks = _handler.handleRequest(opcode, payload)
+				.getChunks();
+
+		int size = 0;
+		for (ByteBuffer chunk : chunks) {
+			size += chunk.remaining();
+		}
+
+		ByteBuffer reply = ByteBuffer.allocate(size);
+		for (ByteBuffer chunk : chunks) {
+			reply.put(chunk.duplicate());
+		}
+		reply.flip();
+		return reply;
+	}
+
+	@Test
+	public void test_allocAndGetRange() 
+	{
+		ByteBuffer alloc = ByteBuffer.allocate(1 + 4 + 3*17);
+		alloc.put((byte) 1);
+		alloc.putInt(3);
+		for (int i=0; i<3; i++) {
+			alloc.putLong(1262304000000L + i*60000L);
+			alloc.put(BinaryRequestHandler.TYPE_DOUBLE);
+			alloc.putDouble(i * 1.5);
+		}
+		alloc.flip();
+		
+		ByteBuffer reply = _handle(BinaryRequestHandler.OP_ALLOC, 
+				alloc);
+		
+		assertEquals(BinaryRequestHandler.MAGIC, reply.get());
+		assertEquals(BinaryRequestHandler.STATUS_OK, reply.get());
+		assertEquals(8, reply.getInt());
+		long id = reply.getLong();
+		
+		ByteBuffer getRange = ByteBuffer.allocate(24);
+		getRange.putLong(id);
+		getRange.putLong(1262304060000L);
+		getRange.putLong(Long.MAX_VALUE);
+		getRange.flip();
+		
+		reply = _handle(BinaryRequestHandler.OP_GETRANGE, getRange);
+		
+		reply.position(6);
+		assertEquals(2, reply.getInt());
+		assertEquals(1262304060000L, reply.getLong());
+	}
+	
+	@Test
+	public void test_batch() 
+	{
+		long[] ids = new long[3];
+		
+		for (int i=0; i<ids.length; i++) {
+			ByteBuffer alloc = ByteBuffer.allocate(1 + 1 + 4);
+			alloc.put((byte) 1);
+			alloc.put(BinaryRequestHandler.TYPE_LONG);
+			alloc.putInt(0);
+			alloc.flip();
+			
+			ByteBuffer reply = _handle(
+					BinaryRequestHandler.OP_ALLOC_TYPED, alloc);
+			reply.position(6);
+			ids[i] = reply.getLong();
+		}
+		
+		// Series i gets i + 1 points
+		ByteBuffer madd = ByteBuffer.allocate(4 + 3*12 + 6*17);
+		madd.putInt(ids.length);
+		for (int i=0; i<ids.length; i++) {
+			madd.putLong(ids[i]);
+			madd.putInt(i + 1);
+			for (int j=0; j<=i; j++) {
+				madd.putLong(1262304000000L + j*60000L);
+				madd.put(BinaryRequestHandler.TYPE_LONG);
+				madd.putLong(i);
+			}
+		}
+		madd.flip();
+		
+		ByteBuffer reply = _handle(BinaryRequestHandler.OP_MADD, 
+				madd);
+		
+		reply.position(1);
+		assertEquals(BinaryRequestHandler.STATUS_OK, reply.get());
+		reply.position(6);
+		assertEquals(6, reply.getInt());
+		
+		ByteBuffer mget = ByteBuffer.allocate(4 + 3*24);
+		mget.putInt(ids.length);
+		for (int i=ids.length-1; i>=0; i--) {
+			mget.putLong(ids[i]);
+			mget.putLong(0);
+			mget.putLong(Long.MAX_VALUE);
+		}
+		mget.flip();
+		
+		reply = _handle(BinaryRequestHandler.OP_MGET, mget);
+		
+		// The series' come back in the order they were asked for
+		reply.position(6);
+		assertEquals(3, reply.getInt());
+		for (int i=ids.length-1; i>=0; i--) {
+			assertEquals(i + 1, reply.getInt());
+			reply.position(reply.position() + (i + 1) * 17);
+		}
+		assertEquals(0, reply.remaining());
+	}
+	
+	@Test
+	public void test_batchPartlyApplied() 
+	{
+		ByteBuffer alloc = ByteBuffer.allocate(1 + 1 + 4);
+		alloc.put((byte) 1);
+		alloc.put(BinaryRequestHandler.TYPE_LONG);
+		alloc.putInt(0);
+		alloc.flip();
+		
+		ByteBuffer reply = _handle(BinaryRequestHandler.OP_ALLOC_TYPED, alloc);
+		reply.position(6);
+		long id = reply.getLong();
+		
+		// The second series doesn't exist, the first one is added to anyway
+		ByteBuffer madd = ByteBuffer.allocate(4 + 2*12 + 2*17);
+		madd.putInt(2);
+		for (long seriesId : new long[] { id, Long.MAX_VALUE }) {
+			madd.putLong(seriesId);
+			madd.putInt(1);
+			madd.putLong(1262304000000L);
+			madd.put(BinaryRequestHandler.TYPE_LONG);
+			madd.putLong(1);
+		}
+		madd.flip();
+		
+		reply = _handle(BinaryRequestHandler.OP_MADD, madd);
+		
+		assertEquals(BinaryRequestHandler.STATUS_ERR, reply.get(1));
+		reply.position(6);
+		String message = StandardCharsets.UTF_8.decode(reply).toString();
+		assertTrue(message, message.startsWith(Long.MAX_VALUE + ": "));
+		assertTrue(message, message.endsWith(". Series' " + id 
+				+ " were written to"));
+	}
+	
+	@Test
+	public void test_largeReply() 
+	{
+		// More points than the chunks of a reply or the tail of a series hold
+		int count = 10000;
+		
+		ByteBuffer alloc = ByteBuffer.allocate(1 + 1 + 4 + count*17);
+		alloc.put((byte) 1);
+		alloc.put(BinaryRequestHandler.TYPE_DOUBLE);
+		alloc.putInt(count);
+		for (int i=0; i<count; i++) {
+			alloc.putLong(1262304000000L + i*1000L);
+			alloc.put(BinaryRequestHandler.TYPE_DOUBLE);
+			alloc.putDouble(i * 0.5);
+		}
+		alloc.flip();
+		
+		ByteBuffer reply = _handle(BinaryRequestHandler.OP_ALLOC_TYPED, alloc);
+		reply.position(6);
+		long id = reply.getLong();
+		
+		ByteBuffer getAll = ByteBuffer.allocate(8);
+		getAll.putLong(id);
+		getAll.flip();
+		
+		reply = _handle(BinaryRequestHandler.OP_GETALL, getAll);
+		
+		assertEquals(BinaryRequestHandler.STATUS_OK, reply.get(1));
+		assertEquals(4 + count*17, reply.getInt(2));
+		reply.position(6);
+		assertEquals(count, reply.getInt());
+		for (int i=0; i<count; i++) {
+			assertEquals(1262304000000L + i*1000L, reply.getLong());
+			assertEquals(BinaryRequestHandler.TYPE_DOUBLE, reply.get());
+			assertEquals(i * 0.5, reply.getDouble(), 0);
+		}
+		assertEquals(0, reply.remaining());
+	}
+	
+	@Test
+	public void test_mixedValues() 
+	{
+		ByteBuffer alloc = ByteBuffer.allocate(1 + 4 + 2*17 + 14);
+		alloc.put((byte) 1);
+		alloc.putInt(3);
+		alloc.putLong(1262304000000L);
+		alloc.put(BinaryRequestHandler.TYPE_LONG);
+		alloc.putLong(7);
+		alloc.putLong(1262304060000L);
+		alloc.put(BinaryRequestHandler.TYPE_BYTES);
+		alloc.putInt(1);
+		alloc.put((byte) 'a');
+		alloc.putLong(1262304120000L);
+		alloc.put(BinaryRequestHandler.TYPE_DOUBLE);
+		alloc.putDouble(1.5);
+		alloc.flip();
+		
+		ByteBuffer reply = _handle(BinaryRequestHandler.OP_ALLOC, alloc);
+		reply.position(6);
+		long id = reply.getLong();
+		
+		ByteBuffer getAll = ByteBuffer.allocate(8);
+		getAll.putLong(id);
+		getAll.flip();
+		
+		reply = _handle(BinaryRequestHandler.OP_GETALL, getAll);
+		
+		// A STRING series holds the nos. the way they are written out
+		reply.position(6);
+		assertEquals(3, reply.getInt());
+		for (String value : new String[] { "7", "a", "1.5" }) {
+			reply.getLong();
+			assertEquals(BinaryRequestHandler.TYPE_BYTES, reply.get());
+			byte[] bytes = new byte[reply.getInt()];
+			reply.get(bytes);
+			assertEquals(value, new String(bytes, StandardCharsets.UTF_8));
+		}
+	}
+	
+	@Test
+	public void test_shortFrame() 
+	{
+		ByteBuffer size = ByteBuffer.allocate(4);
+		size.putInt(1);
+		size.flip();
+		
+		ByteBuffer reply = _handle(BinaryRequestHandler.OP_SIZE, 
+				size);
+		
+		reply.get();
+		assertEquals(BinaryRequestHandler.STATUS_ERR, reply.get());
+	}
+	
+}
@@ -0,0 +1,78 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import main.com.pcache.exceptions.PCacheException;
+import main.com.pcache.utils.ISO8601Parser;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+import org.junit.Test;
+
+public class ISO8601ParserTest
+{
+
+	private DateTimeFormatter _joda = ISODateTimeFormat.dateTime();
+
+	@Test
+	public void test_matchesJoda() throws PCacheException
+	{
+		Random random = new Random(42);
+		int[] offsets = {0, 19800000, -18000000, 45900000, -34200000};
+		
+		for (int i=0; i<10000; i++) {
+			
+			// Anywhere between 1900 and 2100, in a handful of zones
+			long milis = -2208988800000L + (long) (random.nextDouble() * 6311433600000L);
+			DateTimeZone zone = DateTimeZone.forOffsetMillis(
+					offsets[random.nextInt(offsets.length)]);
+			
+			String timestamp = _joda.withZone(zone).print(milis);
+			
+			assertEquals(timestamp, milis, ISO8601Parser.parse(timestamp));
+		}
+	}
+	
+	@Test
+	public void test_leapDay() throws PCacheException
+	{
+		String timestamp = "2012-02-29T23:59:59.999-05:00";
+		
+		assertEquals(_joda.parseDateTime(timestamp).getMillis(), 
+				ISO8601Parser.parse(timestamp));
+	}
+	
+	@Test
+	public void test_otherFormatsFallBackToJoda() throws PCacheException
+	{
+		String timestamp = "2010-01-01T12:00:00.5+05:30";
+		
+		assertEquals(_joda.parseDateTime(timestamp).getMillis(), 
+				ISO8601Parser.parse(timestamp));
+		assertEquals(new DateTime(2010, 1, 1, 12, 0, DateTimeZone.UTC).getMillis(), 
+				ISO8601Parser.parse("2010-01-01T12:00:00.000Z"));
+	}
+	
+	@Test (expected=PCacheException.class)
+	public void test_invalidDay() throws PCacheException
+	{
+		ISO8601Parser.parse("2011-02-29T12:00:00.000+05:30");
+	}
+	
+	@Test (expected=PCacheException.class)
+	public void test_invalidOffset() throws PCacheException
+	{
+		ISO8601Parser.parse("2011-02-20T12:00:00.000+05-30");
+	}
+	
+	@Test (expected=PCacheException.class)
+	public void test_null() throws PCacheException
+	{
+		ISO8601Parser.parse(null);
+	}
+	
+}
@@ -1,14 +1,21 @@
 package test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import main.com.pcache.DO.PCacheTimestamp;
 import main.com.pcache.DO.timeseries.VariableTimeseries;
+import main.com.pcache.DO.timeseries.store.StoreType;
+import main.com.pcache.engines.Eviction;
 import main.com.pcache.engines.VariableTimeseriesEngine;
 import main.com.pcache.exceptions.PCacheException;
 
@@ -991,4 +998,162 @@ public class VariableTimeseriesEngineTests
 		assertEquals(expectedTimeseries.toJson(), actualTimeseries.toJson());
 		
 	}
+	
+	@Test
+	public void test_concurrentAddPoints_ok() throws Exception
+	{
+		List<String> timestamps = new ArrayList<String>() {{
+			add("2000-01-01T00:00:00.000+05:30");
+		}};
+		
+		List<String> dataPoints = new ArrayList<String>() {{
+			add("0");
+		}};
+		
+		final long id = VariableTimeseriesEngine.allocate(timestamps, dataPoints);
+		
+		ExecutorService executorService = Executors.newFixedThreadPool(4);
+		List<Future<Object>> futures = new ArrayList<>();
+		
+		// Every thread adds its own year of points while reading the series
+		for (int t=0; t<4; t++) {
+			
+			final int year = 2010 + t;
+			
+			futures.add(executorService.submit(new Callable<Object>() {
+				
+				@Override
+				public Object call() throws PCacheException {
+					
+					for (int day=10; day<28; day++) {
+						
+						List<String> timestampsToAdd = new ArrayList<>();
+						List<String> dataPointsToAdd = new ArrayList<>();
+						
+						timestampsToAdd.add(year + "-01-" + day + "T12:00:00.000+05:30");
+						dataPointsToAdd.add(String.valueOf(day));
+						
+						VariableTimeseriesEngine.addPoints(id, timestampsToAdd, 
+								dataPointsToAdd);
+						VariableTimeseriesEngine.getAll(id).toJson();
+					}
+					
+					return null;
+				}
+			}));
+		}
+		
+		for (Future<Object> future : futures) {
+			future.get();
+		}
+		
+		executorService.shutdown();
+		
+		assertEquals(1 + 4*18, VariableTimeseriesEngine.size(id));
+	}
+
+	@Test
+	public void test_evict_ok() throws PCacheException
+	{
+		List<String> timestamps = new ArrayList<>();
+		List<String> dataPoints = new ArrayList<>();
+
+		for (int day=10; day<28; day++) {
+			timestamps.add("2010-01-" + day + "T12:00:00.000+05:30");
+			dataPoints.add("value " + day);
+		}
+
+		long cold = VariableTimeseriesEngine.allocate(timestamps, dataPoints,
+				StoreType.COLUMNAR);
+		long hot = VariableTimeseriesEngine.allocate(timestamps, dataPoints,
+				StoreType.COLUMNAR);
+
+		String json = VariableTimeseriesEngine.getAll(cold).toJson();
+		VariableTimeseriesEngine.getAll(hot);
+
+		long heapSize = VariableTimeseriesEngine.heapSize();
+
+		// Short of room for everything, the series' looked up the least
+		// recently have to go
+		long budget = heapSize - VariableTimeseriesEngine.getAll(hot)
+				.heapSize() / 2;
+
+		try {
+			VariableTimeseriesEngine.setMemoryBudget(budget, Eviction.SPILL);
+			VariableTimeseriesEngine.getAll(hot);
+
+			assertTrue(VariableTimeseriesEngine.evict() > 0);
+			assertTrue(VariableTimeseriesEngine.heapSize() < heapSize);
+
+			// Spilled, until it is looked up again
+			assertTrue(VariableTimeseriesEngine.countSpilled() > 0);
+			assertEquals(json, VariableTimeseriesEngine.getAll(cold).toJson());
+			assertEquals(StoreType.COLUMNAR,
+					VariableTimeseriesEngine.getStoreType(cold));
+			assertEquals(StoreType.COLUMNAR,
+					VariableTimeseriesEngine.getStoreType(hot));
+		}
+
+		finally {
+			VariableTimeseriesEngine.setMemoryBudget(0, Eviction.SPILL);
+		}
+	}
+
+	@Test
+	public void test_sweep_ok() throws PCacheException
+	{
+		long[] timestamps = new long[3000];
+		List<String> dataPoints = new ArrayList<>();
+
+		for (int i=0; i<timestamps.length; i++) {
+			timestamps[i] = i * 1000L;
+			dataPoints.add(String.valueOf(i));
+		}
+
+		long byAge = VariableTimeseriesEngine.allocate(timestamps, dataPoints,
+				StoreType.SEGMENT);
+		long byCount = VariableTimeseriesEngine.allocate(timestamps,
+				dataPoints, StoreType.COLUMNAR);
+		long expiring = VariableTimeseriesEngine.allocate(timestamps,
+				dataPoints, StoreType.COLUMNAR);
+
+		// The newest point is at 2999s, the oldest kept at 999s
+		VariableTimeseriesEngine.setRetention(byAge, 2000000L, 0);
+		VariableTimeseriesEngine.setRetention(byCount, 0, 100);
+		VariableTimeseriesEngine.expire(expiring, 1);
+
+		// Nothing is dropped till the sweep
+		assertEquals(3000, VariableTimeseriesEngine.size(byAge));
+
+		try {
+			Thread.sleep(5);
+		}
+
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+
+		assertTrue(VariableTimeseriesEngine.sweep() >= 3);
+
+		assertEquals(2001, VariableTimeseriesEngine.size(byAge));
+		assertEquals(1, VariableTimeseriesEngine.getBetween(byAge, 0L,
+				999000L).size());
+		assertEquals(100, VariableTimeseriesEngine.size(byCount));
+
+		try {
+			VariableTimeseriesEngine.size(expiring);
+			assertTrue("The series should have expired", false);
+		}
+
+		catch (PCacheException ex) {
+			// Expected
+		}
+
+		// Already within the limits
+		VariableTimeseriesEngine.sweep();
+		assertEquals(2001, VariableTimeseriesEngine.size(byAge));
+
+		VariableTimeseriesEngine.deallocate(byAge);
+		VariableTimeseriesEngine.deallocate(byCount);
+	}
 }
@@ -2,13 +2,33 @@ package test;
 
 import static org.junit.Assert.*;
 
+import java.io.IOException;
+import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.TreeMap;
 
+import main.com.pcache.DO.timeseries.RegularTimeseries;
+import main.com.pcache.DO.timeseries.Retention;
 import main.com.pcache.DO.timeseries.VariableTimeseries;
+import main.com.pcache.DO.timeseries.aggregation.Aggregation;
+import main.com.pcache.DO.timeseries.resolution.Resolution;
+import main.com.pcache.DO.timeseries.store.Adjustment;
+import main.com.pcache.DO.timeseries.store.CursorReader;
+import main.com.pcache.DO.timeseries.store.SegmentAllocator;
+import main.com.pcache.DO.timeseries.store.StoreType;
+import main.com.pcache.DO.timeseries.store.TickStore;
+import main.com.pcache.DO.timeseries.store.TimeseriesCursor;
+import main.com.pcache.DO.timeseries.store.TimeseriesStore;
+import main.com.pcache.DO.timeseries.store.ValueArray;
+import main.com.pcache.DO.timeseries.store.ValueType;
 import main.com.pcache.exceptions.PCacheException;
+import main.com.pcache.utils.Commons;
 
 import org.junit.After;
 import org.junit.Before;
@@ -267,4 +287,1537 @@ public class VariableTimeseriesTest
 		
 	}
 
+	@Test
+	public void testColumnarTimeseriesRanges() throws PCacheException
+	{
+		
+		ArrayList<String> timestamps = new ArrayList<String>() {{
+			
+			add("2010-01-27T12:00:00.000+05:30");
+			add("2010-01-01T12:00:00.000+05:30");
+			add("2010-01-03T12:00:00.000+05:30");
+			add("2010-01-02T12:00:00.000+05:30");
+			add("2010-01-08T12:00:00.000+05:30");
+			add("2010-01-10T12:00:00.000+05:30");
+			add("2010-01-11T12:00:00.000+05:30");
+			add("2010-01-23T12:00:00.000+05:30");
+			
+		}};
+		
+		ArrayList<String> dataPoints = new ArrayList<String>() {{
+			
+			add("UP");
+			add("UP");
+			add("UP");
+			add("DOWN");
+			add("UP");
+			add("DOWN");
+			add("UP");
+			add("UP");
+			
+		}};
+
+		VariableTimeseries ts = new VariableTimeseries(timestamps, dataPoints,
+				StoreType.COLUMNAR);
+
+		assertEquals(3, ts.getRangeBetween("2010-01-05T12:00:00.000+05:30", 
+				"2010-01-20T12:00:00.000+05:30").size());
+		assertEquals(3, ts.getRangeBetween("2010-01-08T12:00:00.000+05:30", 
+				"2010-01-11T12:00:00.000+05:30").size());
+		assertEquals(5, ts.getRangeFrom("2010-01-05T12:00:00.000+05:30").size());
+		assertEquals(6, ts.getRangeTo("2010-01-20T12:00:00.000+05:30").size());
+		assertEquals("DOWN", ts.getOne("2010-01-02T12:00:00.000+05:30"));
+
+		// A range is a view over the arrays of the series, not a copy
+		VariableTimeseries range = ts.getRangeBetween(
+				"2010-01-05T12:00:00.000+05:30", "2010-01-20T12:00:00.000+05:30");
+		assertTrue(range.heapSize() < 64);
+
+		ts.addPoints(Arrays.asList("2010-01-09T12:00:00.000+05:30",
+				"2010-01-21T12:00:00.000+05:30"), Arrays.asList("UP", "UP"));
+		assertEquals(4, range.size());
+		assertEquals(3, range.getRangeFrom("2010-01-09T12:00:00.000+05:30")
+				.size());
+
+	}
+
+	@Test
+	public void testColumnarTimeseriesMatchesTreeMap() throws PCacheException
+	{
+		
+		ArrayList<String> timestamps = new ArrayList<String>() {{
+			
+			add("2010-01-03T12:00:00.000+05:30");
+			add("2010-01-01T12:00:00.000+05:30");
+			add("2010-01-02T12:00:00.000+05:30");
+			
+		}};
+		
+		ArrayList<String> dataPoints = new ArrayList<String>() {{
+			
+			add("UP");
+			add("DOWN");
+			add("UP");
+			
+		}};
+
+		ArrayList<String> timestampsToRemove = new ArrayList<String>() {{
+			
+			add("2010-01-02T12:00:00.000+05:30");
+			
+		}};
+
+		VariableTimeseries treeMapTs = new VariableTimeseries(timestamps, 
+				dataPoints, StoreType.TREEMAP);
+		VariableTimeseries columnarTs = new VariableTimeseries(timestamps, 
+				dataPoints, StoreType.COLUMNAR);
+
+		treeMapTs.removePoints(timestampsToRemove);
+		columnarTs.removePoints(timestampsToRemove);
+
+		assertEquals(treeMapTs.size(), columnarTs.size());
+		assertEquals(treeMapTs.toJson(), columnarTs.toJson());
+
+	}
+
+	@Test (expected=PCacheException.class)
+	public void testColumnarTimeseriesRangeFromExceeds() throws PCacheException
+	{
+		
+		ArrayList<String> timestamps = new ArrayList<String>() {{
+			
+			add("2010-01-01T12:00:00.000+05:30");
+			
+		}};
+		
+		ArrayList<String> dataPoints = new ArrayList<String>() {{
+			
+			add("UP");
+			
+		}};
+
+		VariableTimeseries ts = new VariableTimeseries(timestamps, dataPoints,
+				StoreType.COLUMNAR);
+
+		ts.getRangeFrom("2010-01-02T12:00:00.000+05:30");
+
+	}
+
+	@Test
+	public void testTimeseriesWriteJson() throws Exception
+	{
+		
+		ArrayList<String> timestamps = new ArrayList<String>() {{
+			
+			add("2010-01-02T12:00:00.000+05:30");
+			add("2010-01-01T12:00:00.000+05:30");
+			
+		}};
+		
+		ArrayList<String> dataPoints = new ArrayList<String>() {{
+			
+			add("DOWN");
+			add("<UP\u00e9>");
+			
+		}};
+
+		VariableTimeseries ts = new VariableTimeseries(timestamps, dataPoints);
+
+		StringWriter out = new StringWriter();
+		long bytesWritten = ts.writeJson(out);
+
+		assertEquals("{\"2010-01-01T12:00:00.000+05:30\":\"\\u003cUP\u00e9\\u003e\","
+				+ "\"2010-01-02T12:00:00.000+05:30\":\"DOWN\"}", out.toString());
+		assertEquals(out.toString().getBytes("UTF-8").length, bytesWritten);
+
+	}
+
+	@Test
+	public void testTimeseriesEveryNth() throws PCacheException
+	{
+
+		List<String> timestamps = new ArrayList<>();
+		List<String> dataPoints = new ArrayList<>();
+
+		for (int i=1; i<=9; i++) {
+			timestamps.add("2010-01-0" + i + "T12:00:00.000+05:30");
+			dataPoints.add(String.valueOf(i));
+		}
+
+		long from = Commons.convertISO8601toMilis("2010-01-02T00:00:00.000+05:30");
+		long to = Commons.convertISO8601toMilis("2010-01-08T12:00:00.000+05:30");
+
+		for (StoreType storeType : StoreType.values()) {
+
+			// Only regular series' are held in TICK stores
+			if (storeType == StoreType.TICK) {
+				continue;
+			}
+
+			VariableTimeseries ts = new VariableTimeseries(timestamps, 
+					dataPoints, storeType);
+
+			assertEquals("{\"2010-01-02T12:00:00.000+05:30\":\"2\","
+					+ "\"2010-01-05T12:00:00.000+05:30\":\"5\","
+					+ "\"2010-01-08T12:00:00.000+05:30\":\"8\"}",
+					ts.getAtResolution(from, to, Resolution.NTH, 3).toJson());
+		}
+
+	}
+
+	@Test
+	public void testTimeseriesBuckets() throws PCacheException
+	{
+
+		ArrayList<String> timestamps = new ArrayList<String>() {{
+
+			add("2010-01-01T00:00:00.000Z");
+			add("2010-01-01T00:20:00.000Z");
+			add("2010-01-01T00:40:00.000Z");
+			add("2010-01-01T01:10:00.000Z");
+			add("2010-01-01T01:50:00.000Z");
+
+		}};
+
+		ArrayList<String> dataPoints = new ArrayList<String>() {{
+
+			add("4");
+			add("1");
+			add("7");
+			add("2");
+			add("3");
+
+		}};
+
+		VariableTimeseries ts = new VariableTimeseries(timestamps, dataPoints,
+				StoreType.COLUMNAR);
+
+		long from = Commons.convertISO8601toMilis(timestamps.get(0));
+		long to = Commons.convertISO8601toMilis(timestamps.get(4));
+		long hour = Resolution.AVG.parseParameter("1h");
+
+		assertEquals("{\"2010-01-01T00:00:00.000Z\":\"4.0\","
+				+ "\"2010-01-01T01:00:00.000Z\":\"2.5\"}",
+				ts.getAtResolution(from, to, Resolution.AVG, hour).toJson());
+
+		assertEquals("{\"2010-01-01T00:20:00.000Z\":\"1\","
+				+ "\"2010-01-01T01:10:00.000Z\":\"2\"}",
+				ts.getAtResolution(from, to, Resolution.MIN, hour).toJson());
+
+		assertEquals("{\"2010-01-01T00:40:00.000Z\":\"7\","
+				+ "\"2010-01-01T01:50:00.000Z\":\"3\"}",
+				ts.getAtResolution(from, to, Resolution.MAX, hour).toJson());
+
+		assertEquals("{\"2010-01-01T00:00:00.000Z\":\"4\","
+				+ "\"2010-01-01T01:10:00.000Z\":\"2\"}",
+				ts.getAtResolution(from, to, Resolution.FIRST, hour).toJson());
+
+		assertEquals("{\"2010-01-01T00:40:00.000Z\":\"7\","
+				+ "\"2010-01-01T01:50:00.000Z\":\"3\"}",
+				ts.getAtResolution(from, to, Resolution.LAST, hour).toJson());
+
+	}
+
+	@Test
+	public void testTimeseriesLTTB() throws PCacheException
+	{
+
+		long start = Commons.convertISO8601toMilis("2010-01-01T00:00:00.000Z");
+
+		long[] timestamps = new long[1000];
+		List<String> dataPoints = new ArrayList<>();
+
+		for (int i=0; i<timestamps.length; i++) {
+			timestamps[i] = start + i * 60000L;
+			dataPoints.add(i == 500 ? "100" : String.valueOf(i % 2));
+		}
+
+		VariableTimeseries ts = new VariableTimeseries(timestamps, dataPoints,
+				StoreType.TREEMAP);
+
+		VariableTimeseries downsampled = ts.getAtResolution(start, 
+				timestamps[999], Resolution.LTTB, 50);
+
+		assertTrue(downsampled.size() <= 50);
+		assertNotNull(downsampled.getOne("2010-01-01T00:00:00.000Z"));
+		assertNotNull(downsampled.getOne("2010-01-01T16:39:00.000Z"));
+
+		// The spike is what makes the shape, it has to be kept
+		assertEquals("100", downsampled.getOne("2010-01-01T08:20:00.000Z"));
+
+	}
+
+	@Test
+	public void testTimeseriesAggregate() throws PCacheException
+	{
+
+		long start = Commons.convertISO8601toMilis("2010-01-01T00:00:00.000Z");
+
+		long[] timestamps = new long[5];
+		List<String> dataPoints = Arrays.asList("4", "1", "7", "2", "3");
+
+		for (int i=0; i<timestamps.length; i++) {
+			timestamps[i] = start + i * 60000L;
+		}
+
+		for (StoreType storeType : StoreType.values()) {
+
+			if (storeType == StoreType.TICK) {
+				continue;
+			}
+
+			VariableTimeseries ts = new VariableTimeseries(timestamps,
+					dataPoints, storeType);
+
+			long to = timestamps[4];
+
+			assertEquals("5", ts.aggregate(start, to, Aggregation.COUNT, 0));
+			assertEquals("17.0", ts.aggregate(start, to, Aggregation.SUM, 0));
+			assertEquals("1.0", ts.aggregate(start, to, Aggregation.MIN, 0));
+			assertEquals("7.0", ts.aggregate(start, to, Aggregation.MAX, 0));
+			assertEquals("3.4", ts.aggregate(start, to, Aggregation.MEAN, 0));
+			assertEquals("4", ts.aggregate(start, to, Aggregation.FIRST, 0));
+			assertEquals("3", ts.aggregate(start, to, Aggregation.LAST, 0));
+			assertEquals("3.0", ts.aggregate(start, to,
+					Aggregation.PERCENTILE, 50));
+			assertEquals("3.5", ts.aggregate(start, to,
+					Aggregation.PERCENTILE, 62.5));
+			assertEquals(Math.sqrt(4.24), Double.parseDouble(ts.aggregate(
+					start, to, Aggregation.STDDEV, 0)), 1e-9);
+
+			// Only the points in the range count
+			assertEquals("3", ts.aggregate(timestamps[1], timestamps[3],
+					Aggregation.COUNT, 0));
+			assertEquals("10.0", ts.aggregate(timestamps[1], timestamps[3],
+					Aggregation.SUM, 0));
+
+			assertEquals("0", ts.aggregate(to + 1, to + 2,
+					Aggregation.COUNT, 0));
+			assertEquals("0.0", ts.aggregate(to + 1, to + 2,
+					Aggregation.SUM, 0));
+
+			try {
+				ts.aggregate(to + 1, to + 2, Aggregation.MEAN, 0);
+				fail("The MEAN of an empty range should fail");
+			}
+
+			catch (PCacheException ex) {
+				// Expected
+			}
+		}
+
+	}
+
+	@Test
+	public void testTimeseriesRollups() throws PCacheException
+	{
+
+		long start = Commons.convertISO8601toMilis("2010-01-01T00:00:00.000Z");
+		Random random = new Random(42);
+
+		long[] timestamps = new long[5000];
+		List<String> dataPoints = new ArrayList<>();
+
+		for (int i=0; i<timestamps.length; i++) {
+			timestamps[i] = start + i * 7000L;
+			dataPoints.add(String.valueOf(random.nextInt(100)));
+		}
+
+		VariableTimeseries plain = new VariableTimeseries(timestamps,
+				dataPoints, StoreType.COLUMNAR, ValueType.LONG);
+		VariableTimeseries rolledUp = new VariableTimeseries(timestamps,
+				dataPoints, StoreType.COLUMNAR, ValueType.LONG);
+
+		rolledUp.setRollups(new long[] { 3600000L, 60000L });
+		assertArrayEquals(new long[] { 60000L, 3600000L },
+				rolledUp.getRollups());
+
+		// Writes after the tiers are built have to be rolled up too
+		for (int i=0; i<500; i++) {
+
+			long[] timestamp = { timestamps[random.nextInt(timestamps.length)] };
+
+			if (!plain.contains(Commons.convertMilisToISO8601(timestamp[0],
+					null))) {
+				List<String> value = Arrays.asList(String.valueOf(i));
+				plain.addPoints(timestamp, value);
+				rolledUp.addPoints(timestamp, value);
+			}
+
+			else if (i % 2 == 0) {
+				plain.removePoints(timestamp);
+				rolledUp.removePoints(timestamp);
+			}
+
+			else {
+				List<String> value = Arrays.asList(String.valueOf(
+						random.nextInt(200) - 50));
+				plain.updatePoints(timestamp, value);
+				rolledUp.updatePoints(timestamp, value);
+			}
+		}
+
+		// A timestamp that is repeated is only taken out once
+		long[] repeated = { timestamps[10], timestamps[10], timestamps[11] };
+		plain.removePoints(repeated);
+		rolledUp.removePoints(repeated);
+		assertEquals(plain.size(), rolledUp.size());
+
+		// Edges that cut through buckets of either tier
+		long from = start + 12345;
+		long to = timestamps[4000] + 54321;
+
+		for (Resolution resolution : Arrays.asList(Resolution.FIRST,
+				Resolution.LAST, Resolution.MIN, Resolution.MAX,
+				Resolution.AVG)) {
+
+			for (long width : new long[] { 60000L, 2 * 3600000L, 45000L }) {
+				assertEquals(resolution + " " + width,
+						plain.getAtResolution(from, to, resolution, width)
+								.toJson(),
+						rolledUp.getAtResolution(from, to, resolution, width)
+								.toJson());
+			}
+		}
+
+		for (Aggregation aggregation : Aggregation.values()) {
+			assertEquals(aggregation.toString(),
+					plain.aggregate(from, to, aggregation, 50),
+					rolledUp.aggregate(from, to, aggregation, 50));
+		}
+
+		rolledUp.setRollups(new long[0]);
+		assertEquals(0, rolledUp.getRollups().length);
+
+	}
+
+	@Test
+	public void testTimeseriesRollupsLargeLongs() throws PCacheException
+	{
+
+		// Whole nos. beyond 2^53 that a double can't tell apart
+		long[] timestamps = { 1000L, 2000L, 3000L, 61000L, 62000L };
+		List<String> dataPoints = Arrays.asList("9007199254740993",
+				"9007199254740995", "9007199254740997", "-9007199254740993",
+				"12");
+
+		VariableTimeseries plain = new VariableTimeseries(timestamps,
+				dataPoints, StoreType.COLUMNAR, ValueType.LONG);
+		VariableTimeseries rolledUp = new VariableTimeseries(timestamps,
+				dataPoints, StoreType.COLUMNAR, ValueType.LONG);
+
+		rolledUp.setRollups(new long[] { 60000L });
+
+		for (Resolution resolution : Arrays.asList(Resolution.FIRST,
+				Resolution.LAST, Resolution.MIN, Resolution.MAX)) {
+			assertEquals(resolution.toString(),
+					plain.getAtResolution(0, 120000L, resolution, 60000L)
+							.toJson(),
+					rolledUp.getAtResolution(0, 120000L, resolution, 60000L)
+							.toJson());
+		}
+
+		assertEquals("9007199254740993", rolledUp.aggregate(0, 3000L,
+				Aggregation.FIRST, 0));
+		assertEquals("9007199254740997", rolledUp.aggregate(0, 3000L,
+				Aggregation.LAST, 0));
+
+	}
+
+	@Test
+	public void testTimeseriesRemoveRange() throws PCacheException
+	{
+
+		long[] timestamps = new long[5000];
+		List<String> dataPoints = new ArrayList<>();
+
+		for (int i=0; i<timestamps.length; i++) {
+			timestamps[i] = i * 7000L;
+			dataPoints.add(String.valueOf(i % 97));
+		}
+
+		// Cuts through chunks of a SEGMENT store and buckets of the rollup
+		long from = timestamps[700] + 1;
+		long to = timestamps[3900] - 1;
+		long[] removed = Arrays.copyOfRange(timestamps, 701, 3900);
+
+		for (StoreType storeType : new StoreType[] { StoreType.TREEMAP,
+				StoreType.COLUMNAR, StoreType.SEGMENT, StoreType.REGULAR }) {
+
+			VariableTimeseries plain = new VariableTimeseries(timestamps,
+					dataPoints, storeType, ValueType.LONG);
+			VariableTimeseries ranged = new VariableTimeseries(timestamps,
+					dataPoints, storeType, ValueType.LONG);
+
+			ranged.setRollups(new long[] { 60000L });
+
+			plain.removePoints(removed);
+			assertEquals(removed.length, ranged.removeRange(from, to));
+			assertEquals(0, ranged.removeRange(from, to));
+
+			assertEquals(storeType.toString(), plain.toJson(), ranged.toJson());
+			assertEquals(plain.aggregate(0, Long.MAX_VALUE, Aggregation.SUM, 0),
+					ranged.aggregate(0, Long.MAX_VALUE, Aggregation.SUM, 0));
+			assertEquals(plain.aggregate(0, Long.MAX_VALUE, Aggregation.COUNT,
+					0), ranged.aggregate(0, Long.MAX_VALUE, Aggregation.COUNT, 0));
+
+			// Everything, down to an empty series
+			assertEquals(5000 - removed.length, ranged.removeRange(
+					Long.MIN_VALUE, Long.MAX_VALUE));
+			assertEquals(0, ranged.size());
+		}
+
+		VariableTimeseries ts = new VariableTimeseries(timestamps, dataPoints,
+				StoreType.COLUMNAR);
+
+		ts.setRetention(new Retention(0, 100, 0));
+		assertEquals(timestamps[4900], ts.getRetainedFrom());
+
+		ts.setRetention(new Retention(7000L * 10, 100, 0));
+		assertEquals(timestamps[4989], ts.getRetainedFrom());
+
+		ts.setRetention(Retention.NONE);
+		assertEquals(Long.MIN_VALUE, ts.getRetainedFrom());
+
+	}
+
+	@Test
+	public void testTimeseriesAdjustRange() throws PCacheException,
+			IOException
+	{
+
+		long[] timestamps = new long[5000];
+		List<String> dataPoints = new ArrayList<>();
+
+		for (int i=0; i<timestamps.length; i++) {
+			timestamps[i] = i * 7000L;
+			dataPoints.add(String.valueOf(i % 97 * 1.0));
+		}
+
+		// Cuts through chunks of a SEGMENT store and buckets of the rollup
+		long from = timestamps[700] + 1;
+		long to = timestamps[3900] - 1;
+		long[] adjusted = Arrays.copyOfRange(timestamps, 701, 3900);
+		List<String> shifted = new ArrayList<>();
+		List<String> scaled = new ArrayList<>();
+
+		for (int i=701; i<3900; i++) {
+			shifted.add(String.valueOf(i % 97 - 3.0));
+			scaled.add(String.valueOf((i % 97 - 3) * 2.5));
+		}
+
+		for (StoreType storeType : new StoreType[] { StoreType.TREEMAP,
+				StoreType.COLUMNAR, StoreType.SEGMENT, StoreType.REGULAR }) {
+
+			VariableTimeseries plain = new VariableTimeseries(timestamps,
+					dataPoints, storeType, ValueType.DOUBLE);
+			VariableTimeseries ranged = new VariableTimeseries(timestamps,
+					dataPoints, storeType, ValueType.DOUBLE);
+
+			ranged.setRollups(new long[] { 60000L });
+
+			plain.updatePoints(adjusted, shifted);
+			assertEquals(adjusted.length, ranged.adjustRange(from, to,
+					Adjustment.SHIFT, -3));
+			assertEquals(storeType.toString(), plain.toJson(), ranged.toJson());
+
+			plain.updatePoints(adjusted, scaled);
+			assertEquals(adjusted.length, ranged.adjustRange(from, to,
+					Adjustment.SCALE, 2.5));
+			assertEquals(storeType.toString(), plain.toJson(), ranged.toJson());
+
+			assertEquals(plain.aggregate(0, Long.MAX_VALUE, Aggregation.SUM, 0),
+					ranged.aggregate(0, Long.MAX_VALUE, Aggregation.SUM, 0));
+			assertEquals(plain.aggregate(0, Long.MAX_VALUE, Aggregation.MIN, 0),
+					ranged.aggregate(0, Long.MAX_VALUE, Aggregation.MIN, 0));
+
+			assertEquals(0, ranged.adjustRange(-10, -1, Adjustment.SHIFT, 1));
+		}
+
+		// Whole values stay whole, and are shifted without losing precision
+		VariableTimeseries ts = new VariableTimeseries(timestamps,
+				Collections.nCopies(timestamps.length, "2"), StoreType.COLUMNAR,
+				ValueType.LONG);
+
+		ts.adjustRange(0, 0, Adjustment.SHIFT, (1L << 52) + 1);
+		ts.adjustRange(0, 0, Adjustment.SHIFT, (1L << 52) + 1);
+		ts.adjustRange(7000L, 14000L, Adjustment.SCALE, 1.25);
+
+		assertEquals("9007199254740996", ts.getRangeBetween(0, 0)
+				.read(new FirstValue()));
+		assertEquals("2", ts.getRangeBetween(7000L, 7000L)
+				.read(new FirstValue()));
+		assertEquals("2", ts.getRangeBetween(14000L, 14000L)
+				.read(new FirstValue()));
+
+		// Neither overflows nor infinite values are stored, and a range that
+		// would hold one is left as it is
+		VariableTimeseries doubles = new VariableTimeseries(timestamps,
+				Collections.nCopies(timestamps.length, "2"), StoreType.COLUMNAR,
+				ValueType.DOUBLE);
+
+		Object[][] overflows = {
+				{ ts, Adjustment.SHIFT, (double) Long.MAX_VALUE },
+				{ ts, Adjustment.SCALE, (double) (1L << 62) },
+				{ ts, Adjustment.SCALE, 1e300 },
+				{ doubles, Adjustment.SCALE, 1e308 } };
+
+		for (Object[] overflow : overflows) {
+
+			VariableTimeseries series = (VariableTimeseries) overflow[0];
+			String json = series.toJson();
+
+			try {
+				series.adjustRange(0, 14000L, (Adjustment) overflow[1],
+						(Double) overflow[2]);
+				fail(overflow[1] + " " + overflow[2]);
+			}
+
+			catch (PCacheException ex) {
+				assertEquals(json, series.toJson());
+			}
+		}
+
+	}
+
+	@Test (expected=PCacheException.class)
+	public void testTimeseriesAdjustRangeOfStrings() throws PCacheException
+	{
+
+		VariableTimeseries ts = new VariableTimeseries(new long[] { 0L },
+				Arrays.asList("a"), StoreType.COLUMNAR);
+
+		ts.adjustRange(0, 0, Adjustment.SHIFT, 1);
+
+	}
+
+	@Test
+	public void testTimeseriesUpsert() throws PCacheException
+	{
+
+		long[] timestamps = new long[] { 1000L, 2000L, 3000L };
+		List<String> dataPoints = Arrays.asList("1", "2", "3");
+
+		for (StoreType storeType : new StoreType[] { StoreType.TREEMAP,
+				StoreType.COLUMNAR, StoreType.SEGMENT, StoreType.REGULAR }) {
+
+			VariableTimeseries plain = new VariableTimeseries(timestamps,
+					dataPoints, storeType, ValueType.LONG);
+			VariableTimeseries upserted = new VariableTimeseries(timestamps,
+					dataPoints, storeType, ValueType.LONG);
+
+			upserted.setRollups(new long[] { 60000L });
+
+			// Overwrites a point and adds one
+			plain.updatePoints(new long[] { 2000L }, Arrays.asList("20"));
+			plain.addPoints(new long[] { 2500L }, Arrays.asList("25"));
+			upserted.upsertPoints(new long[] { 2000L, 2500L },
+					Arrays.asList("20", "25"));
+
+			// Only appends
+			plain.addPoints(new long[] { 4000L, 5000L },
+					Arrays.asList("4", "5"));
+			upserted.upsertPoints(new long[] { 4000L, 5000L },
+					Arrays.asList("4", "5"));
+
+			// The same point twice, the last one wins
+			plain.addPoints(new long[] { 6000L }, Arrays.asList("7"));
+			upserted.upsertPoints(new long[] { 6000L, 6000L },
+					Arrays.asList("6", "7"));
+
+			assertEquals(storeType.toString(), plain.toJson(),
+					upserted.toJson());
+			assertEquals(plain.aggregate(0, Long.MAX_VALUE, Aggregation.SUM, 0),
+					upserted.aggregate(0, Long.MAX_VALUE, Aggregation.SUM, 0));
+		}
+
+		VariableTimeseries ts = new VariableTimeseries(timestamps, dataPoints,
+				StoreType.COLUMNAR, ValueType.LONG);
+
+		try {
+			ts.upsertPoints(new long[] { 1000L, 7000L },
+					Arrays.asList("1", "UP"));
+			fail("Point should be rejected");
+		}
+
+		catch (PCacheException ex) {
+			assertEquals(3, ts.size());
+		}
+
+	}
+
+	@Test
+	public void testTimeseriesAppend() throws PCacheException
+	{
+
+		Random random = new Random(42);
+
+		for (StoreType storeType : new StoreType[] { StoreType.TREEMAP,
+				StoreType.COLUMNAR, StoreType.SEGMENT }) {
+
+			VariableTimeseries expected = new VariableTimeseries(new long[0],
+					new ArrayList<String>(), StoreType.TREEMAP, ValueType.LONG);
+			VariableTimeseries ts = new VariableTimeseries(new long[0],
+					new ArrayList<String>(), storeType, ValueType.LONG);
+
+			ts.setRollups(new long[] { 60000L });
+
+			// Ticks at the end, now and then a late one, read as they come in
+			for (int i=1; i<=10000; i++) {
+
+				long timestamp = random.nextInt(50) == 0 && i > 10
+						? (i - 10) * 1000L + 500 : i * 1000L;
+				List<String> value = Arrays.asList(String.valueOf(i % 89));
+
+				expected.upsertPoints(new long[] { timestamp }, value);
+				ts.upsertPoints(new long[] { timestamp }, value);
+
+				if (i % 1500 == 0) {
+					assertEquals(expected.size(), ts.size());
+				}
+			}
+
+			// More than the tail holds at once
+			long[] timestamps = new long[5000];
+			List<String> dataPoints = new ArrayList<>();
+
+			for (int i=0; i<timestamps.length; i++) {
+				timestamps[i] = 20000000L + i * 1000L;
+				dataPoints.add(String.valueOf(i % 7));
+			}
+
+			expected.addPoints(timestamps, dataPoints);
+			ts.addPoints(timestamps, dataPoints);
+
+			assertEquals(storeType.toString(), expected.toJson(), ts.toJson());
+			assertEquals(expected.aggregate(0, Long.MAX_VALUE, Aggregation.SUM,
+					0), ts.aggregate(0, Long.MAX_VALUE, Aggregation.SUM, 0));
+
+			// A point still held back is there to clash with
+			ts.addPoints(new long[] { 30000000L }, Arrays.asList("1"));
+
+			try {
+				ts.addPoints(new long[] { 30000000L }, Arrays.asList("2"));
+				fail("Point should be rejected");
+			}
+
+			catch (PCacheException ex) {
+				assertEquals(expected.size() + 1, ts.size());
+			}
+
+			ts.release();
+		}
+
+	}
+
+	@Test
+	public void testTimeseriesSpill() throws PCacheException
+	{
+
+		// Exactly 4 sealed chunks of a SEGMENT store
+		long[] timestamps = new long[4096];
+		List<String> dataPoints = new ArrayList<>();
+
+		for (int i=0; i<timestamps.length; i++) {
+			timestamps[i] = 1262304000000L + i * 1000L;
+			dataPoints.add("value " + i % 100);
+		}
+
+		VariableTimeseries ts = new VariableTimeseries(timestamps, dataPoints,
+				StoreType.COLUMNAR);
+		String json = ts.toJson();
+		long heapSize = ts.heapSize();
+
+		// The strings alone take more than 40 bytes a point
+		assertTrue(heapSize > 4096 * 40);
+
+		assertTrue(ts.spill() > 0);
+		assertTrue(ts.isSpilled());
+		assertEquals(StoreType.SEGMENT, ts.getStoreType());
+		assertEquals(StoreType.COLUMNAR, ts.getResidentStoreType());
+		assertTrue(ts.heapSize() < heapSize / 10);
+
+		// Already off the heap
+		assertEquals(0, ts.spill());
+
+		// Left where it is until touched
+		ts.adapt();
+		assertEquals(StoreType.SEGMENT, ts.getStoreType());
+
+		ts.touch();
+		assertFalse(ts.isSpilled());
+		assertEquals(StoreType.COLUMNAR, ts.getStoreType());
+		assertEquals(json, ts.toJson());
+		assertEquals(heapSize, ts.heapSize());
+
+	}
+
+	@Test (expected=PCacheException.class)
+	public void testTimeseriesRollupsNotNumeric() throws PCacheException
+	{
+
+		VariableTimeseries ts = new VariableTimeseries(new long[] { 1000L },
+				Arrays.asList("UP"), StoreType.COLUMNAR);
+
+		ts.setRollups(new long[] { 60000L });
+
+	}
+
+	@Test (expected=PCacheException.class)
+	public void testTimeseriesResolutionNotNumeric() throws PCacheException
+	{
+
+		ArrayList<String> timestamps = new ArrayList<String>() {{
+
+			add("2010-01-01T12:00:00.000+05:30");
+
+		}};
+
+		ArrayList<String> dataPoints = new ArrayList<String>() {{
+
+			add("UP");
+
+		}};
+
+		VariableTimeseries ts = new VariableTimeseries(timestamps, dataPoints);
+
+		ts.getAtResolution(0, Long.MAX_VALUE, Resolution.AVG, 60000);
+
+	}
+
+	@Test
+	public void testTimeseriesWriteJsonPrecision() throws Exception
+	{
+
+		ArrayList<String> timestamps = new ArrayList<String>() {{
+
+			add("2010-01-01T12:00:00.000+05:30");
+			add("2010-01-02T12:00:00.000+05:30");
+			add("2010-01-03T12:00:00.000+05:30");
+			add("2010-01-04T12:00:00.000+05:30");
+
+		}};
+
+		ArrayList<String> dataPoints = new ArrayList<String>() {{
+
+			add("1234.56789");
+			add("-9.995");
+			add("0.50");
+			add("UP");
+
+		}};
+
+		VariableTimeseries ts = new VariableTimeseries(timestamps, dataPoints,
+				StoreType.COLUMNAR);
+
+		StringWriter out = new StringWriter();
+		ts.writeJson(out, 2);
+
+		assertEquals("{\"2010-01-01T12:00:00.000+05:30\":\"1234.57\","
+				+ "\"2010-01-02T12:00:00.000+05:30\":\"-10\","
+				+ "\"2010-01-03T12:00:00.000+05:30\":\"0.50\","
+				+ "\"2010-01-04T12:00:00.000+05:30\":\"UP\"}", out.toString());
+
+		out = new StringWriter();
+		ts.writeJson(out, 0);
+
+		assertEquals("{\"2010-01-01T12:00:00.000+05:30\":\"1235\","
+				+ "\"2010-01-02T12:00:00.000+05:30\":\"-10\","
+				+ "\"2010-01-03T12:00:00.000+05:30\":\"1\","
+				+ "\"2010-01-04T12:00:00.000+05:30\":\"UP\"}", out.toString());
+
+	}
+
+	@Test
+	public void testSegmentTimeseries() throws PCacheException
+	{
+
+		// Enough points to seal a few chunks, every other minute
+		long[] timestamps = new long[5000];
+		List<String> dataPoints = new ArrayList<String>();
+
+		for (int i=0; i<timestamps.length; i++) {
+			timestamps[i] = 1262304000000L + i * 120000L;
+			dataPoints.add(i % 7 == 0 ? null : String.valueOf(i));
+		}
+
+		VariableTimeseries treeMapTs = new VariableTimeseries(timestamps, 
+				dataPoints, StoreType.TREEMAP);
+		VariableTimeseries segmentTs = new VariableTimeseries(timestamps, 
+				dataPoints, StoreType.SEGMENT);
+
+		// Into, out of and before the sealed chunks
+		long[] toAdd = new long[] { 1262304060000L, 1262304000000L - 60000L, 
+				1262304000000L + 4000 * 120000L + 60000L };
+		long[] toUpdate = new long[] { 1262304000000L + 120000L };
+		long[] toRemove = new long[] { 1262304000000L + 2000 * 120000L,
+				1262304000000L + 4999 * 120000L };
+
+		List<String> added = new ArrayList<String>() {{
+			add("A"); add("B"); add("C");
+		}};
+		List<String> updated = new ArrayList<String>() {{ add("U"); }};
+
+		for (VariableTimeseries ts : new VariableTimeseries[] { treeMapTs, 
+				segmentTs }) {
+			ts.addPoints(toAdd, added);
+			ts.updatePoints(toUpdate, updated);
+			ts.removePoints(toRemove);
+		}
+
+		assertEquals(treeMapTs.size(), segmentTs.size());
+		assertEquals(treeMapTs.toJson(), segmentTs.toJson());
+
+		long from = 1262304000000L + 1000 * 120000L + 1;
+		long to = 1262304000000L + 3100 * 120000L;
+
+		assertEquals(treeMapTs.getRangeBetween(from, to).toJson(), 
+				segmentTs.getRangeBetween(from, to).toJson());
+
+		segmentTs.release();
+		assertEquals(0, segmentTs.size());
+
+	}
+
+	@Test
+	public void testSegmentTimeseriesReuse() throws PCacheException
+	{
+
+		Random random = new Random(7);
+		long usedBefore = SegmentAllocator.getUsedBytes();
+
+		List<VariableTimeseries> kept = new ArrayList<>();
+		List<String> keptJson = new ArrayList<>();
+
+		// Series' of all sizes come and go, every 10th one stays and the
+		// ones after it are cut out of the holes the ones before it left
+		for (int i=0; i<200; i++) {
+
+			long[] timestamps = new long[1 + random.nextInt(5000)];
+			List<String> dataPoints = new ArrayList<>();
+
+			for (int j=0; j<timestamps.length; j++) {
+				timestamps[j] = 1262304000000L + j * 1000L;
+				dataPoints.add(String.valueOf(random.nextInt(1000)));
+			}
+
+			VariableTimeseries ts = new VariableTimeseries(timestamps,
+					dataPoints, StoreType.SEGMENT);
+
+			if (i % 10 == 0) {
+				kept.add(ts);
+				keptJson.add(new VariableTimeseries(timestamps, dataPoints,
+						StoreType.TREEMAP).toJson());
+			}
+
+			else {
+				ts.release();
+			}
+		}
+
+		// Nothing was cut out of the bytes of a chunk still in use
+		for (int i=0; i<kept.size(); i++) {
+			assertEquals(keptJson.get(i), kept.get(i).toJson());
+			kept.get(i).release();
+		}
+
+		assertEquals(usedBefore, SegmentAllocator.getUsedBytes());
+
+	}
+
+	@Test
+	public void testSegmentTimeseriesCompression() throws PCacheException
+	{
+
+		// A reading a minute that changes every now and then
+		long[] timestamps = new long[10240];
+		List<String> wholeNos = new ArrayList<String>();
+		List<String> decimals = new ArrayList<String>();
+
+		for (int i=0; i<timestamps.length; i++) {
+			timestamps[i] = 1262304000000L + i * 60000L;
+			wholeNos.add(String.valueOf(20 + i / 60));
+			decimals.add(String.valueOf(20 + (i / 60) * 0.5));
+		}
+
+		@SuppressWarnings("unchecked")
+		List<List<String>> dataPointsList = Arrays.asList(wholeNos, decimals);
+
+		for (List<String> dataPoints : dataPointsList) {
+
+			long usedBefore = SegmentAllocator.getUsedBytes();
+
+			VariableTimeseries ts = new VariableTimeseries(timestamps, 
+					dataPoints, StoreType.SEGMENT);
+			VariableTimeseries treeMapTs = new VariableTimeseries(timestamps, 
+					dataPoints, StoreType.TREEMAP);
+
+			assertTrue((SegmentAllocator.getUsedBytes() - usedBefore) 
+					< timestamps.length * 1.5);
+			assertEquals(treeMapTs.toJson(), ts.toJson());
+
+			ts.release();
+		}
+
+	}
+
+	@Test
+	public void testRegularTimeseries() throws PCacheException
+	{
+
+		// Every 5 minutes, with a few ticks missing
+		long[] timestamps = new long[200];
+		List<String> dataPoints = new ArrayList<String>();
+
+		for (int i=0; i<timestamps.length; i++) {
+			timestamps[i] = 1262304000000L + (i + i / 10) * 300000L;
+			dataPoints.add(String.valueOf(i));
+		}
+
+		VariableTimeseries treeMapTs = new VariableTimeseries(timestamps, 
+				dataPoints, StoreType.TREEMAP);
+		VariableTimeseries regularTs = new VariableTimeseries(timestamps, 
+				dataPoints, StoreType.REGULAR);
+
+		// Before the first tick, the first tick and one off the interval
+		long[] toRemove = new long[] { timestamps[0], timestamps[1] };
+		long[] toAdd = new long[] { timestamps[0] - 600000L };
+
+		for (VariableTimeseries ts : new VariableTimeseries[] { treeMapTs, 
+				regularTs }) {
+			ts.removePoints(toRemove);
+			ts.addPoints(toAdd, new ArrayList<String>() {{ add("A"); }});
+		}
+
+		assertEquals(StoreType.REGULAR, regularTs.getStoreType());
+		assertEquals(treeMapTs.toJson(), regularTs.toJson());
+
+		long from = timestamps[20] + 1;
+		long to = timestamps[150] - 1;
+
+		assertEquals(treeMapTs.getRangeBetween(from, to).toJson(), 
+				regularTs.getRangeBetween(from, to).toJson());
+
+		long[] offInterval = new long[] { timestamps[50] + 1000L };
+
+		for (VariableTimeseries ts : new VariableTimeseries[] { treeMapTs, 
+				regularTs }) {
+			ts.addPoints(offInterval, new ArrayList<String>() {{ add("B"); }});
+		}
+
+		assertEquals(StoreType.COLUMNAR, regularTs.getStoreType());
+		assertEquals(treeMapTs.toJson(), regularTs.toJson());
+
+	}
+
+	@Test
+	public void testTickTimeseries() throws PCacheException
+	{
+
+		// Minute bars, every 7th one missing
+		List<String> timestamps = new ArrayList<String>();
+		List<String> dataPoints = new ArrayList<String>();
+		List<String> ticks = new ArrayList<String>();
+
+		for (int i=0; i<100; i++) {
+
+			String value = i % 7 == 3 ? "" : String.valueOf(i * 0.5);
+			ticks.add(value);
+
+			if (!value.isEmpty()) {
+				timestamps.add(Commons.convertMilisToISO8601(1262304000000L 
+						+ i * 60000L, Commons.extractISO8601Zone(
+								"2010-01-01T05:30:00.000+05:30")));
+				dataPoints.add(value);
+			}
+		}
+
+		RegularTimeseries ts = new RegularTimeseries(
+				"2010-01-01T05:30:00.000+05:30", 60000L, ticks);
+		VariableTimeseries treeMapTs = new VariableTimeseries(timestamps, 
+				dataPoints);
+
+		assertEquals(StoreType.TICK, ts.getStoreType());
+		assertEquals(treeMapTs.size(), ts.size());
+		assertEquals(treeMapTs.toJson(), ts.toJson());
+
+		// A gap and a point
+		assertNull(ts.getOne("2010-01-01T05:33:00.000+05:30"));
+		assertEquals("2.5", ts.getOne("2010-01-01T05:35:00.000+05:30"));
+
+		assertEquals(treeMapTs.getRangeBetween(1262304000000L + 10 * 60000L + 1,
+				1262304000000L + 80 * 60000L).toJson(), 
+				ts.getRangeBetween(1262304000000L + 10 * 60000L + 1, 
+						1262304000000L + 80 * 60000L).toJson());
+
+		// Off the interval, before the start, and not a number
+		long[][] rejected = new long[][] { 
+				{ 1262304000000L + 1000L }, 
+				{ 1262304000000L - 60000L }, 
+				{ 1262304000000L + 3 * 60000L } };
+		String[] values = new String[] { "1", "1", "A" };
+
+		for (int i=0; i<rejected.length; i++) {
+
+			try {
+				ts.addPoints(rejected[i], Arrays.asList(values[i]));
+				fail("Point should be rejected");
+			}
+
+			catch (PCacheException ex) {
+				// Expected
+			}
+		}
+
+		// Fill the gap
+		ts.addPoints(new long[] { 1262304000000L + 3 * 60000L }, 
+				Arrays.asList("1.50"));
+
+		assertEquals("1.5", ts.getOne("2010-01-01T05:33:00.000+05:30"));
+		assertEquals(treeMapTs.size() + 1, ts.size());
+
+	}
+
+	@Test
+	public void testTickTimeseriesRetention() throws PCacheException
+	{
+
+		// Second ticks, of which the last 1000 are kept
+		long start = 1262304000000L;
+		RegularTimeseries ts = new RegularTimeseries(
+				"2010-01-01T00:00:00.000Z", 1000L, new ArrayList<String>());
+		VariableTimeseries treeMapTs = new VariableTimeseries(new long[0],
+				new ArrayList<String>(), StoreType.TREEMAP);
+		long heapSize = 0;
+
+		for (int round=0; round<20; round++) {
+
+			long[] timestamps = new long[1000];
+			List<String> dataPoints = new ArrayList<String>();
+
+			for (int i=0; i<timestamps.length; i++) {
+				timestamps[i] = start + (round * 1000L + i) * 1000L;
+				dataPoints.add(String.valueOf(i * 0.5));
+			}
+
+			for (VariableTimeseries series : new VariableTimeseries[] { ts,
+					treeMapTs }) {
+				series.addPoints(timestamps, dataPoints);
+
+				if (round > 0) {
+					series.removeRange(start, timestamps[0] - 1);
+				}
+			}
+
+			assertEquals(1000, ts.size());
+
+			if (round == 1) {
+				heapSize = ts.heapSize();
+			}
+		}
+
+		// The slots of the points removed are dropped
+		assertTrue(ts.heapSize() <= heapSize);
+		assertEquals(treeMapTs.toJson(), ts.toJson());
+
+		// Before the points held, after the start
+		long[] before = new long[] { start + 5000L };
+
+		for (VariableTimeseries series : new VariableTimeseries[] { ts,
+				treeMapTs }) {
+			series.addPoints(before, Arrays.asList("1.5"));
+		}
+
+		assertEquals(treeMapTs.toJson(), ts.toJson());
+
+		// Too far from the points held
+		long far = start + (TickStore.MAX_SLOTS + 20000L) * 1000L;
+
+		try {
+			ts.addPoints(new long[] { far }, Arrays.asList("1"));
+			fail("Point should be rejected");
+		}
+
+		catch (PCacheException ex) {
+			assertTrue(ex.getMessage().contains("too far"));
+		}
+
+		// Once the others are gone, the grid is measured from it
+		ts.removeRange(start, far);
+		ts.addPoints(new long[] { far }, Arrays.asList("1"));
+
+		assertEquals(1, ts.size());
+		assertEquals("1.0", ts.getOne(Commons.convertMilisToISO8601(far,
+				Commons.extractISO8601Zone("2010-01-01T00:00:00.000Z"))));
+
+	}
+
+	@Test
+	public void testTypedTimeseries() throws Exception
+	{
+
+		long[] timestamps = new long[] { 1000L, 2000L, 3000L, 5000L };
+
+		for (StoreType storeType : StoreType.values()) {
+
+			if (storeType == StoreType.TICK) {
+				continue;
+			}
+
+			VariableTimeseries longTs = new VariableTimeseries(timestamps, 
+					Arrays.asList("1", "-2", "007", "4"), storeType, 
+					ValueType.LONG);
+			VariableTimeseries doubleTs = new VariableTimeseries(timestamps, 
+					Arrays.asList("1", "-2.50", "3e2", "4.25"), storeType, 
+					ValueType.DOUBLE);
+
+			assertEquals(ValueType.LONG, longTs.getValueType());
+			assertEquals("7", longTs.getRangeBetween(3000L, 3000L)
+					.read(new FirstValue()));
+			assertEquals("-2.5", doubleTs.getRangeBetween(2000L, 2000L)
+					.read(new FirstValue()));
+			assertEquals("300.0", doubleTs.getRangeBetween(2500L, 5000L)
+					.read(new FirstValue()));
+
+			// Nothing is put in if one of the values isn't of the type
+			try {
+				longTs.addPoints(new long[] { 6000L, 7000L }, 
+						Arrays.asList("6", "7.5"));
+				fail("LONG series took a double");
+			}
+
+			catch (PCacheException ex) {
+				assertEquals(4, longTs.size());
+			}
+
+			try {
+				doubleTs.updatePoints(new long[] { 1000L }, 
+						Arrays.asList((String) null));
+				fail("DOUBLE series took a null");
+			}
+
+			catch (PCacheException ex) {
+				// Expected
+			}
+
+			doubleTs.updatePoints(new long[] { 1000L }, Arrays.asList("1.5"));
+			assertEquals("1.5", doubleTs.getRangeBetween(0L, 1000L)
+					.read(new FirstValue()));
+
+			longTs.release();
+			doubleTs.release();
+		}
+
+		try {
+			new VariableTimeseries(timestamps, Arrays.asList("1", "2", "A", 
+					"4"), StoreType.COLUMNAR, ValueType.DOUBLE);
+			fail("DOUBLE series took a string");
+		}
+
+		catch (PCacheException ex) {
+			// Expected
+		}
+
+	}
+
+	@Test
+	public void testCursorNumbers() throws PCacheException, IOException
+	{
+
+		long[] timestamps = new long[5000];
+		List<String> dataPoints = new ArrayList<>();
+
+		for (int i=0; i<timestamps.length; i++) {
+			timestamps[i] = i * 1000L;
+			dataPoints.add(String.valueOf(i - 2500));
+		}
+
+		// Read every value both ways, and as the string it is written out as
+		CursorReader<String> reader = new CursorReader<String>() {
+
+			@Override
+			public String read(TimeseriesCursor cursor) {
+
+				long longs = 0;
+				double doubles = 0;
+				long parsed = 0;
+
+				while (cursor.next()) {
+					longs += cursor.longValue();
+					doubles += cursor.doubleValue();
+					parsed += Long.parseLong(cursor.value());
+				}
+
+				return longs + " " + doubles + " " + parsed;
+			}
+		};
+
+		for (StoreType storeType : new StoreType[] { StoreType.TREEMAP,
+				StoreType.COLUMNAR, StoreType.SEGMENT, StoreType.REGULAR }) {
+
+			VariableTimeseries ts = new VariableTimeseries(timestamps,
+					dataPoints, storeType, ValueType.LONG);
+
+			assertEquals(storeType.toString(), "-2500 -2500.0 -2500",
+					ts.read(reader));
+
+			ts.release();
+		}
+
+		VariableTimeseries ts = new VariableTimeseries(timestamps,
+				new ArrayList<String>() {{
+					for (int i=0; i<5000; i++) {
+						add(i + ".5");
+					}
+				}}, StoreType.SEGMENT, ValueType.DOUBLE);
+
+		try {
+			ts.read(reader);
+			fail("1.5 read as a long");
+		}
+
+		catch (NumberFormatException ex) {
+			// Expected
+		}
+
+		ts.release();
+
+	}
+
+	@Test
+	public void testStoreAppendAll() throws PCacheException
+	{
+
+		int count = 5000;
+		long[] timestamps = new long[count];
+		String[] timestampsISO8601 = new String[count];
+		String[] values = new String[count];
+		long[] longValues = new long[count];
+
+		for (int i=0; i<count; i++) {
+			timestamps[i] = i * 1000L;
+			values[i] = String.valueOf(i % 97);
+			longValues[i] = i % 97;
+		}
+
+		timestampsISO8601[0] = "1970-01-01T05:30:00.000+05:30";
+
+		for (ValueType valueType : new ValueType[] { ValueType.STRING,
+				ValueType.LONG }) {
+
+			for (StoreType storeType : new StoreType[] { StoreType.TREEMAP,
+					StoreType.COLUMNAR, StoreType.SEGMENT, StoreType.REGULAR }) {
+
+				TimeseriesStore put = storeType.newStore(valueType);
+				TimeseriesStore appended = storeType.newStore(valueType);
+
+				for (int i=0; i<count; i++) {
+					put.put(timestamps[i], timestampsISO8601[i], values[i]);
+				}
+
+				// In runs that cut across the chunks of a SEGMENT store
+				for (int from=0; from<count; from+=1300) {
+
+					int length = Math.min(1300, count - from);
+
+					// Numbers that come in as numbers are copied over as such
+					ValueArray run = valueType == ValueType.LONG
+							? ValueArray.of(Arrays.copyOfRange(longValues,
+									from, from + length))
+							: ValueArray.of(Arrays.copyOfRange(values, from,
+									from + length));
+
+					appended.appendAll(
+							Arrays.copyOfRange(timestamps, from, from + length),
+							Arrays.copyOfRange(timestampsISO8601, from,
+									from + length), run, length);
+				}
+
+				String name = storeType + " " + valueType;
+
+				assertEquals(name, count, appended.size());
+
+				TimeseriesCursor expected = put.cursor();
+				TimeseriesCursor actual = appended.cursor();
+
+				while (expected.next()) {
+					assertTrue(name, actual.next());
+					assertEquals(name, expected.timestampISO8601(),
+							actual.timestampISO8601());
+					assertEquals(name, expected.value(), actual.value());
+				}
+
+				assertFalse(name, actual.next());
+
+				put.release();
+				appended.release();
+			}
+		}
+
+	}
+
+	/**
+	 * Reads the value of the first point
+	 */
+	private static class FirstValue implements CursorReader<String> {
+
+		@Override
+		public String read(TimeseriesCursor cursor) {
+			return cursor.next() ? cursor.value() : null;
+		}
+	}
+
+	@Test
+	public void testAdaptiveTimeseries() throws PCacheException
+	{
+
+		long[] timestamps = new long[2000];
+		List<String> dataPoints = new ArrayList<String>();
+
+		for (int i=0; i<timestamps.length; i++) {
+			timestamps[i] = 1262304000000L + i * 60000L;
+			dataPoints.add(String.valueOf(i % 100));
+		}
+
+		VariableTimeseries ts = new VariableTimeseries(timestamps, dataPoints,
+				StoreType.AUTO);
+		String json = new VariableTimeseries(timestamps, dataPoints, 
+				StoreType.TREEMAP).toJson();
+
+		assertTrue(ts.isAdaptive());
+		assertEquals(StoreType.COLUMNAR, ts.getStoreType());
+
+		// Just written to, and at a regular interval
+		assertEquals(StoreType.REGULAR, ts.adapt());
+		assertEquals(json, ts.toJson());
+
+		// Left alone since
+		assertEquals(StoreType.SEGMENT, ts.adapt());
+		assertEquals(json, ts.toJson());
+
+		ts.addPoints(new long[] { timestamps[0] + 1000L }, 
+				new ArrayList<String>() {{ add("1"); }});
+
+		assertEquals(StoreType.COLUMNAR, ts.adapt());
+		assertEquals(2001, ts.size());
+
+		ts.release();
+
+	}
+
+	@Test
+	public void testAdaptiveTimeseriesGaps() throws PCacheException
+	{
+
+		// The second tick is missing, the step is the one of the rest
+		long[] timestamps = new long[500];
+		List<String> dataPoints = new ArrayList<String>();
+
+		for (int i=0; i<timestamps.length; i++) {
+			timestamps[i] = 1262304000000L + (i == 0 ? 0 : i + 1) * 1000L;
+			dataPoints.add(String.valueOf(i));
+		}
+
+		VariableTimeseries ts = new VariableTimeseries(timestamps, dataPoints,
+				StoreType.AUTO);
+		String json = new VariableTimeseries(timestamps, dataPoints, 
+				StoreType.TREEMAP).toJson();
+
+		assertEquals(StoreType.REGULAR, ts.adapt());
+		assertEquals(json, ts.toJson());
+
+		// A point between 2 ticks makes the grid finer
+		ts.addPoints(new long[] { timestamps[5] + 500L }, 
+				Arrays.asList("0.5"));
+
+		assertEquals(StoreType.REGULAR, ts.adapt());
+		assertEquals(501, ts.size());
+		assertEquals("0.5", ts.getOne(Commons.convertMilisToISO8601(
+				timestamps[5] + 500L, null)));
+
+		// Dense as a whole, too sparse at the start to be put in in order
+		timestamps = new long[1001];
+		dataPoints.clear();
+
+		for (int i=0; i<timestamps.length; i++) {
+			timestamps[i] = 1262304000000L + (i == 0 ? 0 : i + 100) * 1000L;
+			dataPoints.add(String.valueOf(i));
+		}
+
+		VariableTimeseries sparse = new VariableTimeseries(timestamps, 
+				dataPoints, StoreType.AUTO);
+		json = sparse.toJson();
+
+		assertEquals(StoreType.COLUMNAR, sparse.adapt());
+		assertEquals(json, sparse.toJson());
+
+		ts.release();
+		sparse.release();
+
+	}
+
+	@Test
+	public void testRangeViewUnderAppends() throws Exception
+	{
+		final VariableTimeseries ts = new VariableTimeseries(new long[] { 0 }, 
+				Arrays.asList("0"), StoreType.TREEMAP);
+		final VariableTimeseries view = ts.getRangeBetween(0, Long.MAX_VALUE);
+		final List<Throwable> failures = Collections.synchronizedList(
+				new ArrayList<Throwable>());
+
+		// Points go into the tail, and reading the series puts them into the
+		// store the view walks
+		Thread appender = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+
+				try {
+					for (int i=1; i<=20000; i++) {
+						ts.addPoints(new long[] { i }, 
+								Arrays.asList(String.valueOf(i)));
+						ts.size();
+					}
+				}
+
+				catch (Throwable ex) {
+					failures.add(ex);
+				}
+			}
+		});
+
+		appender.start();
+
+		while (appender.isAlive()) {
+			view.writeJson(new StringWriter());
+		}
+
+		appender.join();
+
+		assertEquals(failures.toString(), 0, failures.size());
+		assertEquals(20001, view.size());
+	}
+
+	@Test
+	public void testParseDuration() throws PCacheException
+	{
+		assertEquals(60000L, Commons.parseDuration("60000"));
+		assertEquals(500L, Commons.parseDuration("500ms"));
+		assertEquals(60000L, Commons.parseDuration("1m"));
+		assertEquals(86400000L, Commons.parseDuration(" 1D "));
+
+		for (String invalid : new String[] { "-1s", "1w", "", 
+				Long.MAX_VALUE + "d" }) {
+
+			try {
+				Commons.parseDuration(invalid);
+				fail(invalid);
+			}
+
+			catch (PCacheException ex) {
+				// Expected
+			}
+		}
+	}
+
 }
@@ -0,0 +1,222 @@
+package test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import main.com.pcache.DO.timeseries.store.Adjustment;
+import main.com.pcache.DO.timeseries.store.StoreType;
+import main.com.pcache.DO.timeseries.store.ValueType;
+import main.com.pcache.engines.Snapshot;
+import main.com.pcache.engines.VariableTimeseriesEngine;
+import main.com.pcache.engines.WriteAheadLog;
+import main.com.pcache.utils.Commons;
+
+import org.junit.Test;
+
+
+public class WriteAheadLogTest
+{
+
+	@Test
+	public void test_replay_ok() throws Exception
+	{
+
+		File file = File.createTempFile("pcache", ".wal");
+		file.deleteOnExit();
+
+		WriteAheadLog wal = new WriteAheadLog(file, 10);
+		VariableTimeseriesEngine.recover(wal);
+
+		List<String> timestamps = Arrays.asList(
+				"2010-01-01T12:00:00.000+05:30", 
+				"2010-01-02T12:00:00.000+05:30");
+
+		long id = VariableTimeseriesEngine.allocate(timestamps, 
+				Arrays.asList("1", "2"));
+		VariableTimeseriesEngine.addPoints(id, 
+				Arrays.asList("2010-01-03T12:00:00.000+05:30"), 
+				Arrays.asList("3"));
+		VariableTimeseriesEngine.modifyPoints(id, 
+				Arrays.asList("2010-01-01T12:00:00.000+05:30"), 
+				Arrays.asList("UP"));
+		VariableTimeseriesEngine.removePoints(id, 
+				Arrays.asList("2010-01-02T12:00:00.000+05:30"));
+		VariableTimeseriesEngine.upsertPoints(id, 
+				Arrays.asList("2010-01-03T12:00:00.000+05:30",
+						"2010-01-04T12:00:00.000+05:30"), 
+				Arrays.asList("DOWN", "4"));
+
+		long columnarId = VariableTimeseriesEngine.allocate(
+				new long[] { 1000L, 2000L }, Arrays.asList("a", "b"), 
+				StoreType.COLUMNAR);
+		VariableTimeseriesEngine.removePoints(columnarId, new long[] { 1000L });
+		VariableTimeseriesEngine.setRetention(columnarId, 60000L, 5);
+
+		long regularId = VariableTimeseriesEngine.allocateRegular(
+				"2010-01-01T12:00:00.000+05:30", 60000L, 
+				Arrays.asList("1", null, "2"));
+		VariableTimeseriesEngine.addPoints(regularId, 
+				Arrays.asList("2010-01-01T12:01:00.000+05:30"), 
+				Arrays.asList("1.5"));
+		VariableTimeseriesEngine.setRollups(regularId, 
+				new long[] { 3600000L, 60000L });
+		VariableTimeseriesEngine.removeRange(regularId, 0L, 
+				Commons.convertISO8601toMilis("2010-01-01T12:00:00.000+05:30"));
+		VariableTimeseriesEngine.adjustRange(regularId, Long.MIN_VALUE,
+				Long.MAX_VALUE, Adjustment.SCALE, 2);
+
+		long deallocatedId = VariableTimeseriesEngine.allocate(timestamps, 
+				Arrays.asList("1", "2"));
+		VariableTimeseriesEngine.deallocate(deallocatedId);
+
+		String json = VariableTimeseriesEngine.getAll(id).toJson();
+		String columnarJson = VariableTimeseriesEngine.getAll(columnarId).toJson();
+		String regularJson = VariableTimeseriesEngine.getAll(regularId).toJson();
+
+		wal.close();
+
+		// A record the crash cut short
+		FileOutputStream out = new FileOutputStream(file, true);
+		out.write(new byte[] { 0, 0, 0, 42, 1, 2 });
+		out.close();
+
+		long walLength = file.length();
+
+		VariableTimeseriesEngine.deallocate(id);
+		VariableTimeseriesEngine.deallocate(columnarId);
+		VariableTimeseriesEngine.deallocate(regularId);
+
+		wal = new WriteAheadLog(file, 10);
+		assertEquals(15, VariableTimeseriesEngine.recover(wal));
+		wal.close();
+
+		assertEquals(json, VariableTimeseriesEngine.getAll(id).toJson());
+		assertEquals(columnarJson, 
+				VariableTimeseriesEngine.getAll(columnarId).toJson());
+		assertEquals(regularJson, 
+				VariableTimeseriesEngine.getAll(regularId).toJson());
+		assertArrayEquals(new long[] { 60000L, 3600000L }, 
+				VariableTimeseriesEngine.getRollups(regularId));
+		assertEquals(60000L, 
+				VariableTimeseriesEngine.getRetention(columnarId).getMaxAge());
+		assertEquals(5, 
+				VariableTimeseriesEngine.getRetention(columnarId).getMaxPoints());
+		assertEquals(walLength - 6, file.length());
+
+		VariableTimeseriesEngine.deallocate(id);
+		VariableTimeseriesEngine.deallocate(columnarId);
+		VariableTimeseriesEngine.deallocate(regularId);
+
+	}
+
+	@Test
+	public void test_replay_largeAdjust() throws Exception
+	{
+
+		File file = File.createTempFile("pcache", ".wal");
+		file.deleteOnExit();
+
+		WriteAheadLog wal = new WriteAheadLog(file, 10);
+		VariableTimeseriesEngine.recover(wal);
+
+		long[] timestamps = new long[150000];
+		List<String> dataPoints = new ArrayList<String>();
+
+		for (int i=0; i<timestamps.length; i++) {
+			timestamps[i] = 1000L * (i + 1);
+			dataPoints.add(String.valueOf(i));
+		}
+
+		long id = VariableTimeseriesEngine.allocate(timestamps, dataPoints,
+				StoreType.COLUMNAR, ValueType.LONG);
+		VariableTimeseriesEngine.adjustRange(id, Long.MIN_VALUE,
+				Long.MAX_VALUE, Adjustment.SHIFT, 5);
+
+		String json = VariableTimeseriesEngine.getAll(id).toJson();
+
+		wal.close();
+		VariableTimeseriesEngine.deallocate(id);
+
+		// The allocation and the adjusted points, a few at a time
+		wal = new WriteAheadLog(file, 10);
+		assertEquals(4, VariableTimeseriesEngine.recover(wal));
+		wal.close();
+
+		assertEquals(json, VariableTimeseriesEngine.getAll(id).toJson());
+
+		VariableTimeseriesEngine.deallocate(id);
+
+	}
+
+	@Test
+	public void test_snapshot_restore_ok() throws Exception
+	{
+
+		File file = File.createTempFile("pcache", ".snapshot");
+		file.deleteOnExit();
+
+		long id = VariableTimeseriesEngine.allocate(Arrays.asList(
+				"2010-01-01T12:00:00.000+05:30", 
+				"2010-01-02T12:00:00.000Z"), Arrays.asList("1", null));
+		long columnarId = VariableTimeseriesEngine.allocate(
+				new long[] { 1000L, 2000L }, Arrays.asList("a", "b"), 
+				StoreType.COLUMNAR);
+		long regularId = VariableTimeseriesEngine.allocateRegular(
+				"2010-01-01T12:00:00.000+05:30", 60000L, 
+				Arrays.asList("1", "", "2.5"));
+		long doubleId = VariableTimeseriesEngine.allocate(
+				new long[] { 1000L, 2000L }, Arrays.asList("1", "2.50"), 
+				StoreType.AUTO, ValueType.DOUBLE);
+		VariableTimeseriesEngine.setRollups(doubleId, new long[] { 1000L });
+		VariableTimeseriesEngine.expire(doubleId, 3600000L);
+
+		long expiresAt = VariableTimeseriesEngine.getRetention(doubleId)
+				.getExpiresAt();
+
+		String json = VariableTimeseriesEngine.getAll(id).toJson();
+		String columnarJson = VariableTimeseriesEngine.getAll(columnarId).toJson();
+		String regularJson = VariableTimeseriesEngine.getAll(regularId).toJson();
+		String doubleJson = VariableTimeseriesEngine.getAll(doubleId).toJson();
+
+		Snapshot snapshot = new Snapshot(file, null);
+		snapshot.take();
+
+		VariableTimeseriesEngine.deallocate(id);
+		VariableTimeseriesEngine.deallocate(columnarId);
+		VariableTimeseriesEngine.deallocate(regularId);
+		VariableTimeseriesEngine.deallocate(doubleId);
+
+		snapshot.restore(2);
+
+		assertEquals(json, VariableTimeseriesEngine.getAll(id).toJson());
+		assertEquals(columnarJson, 
+				VariableTimeseriesEngine.getAll(columnarId).toJson());
+		assertEquals(regularJson, 
+				VariableTimeseriesEngine.getAll(regularId).toJson());
+		assertEquals(StoreType.TICK, 
+				VariableTimeseriesEngine.getStoreType(regularId));
+		assertEquals(doubleJson, 
+				VariableTimeseriesEngine.getAll(doubleId).toJson());
+		assertEquals(ValueType.DOUBLE, 
+				VariableTimeseriesEngine.getValueType(doubleId));
+		assertTrue(VariableTimeseriesEngine.isAdaptive(doubleId));
+		assertArrayEquals(new long[] { 1000L }, 
+				VariableTimeseriesEngine.getRollups(doubleId));
+		assertEquals(expiresAt, 
+				VariableTimeseriesEngine.getRetention(doubleId).getExpiresAt());
+
+		VariableTimeseriesEngine.deallocate(id);
+		VariableTimeseriesEngine.deallocate(columnarId);
+		VariableTimeseriesEngine.deallocate(regularId);
+		VariableTimeseriesEngine.deallocate(doubleId);
+
+	}
+
+}